@@ -768,6 +768,7 @@ public class ClientEngineImpl implements ClientEngine {
 			}
 		}
 		((SoundManagerInternalAccess)SoundManager.obtain(context)).update();
+		((ResourceCacheInternalAccess)ResourceCache.obtain(context)).processUploads();
 		if (defaultAddon != null)
 			defaultAddon.preFrame(context);
 
@@ -24,11 +24,13 @@ import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.playsawdust.chipper.component.Context;
 import com.playsawdust.chipper.network.Connection;
+import com.playsawdust.chipper.toolbox.lipstick.MonotonicTime;
 
 public class ClientNetworkThread extends Thread {
 	private static final Logger log = LoggerFactory.getLogger(ClientNetworkThread.class);
@@ -39,6 +41,7 @@ public class ClientNetworkThread extends Thread {
 	private final Selector selector;
 
 	private final Connection conn;
+	private final SelectionKey tcpKey;
 
 	private ByteBuffer buffer;
 
@@ -53,7 +56,7 @@ public class ClientNetworkThread extends Thread {
 			// (Undefined behavior? In my Java!? It's more likely than you'd think!)
 			udpChannel.setOption(IP_TOS, IPTOS_LOWDELAY);
 		}
-		tcpChannel.register(selector, OP_READ);
+		tcpKey = tcpChannel.register(selector, OP_READ);
 		udpChannel.register(selector, OP_READ);
 		setDaemon(true);
 		setName("Network thread");
@@ -70,7 +73,13 @@ public class ClientNetworkThread extends Thread {
 			buffer = memAlloc(8*1024).order(ByteOrder.BIG_ENDIAN);
 			while (run) {
 				try {
-					selector.select();
+					long deadline = conn.getWriteDeadline();
+					if (deadline == Long.MAX_VALUE) {
+						selector.select();
+					} else {
+						// wake up in time to retransmit, even if nothing arrives
+						selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline-MonotonicTime.nanos())));
+					}
 				} catch (IOException e) {
 					log.warn("Select failed", e);
 					continue;
@@ -85,7 +94,7 @@ public class ClientNetworkThread extends Thread {
 								if (src == null) continue;
 								buffer.flip();
 								log.debug("Read {} bytes from UDP {}:{}", buffer.limit(), src.getAddress().getHostAddress(), src.getPort());
-								conn.feedImmediate(buffer);
+								conn.feedImmediate(src, buffer);
 							} catch (IOException e) {
 								log.warn("UDP receive failed", e);
 								continue;
@@ -114,7 +123,11 @@ public class ClientNetworkThread extends Thread {
 						}
 					}
 				}
+				selector.selectedKeys().clear();
 				conn.writePending();
+				if (tcpKey.isValid()) {
+					tcpKey.interestOps((conn.wantsRead() ? OP_READ : 0) | (conn.wantsWrite() ? OP_WRITE : 0));
+				}
 			}
 		} catch (Throwable t) {
 			log.error("Error in network thread", t);
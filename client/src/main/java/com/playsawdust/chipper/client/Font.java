@@ -13,14 +13,21 @@ import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL12.*;
 import static org.lwjgl.system.MemoryUtil.*;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.text.Normalizer;
 import java.text.Normalizer.Form;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
 import java.util.PrimitiveIterator;
 import java.util.concurrent.CopyOnWriteArraySet;
+import org.checkerframework.checker.guieffect.qual.UIEffect;
+import org.lwjgl.opengl.ARBVertexBufferObject;
+import org.lwjgl.opengl.GL;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,6 +37,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
 import com.playsawdust.chipper.AbstractNativeResource;
 import com.playsawdust.chipper.Identifier;
 import com.playsawdust.chipper.PUAChars;
@@ -40,6 +48,7 @@ import com.playsawdust.chipper.client.component.ResourceCache;
 import com.playsawdust.chipper.img.BufferedImage;
 import com.playsawdust.chipper.math.ProtoColor;
 import com.playsawdust.chipper.math.RectI;
+import com.playsawdust.chipper.resource.DecodedCache;
 
 import com.playsawdust.chipper.toolbox.concurrent.SharedThreadPool;
 import com.playsawdust.chipper.toolbox.lipstick.MonotonicTime;
@@ -130,50 +139,30 @@ public class Font extends AbstractNativeResource {
 			this.height = height;
 		}
 
-		public void draw(Font font, double r, double g, double b, double a) {
-			glBindTexture(GL_TEXTURE_2D, block.textureId);
+		/**
+		 * Add this glyph's quads, with its top-left corner at the given position, to the font's
+		 * runs for the next draw.
+		 */
+		public void emit(Font font, float x, float y) {
 			float minU = u/(float)block.width;
 			float minV = v/(float)block.height;
 			float maxU = (u+width)/(float)block.width;
 			float maxV = (v+height)/(float)block.height;
-			if (!colored) {
-				glColor4d(r, g, b, a);
-			} else {
-				glColor4d(1, 1, 1, a);
-			}
-			glBegin(GL_QUADS);
-				for (int i = 0; i < (bold ? 2 : 1); i++) {
-					glTexCoord2f(minU, minV);
-					glVertex2f(i, 0);
-					glTexCoord2f(maxU, minV);
-					glVertex2f(width+i, 0);
-					glTexCoord2f(maxU, maxV);
-					glVertex2f(width+i, height);
-					glTexCoord2f(minU, maxV);
-					glVertex2f(i, height);
-				}
-			glEnd();
-			if (overline || underline) {
-				glDisable(GL_TEXTURE_2D);
-			}
-			if (overline) {
-				glBegin(GL_QUADS);
-					glVertex2f(-font.lineExtend, font.overlineOffset);
-					glVertex2f(width+font.lineExtend+font.characterSpacing, font.overlineOffset);
-					glVertex2f(width+font.lineExtend+font.characterSpacing, font.overlineOffset+1);
-					glVertex2f(-font.lineExtend, font.overlineOffset+1);
-				glEnd();
-			}
-			if (underline) {
-				glBegin(GL_QUADS);
-					glVertex2f(-font.lineExtend, height-1+font.underlineOffset);
-					glVertex2f(width+font.lineExtend+font.characterSpacing, height-1+font.underlineOffset);
-					glVertex2f(width+font.lineExtend+font.characterSpacing, height+font.underlineOffset);
-					glVertex2f(-font.lineExtend, height+font.underlineOffset);
-				glEnd();
+			QuadRun run = font.getRun(block, colored);
+			for (int i = 0; i < (bold ? 2 : 1); i++) {
+				run.add(x+i, y, x+width+i, y+height, minU, minV, maxU, maxV);
 			}
 			if (overline || underline) {
-				glEnable(GL_TEXTURE_2D);
+				// lines take the glyph's color, so colored glyphs get white lines
+				QuadRun lines = font.getRun(null, colored);
+				float minX = x-font.lineExtend;
+				float maxX = x+width+font.lineExtend+font.characterSpacing;
+				if (overline) {
+					lines.add(minX, y+font.overlineOffset, maxX, y+font.overlineOffset+1, 0, 0, 0, 0);
+				}
+				if (underline) {
+					lines.add(minX, y+height-1+font.underlineOffset, maxX, y+height+font.underlineOffset, 0, 0, 0, 0);
+				}
 			}
 		}
 
@@ -190,7 +179,7 @@ public class Font extends AbstractNativeResource {
 		}
 
 		@Override
-		public void draw(Font font, double r, double g, double b, double a) {}
+		public void emit(Font font, float x, float y) {}
 	}
 
 	private static class Newline extends Glyph {
@@ -199,7 +188,35 @@ public class Font extends AbstractNativeResource {
 		}
 
 		@Override
-		public void draw(Font font, double r, double g, double b, double a) {}
+		public void emit(Font font, float x, float y) {}
+	}
+
+	/**
+	 * The quads to draw with one texture and color, as x, y, u, v for each corner.
+	 */
+	private static class QuadRun {
+		public final Block block;
+		public final boolean colored;
+		public float[] data = new float[16*32];
+		public int size;
+
+		public QuadRun(Block block, boolean colored) {
+			this.block = block;
+			this.colored = colored;
+		}
+
+		public void add(float minX, float minY, float maxX, float maxY, float minU, float minV, float maxU, float maxV) {
+			if (size+16 > data.length) {
+				data = Arrays.copyOf(data, data.length*2);
+			}
+			float[] d = data;
+			int i = size;
+			d[i++] = minX; d[i++] = minY; d[i++] = minU; d[i++] = minV;
+			d[i++] = maxX; d[i++] = minY; d[i++] = maxU; d[i++] = minV;
+			d[i++] = maxX; d[i++] = maxY; d[i++] = maxU; d[i++] = maxV;
+			d[i++] = minX; d[i++] = maxY; d[i++] = minU; d[i++] = maxV;
+			size = i;
+		}
 	}
 
 	private static class Block {
@@ -236,7 +253,31 @@ public class Font extends AbstractNativeResource {
 			if (loaded) return;
 			loading = true;
 			Stopwatch sw = font.lazy && log.isDebugEnabled() ? Stopwatch.createStarted() : null;
-			BufferedImage img = font.resourceCache.loadImage(font.prefix.child(name+".png"));
+			Identifier id = font.prefix.child(name+".png");
+			ByteBuffer data = font.resourceCache.slurpResourceBuffer(id);
+			DecodedCache dc = DecodedCache.getDefault();
+			HashCode key = null;
+			if (dc != null) {
+				// everything that affects the scan below goes in the key
+				key = DecodedCache.newKey("font-block", 1)
+						.putInt(font.defaultCharWidth)
+						.putInt(font.defaultCharHeight)
+						.putBoolean(font.proportional)
+						.putBoolean(font.noColorGlyphs)
+						.putBytes(data.duplicate())
+						.hash();
+				ByteBuffer cached = dc.get(key);
+				if (cached != null && readCached(font, cached.order(ByteOrder.LITTLE_ENDIAN))) {
+					loaded = true;
+					loading = false;
+					if (sw != null) {
+						sw.stop();
+						log.debug("Loaded block {} for font {} from cache in {}", name, font.name, sw);
+					}
+					return;
+				}
+			}
+			BufferedImage img = font.resourceCache.decodeImage(id, data);
 			int[] argbBuf = new int[img.getWidth()*img.getHeight()];
 			img.getARGB(0, 0, img.getWidth(), img.getHeight(), argbBuf, 0, img.getWidth());
 			for (int x = 0; x < 16; x++) {
@@ -279,6 +320,9 @@ public class Font extends AbstractNativeResource {
 			imgHeight = img.getHeight();
 			img.free();
 			this.argbBuf = argbBuf;
+			if (key != null) {
+				dc.put(key, writeCached());
+			}
 			loaded = true;
 			loading = false;
 			if (sw != null) {
@@ -287,6 +331,53 @@ public class Font extends AbstractNativeResource {
 			}
 		}
 
+		// laid out as: image width, image height, supported glyphs, color glyphs, glyph widths, pixels
+		private static final int CACHE_HEADER_SIZE = 4+4+32+32+(256*2);
+
+		private boolean readCached(Font font, ByteBuffer buf) {
+			if (buf.remaining() < CACHE_HEADER_SIZE) return false;
+			int w = buf.getInt();
+			int h = buf.getInt();
+			if (buf.remaining() != (CACHE_HEADER_SIZE-8)+(w*h*4L)) return false;
+			long[] bits = new long[4];
+			buf.asLongBuffer().get(bits);
+			buf.position(buf.position()+32);
+			BitSet supported = BitSet.valueOf(bits);
+			buf.asLongBuffer().get(bits);
+			buf.position(buf.position()+32);
+			supportedGlyphs.or(supported);
+			colorGlyphs.or(BitSet.valueOf(bits));
+			for (int i = 0; i < 256; i++) {
+				int glyphWidth = buf.getShort() & 0xFFFF;
+				if (font.proportional && supported.get(i)) {
+					widths.put(i, glyphWidth);
+				}
+			}
+			argbBuf = new int[w*h];
+			buf.asIntBuffer().get(argbBuf);
+			imgWidth = w;
+			imgHeight = h;
+			return true;
+		}
+
+		private ByteBuffer writeCached() {
+			ByteBuffer buf = ByteBuffer.allocate(CACHE_HEADER_SIZE+(argbBuf.length*4)).order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(imgWidth);
+			buf.putInt(imgHeight);
+			buf.asLongBuffer().put(Arrays.copyOf(supportedGlyphs.toLongArray(), 4));
+			buf.position(buf.position()+32);
+			buf.asLongBuffer().put(Arrays.copyOf(colorGlyphs.toLongArray(), 4));
+			buf.position(buf.position()+32);
+			for (int i = 0; i < 256; i++) {
+				Integer glyphWidth = widths == null ? null : widths.get(i);
+				buf.putShort((short)(glyphWidth == null ? 0 : glyphWidth));
+			}
+			buf.asIntBuffer().put(argbBuf);
+			buf.position(buf.capacity());
+			buf.flip();
+			return buf;
+		}
+
 		public void upload(Font font) {
 			if (!loaded) throw new IllegalStateException("Cannot upload before loading");
 			if (uploaded) return;
@@ -324,6 +415,17 @@ public class Font extends AbstractNativeResource {
 	private final int underlineOffset;
 
 	private final Block flagBlock;
+	// kept around until the flags are uploaded, if that was deferred
+	private int[] flagArgbBuf;
+	private int flagImgWidth;
+	private int flagImgHeight;
+
+	// render thread only {
+	// shared by every font, as they all draw into the same stencil buffer
+	private static int stencilRef = 0;
+	private final List<QuadRun> runs = Lists.newArrayList();
+	private FloatBuffer quadBuffer;
+	// }
 
 	private final Map<String, PreparedString> stringCache = Maps.newHashMap();
 	private final CopyOnWriteArraySet<String> badBlocks = new CopyOnWriteArraySet<>();
@@ -335,6 +437,17 @@ public class Font extends AbstractNativeResource {
 	 */
 	@Deprecated
 	public Font(ResourceCache cache, JsonObject meta, Identifier prefix) throws ResourceNotFoundException {
+		this(cache, meta, prefix, false);
+	}
+
+	/**
+	 * @deprecated <b>Do not call this constructor directly</b>. Use {@link ResourceCache#getFontAsync}.
+	 * @param deferUpload if true, only decode the font, without touching GL, so this may be called
+	 * 		from any thread; {@link #uploadNext} must then be called on the render thread until it
+	 * 		returns false before the font is used
+	 */
+	@Deprecated
+	public Font(ResourceCache cache, JsonObject meta, Identifier prefix, boolean deferUpload) throws ResourceNotFoundException {
 		this.resourceCache = cache;
 		this.prefix = prefix;
 		this.name = ((JsonPrimitive)meta.get("name")).asString();
@@ -381,7 +494,10 @@ public class Font extends AbstractNativeResource {
 			}
 			this.supportedFlags = supportedFlagsBldr.build();
 			flagBlock = new Block("flags", flagWidth*26, flagHeight*26);
-			flagBlock.textureId = uploadTexture(img, GL_RGBA8);
+			flagImgWidth = img.getWidth();
+			flagImgHeight = img.getHeight();
+			flagArgbBuf = new int[flagImgWidth*flagImgHeight];
+			img.getARGB(0, 0, flagImgWidth, flagImgHeight, flagArgbBuf, 0, flagImgWidth);
 			img.free();
 		} else {
 			this.flagWidth = 0;
@@ -398,7 +514,6 @@ public class Font extends AbstractNativeResource {
 			}
 			if (firstBlock) {
 				b.load(this);
-				b.upload(this);
 				firstBlock = false;
 			}
 			blocksBldr.put(block, b);
@@ -407,17 +522,34 @@ public class Font extends AbstractNativeResource {
 		if (!lazy) {
 			for (StandardBlock b : blocks.values()) {
 				b.load(this);
-				b.upload(this);
 			}
 		}
+		if (!deferUpload) {
+			while (uploadNext()) {}
+		}
 	}
 
-	private int uploadTexture(BufferedImage img, int format) {
-		int w = img.getWidth();
-		int h = img.getHeight();
-		int[] buf = new int[w*h];
-		img.getARGB(0, 0, w, h, buf, 0, w);
-		return uploadTexture(buf, w, h, format);
+	/**
+	 * Upload the next loaded but not yet uploaded part of this font to the GPU, such that a font
+	 * constructed with deferred uploads can be uploaded a little at a time. Must be called on the
+	 * render thread.
+	 * @return true if anything was uploaded, false if there was nothing left to upload
+	 */
+	@UIEffect
+	public boolean uploadNext() {
+		checkFreed();
+		if (flagArgbBuf != null) {
+			flagBlock.textureId = uploadTexture(flagArgbBuf, flagImgWidth, flagImgHeight, GL_RGBA8);
+			flagArgbBuf = null;
+			return true;
+		}
+		for (StandardBlock b : blocks.values()) {
+			if (b.loaded && !b.uploaded) {
+				b.upload(this);
+				return true;
+			}
+		}
+		return false;
 	}
 
 	private int uploadTexture(int[] buf, int w, int h, int format) {
@@ -659,45 +791,111 @@ public class Font extends AbstractNativeResource {
 	}
 
 	private void drawGlyphs(double x, double y, List<Glyph> glyphs, double r, double g, double b, double a) {
-		glPushMatrix();
-		glTranslated(x, y, 0);
+		for (QuadRun run : runs) {
+			run.size = 0;
+		}
+		float gx = 0;
+		float gy = 0;
+		int maxHeight = defaultCharHeight;
+		for (Glyph glyph : glyphs) {
+			maxHeight = Math.max(maxHeight, glyph.height);
+			if (glyph.height < defaultCharHeight) {
+				glyph.emit(this, gx, gy+(defaultCharHeight-glyph.height)/2f);
+			} else {
+				glyph.emit(this, gx, gy);
+			}
+			if (glyph instanceof Newline) {
+				gx = 0;
+				gy += maxHeight+lineSpacing;
+				maxHeight = defaultCharHeight;
+			} else {
+				gx += glyph.width+characterSpacing;
+			}
+		}
+		int floats = 0;
+		for (QuadRun run : runs) {
+			floats += run.size;
+		}
+		if (floats == 0) return;
+		if (quadBuffer == null || quadBuffer.capacity() < floats) {
+			quadBuffer = memRealloc(quadBuffer, Math.max(floats, quadBuffer == null ? 0 : quadBuffer.capacity()*2));
+		}
+		quadBuffer.clear();
+		// glyphs go before lines, so where they overlap the glyph wins, as it always has
+		for (QuadRun run : runs) {
+			if (run.block != null) quadBuffer.put(run.data, 0, run.size);
+		}
+		for (QuadRun run : runs) {
+			if (run.block == null) quadBuffer.put(run.data, 0, run.size);
+		}
+		quadBuffer.flip();
+
+		// each string only touches a pixel once, so overlapping quads (such as bold glyphs) don't
+		// blend twice; a new stencil value per string means the buffer only needs clearing once
+		// every 255 strings, rather than every time
+		if (stencilRef >= 0xFF) {
+			stencilRef = 0;
+			glClearStencil(0);
+			glClear(GL_STENCIL_BUFFER_BIT);
+		}
+		stencilRef++;
 		glPushMatrix();
 		try {
-			glEnable(GL_DEPTH_TEST);
+			glTranslated(x, y, 0);
+			glDisable(GL_DEPTH_TEST);
 			glEnable(GL_ALPHA_TEST);
-			glClearDepth(0);
-			glClear(GL_DEPTH_BUFFER_BIT);
-			glDepthFunc(GL_NOTEQUAL);
-			glEnable(GL_TEXTURE_2D);
-			int maxHeight = defaultCharHeight;
-			for (Glyph glyph : glyphs) {
-				if (glyph.height < defaultCharHeight) {
-					glPushMatrix();
-					glTranslatef(0, (defaultCharHeight-glyph.height)/2f, 0);
-				}
-				maxHeight = Math.max(maxHeight, glyph.height);
-				glyph.draw(this, r, g, b, a);
-				if (glyph.height < defaultCharHeight) {
-					glPopMatrix();
-				}
-				if (glyph instanceof Newline) {
-					glPopMatrix();
-					glTranslatef(0, maxHeight+lineSpacing, 0);
-					maxHeight = defaultCharHeight;
-					glPushMatrix();
+			glEnable(GL_STENCIL_TEST);
+			glStencilFunc(GL_NOTEQUAL, stencilRef, 0xFF);
+			glStencilOp(GL_KEEP, GL_KEEP, GL_REPLACE);
+			if (GL.getCapabilities().GL_ARB_vertex_buffer_object) {
+				ARBVertexBufferObject.glBindBufferARB(ARBVertexBufferObject.GL_ARRAY_BUFFER_ARB, 0);
+			}
+			glEnableClientState(GL_VERTEX_ARRAY);
+			glEnableClientState(GL_TEXTURE_COORD_ARRAY);
+			glVertexPointer(2, GL_FLOAT, 4*4, quadBuffer.position(0));
+			glTexCoordPointer(2, GL_FLOAT, 4*4, quadBuffer.position(2));
+			quadBuffer.position(0);
+			int first = 0;
+			for (int pass = 0; pass < 2; pass++) {
+				boolean lines = pass == 1;
+				if (lines) {
+					glDisable(GL_TEXTURE_2D);
 				} else {
-					glTranslatef(glyph.width+characterSpacing, 0, 0);
+					glEnable(GL_TEXTURE_2D);
+				}
+				for (QuadRun run : runs) {
+					if (run.size == 0 || (run.block == null) != lines) continue;
+					if (!lines) glBindTexture(GL_TEXTURE_2D, run.block.textureId);
+					if (run.colored) {
+						glColor4d(1, 1, 1, a);
+					} else {
+						glColor4d(r, g, b, a);
+					}
+					int count = run.size/4;
+					glDrawArrays(GL_QUADS, first, count);
+					first += count;
 				}
 			}
+			glDisableClientState(GL_TEXTURE_COORD_ARRAY);
+			glDisableClientState(GL_VERTEX_ARRAY);
 			glDisable(GL_TEXTURE_2D);
-			glDisable(GL_DEPTH_TEST);
+			glDisable(GL_STENCIL_TEST);
 			glDisable(GL_ALPHA_TEST);
 		} finally {
 			glPopMatrix();
-			glPopMatrix();
 		}
 	}
 
+	private QuadRun getRun(Block block, boolean colored) {
+		for (int i = 0; i < runs.size(); i++) {
+			QuadRun run = runs.get(i);
+			if (run.block == block && run.colored == colored) return run;
+		}
+		QuadRun run = new QuadRun(block, colored);
+		runs.add(run);
+		return run;
+	}
+
 	private List<Glyph> toGlyphs(String str) {
 		String normal = Normalizer.normalize(str, Form.NFC);
 		PrimitiveIterator.OfInt iter = normal.codePoints().iterator();
@@ -885,6 +1083,8 @@ public class Font extends AbstractNativeResource {
 		if (flagBlock != null) {
 			glDeleteTextures(flagBlock.textureId);
 		}
+		memFree(quadBuffer);
+		quadBuffer = null;
 	}
 
 }
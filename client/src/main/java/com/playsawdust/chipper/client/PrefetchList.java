@@ -0,0 +1,155 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.client;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.playsawdust.chipper.Identifier;
+import com.playsawdust.chipper.client.component.ResourceCache;
+import com.playsawdust.chipper.component.Context;
+
+/**
+ * An immutable list of resources to load ahead of time, such as everything a GameState needs, so
+ * that they're already in the {@link ResourceCache} by the time they're used.
+ * <p>
+ * A list can depend on other lists, which are warmed completely before any of its own resources
+ * are started; for instance, a level's list can depend on the list of the UI it's shown in, so
+ * the UI is ready first. Resources shared between lists are only ever loaded once.
+ * @see GameState#prefetch
+ */
+public final class PrefetchList {
+	private static final Logger log = LoggerFactory.getLogger(PrefetchList.class);
+
+	public static final PrefetchList EMPTY = builder().build();
+
+	private final ImmutableList<PrefetchList> dependencies;
+	private final ImmutableList<Identifier> textures;
+	private final ImmutableList<Identifier> fonts;
+	private final ImmutableList<Identifier> clips;
+	private final ImmutableList<Identifier> janksonObjects;
+
+	private PrefetchList(Builder b) {
+		this.dependencies = ImmutableList.copyOf(b.dependencies);
+		this.textures = ImmutableList.copyOf(b.textures);
+		this.fonts = ImmutableList.copyOf(b.fonts);
+		this.clips = ImmutableList.copyOf(b.clips);
+		this.janksonObjects = ImmutableList.copyOf(b.janksonObjects);
+	}
+
+	/**
+	 * Load everything in this list and the lists it depends on into the given cache, decoding on
+	 * worker threads and uploading between frames. Safe to call from any thread.
+	 * @return a future that completes once everything is loaded, or exceptionally if anything
+	 * 		failed to load
+	 */
+	public CompletableFuture<Void> warm(ResourceCache cache) {
+		CompletableFuture<?>[] deps = new CompletableFuture<?>[dependencies.size()];
+		for (int i = 0; i < deps.length; i++) {
+			deps[i] = dependencies.get(i).warm(cache);
+		}
+		return CompletableFuture.allOf(deps).thenCompose(v -> {
+			List<CompletableFuture<?>> futures = Lists.newArrayList();
+			for (Identifier id : textures) futures.add(cache.getTextureAsync(id));
+			for (Identifier id : fonts) futures.add(cache.getFontAsync(id));
+			for (Identifier id : clips) futures.add(cache.getClipAsync(id));
+			for (Identifier id : janksonObjects) futures.add(cache.getJanksonObjectAsync(id));
+			return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+		});
+	}
+
+	/**
+	 * Let the given GameState {@link GameState#prefetch prefetch} its resources in the background,
+	 * and then switch to it on the render thread. The current GameState keeps running in the
+	 * meantime. If anything fails to load, the switch happens anyway, so the GameState can deal
+	 * with it in setUp.
+	 * @param ctx the context
+	 * @param state the state to switch to
+	 * @return a future that completes once the switch has happened
+	 */
+	public static CompletableFuture<Void> switchToWhenReady(Context<ClientEngine> ctx, GameState state) {
+		ResourceCache rc = ResourceCache.obtain(ctx);
+		return state.prefetch(ctx).handleAsync((v, t) -> {
+			if (t != null) {
+				log.warn("Failed to prefetch resources for {}", state.getClass().getSimpleName(), t);
+			}
+			GameState.switchTo(ctx, state);
+			return null;
+		}, rc.getUploadExecutor());
+	}
+
+	public boolean isEmpty() {
+		return dependencies.isEmpty() && textures.isEmpty() && fonts.isEmpty() && clips.isEmpty() && janksonObjects.isEmpty();
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	public static final class Builder {
+		private final List<PrefetchList> dependencies = Lists.newArrayList();
+		private final List<Identifier> textures = Lists.newArrayList();
+		private final List<Identifier> fonts = Lists.newArrayList();
+		private final List<Identifier> clips = Lists.newArrayList();
+		private final List<Identifier> janksonObjects = Lists.newArrayList();
+
+		private Builder() {}
+
+		/**
+		 * Warm the given list completely before starting on anything in this one.
+		 */
+		public Builder dependsOn(PrefetchList list) {
+			dependencies.add(list);
+			return this;
+		}
+
+		/**
+		 * @see ResourceCache#getTexture
+		 */
+		public Builder texture(Identifier id) {
+			textures.add(id);
+			return this;
+		}
+
+		/**
+		 * @see ResourceCache#getFont
+		 */
+		public Builder font(Identifier id) {
+			fonts.add(id);
+			return this;
+		}
+
+		/**
+		 * @see ResourceCache#getClip
+		 */
+		public Builder clip(Identifier id) {
+			clips.add(id);
+			return this;
+		}
+
+		/**
+		 * @see ResourceCache#getJanksonObject
+		 */
+		public Builder janksonObject(Identifier id) {
+			janksonObjects.add(id);
+			return this;
+		}
+
+		public PrefetchList build() {
+			return new PrefetchList(this);
+		}
+	}
+
+}
@@ -0,0 +1,16 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.client;
+
+public abstract class ResourceCacheInternalAccess {
+
+	protected abstract void processUploads();
+
+}
@@ -0,0 +1,53 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.client.component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+import com.google.common.collect.Maps;
+import com.playsawdust.chipper.Identifier;
+
+/**
+ * Asynchronous loads in progress, so asking for something again while it's still loading shares
+ * the load that's already running instead of starting another. Thread safe.
+ */
+final class PendingLoads<T> {
+
+	private final ConcurrentMap<Identifier, CompletableFuture<T>> pending = Maps.newConcurrentMap();
+
+	/**
+	 * Join the load of the given resource that's in progress, or start one with the given loader
+	 * if there isn't one. Once a load finishes, the next call starts a new one.
+	 * @return a future that completes when the load does; each caller gets its own, so one caller
+	 * 		can't complete or cancel it out from under the others
+	 */
+	public CompletableFuture<T> dedupe(Identifier id, Supplier<CompletableFuture<T>> loader) {
+		CompletableFuture<T> future = pending.get(id);
+		if (future == null) {
+			CompletableFuture<T> ours = new CompletableFuture<>();
+			future = pending.putIfAbsent(id, ours);
+			if (future == null) {
+				future = ours;
+				loader.get().whenComplete((t, e) -> {
+					pending.remove(id, ours);
+					if (e != null) {
+						ours.completeExceptionally(e);
+					} else {
+						ours.complete(t);
+					}
+				});
+			}
+		}
+		return future.copy();
+	}
+
+}
@@ -9,18 +9,25 @@
 
 package com.playsawdust.chipper.client.component;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PushbackInputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.ShortBuffer;
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 import org.checkerframework.checker.guieffect.qual.UIEffect;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.system.NativeResource;
 import org.slf4j.Logger;
@@ -28,12 +35,17 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
 import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
 import com.playsawdust.chipper.Identifier;
 import com.playsawdust.chipper.client.ClientEngine;
 import com.playsawdust.chipper.client.Font;
+import com.playsawdust.chipper.client.ResourceCacheInternalAccess;
 import com.playsawdust.chipper.client.al.ALBuffer;
 import com.playsawdust.chipper.client.audio.OggOpusDecoder;
 import com.playsawdust.chipper.client.gl.GLCompileException;
@@ -41,36 +53,81 @@ import com.playsawdust.chipper.client.gl.GLShader;
 import com.playsawdust.chipper.client.gl.GLTexture2D;
 import com.playsawdust.chipper.client.gl.PixelFormat;
 import com.playsawdust.chipper.client.gl.GLShader.ShaderType;
+import com.playsawdust.chipper.collect.WeightedCache;
 import com.playsawdust.chipper.component.Component;
 import com.playsawdust.chipper.component.Context;
 import com.playsawdust.chipper.component.Engine;
+import com.playsawdust.chipper.component.ResourceLocator;
 import com.playsawdust.chipper.component.Context.WhiteLotus;
 import com.playsawdust.chipper.exception.ResourceNotFoundException;
 import com.playsawdust.chipper.img.BufferedImage;
 import com.playsawdust.chipper.img.LWImage;
+import com.playsawdust.chipper.resource.DecodedCache;
+import com.playsawdust.chipper.resource.Resource;
+import com.playsawdust.chipper.toolbox.concurrent.SharedThreadPool;
 import com.playsawdust.chipper.toolbox.io.Slice;
 
 import blue.endless.jankson.Jankson;
+import blue.endless.jankson.JsonArray;
+import blue.endless.jankson.JsonElement;
 import blue.endless.jankson.JsonObject;
+import blue.endless.jankson.JsonPrimitive;
 import blue.endless.jankson.api.SyntaxError;
 
 /**
  * Entry point to obtaining resources from any registered sources, and caching
  * them for easy use.
+ * <p>
+ * Most things can also be loaded asynchronously, with the methods ending in
+ * {@code Async}; decoding happens on a worker thread, and anything that has to
+ * touch GL or AL is queued up and done on the render thread between frames,
+ * a few milliseconds' worth at a time. The returned futures complete on
+ * whichever thread finished the work, and <b>must not be waited on from the
+ * render thread</b>, as it's what does the uploading.
  */
-public final class ResourceCache implements Component {
+public final class ResourceCache extends ResourceCacheInternalAccess implements Component {
 	private static final Logger log = LoggerFactory.getLogger(ResourceCache.class);
 
 	private static final Jankson jkson = Jankson.builder().allowBareRootObject().build();
 
-	private final ConcurrentMap<Identifier, Slice> resourceBytes = Maps.newConcurrentMap();
-	private final ConcurrentMap<Identifier, String> resourceStrings = Maps.newConcurrentMap();
-	private final ConcurrentMap<Identifier, JsonObject> janksonObjects = Maps.newConcurrentMap();
+	/**
+	 * The default number of bytes, roughly, that the byte, text, and Jankson caches may use between
+	 * them. Set the CHIPPER_RESOURCE_CACHE_MB environment variable to change it.
+	 */
+	private static final long DEFAULT_CACHE_BUDGET = getDefaultCacheBudget();
+
+	// Slices are weighed when they're created, as that's when we know how big they are; anything
+	// added without a weight would never count towards the limit
+	private final WeightedCache<Identifier, Slice> resourceBytes = new WeightedCache<>(DEFAULT_CACHE_BUDGET/2, s -> {
+		throw new UnsupportedOperationException("Slices must be added with an explicit weight");
+	});
+	private final WeightedCache<Identifier, String> resourceStrings = new WeightedCache<>(DEFAULT_CACHE_BUDGET/4, s -> 40+(s.length()*2));
+	private final WeightedCache<Identifier, JsonObject> janksonObjects = new WeightedCache<>(DEFAULT_CACHE_BUDGET/4, o -> Ints.saturatedCast(weigh(o)));
+
+	private static final Executor workers = SharedThreadPool::execute;
+
+	/**
+	 * The default time to spend on queued uploads each frame. Set the
+	 * CHIPPER_UPLOAD_BUDGET_MS environment variable to change it.
+	 */
+	private static final long DEFAULT_UPLOAD_BUDGET = getDefaultUploadBudget();
+
+	// concurrent, as asynchronous loads complete from the upload queue
+	private final ConcurrentMap<Identifier, GLTexture2D> textures = Maps.newConcurrentMap();
+	private final ConcurrentMap<Identifier, GLShader> shaders = Maps.newConcurrentMap();
+	private final ConcurrentMap<Identifier, ALBuffer> clips = Maps.newConcurrentMap();
+	private final ConcurrentMap<Identifier, Font> fonts = Maps.newConcurrentMap();
+
+	// loads in progress, so asking for something twice doesn't load it twice
+	private final PendingLoads<GLTexture2D> pendingTextures = new PendingLoads<>();
+	private final PendingLoads<ALBuffer> pendingClips = new PendingLoads<>();
+	private final PendingLoads<Font> pendingFonts = new PendingLoads<>();
 
-	private final Map<Identifier, GLTexture2D> textures = Maps.newHashMap();
-	private final Map<Identifier, GLShader> shaders = Maps.newHashMap();
-	private final Map<Identifier, ALBuffer> clips = Maps.newHashMap();
-	private final Map<Identifier, Font> fonts = Maps.newHashMap();
+	private final UploadQueue uploads = new UploadQueue();
+	private volatile long uploadBudget = DEFAULT_UPLOAD_BUDGET;
+
+	// Components don't get a Context, so obtain fills this in
+	private volatile @Nullable ResourceLocator locator;
 
 	private ResourceCache(WhiteLotus lotus) {
 		WhiteLotus.verify(lotus);
@@ -79,12 +136,15 @@ public final class ResourceCache implements Component {
 	/**
 	 * Clears the resource cache. Additionally, all textures and clips will be
 	 * freed and will become immediately invalid.
+	 * <p>
+	 * The byte, text, and Jankson caches evict the least useful entries on their
+	 * own once they're over budget, so this is only needed if the cache is stale.
 	 */
 	public void clear() {
 		log.debug("Dropping all caches");
-		resourceBytes.clear();
-		resourceStrings.clear();
-		janksonObjects.clear();
+		resourceBytes.invalidateAll();
+		resourceStrings.invalidateAll();
+		janksonObjects.invalidateAll();
 
 		freeAll(textures);
 		freeAll(shaders);
@@ -92,6 +152,35 @@ public final class ResourceCache implements Component {
 		freeAll(fonts);
 	}
 
+	/**
+	 * Change how many bytes, roughly, the byte, text, and Jankson caches may use
+	 * between them, evicting entries if they're now over budget. Textures, shaders,
+	 * clips, and fonts aren't counted.
+	 * @param bytes the new budget
+	 */
+	public void setCacheBudget(long bytes) {
+		Preconditions.checkArgument(bytes >= 0, "bytes cannot be negative");
+		resourceBytes.setMaxWeight(bytes/2);
+		resourceStrings.setMaxWeight(bytes/4);
+		janksonObjects.setMaxWeight(bytes/4);
+	}
+
+	/**
+	 * @return how many bytes, roughly, the byte, text, and Jankson caches are using
+	 * 		between them
+	 */
+	public long getCacheWeight() {
+		return resourceBytes.getWeight()+resourceStrings.getWeight()+janksonObjects.getWeight();
+	}
+
+	/**
+	 * @return the combined hit, miss, and eviction counts of the byte, text, and
+	 * 		Jankson caches
+	 */
+	public CacheStats getCacheStats() {
+		return resourceBytes.stats().plus(resourceStrings.stats()).plus(janksonObjects.stats());
+	}
+
 	private void freeAll(Map<?, ? extends NativeResource> map) {
 		freeAll(map.values());
 	}
@@ -112,11 +201,30 @@ public final class ResourceCache implements Component {
 	 */
 	public InputStream openResource(Identifier id) throws ResourceNotFoundException {
 		Preconditions.checkArgument(id != null, "id cannot be null");
-		// TODO currently just delegates to the ClassLoader
-		// there needs to be some kind of resource provider system in the future
-		InputStream stream = ClassLoader.getSystemResourceAsStream("res/"+id.namespace+"/"+id.path);
-		if (stream == null) throw new ResourceNotFoundException("No such resource", id);
-		return stream;
+		try {
+			return locate(id).openStream();
+		} catch (ResourceNotFoundException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new ResourceNotFoundException("Failed to open resource", id, e);
+		}
+	}
+
+	/**
+	 * Find the most important {@link Resource} with the given identifier, as chosen by the
+	 * {@link ResourceLocator}. <b>Does not cache</b>.
+	 * @param id the identifier of the resource to find
+	 * @return the resource
+	 * @throws ResourceNotFoundException if there is no resource with this
+	 * 		identifier
+	 */
+	public Resource locate(Identifier id) throws ResourceNotFoundException {
+		Preconditions.checkArgument(id != null, "id cannot be null");
+		ResourceLocator locator = this.locator;
+		if (locator == null) throw new IllegalStateException("ResourceCache must be retrieved with ResourceCache.obtain");
+		Resource r = locator.getMostImportant(id);
+		if (r == null) throw new ResourceNotFoundException("No such resource", id);
+		return r;
 	}
 
 	/**
@@ -147,13 +255,38 @@ public final class ResourceCache implements Component {
 	 */
 	public byte[] slurpResource(Identifier id) throws ResourceNotFoundException {
 		Preconditions.checkArgument(id != null, "id cannot be null");
-		try (InputStream in = openResource(id)) {
-			// if somebody else already called getResourceBytes for this resource,
-			// no need to waste our time reading it again
-			Slice cached = resourceBytes.get(id);
-			if (cached != null) return cached.toByteArray();
-			byte[] bys = ByteStreams.toByteArray(in);
-			return bys;
+		// if somebody else already called getResourceBytes for this resource,
+		// no need to waste our time reading it again
+		Slice cached = resourceBytes.getIfPresent(id);
+		if (cached != null) return cached.toByteArray();
+		return read(id);
+	}
+
+	private byte[] read(Identifier id) throws ResourceNotFoundException {
+		try {
+			return locate(id).read();
+		} catch (ResourceNotFoundException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new ResourceNotFoundException("Failed to load resource", id, e);
+		}
+	}
+
+	/**
+	 * Retrieve the entire contents of the resource with the given identifier as a read-only
+	 * buffer. <b>Does not cache</b>. Resources in packs are returned as views of the pack, without
+	 * being copied, so this is the cheapest way to get at a resource's contents.
+	 * @param id the identifier of the resource to be slurped
+	 * @return a read-only buffer of the contents of the resource
+	 * @throws ResourceNotFoundException if there is no resource with this
+	 * 		identifier, or loading it fails
+	 */
+	public ByteBuffer slurpResourceBuffer(Identifier id) throws ResourceNotFoundException {
+		Preconditions.checkArgument(id != null, "id cannot be null");
+		try {
+			return locate(id).asByteBuffer();
+		} catch (ResourceNotFoundException e) {
+			throw e;
 		} catch (IOException e) {
 			throw new ResourceNotFoundException("Failed to load resource", id, e);
 		}
@@ -173,7 +306,7 @@ public final class ResourceCache implements Component {
 	 */
 	public String slurpResourceText(Identifier id) throws ResourceNotFoundException {
 		Preconditions.checkArgument(id != null, "id cannot be null");
-		String cached = resourceStrings.get(id);
+		String cached = resourceStrings.getIfPresent(id);
 		if (cached != null) return cached;
 		return new String(slurpResource(id), Charsets.UTF_8);
 	}
@@ -189,11 +322,11 @@ public final class ResourceCache implements Component {
 	public Slice getResourceBytes(Identifier id) throws ResourceNotFoundException {
 		Preconditions.checkArgument(id != null, "id cannot be null");
 		// containsKey would introduce a race
-		Slice cached = resourceBytes.get(id);
+		Slice cached = resourceBytes.getIfPresent(id);
 		if (cached != null) return cached;
-		byte[] bys = slurpResource(id);
-		Slice str = new Slice(bys);
-		resourceBytes.putIfAbsent(id, str);
+		// not slurpResource, as it would look in the cache again and count a second miss
+		byte[] bys = read(id);
+		Slice str = resourceBytes.putIfAbsent(id, new Slice(bys), Ints.saturatedCast(32L+bys.length));
 		// technically, Slices aren't immutable, as they have a method that
 		// takes untrusted OutputStreams and passes the underlying byte[] into them
 		////
@@ -206,15 +339,15 @@ public final class ResourceCache implements Component {
 	public String getResourceText(Identifier id) throws ResourceNotFoundException {
 		Preconditions.checkArgument(id != null, "id cannot be null");
 		// containsKey would introduce a race
-		String cached = resourceStrings.get(id);
+		String cached = resourceStrings.getIfPresent(id);
 		if (cached != null) return cached;
-		String str = slurpResourceText(id);
-		resourceStrings.putIfAbsent(id, str);
-		return str;
+		return resourceStrings.putIfAbsent(id, new String(slurpResource(id), Charsets.UTF_8));
 	}
 
 	/**
-	 * Retrieve and decode the given resource as an image. <b>Does not cache</b>.
+	 * Retrieve and decode the given resource as an image. <b>Does not cache</b>
+	 * in memory, but the decoded pixels are kept on disk in the {@link DecodedCache},
+	 * so the same image doesn't need decoding again next launch.
 	 * Supported formats, in order of preference:
 	 * <ul>
 	 * <li>ORA</li>
@@ -239,17 +372,54 @@ public final class ResourceCache implements Component {
 	 */
 	public BufferedImage loadImage(Identifier id) throws ResourceNotFoundException {
 		Preconditions.checkArgument(id != null, "id cannot be null");
-		byte[] bys = null;
-		try (PushbackInputStream is = new PushbackInputStream(openResource(id), 4)) {
-			byte[] hdr = new byte[4];
-			ByteStreams.readFully(is, hdr);
-			if (ZIP_HEADER.equals(hdr)) {
-				// it's a zip file
-				is.unread(hdr);
-				ZipInputStream zis = new ZipInputStream(is);
+		ByteBuffer data = slurpResourceBuffer(id);
+		if (!data.hasRemaining()) throw new ResourceNotFoundException("Resource was zero-length!", id);
+		// tiny images decode faster than they can be looked up
+		DecodedCache dc = data.remaining() >= 1024 ? DecodedCache.getDefault() : null;
+		HashCode key = null;
+		if (dc != null) {
+			key = DecodedCache.newKey("image", 1).putBytes(data.duplicate()).hash();
+			ByteBuffer cached = dc.get(key);
+			if (cached != null && cached.remaining() >= 8) {
+				cached.order(ByteOrder.LITTLE_ENDIAN);
+				int w = cached.getInt();
+				int h = cached.getInt();
+				// a corrupt entry could have any dimensions at all
+				if (w > 0 && h > 0 && cached.remaining() == (long)w*h*4) {
+					return new BufferedImage(w, h, cached);
+				}
+			}
+		}
+		BufferedImage img = decodeImage(id, data);
+		if (key != null) {
+			ByteBuffer hdr = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			hdr.putInt(img.getWidth()).putInt(img.getHeight()).flip();
+			dc.put(key, hdr, img.getRawABGRData());
+		}
+		return img;
+	}
+
+	/**
+	 * Decode the given data, which came from the resource with the given
+	 * identifier, as an image. <b>Does not cache</b>, not even on disk like
+	 * {@link #loadImage}; meant as plumbing for things that cache what they make
+	 * out of the image instead.
+	 * @param id the identifier of the resource the data came from, for errors
+	 * @param data the contents of the resource
+	 * @return a BufferedImage containing the pixels decoded from the given data
+	 * @throws ResourceNotFoundException if decoding fails
+	 * @see #loadImage
+	 */
+	public BufferedImage decodeImage(Identifier id, ByteBuffer data) throws ResourceNotFoundException {
+		if (!data.hasRemaining()) throw new ResourceNotFoundException("Resource was zero-length!", id);
+		if (data.remaining() >= 4 && data.duplicate().order(ByteOrder.BIG_ENDIAN).getInt(data.position()) == ZIP_HEADER) {
+			// it's a zip file
+			byte[] bys = new byte[data.remaining()];
+			data.duplicate().get(bys);
+			try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(bys))) {
 				ZipEntry first = zis.getNextEntry();
 				// the first entry in an ORA file must be an uncompressed file named mimetype...
-				if ("mimetype".equals(first.getName())) {
+				if (first != null && "mimetype".equals(first.getName())) {
 					// ...with the sole content "image/openraster"
 					String mime = new String(ByteStreams.toByteArray(zis), Charsets.UTF_8);
 					if ("image/openraster".equals(mime)) {
@@ -261,33 +431,36 @@ public final class ResourceCache implements Component {
 								throw new ResourceNotFoundException("Cannot load ORA file without mergedimage.png in resource ", id);
 							}
 							if (ent.getName().equals("mergedimage.png")) {
-								bys = ByteStreams.toByteArray(zis);
+								data = ByteBuffer.wrap(ByteStreams.toByteArray(zis));
 								break;
 							}
 						}
 					}
 				}
+			} catch (ResourceNotFoundException e) {
+				throw e;
+			} catch (IOException e) {
+				// guess it's not an OpenRaster
 			}
-		} catch (IOException e) {
-			// guess it's not an OpenRaster
 		}
-		if (bys == null) {
-			bys = slurpResource(id);
+		// stb can decode straight out of a pack; anything else has to be copied off-heap first
+		ByteBuffer buffer = data;
+		if (!data.isDirect()) {
+			buffer = MemoryUtil.memAlloc(data.remaining());
+			buffer.put(data.duplicate());
+			buffer.flip();
 		}
-		if (bys.length==0) throw new ResourceNotFoundException("Resource was zero-length!", id);
-		ByteBuffer buffer = MemoryUtil.memAlloc(bys.length);
-		buffer.put(bys);
-		buffer.flip();
 		try {
-			// buffer freeing is handled by BufferedImage
 			return new BufferedImage(buffer);
 		} catch (IOException e) {
-			MemoryUtil.memFree(buffer);
 			throw new ResourceNotFoundException("Failed to load resource", id, e);
+		} finally {
+			// BufferedImage decodes into its own buffer, and doesn't keep this one
+			if (buffer != data) MemoryUtil.memFree(buffer);
 		}
 	}
 
-	private static final Slice ZIP_HEADER = Slice.fromHex("504B0304");
+	private static final int ZIP_HEADER = 0x504B0304;
 
 	/**
 	 * Retrieve and decode the given resource as an image. <b>Does not cache</b>. The resulting
@@ -315,8 +488,12 @@ public final class ResourceCache implements Component {
 	 */
 	public JsonObject loadJanksonObject(Identifier id) throws ResourceNotFoundException {
 		Preconditions.checkArgument(id != null, "id cannot be null");
-		JsonObject cached = janksonObjects.get(id);
+		JsonObject cached = janksonObjects.getIfPresent(id);
 		if (cached != null) return cached.clone();
+		return parseJanksonObject(id);
+	}
+
+	private JsonObject parseJanksonObject(Identifier id) throws ResourceNotFoundException {
 		try (InputStream in = openResource(id)) {
 			return jkson.load(in);
 		} catch (IOException e) {
@@ -336,10 +513,9 @@ public final class ResourceCache implements Component {
 	 */
 	public JsonObject getJanksonObject(Identifier id) throws ResourceNotFoundException {
 		Preconditions.checkArgument(id != null, "id cannot be null");
-		JsonObject cached = janksonObjects.get(id);
+		JsonObject cached = janksonObjects.getIfPresent(id);
 		if (cached != null) return cached.clone();
-		JsonObject obj = loadJanksonObject(id);
-		janksonObjects.putIfAbsent(id, obj);
+		JsonObject obj = janksonObjects.putIfAbsent(id, parseJanksonObject(id));
 		// always clone output objects to prevent accidental cache poisoning
 		return obj.clone();
 	}
@@ -412,7 +588,11 @@ public final class ResourceCache implements Component {
 			}
 			ShortBuffer samples = dec.decodeAll();
 			ALBuffer buf = ALBuffer.allocate();
-			buf.upload(48000, dec.getChannels(), samples);
+			try {
+				buf.upload(48000, dec.getChannels(), samples);
+			} finally {
+				MemoryUtil.memFree(samples);
+			}
 			clips.put(id, buf);
 			return buf;
 		} catch (IOException e) {
@@ -442,8 +622,236 @@ public final class ResourceCache implements Component {
 	}
 
 
+	/**
+	 * Asynchronously retrieve and decode the given resource as an image, and
+	 * then upload it to the GPU. Caches, like {@link #getTexture}.
+	 * @param id the identifier of the resource to be decoded
+	 * @return a future that completes with the texture, or with a
+	 * 		ResourceNotFoundException if there is no resource with this identifier,
+	 * 		or loading it fails
+	 * @see #getTexture
+	 */
+	public CompletableFuture<GLTexture2D> getTextureAsync(Identifier id) {
+		Preconditions.checkArgument(id != null, "id cannot be null");
+		GLTexture2D cached = textures.get(id);
+		if (cached != null && !cached.isFreed()) return CompletableFuture.completedFuture(cached);
+		return pendingTextures.dedupe(id, () -> decode(() -> loadImage(id))
+				.thenApplyAsync(img -> {
+					try (BufferedImage i = img) {
+						GLTexture2D tex = GLTexture2D.allocate();
+						try {
+							tex.upload(PixelFormat.RGBA, i);
+						} catch (RuntimeException | Error e) {
+							tex.free();
+							throw e;
+						}
+						GLTexture2D winner = textures.compute(id, (k, v) -> v == null || v.isFreed() ? tex : v);
+						if (winner != tex) {
+							// getTexture loaded it while we were decoding
+							tex.free();
+						}
+						return winner;
+					}
+				}, uploads));
+	}
+
+	/**
+	 * Asynchronously retrieve and decode the given resource as an Ogg Opus
+	 * file, and then send it to OpenAL. Caches, like {@link #getClip}.
+	 * @param id the identifier of the resource to be decoded
+	 * @return a future that completes with the buffer, or with a
+	 * 		ResourceNotFoundException if there is no resource with this identifier,
+	 * 		or loading it fails
+	 * @see #getClip
+	 */
+	public CompletableFuture<ALBuffer> getClipAsync(Identifier id) {
+		Preconditions.checkArgument(id != null, "id cannot be null");
+		ALBuffer cached = clips.get(id);
+		if (cached != null && !cached.isFreed()) return CompletableFuture.completedFuture(cached);
+		return pendingClips.dedupe(id, () -> decode(() -> {
+					try (InputStream is = openResource(id); OggOpusDecoder dec = new OggOpusDecoder(is)) {
+						if (dec.getChannels() != 1) {
+							log.warn("Loaded a stereo resource with path {} in namespace {} as a clip - clips should be mono", id.path, id.namespace);
+						}
+						return new DecodedClip(dec.getChannels(), dec.decodeAll());
+					} catch (ResourceNotFoundException e) {
+						throw e;
+					} catch (IOException e) {
+						throw new ResourceNotFoundException("Failed to load resource", id, e);
+					}
+				})
+				.thenApplyAsync(clip -> {
+					try {
+						ALBuffer buf = ALBuffer.allocate();
+						try {
+							buf.upload(48000, clip.channels, clip.samples);
+						} catch (RuntimeException | Error e) {
+							buf.free();
+							throw e;
+						}
+						ALBuffer winner = clips.compute(id, (k, v) -> v == null || v.isFreed() ? buf : v);
+						if (winner != buf) {
+							// getClip loaded it while we were decoding
+							buf.free();
+						}
+						return winner;
+					} finally {
+						MemoryUtil.memFree(clip.samples);
+					}
+				}, uploads));
+	}
+
+	private static final class DecodedClip {
+		final int channels;
+		final ShortBuffer samples;
+
+		DecodedClip(int channels, ShortBuffer samples) {
+			this.channels = channels;
+			this.samples = samples;
+		}
+	}
+
+	/**
+	 * Asynchronously retrieve and decode a font, including all of its glyphs
+	 * that aren't lazily loaded, and then upload it to the GPU one block at a
+	 * time. Caches, like {@link #getFont}.
+	 * @param id the identifier of the resource to be decoded
+	 * @return a future that completes with the font, or with a
+	 * 		ResourceNotFoundException if there is no resource with this identifier,
+	 * 		or loading it fails
+	 * @see #getFont
+	 */
+	@SuppressWarnings("deprecation")
+	public CompletableFuture<Font> getFontAsync(Identifier id) {
+		Preconditions.checkArgument(id != null, "id cannot be null");
+		Font cached = fonts.get(id);
+		if (cached != null && !cached.isFreed()) return CompletableFuture.completedFuture(cached);
+		return pendingFonts.dedupe(id, () -> decode(() -> new Font(this, loadJanksonObject(id.child("font.jkson")), id, true))
+				.thenCompose(font -> {
+					CompletableFuture<Font> uploaded = new CompletableFuture<>();
+					uploads.submit(() -> {
+						try {
+							if (font.uploadNext()) return false;
+						} catch (Throwable t) {
+							font.free();
+							uploaded.completeExceptionally(t);
+							return true;
+						}
+						Font winner = fonts.compute(id, (k, v) -> v == null || v.isFreed() ? font : v);
+						if (winner != font) {
+							// getFont loaded it while we were decoding
+							font.free();
+						}
+						uploaded.complete(winner);
+						return true;
+					});
+					return uploaded;
+				}));
+	}
+
+	/**
+	 * Asynchronously retrieve and decode the given resource as a
+	 * <a href="https://github.com/falkreon/Jankson">Jankson</a> file (.jkson).
+	 * Caches, like {@link #getJanksonObject}.
+	 * @param id the identifier of the resource to be decoded
+	 * @return a future that completes with a JsonObject containing the data
+	 * 		decoded from the given resource, or with a ResourceNotFoundException
+	 * 		if there is no resource with this identifier, or loading it fails
+	 * @see #getJanksonObject
+	 */
+	public CompletableFuture<JsonObject> getJanksonObjectAsync(Identifier id) {
+		Preconditions.checkArgument(id != null, "id cannot be null");
+		return decode(() -> getJanksonObject(id));
+	}
+
+	/**
+	 * @return an Executor that runs tasks on the render thread between frames,
+	 * 		alongside queued uploads and sharing their time budget
+	 */
+	public Executor getUploadExecutor() {
+		return uploads;
+	}
+
+	/**
+	 * Change how long may be spent on queued uploads each frame. At least one
+	 * upload is always done per frame if any are waiting, no matter how small
+	 * the budget is.
+	 */
+	public void setUploadBudget(long time, TimeUnit unit) {
+		Preconditions.checkArgument(time >= 0, "time cannot be negative");
+		uploadBudget = unit.toNanos(time);
+	}
+
+	@Override
+	@UIEffect
+	protected void processUploads() {
+		uploads.drain(uploadBudget);
+	}
+
+	private static <T> CompletableFuture<T> decode(Callable<T> c) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return c.call();
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		}, workers);
+	}
+
+	/**
+	 * A guess at how many bytes the given Jankson element takes up, counting its
+	 * children.
+	 */
+	private static long weigh(JsonElement ele) {
+		if (ele instanceof JsonObject) {
+			long weight = 64;
+			for (Map.Entry<String, JsonElement> en : ((JsonObject)ele).entrySet()) {
+				weight += 72+(en.getKey().length()*2)+weigh(en.getValue());
+			}
+			return weight;
+		} else if (ele instanceof JsonArray) {
+			long weight = 48;
+			for (JsonElement child : (JsonArray)ele) {
+				weight += 8+weigh(child);
+			}
+			return weight;
+		} else if (ele instanceof JsonPrimitive) {
+			Object v = ((JsonPrimitive)ele).getValue();
+			return v instanceof String ? 64+(((String)v).length()*2) : 48;
+		}
+		return 32;
+	}
+
+	private static long getDefaultUploadBudget() {
+		long def = TimeUnit.MILLISECONDS.toNanos(4);
+		String str = System.getenv("CHIPPER_UPLOAD_BUDGET_MS");
+		if (str == null) return def;
+		Integer i = Ints.tryParse(str);
+		if (i == null || i < 0) {
+			log.warn("Ignoring invalid CHIPPER_UPLOAD_BUDGET_MS value {}", str);
+			return def;
+		}
+		return TimeUnit.MILLISECONDS.toNanos(i);
+	}
+
+	private static long getDefaultCacheBudget() {
+		long def = 64L*1024*1024;
+		String str = System.getenv("CHIPPER_RESOURCE_CACHE_MB");
+		if (str == null) return def;
+		Long l = Longs.tryParse(str);
+		if (l == null || l < 0) {
+			log.warn("Ignoring invalid CHIPPER_RESOURCE_CACHE_MB value {}", str);
+			return def;
+		}
+		return l*1024*1024;
+	}
+
 	public static ResourceCache obtain(Context<? extends ClientEngine> ctx) {
-		return ctx.getComponent(ResourceCache.class);
+		ResourceCache rc = ctx.getComponent(ResourceCache.class);
+		if (rc.locator == null) rc.locator = ResourceLocator.obtain(ctx);
+		return rc;
 	}
 
 	@Override
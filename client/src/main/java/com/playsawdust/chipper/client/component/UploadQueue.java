@@ -0,0 +1,103 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.client.component;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+import org.checkerframework.checker.guieffect.qual.UIEffect;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.playsawdust.chipper.collect.MpscRingQueue;
+
+/**
+ * Work that has to happen on the render thread, such as uploading textures, submitted from
+ * anywhere and run a little at a time between frames so it never causes a hitch.
+ * <p>
+ * The queue is bounded, so decoders can't get arbitrarily far ahead of uploads and fill memory
+ * with decoded images that are waiting their turn; a full queue makes worker threads wait. The
+ * render thread can't wait for itself, and nothing is drained until the first frame, so in those
+ * cases the work spills into an unbounded overflow queue instead.
+ */
+final class UploadQueue implements Executor {
+	private static final Logger log = LoggerFactory.getLogger(UploadQueue.class);
+
+	private static final int CAPACITY = 64;
+
+	private final MpscRingQueue<BooleanSupplier> queue = new MpscRingQueue<>(CAPACITY);
+
+	private final ConcurrentLinkedQueue<BooleanSupplier> overflow = new ConcurrentLinkedQueue<>();
+
+	private volatile @Nullable Thread renderThread;
+
+	// render thread only {
+	private @Nullable BooleanSupplier current;
+	// }
+
+	/**
+	 * Run the given task on the render thread during a future call to {@link #drain}.
+	 */
+	@Override
+	public void execute(Runnable r) {
+		submit(() -> {
+			r.run();
+			return true;
+		});
+	}
+
+	/**
+	 * Run the given step on the render thread repeatedly, once per turn, until it returns
+	 * {@code true}. Lets a big job, like uploading every block of a font, be split up across frames.
+	 */
+	public void submit(BooleanSupplier step) {
+		while (!queue.offer(step)) {
+			Thread rt = renderThread;
+			if (rt == null || rt == Thread.currentThread()) {
+				overflow.add(step);
+				return;
+			}
+			LockSupport.parkNanos(1_000_000L);
+		}
+	}
+
+	/**
+	 * Run queued work until there's none left or the given amount of time has passed. At least
+	 * one step is run if there's anything queued, so progress is always made.
+	 * @param budgetNanos how long to spend, in nanoseconds
+	 * @return the number of steps run
+	 */
+	@UIEffect
+	public int drain(long budgetNanos) {
+		renderThread = Thread.currentThread();
+		long start = System.nanoTime();
+		int steps = 0;
+		while (true) {
+			if (current == null) current = queue.poll();
+			if (current == null) current = overflow.poll();
+			if (current == null) break;
+			boolean done = true;
+			try {
+				done = current.getAsBoolean();
+			} catch (Throwable t) {
+				// steps should complete their own futures; this is a last resort
+				log.warn("Upload step threw an exception", t);
+			}
+			if (done) current = null;
+			steps++;
+			if (System.nanoTime()-start >= budgetNanos) break;
+		}
+		return steps;
+	}
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.client.component;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.playsawdust.chipper.Identifier;
+
+public class PendingLoadsTest {
+
+	private static final Identifier A = new Identifier("test", "a");
+	private static final Identifier B = new Identifier("test", "b");
+
+	@Test
+	public void testSharesLoadInProgress() throws InterruptedException, ExecutionException {
+		PendingLoads<String> pending = new PendingLoads<>();
+		AtomicInteger loads = new AtomicInteger();
+		CompletableFuture<String> load = new CompletableFuture<>();
+		CompletableFuture<String> first = pending.dedupe(A, () -> {
+			loads.incrementAndGet();
+			return load;
+		});
+		CompletableFuture<String> second = pending.dedupe(A, () -> {
+			loads.incrementAndGet();
+			return new CompletableFuture<>();
+		});
+		assertEquals(1, loads.get());
+		assertNotSame(first, second);
+		// something else loads separately
+		pending.dedupe(B, () -> {
+			loads.incrementAndGet();
+			return new CompletableFuture<>();
+		});
+		assertEquals(2, loads.get());
+		load.complete("done");
+		assertEquals("done", first.get());
+		assertEquals("done", second.get());
+		// finished, so the next request loads again
+		CompletableFuture<String> third = pending.dedupe(A, () -> {
+			loads.incrementAndGet();
+			return CompletableFuture.completedFuture("again");
+		});
+		assertEquals(3, loads.get());
+		assertEquals("again", third.get());
+	}
+
+	@Test
+	public void testCallersAreIsolated() throws InterruptedException, ExecutionException {
+		PendingLoads<String> pending = new PendingLoads<>();
+		CompletableFuture<String> load = new CompletableFuture<>();
+		CompletableFuture<String> first = pending.dedupe(A, () -> load);
+		CompletableFuture<String> second = pending.dedupe(A, () -> {
+			throw new AssertionError("Loaded twice");
+		});
+		// one caller giving up doesn't affect the other, or the load
+		first.cancel(false);
+		assertFalse(load.isCancelled());
+		load.complete("done");
+		assertEquals("done", second.get());
+	}
+
+	@Test
+	public void testFailure() throws InterruptedException {
+		PendingLoads<String> pending = new PendingLoads<>();
+		CompletableFuture<String> load = new CompletableFuture<>();
+		CompletableFuture<String> first = pending.dedupe(A, () -> load);
+		load.completeExceptionally(new IllegalStateException("broken"));
+		try {
+			first.get();
+			fail("Load should have failed");
+		} catch (ExecutionException e) {
+			assertEquals("broken", e.getCause().getMessage());
+		}
+		// a failed load isn't remembered
+		AtomicInteger loads = new AtomicInteger();
+		pending.dedupe(A, () -> {
+			loads.incrementAndGet();
+			return new CompletableFuture<>();
+		});
+		assertEquals(1, loads.get());
+	}
+
+}
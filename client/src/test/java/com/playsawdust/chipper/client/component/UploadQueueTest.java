@@ -0,0 +1,161 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.client.component;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class UploadQueueTest {
+
+	// the queue's capacity, past which submitters wait
+	private static final int CAPACITY = 64;
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	@Test
+	public void testBudget() {
+		UploadQueue q = new UploadQueue();
+		List<Integer> ran = Lists.newArrayList();
+		for (int i = 0; i < 20; i++) {
+			int n = i;
+			q.execute(() -> {
+				sleep(5);
+				ran.add(n);
+			});
+		}
+		// about 4 steps' worth
+		int steps = q.drain(TimeUnit.MILLISECONDS.toNanos(18));
+		assertTrue(steps >= 1 && steps < 20);
+		assertEquals(steps, ran.size());
+		// always at least one, however small the budget
+		assertEquals(1, q.drain(0));
+		assertEquals(steps+1, ran.size());
+		while (q.drain(Long.MAX_VALUE) > 0) {}
+		assertEquals(20, ran.size());
+		for (int i = 0; i < 20; i++) {
+			assertEquals(i, (int)ran.get(i));
+		}
+		assertEquals(0, q.drain(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testSteps() {
+		UploadQueue q = new UploadQueue();
+		List<String> ran = Lists.newArrayList();
+		AtomicInteger calls = new AtomicInteger();
+		q.submit(() -> {
+			ran.add("big");
+			return calls.incrementAndGet() == 3;
+		});
+		q.execute(() -> ran.add("after"));
+		// one step per drain; the big job finishes before anything queued after it starts
+		assertEquals(1, q.drain(0));
+		assertEquals(1, q.drain(0));
+		assertEquals(Lists.newArrayList("big", "big"), ran);
+		assertEquals(2, q.drain(Long.MAX_VALUE));
+		assertEquals(Lists.newArrayList("big", "big", "big", "after"), ran);
+	}
+
+	@Test
+	public void testThrowingStep() {
+		UploadQueue q = new UploadQueue();
+		List<String> ran = Lists.newArrayList();
+		q.execute(() -> {
+			throw new IllegalStateException("expected by UploadQueueTest");
+		});
+		q.execute(() -> ran.add("after"));
+		assertEquals(2, q.drain(Long.MAX_VALUE));
+		assertEquals(Lists.newArrayList("after"), ran);
+	}
+
+	@Test
+	public void testOverflowBeforeFirstFrame() {
+		UploadQueue q = new UploadQueue();
+		List<Integer> ran = Lists.newArrayList();
+		// nothing is draining yet, so waiting for room would be forever
+		for (int i = 0; i < CAPACITY*3; i++) {
+			int n = i;
+			q.execute(() -> ran.add(n));
+		}
+		assertEquals(CAPACITY*3, q.drain(Long.MAX_VALUE));
+		for (int i = 0; i < CAPACITY*3; i++) {
+			assertEquals(i, (int)ran.get(i));
+		}
+	}
+
+	@Test
+	public void testRenderThreadNeverWaits() {
+		UploadQueue q = new UploadQueue();
+		List<Integer> ran = Lists.newArrayList();
+		q.drain(0);
+		for (int i = 0; i < CAPACITY*2; i++) {
+			int n = i;
+			q.execute(() -> ran.add(n));
+		}
+		// and neither do uploads that queue more uploads
+		q.execute(() -> {
+			for (int i = 0; i < CAPACITY*2; i++) {
+				int n = CAPACITY*2+i;
+				q.execute(() -> ran.add(n));
+			}
+		});
+		while (q.drain(Long.MAX_VALUE) > 0) {}
+		assertEquals(CAPACITY*4, ran.size());
+	}
+
+	@Test
+	public void testBackpressure() throws InterruptedException {
+		UploadQueue q = new UploadQueue();
+		// this is the render thread from now on
+		q.drain(0);
+		AtomicInteger submitted = new AtomicInteger();
+		List<Integer> ran = Lists.newArrayList();
+		Thread worker = new Thread(() -> {
+			for (int i = 0; i < CAPACITY+10; i++) {
+				int n = i;
+				q.execute(() -> ran.add(n));
+				submitted.incrementAndGet();
+			}
+		}, "Upload submitter");
+		worker.setDaemon(true);
+		worker.start();
+		long deadline = System.nanoTime()+TimeUnit.SECONDS.toNanos(10);
+		while (submitted.get() < CAPACITY) {
+			assertTrue(System.nanoTime() < deadline);
+			Thread.sleep(1);
+		}
+		Thread.sleep(100);
+		// full, so the worker waits rather than queueing more
+		assertEquals(CAPACITY, submitted.get());
+		assertTrue(worker.isAlive());
+		while (worker.isAlive() || ran.size() < CAPACITY+10) {
+			assertTrue(System.nanoTime() < deadline);
+			q.drain(Long.MAX_VALUE);
+			Thread.sleep(1);
+		}
+		for (int i = 0; i < CAPACITY+10; i++) {
+			assertEquals(i, (int)ran.get(i));
+		}
+	}
+
+}
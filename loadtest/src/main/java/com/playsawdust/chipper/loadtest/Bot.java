@@ -0,0 +1,138 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.loadtest;
+
+import static java.net.StandardSocketOptions.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import com.playsawdust.chipper.client.ClientEngine;
+import com.playsawdust.chipper.component.Context;
+import com.playsawdust.chipper.network.Connection;
+import com.playsawdust.chipper.network.ProtocolRegistry;
+import com.playsawdust.chipper.network.protocol.base.message.HelloMessage;
+import com.playsawdust.chipper.toolbox.lipstick.MonotonicTime;
+import com.playsawdust.chipper.toolbox.lipstick.SharedRandom;
+
+/**
+ * One simulated client. Owned by the {@link BotThread} it was adopted by.
+ */
+final class Bot {
+
+	// a bot that falls further behind than this (say, during a GC pause) doesn't try to catch up
+	private static final long MAX_BEHIND = TimeUnit.SECONDS.toNanos(1);
+
+	final int index;
+	final Connection conn;
+	final SocketChannel tcpChannel;
+	final DatagramChannel udpChannel;
+	private final TrafficMix mix;
+	private final long[] nextSend;
+
+	// owning thread only {
+	SelectionKey tcpKey;
+	SelectionKey udpKey;
+	boolean touched = false;
+	// }
+
+	private Bot(int index, Context<ClientEngine> ctx, TrafficMix mix, SocketChannel tcpChannel, DatagramChannel udpChannel, Runnable writeableNotify) {
+		this.index = index;
+		this.mix = mix;
+		this.tcpChannel = tcpChannel;
+		this.udpChannel = udpChannel;
+		this.conn = new Connection(ctx, writeableNotify, tcpChannel, udpChannel);
+		this.nextSend = new long[mix.getStreams().size()];
+		long now = MonotonicTime.nanos();
+		for (TrafficMix.Stream s : mix.getStreams()) {
+			// spread bots out, rather than having them all send at once
+			nextSend[s.index] = now+(long)(SharedRandom.uniformDouble()*s.getInterval());
+		}
+	}
+
+	/**
+	 * Connect a new bot to the given server and start the handshake. Blocks until the TCP
+	 * connection is established.
+	 */
+	static Bot connect(int index, Context<ClientEngine> ctx, TrafficMix mix, InetSocketAddress server, BotThread thread) throws IOException {
+		SocketChannel tcp = SocketChannel.open(server);
+		DatagramChannel udp = null;
+		try {
+			tcp.configureBlocking(false);
+			tcp.setOption(TCP_NODELAY, true);
+			udp = DatagramChannel.open().bind(new InetSocketAddress(server.getAddress(), 0));
+			udp.configureBlocking(false);
+		} catch (IOException e) {
+			tcp.close();
+			if (udp != null) udp.close();
+			throw e;
+		}
+		Bot[] holder = new Bot[1];
+		Bot bot = new Bot(index, ctx, mix, tcp, udp, () -> thread.markDirty(holder[0]));
+		holder[0] = bot;
+		// everything sent in a loop of the bot thread goes out together
+		bot.conn.setFlushDeferred(true);
+		bot.conn.sendMessage(new HelloMessage(bot.conn.getCorrelationId()));
+		long hash = ProtocolRegistry.obtain(ctx).getProtocolByClass(LoadTestProtocol.class).getMessageTableHash();
+		bot.conn.sendMessage(new LoadStartMessage(hash));
+		return bot;
+	}
+
+	/**
+	 * Process whatever the server sent, and send every message that's due.
+	 * @return the number of messages sent
+	 */
+	int tick(long now) {
+		int sent = 0;
+		conn.processPackets();
+		for (TrafficMix.Stream s : mix.getStreams()) {
+			long next = nextSend[s.index];
+			if (now-next > MAX_BEHIND) {
+				next = now;
+			}
+			long interval = s.getInterval();
+			while (next <= now) {
+				conn.sendMessage(new TrafficMessage(s, now));
+				sent++;
+				next += interval;
+			}
+			nextSend[s.index] = next;
+		}
+		conn.flush();
+		return sent;
+	}
+
+	/**
+	 * @return when the next message is due, in MonotonicTime nanos
+	 */
+	long getNextSend() {
+		long min = Long.MAX_VALUE;
+		for (long l : nextSend) {
+			min = Math.min(min, l);
+		}
+		return min;
+	}
+
+	void close() {
+		if (tcpKey != null) tcpKey.cancel();
+		if (udpKey != null) udpKey.cancel();
+		conn.disconnect();
+		try {
+			udpChannel.close();
+		} catch (IOException e) {
+			// nothing we can do about it
+		}
+	}
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.loadtest;
+
+import com.playsawdust.chipper.Addon;
+import com.playsawdust.chipper.client.ClientEngine;
+import com.playsawdust.chipper.client.GameState;
+import com.playsawdust.chipper.component.EngineType;
+import com.playsawdust.chipper.math.ProtoColor;
+
+/**
+ * The ClientEngine shared by every bot. There's nothing to draw or click, so everything other
+ * than the engine type is a no-op.
+ */
+public class BotEngine implements ClientEngine {
+
+	private static final ProtoColor BLACK = ProtoColor.fromRGB(0x000000);
+
+	@Override
+	public int run(String... args) {
+		throw new UnsupportedOperationException("Bots are run by LoadTestEngine");
+	}
+
+	@Override
+	public EngineType getType() {
+		return EngineType.HEADLESS_CLIENT;
+	}
+
+	@Override
+	public Addon getDefaultAddon() {
+		return null;
+	}
+
+	@Override
+	public void setLoadingMessage(String loadingMessage) {}
+
+	@Override
+	public void quit() {}
+
+	@Override
+	public void switchToState(GameState state) {}
+
+	@Override
+	public void setBlurStrength(int blurStrength) {}
+
+	@Override
+	public int getBlurStrength() {
+		return 0;
+	}
+
+	@Override
+	public void setGlassColor(ProtoColor color) {}
+
+	@Override
+	public void setGlassOpacity(double opacity) {}
+
+	@Override
+	public ProtoColor getGlassColor() {
+		return BLACK;
+	}
+
+	@Override
+	public double getGlassOpacity() {
+		return 0;
+	}
+
+	@Override
+	public void setCanvasPixelScaleSetting(int canvasPixelScaleSetting) {}
+
+	@Override
+	public boolean getLimitResolution() {
+		return false;
+	}
+
+	@Override
+	public void setLimitResolution(boolean limitResolution) {}
+
+	@Override
+	public boolean getLimitResolutionLinear() {
+		return false;
+	}
+
+	@Override
+	public boolean getDrawMouseOnCanvas() {
+		return false;
+	}
+
+	@Override
+	public void setLimitResolutionLinear(boolean limitResolutionLinear) {}
+
+	@Override
+	public void setDrawMouseOnCanvas(boolean drawMouseOnCanvas) {}
+
+	@Override
+	public int getCanvasPixelScaleSetting() {
+		return 1;
+	}
+
+	@Override
+	public int getCanvasPixelScale() {
+		return 1;
+	}
+
+	@Override
+	public int getWindowWidth() {
+		return 0;
+	}
+
+	@Override
+	public int getWindowHeight() {
+		return 0;
+	}
+
+	@Override
+	public int getFramesPerSecond() {
+		return 0;
+	}
+
+	@Override
+	public double getMillisPerFrame() {
+		return 0;
+	}
+
+	@Override
+	public boolean isKeyDown(int key) {
+		return false;
+	}
+
+	@Override
+	public boolean isFocused() {
+		return false;
+	}
+
+	@Override
+	public void grabCursor() {}
+
+	@Override
+	public void releaseCursor() {}
+
+	@Override
+	public boolean isCursorGrabbed() {
+		return false;
+	}
+
+	@Override
+	public int getMouseClick() {
+		return 0;
+	}
+
+	@Override
+	public boolean isMouseDown(int button) {
+		return false;
+	}
+
+	@Override
+	public double getCursorX() {
+		return 0;
+	}
+
+	@Override
+	public double getCursorY() {
+		return 0;
+	}
+
+}
@@ -0,0 +1,251 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.loadtest;
+
+import static java.nio.channels.SelectionKey.*;
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.system.rpmalloc.RPmalloc.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.playsawdust.chipper.network.Connection;
+import com.playsawdust.chipper.toolbox.lipstick.MonotonicTime;
+
+/**
+ * Drives a group of {@link Bot Bots}: performs all their socket I/O on one Selector, like the
+ * server's network thread does for its Connections, and sends their traffic when it's due. Bots
+ * need to be cheap, so thousands of them can share a handful of these.
+ */
+final class BotThread extends Thread {
+	private static final Logger log = LoggerFactory.getLogger(BotThread.class);
+
+	private final Selector selector;
+	private final Queue<Bot> adopted = new ConcurrentLinkedQueue<>();
+	private final Queue<Bot> dirty = new ConcurrentLinkedQueue<>();
+	private volatile boolean run = true;
+	private volatile int connected = 0;
+	private volatile long sent = 0;
+	private volatile long lost = 0;
+
+	// owning thread only {
+	private final List<Bot> bots = Lists.newArrayList();
+	private final List<Bot> touched = Lists.newArrayList();
+	private ByteBuffer buffer;
+	// }
+
+	BotThread(int index) throws IOException {
+		this.selector = Selector.open();
+		setDaemon(true);
+		setName("Bot thread #"+(index+1));
+	}
+
+	/**
+	 * Take ownership of the given newly-connected Bot. Safe to call from any thread.
+	 */
+	void adopt(Bot bot) {
+		adopted.add(bot);
+		selector.wakeup();
+	}
+
+	void markDirty(Bot bot) {
+		dirty.add(bot);
+		if (Thread.currentThread() != this) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Disconnect every bot and stop.
+	 */
+	void shutdown() {
+		run = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * @return the number of this thread's bots that are still connected
+	 */
+	int getConnectedCount() {
+		return connected;
+	}
+
+	/**
+	 * @return the number of messages this thread's bots have sent
+	 */
+	long getSentCount() {
+		return sent;
+	}
+
+	/**
+	 * @return the number of this thread's bots that were disconnected by the server
+	 */
+	long getLostCount() {
+		return lost;
+	}
+
+	@Override
+	public void run() {
+		rpmalloc_thread_initialize();
+		try {
+			buffer = memAlloc(8*1024).order(ByteOrder.BIG_ENDIAN);
+			while (run) {
+				select();
+				for (SelectionKey key : selector.selectedKeys()) {
+					Bot bot = (Bot)key.attachment();
+					try {
+						if (key.isValid() && key.isReadable()) {
+							read(bot, key);
+						}
+					} catch (IOException e) {
+						log.debug("I/O error for bot {}", bot.index, e);
+						bot.conn.disconnect();
+					}
+					touch(bot);
+				}
+				selector.selectedKeys().clear();
+				Bot b;
+				while ((b = adopted.poll()) != null) {
+					register(b);
+				}
+				long now = MonotonicTime.nanos();
+				long sentNow = 0;
+				for (int i = 0; i < bots.size(); i++) {
+					Bot bot = bots.get(i);
+					if (bot.getNextSend() <= now || bot.conn.getWriteDeadline() <= now) {
+						sentNow += bot.tick(now);
+						touch(bot);
+					}
+				}
+				if (sentNow > 0) sent += sentNow;
+				while ((b = dirty.poll()) != null) {
+					touch(b);
+				}
+				for (int i = 0; i < touched.size(); i++) {
+					flush(touched.get(i));
+				}
+				touched.clear();
+				connected = bots.size();
+			}
+		} finally {
+			for (Bot bot : bots) {
+				bot.close();
+			}
+			bots.clear();
+			connected = 0;
+			try {
+				selector.close();
+			} catch (IOException e) {
+				log.warn("Failed to close selector", e);
+			}
+			memFree(buffer);
+			buffer = null;
+			rpmalloc_thread_finalize();
+		}
+	}
+
+	/**
+	 * Wait for something to happen, or for the next bot to need attention.
+	 */
+	private void select() {
+		long earliest = Long.MAX_VALUE;
+		for (int i = 0; i < bots.size(); i++) {
+			Bot bot = bots.get(i);
+			earliest = Math.min(earliest, Math.min(bot.getNextSend(), bot.conn.getWriteDeadline()));
+		}
+		try {
+			if (earliest == Long.MAX_VALUE) {
+				selector.select();
+			} else {
+				long millis = TimeUnit.NANOSECONDS.toMillis(earliest-MonotonicTime.nanos());
+				if (millis <= 0) {
+					selector.selectNow();
+				} else {
+					selector.select(millis);
+				}
+			}
+		} catch (IOException e) {
+			log.warn("Select failed", e);
+		}
+	}
+
+	private void register(Bot bot) {
+		try {
+			bot.tcpKey = bot.tcpChannel.register(selector, OP_READ, bot);
+			bot.udpKey = bot.udpChannel.register(selector, OP_READ, bot);
+			bots.add(bot);
+			touch(bot);
+		} catch (ClosedChannelException e) {
+			log.debug("Bot {} was closed before it could be adopted", bot.index);
+			bot.close();
+		}
+	}
+
+	private void read(Bot bot, SelectionKey key) throws IOException {
+		Connection conn = bot.conn;
+		if (key.channel() instanceof DatagramChannel) {
+			DatagramChannel dc = (DatagramChannel)key.channel();
+			while (true) {
+				buffer.rewind().limit(buffer.capacity());
+				InetSocketAddress src = (InetSocketAddress)dc.receive(buffer);
+				if (src == null) break;
+				buffer.flip();
+				conn.feedImmediate(src, buffer);
+			}
+		} else {
+			buffer.rewind().limit(buffer.capacity());
+			int read = ((SocketChannel)key.channel()).read(buffer);
+			buffer.flip();
+			if (read < 0) {
+				conn.disconnect();
+			} else if (read > 0) {
+				conn.feedQueued(buffer);
+			}
+		}
+	}
+
+	private void touch(Bot bot) {
+		if (!bot.touched) {
+			bot.touched = true;
+			touched.add(bot);
+		}
+	}
+
+	private void flush(Bot bot) {
+		bot.touched = false;
+		if (bot.tcpKey == null) return;
+		Connection conn = bot.conn;
+		if (conn.writePending()) {
+			if (bots.remove(bot)) {
+				log.debug("Bot {} was disconnected: {}", bot.index, conn.getDisconnectReason());
+				lost++;
+			}
+			bot.close();
+		} else if (bot.tcpKey.isValid()) {
+			bot.tcpKey.interestOps((conn.wantsRead() ? OP_READ : 0) | (conn.wantsWrite() ? OP_WRITE : 0));
+		}
+	}
+
+}
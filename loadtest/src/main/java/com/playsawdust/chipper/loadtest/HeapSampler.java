@@ -0,0 +1,111 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.loadtest;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Estimates the allocation rate of the whole JVM by watching heap usage grow between
+ * collections, and tracks time spent in GC.
+ * <p>
+ * The per-thread allocation counters are in com.sun.management, which addons aren't allowed to
+ * touch, so this samples instead. Anything allocated and collected between two samples is
+ * missed, so the result is a lower bound; at the default interval it's usually within a few
+ * percent.
+ */
+final class HeapSampler extends Thread {
+
+	private final List<MemoryPoolMXBean> pools = Lists.newArrayList();
+	private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+	private final long intervalMillis;
+
+	private volatile boolean run = true;
+	private volatile long allocated = 0;
+
+	HeapSampler(long intervalMillis) {
+		this.intervalMillis = intervalMillis;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pools.add(pool);
+			}
+		}
+		setDaemon(true);
+		setName("Heap sampler thread");
+	}
+
+	/**
+	 * A point-in-time reading of the sampler's counters.
+	 */
+	static final class Sample {
+		final long allocatedBytes;
+		final long gcCount;
+		final long gcMillis;
+
+		private Sample(long allocatedBytes, long gcCount, long gcMillis) {
+			this.allocatedBytes = allocatedBytes;
+			this.gcCount = gcCount;
+			this.gcMillis = gcMillis;
+		}
+
+		Sample since(Sample earlier) {
+			return new Sample(allocatedBytes-earlier.allocatedBytes, gcCount-earlier.gcCount, gcMillis-earlier.gcMillis);
+		}
+	}
+
+	Sample sample() {
+		long count = 0;
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : collectors) {
+			// -1 means the collector doesn't know
+			count += Math.max(0, gc.getCollectionCount());
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return new Sample(allocated, count, millis);
+	}
+
+	void shutdown() {
+		run = false;
+		interrupt();
+	}
+
+	@Override
+	public void run() {
+		long last = used();
+		while (run) {
+			try {
+				Thread.sleep(intervalMillis);
+			} catch (InterruptedException e) {
+				continue;
+			}
+			long now = used();
+			// heap usage only goes down when something was collected; count nothing for that
+			// interval rather than guessing
+			if (now > last) {
+				allocated += now-last;
+			}
+			last = now;
+		}
+	}
+
+	private long used() {
+		long sum = 0;
+		for (MemoryPoolMXBean pool : pools) {
+			sum += pool.getUsage().getUsed();
+		}
+		return sum;
+	}
+
+}
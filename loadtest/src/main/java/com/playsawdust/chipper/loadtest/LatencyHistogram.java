@@ -0,0 +1,127 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.loadtest;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A thread-safe histogram of latencies, with microsecond resolution below 64µs and about 3%
+ * precision above that. Recording is a single atomic increment, so it's cheap enough to do for
+ * every message.
+ */
+public final class LatencyHistogram {
+
+	// each power of two above 64µs is split into this many buckets
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int LINEAR_BUCKETS = 2*SUB_BUCKETS;
+	// enough for about 9 hours; anything longer goes in the last bucket
+	private static final int MAX_EXPONENT = 45;
+	private static final int BUCKETS = LINEAR_BUCKETS+((MAX_EXPONENT-(SUB_BUCKET_BITS+1))*SUB_BUCKETS);
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * @param nanos the latency to record; negative values are counted as 0
+	 */
+	public void record(long nanos) {
+		counts.incrementAndGet(bucketOf(Math.max(0, nanos/1000)));
+	}
+
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+		}
+		return new Snapshot(copy);
+	}
+
+	private static int bucketOf(long micros) {
+		if (micros < LINEAR_BUCKETS) return (int)micros;
+		int exponent = 63-Long.numberOfLeadingZeros(micros);
+		if (exponent >= MAX_EXPONENT) return BUCKETS-1;
+		int sub = (int)(micros >>> (exponent-SUB_BUCKET_BITS)) & (SUB_BUCKETS-1);
+		return LINEAR_BUCKETS+((exponent-(SUB_BUCKET_BITS+1))*SUB_BUCKETS)+sub;
+	}
+
+	/**
+	 * @return the largest number of microseconds that falls in the given bucket
+	 */
+	private static long upperBoundOf(int bucket) {
+		if (bucket < LINEAR_BUCKETS) return bucket;
+		int exponent = ((bucket-LINEAR_BUCKETS)/SUB_BUCKETS)+SUB_BUCKET_BITS+1;
+		int sub = (bucket-LINEAR_BUCKETS)%SUB_BUCKETS;
+		long base = (SUB_BUCKETS+sub) << (exponent-SUB_BUCKET_BITS);
+		return base+(1L << (exponent-SUB_BUCKET_BITS))-1;
+	}
+
+	/**
+	 * The counts of a LatencyHistogram at one point in time.
+	 */
+	public static final class Snapshot {
+		private final long[] counts;
+		private final long total;
+
+		private Snapshot(long[] counts) {
+			this.counts = counts;
+			long total = 0;
+			for (long c : counts) {
+				total += c;
+			}
+			this.total = total;
+		}
+
+		/**
+		 * @return what was recorded after the given earlier snapshot of the same histogram
+		 */
+		public Snapshot since(Snapshot earlier) {
+			long[] diff = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				diff[i] = counts[i]-earlier.counts[i];
+			}
+			return new Snapshot(diff);
+		}
+
+		public long getCount() {
+			return total;
+		}
+
+		/**
+		 * @param percentile the percentile to return, from 0 to 100
+		 * @return the given percentile of the recorded latencies, in milliseconds, or 0 if nothing
+		 * 		was recorded
+		 */
+		public double getPercentile(double percentile) {
+			Preconditions.checkArgument(percentile >= 0 && percentile <= 100, "percentile must be in the range 0-100");
+			if (total == 0) return 0;
+			double exact = (percentile/100)*total;
+			long target = (long)exact;
+			if (target < exact) target++;
+			target = Math.max(1, target);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts[i];
+				if (seen >= target) return upperBoundOf(i)/1000D;
+			}
+			return upperBoundOf(BUCKETS-1)/1000D;
+		}
+
+		/**
+		 * @return a one-line summary of the recorded latencies, suitable for logging
+		 */
+		public String describe() {
+			return String.format("p50=%.2fms p90=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms",
+					getPercentile(50), getPercentile(90), getPercentile(99), getPercentile(99.9), getPercentile(100));
+		}
+	}
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.loadtest;
+
+import com.playsawdust.chipper.Identifier;
+import com.playsawdust.chipper.component.Context;
+import com.playsawdust.chipper.network.Connection;
+import com.playsawdust.chipper.network.Marshaller;
+import com.playsawdust.chipper.network.Protocol;
+import com.playsawdust.chipper.network.Unmarshaller;
+import com.playsawdust.chipper.network.Message.ServerboundMessage;
+import com.playsawdust.chipper.server.ServerEngine;
+
+/**
+ * Switches a bot's connection to the {@link LoadTestProtocol}. Bots send it right after their
+ * hello, without waiting for the welcome.
+ */
+public class LoadStartMessage extends ServerboundMessage implements Protocol.StartMessage {
+
+	public long messageTableHash;
+
+	public LoadStartMessage() {
+		this(0);
+	}
+
+	public LoadStartMessage(long messageTableHash) {
+		super(new Identifier("loadtest", "start"));
+		this.messageTableHash = messageTableHash;
+	}
+
+	@Override
+	public long getMessageTableHash() {
+		return messageTableHash;
+	}
+
+	@Override
+	public void marshal(Marshaller out) {
+		out.writeI64(messageTableHash);
+	}
+
+	@Override
+	public void unmarshal(Unmarshaller in) {
+		messageTableHash = in.readI64();
+	}
+
+	@Override
+	protected void processServer(Context<ServerEngine> ctx, Connection c) {
+		LoadStats.obtain(ctx).onBotStarted();
+	}
+
+	@Override
+	public String toString() {
+		return "LoadStartMessage[messageTableHash="+Long.toHexString(messageTableHash)+"]";
+	}
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.loadtest;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.base.Preconditions;
+import com.playsawdust.chipper.component.Component;
+import com.playsawdust.chipper.component.Context;
+import com.playsawdust.chipper.component.Engine;
+import com.playsawdust.chipper.component.Context.WhiteLotus;
+import com.playsawdust.chipper.server.ServerEngine;
+
+/**
+ * What the server has received from bots, per {@link TrafficMix.Stream stream}. Safe to record
+ * into from any number of processing threads at once.
+ */
+public final class LoadStats implements Component {
+
+	private LoadStats(WhiteLotus lotus) {
+		WhiteLotus.verify(lotus);
+	}
+
+	public static final class StreamStats {
+		public final TrafficMix.Stream stream;
+		private final LongAdder messages = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+		// from the bot sending it to the server's network thread unmarshalling it
+		private final LatencyHistogram network = new LatencyHistogram();
+		// from the bot sending it to the server processing it during a tick
+		private final LatencyHistogram total = new LatencyHistogram();
+
+		private StreamStats(TrafficMix.Stream stream) {
+			this.stream = stream;
+		}
+
+		public Snapshot snapshot() {
+			return new Snapshot(stream, messages.sum(), bytes.sum(), network.snapshot(), total.snapshot());
+		}
+	}
+
+	/**
+	 * The stats of one stream at one point in time.
+	 */
+	public static final class Snapshot {
+		public final TrafficMix.Stream stream;
+		public final long messages;
+		public final long bytes;
+		public final LatencyHistogram.Snapshot network;
+		public final LatencyHistogram.Snapshot total;
+
+		private Snapshot(TrafficMix.Stream stream, long messages, long bytes, LatencyHistogram.Snapshot network, LatencyHistogram.Snapshot total) {
+			this.stream = stream;
+			this.messages = messages;
+			this.bytes = bytes;
+			this.network = network;
+			this.total = total;
+		}
+
+		/**
+		 * @return what was recorded after the given earlier snapshot of the same stream
+		 */
+		public Snapshot since(Snapshot earlier) {
+			return new Snapshot(stream, messages-earlier.messages, bytes-earlier.bytes, network.since(earlier.network), total.since(earlier.total));
+		}
+	}
+
+	private volatile StreamStats[] streams = new StreamStats[0];
+	private final AtomicInteger botsStarted = new AtomicInteger();
+
+	/**
+	 * Start recording stats for the streams of the given mix. Must be called before bots connect.
+	 */
+	public void setMix(TrafficMix mix) {
+		StreamStats[] arr = new StreamStats[mix.getStreams().size()];
+		for (TrafficMix.Stream s : mix.getStreams()) {
+			arr[s.index] = new StreamStats(s);
+		}
+		streams = arr;
+	}
+
+	public StreamStats[] getStreams() {
+		return streams.clone();
+	}
+
+	/**
+	 * @return the number of bots that have switched to the {@link LoadTestProtocol}
+	 */
+	public int getBotsStarted() {
+		return botsStarted.get();
+	}
+
+	void onBotStarted() {
+		botsStarted.incrementAndGet();
+	}
+
+	void record(int stream, int bytes, long networkNanos, long totalNanos) {
+		StreamStats[] arr = streams;
+		Preconditions.checkArgument(stream >= 0 && stream < arr.length, "Unknown stream %s", stream);
+		StreamStats s = arr[stream];
+		s.messages.increment();
+		s.bytes.add(bytes);
+		s.network.record(networkNanos);
+		s.total.record(totalNanos);
+	}
+
+	@Override
+	public boolean compatibleWith(Engine engine) {
+		return engine instanceof ServerEngine;
+	}
+
+	public static LoadStats obtain(Context<? extends ServerEngine> ctx) {
+		return ctx.getComponent(LoadStats.class);
+	}
+
+}
@@ -0,0 +1,385 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.loadtest;
+
+import static org.lwjgl.system.rpmalloc.RPmalloc.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lwjgl.system.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.playsawdust.chipper.Addon;
+import com.playsawdust.chipper.Greeting;
+import com.playsawdust.chipper.client.ClientEngine;
+import com.playsawdust.chipper.component.Context;
+import com.playsawdust.chipper.component.EngineType;
+import com.playsawdust.chipper.network.Connection;
+import com.playsawdust.chipper.network.ProtocolRegistry;
+import com.playsawdust.chipper.server.ServerEngine;
+import com.playsawdust.chipper.server.ServerNetworkThread;
+import com.playsawdust.chipper.server.TickLoop;
+import com.playsawdust.chipper.toolbox.lipstick.MonotonicTime;
+
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+/**
+ * Runs a real {@link ServerNetworkThread} and {@link TickLoop} on loopback, connects a crowd of
+ * {@link Bot bots} to it, and reports how the server holds up. Everything runs in one JVM, so
+ * latencies are measured on one clock.
+ * <p>
+ * Returns 0 if the run completed and met the given limits, 1 if it didn't, and 2 or higher if it
+ * couldn't run at all, so it can be used as a regression gate in CI.
+ */
+public class LoadTestEngine extends ServerEngine {
+	private static final Logger log = LoggerFactory.getLogger("LoadTest");
+
+	private boolean ran = false;
+
+	private ScheduledThreadPoolExecutor executor;
+	private TickLoop tickLoop;
+
+	@Override
+	public int run(String... args) {
+		if (ran) {
+			throw new IllegalStateException("LoadTestEngine cannot be started more than once");
+		}
+		ran = true;
+		Thread.currentThread().setName("Load test thread");
+
+		OptionParser parser = new OptionParser();
+		OptionSpec<Integer> botsOpt = parser.accepts("bots", "Number of simulated clients").withRequiredArg().ofType(Integer.class).defaultsTo(1000);
+		OptionSpec<Integer> durationOpt = parser.accepts("duration", "Seconds to measure for, after warmup").withRequiredArg().ofType(Integer.class).defaultsTo(60);
+		OptionSpec<Integer> warmupOpt = parser.accepts("warmup", "Seconds to run before measuring").withRequiredArg().ofType(Integer.class).defaultsTo(10);
+		OptionSpec<Integer> rampOpt = parser.accepts("ramp", "Seconds over which to connect bots").withRequiredArg().ofType(Integer.class).defaultsTo(5);
+		OptionSpec<String> mixOpt = parser.accepts("mix", "Traffic mix; name:mode:rate:size[:channel],...").withRequiredArg().defaultsTo(TrafficMix.DEFAULT);
+		OptionSpec<Integer> botThreadsOpt = parser.accepts("bot-threads", "Threads driving the bots").withRequiredArg().ofType(Integer.class)
+				.defaultsTo(Math.max(1, Runtime.getRuntime().availableProcessors()/4));
+		OptionSpec<Integer> ioThreadsOpt = parser.accepts("io-threads", "Server network I/O threads; 0 to do I/O on the accept thread").withRequiredArg().ofType(Integer.class).defaultsTo(0);
+		OptionSpec<Integer> serverThreadsOpt = parser.accepts("server-threads", "Server processing threads").withRequiredArg().ofType(Integer.class)
+				.defaultsTo(Runtime.getRuntime().availableProcessors());
+		OptionSpec<Integer> tickRateOpt = parser.accepts("tick-rate", "Server ticks per second").withRequiredArg().ofType(Integer.class).defaultsTo(TickLoop.DEFAULT_TICK_RATE);
+		OptionSpec<Integer> reportOpt = parser.accepts("report-interval", "Seconds between progress reports").withRequiredArg().ofType(Integer.class).defaultsTo(5);
+		OptionSpec<Double> maxP99Opt = parser.accepts("max-p99", "Fail if any stream's p99 end-to-end latency exceeds this many milliseconds").withRequiredArg().ofType(Double.class);
+		OptionSpec<Double> minThroughputOpt = parser.accepts("min-throughput", "Fail if fewer than this fraction of sent messages are processed").withRequiredArg().ofType(Double.class).defaultsTo(0.99);
+		parser.accepts("help").forHelp();
+
+		OptionSet opts;
+		TrafficMix mix;
+		try {
+			opts = parser.parse(args);
+			mix = TrafficMix.parse(opts.valueOf(mixOpt));
+		} catch (OptionException | IllegalArgumentException e) {
+			log.error(e.getMessage());
+			return 2;
+		}
+		if (opts.has("help")) {
+			try {
+				parser.printHelpOn(System.out);
+			} catch (IOException e) {
+			}
+			return 0;
+		}
+
+		int botCount = opts.valueOf(botsOpt);
+		int tickRate = opts.valueOf(tickRateOpt);
+		if (botCount < 1 || opts.valueOf(botThreadsOpt) < 1 || opts.valueOf(serverThreadsOpt) < 1 || tickRate < 1 || tickRate > 1000) {
+			log.error("Option out of range");
+			return 2;
+		}
+
+		Greeting.print(this, log);
+		log.info("{} bots, mix {} ({} msgs/s per bot, {} msgs/s total)", botCount, mix, String.format("%.1f", mix.getRatePerBot()), String.format("%.0f", mix.getRatePerBot()*botCount));
+
+		Configuration.MEMORY_ALLOCATOR.set("rpmalloc");
+		rpmalloc_initialize();
+		rpmalloc_thread_initialize();
+
+		AtomicInteger threadIndex = new AtomicInteger(1);
+		executor = new ScheduledThreadPoolExecutor(opts.valueOf(serverThreadsOpt), (r) -> new Thread(r, "Server thread #"+threadIndex.getAndIncrement()));
+		executor.setRemoveOnCancelPolicy(true);
+		executor.prestartCoreThread();
+		tickLoop = new TickLoop(executor, tickRate);
+
+		Context<ServerEngine> serverCtx = Context.createNew(this);
+		ProtocolRegistry.obtain(serverCtx).register(new LoadTestProtocol());
+		LoadStats stats = LoadStats.obtain(serverCtx);
+		stats.setMix(mix);
+
+		Context<ClientEngine> botCtx = Context.createNew(new BotEngine());
+		ProtocolRegistry.obtain(botCtx).register(new LoadTestProtocol());
+
+		HeapSampler heap = new HeapSampler(10);
+		List<BotThread> botThreads = Lists.newArrayList();
+		ServerNetworkThread network = null;
+		Thread tickThread = null;
+		try {
+			InetSocketAddress bound;
+			try {
+				DatagramChannel udpChannel = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+				udpChannel.configureBlocking(false);
+				bound = (InetSocketAddress)udpChannel.getLocalAddress();
+				ServerSocketChannel tcpChannel = ServerSocketChannel.open().bind(bound, 1024);
+				tcpChannel.configureBlocking(false);
+				network = new ServerNetworkThread(serverCtx, tcpChannel, udpChannel, opts.valueOf(ioThreadsOpt));
+			} catch (IOException e) {
+				log.error("Failed to bind", e);
+				return 4;
+			}
+			network.start();
+			tickThread = new Thread(tickLoop, "Server tick thread");
+			tickThread.start();
+			heap.start();
+			log.info("Listening on UDP+TCP {}:{}", bound.getAddress().getHostAddress(), bound.getPort());
+
+			for (int i = 0; i < opts.valueOf(botThreadsOpt); i++) {
+				BotThread bt;
+				try {
+					bt = new BotThread(i);
+				} catch (IOException e) {
+					log.error("Failed to create bot thread", e);
+					return 4;
+				}
+				bt.start();
+				botThreads.add(bt);
+			}
+
+			long rampNanos = TimeUnit.SECONDS.toNanos(opts.valueOf(rampOpt));
+			long start = MonotonicTime.nanos();
+			int failed = 0;
+			for (int i = 0; i < botCount; i++) {
+				long due = start+((rampNanos*i)/botCount);
+				long wait = due-MonotonicTime.nanos();
+				if (wait > 0) {
+					try {
+						TimeUnit.NANOSECONDS.sleep(wait);
+					} catch (InterruptedException e) {
+						return 3;
+					}
+				}
+				BotThread bt = botThreads.get(i%botThreads.size());
+				try {
+					bt.adopt(Bot.connect(i, botCtx, mix, bound, bt));
+				} catch (IOException e) {
+					if (failed == 0) log.warn("Failed to connect bot {}", i, e);
+					failed++;
+				}
+			}
+			if (failed > 0) {
+				log.warn("{} bots failed to connect", failed);
+			}
+
+			long reportNanos = TimeUnit.SECONDS.toNanos(Math.max(1, opts.valueOf(reportOpt)));
+			long warmupEnd = start+Math.max(rampNanos, TimeUnit.SECONDS.toNanos(opts.valueOf(warmupOpt)));
+			long end = warmupEnd+TimeUnit.SECONDS.toNanos(opts.valueOf(durationOpt));
+			Report baseline = null;
+			Report last = new Report(stats, botThreads, heap);
+			long nextReport = MonotonicTime.nanos()+reportNanos;
+			while (true) {
+				long now = MonotonicTime.nanos();
+				if (baseline == null && now >= warmupEnd) {
+					baseline = new Report(stats, botThreads, heap);
+					log.info("Warmup done; measuring for {}s", opts.valueOf(durationOpt));
+				}
+				if (now >= end) break;
+				if (now >= nextReport) {
+					Report cur = new Report(stats, botThreads, heap);
+					cur.since(last).log(false);
+					last = cur;
+					nextReport += reportNanos;
+				}
+				long sleep = Math.min(nextReport, baseline == null ? warmupEnd : end)-now;
+				try {
+					TimeUnit.NANOSECONDS.sleep(Math.max(1, sleep));
+				} catch (InterruptedException e) {
+					return 3;
+				}
+			}
+			Report result = new Report(stats, botThreads, heap).since(baseline);
+			log.info("==== Final results ({} bots, {}s) ====", botCount, opts.valueOf(durationOpt));
+			result.log(true);
+			log.info(tickLoop.describeStats());
+
+			int exit = 0;
+			long lost = 0;
+			for (BotThread bt : botThreads) {
+				lost += bt.getLostCount();
+			}
+			if (failed > 0 || lost > 0) {
+				log.error("FAIL: {} bots failed to connect and {} were disconnected", failed, lost);
+				exit = 1;
+			}
+			double throughput = result.sent == 0 ? 0 : result.processed()/(double)result.sent;
+			if (throughput < opts.valueOf(minThroughputOpt)) {
+				log.error("FAIL: only {} of sent messages were processed", String.format("%.1f%%", throughput*100));
+				exit = 1;
+			}
+			if (opts.has(maxP99Opt)) {
+				double max = opts.valueOf(maxP99Opt);
+				for (LoadStats.Snapshot s : result.streams) {
+					double p99 = s.total.getPercentile(99);
+					if (p99 > max) {
+						log.error("FAIL: p99 of {} is {}ms, over the limit of {}ms", s.stream.name, String.format("%.2f", p99), max);
+						exit = 1;
+					}
+				}
+			}
+			if (exit == 0) log.info("PASS");
+			return exit;
+		} finally {
+			for (BotThread bt : botThreads) {
+				bt.shutdown();
+			}
+			heap.shutdown();
+			tickLoop.stop();
+			if (network != null) network.shutdown();
+			executor.shutdown();
+			try {
+				for (BotThread bt : botThreads) {
+					bt.join(5000);
+				}
+				if (tickThread != null) tickThread.join(5000);
+				executor.awaitTermination(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+			}
+			rpmalloc_thread_finalize();
+		}
+	}
+
+	/**
+	 * Everything measured at one point in time, or between two points once {@link #since}'d.
+	 */
+	private static final class Report {
+		final long at;
+		final int botsStarted;
+		final int botsConnected;
+		final long sent;
+		final LoadStats.Snapshot[] streams;
+		final HeapSampler.Sample heap;
+
+		Report(LoadStats stats, List<BotThread> botThreads, HeapSampler sampler) {
+			this.at = MonotonicTime.nanos();
+			this.botsStarted = stats.getBotsStarted();
+			int connected = 0;
+			long sent = 0;
+			for (BotThread bt : botThreads) {
+				connected += bt.getConnectedCount();
+				sent += bt.getSentCount();
+			}
+			this.botsConnected = connected;
+			this.sent = sent;
+			LoadStats.StreamStats[] arr = stats.getStreams();
+			this.streams = new LoadStats.Snapshot[arr.length];
+			for (int i = 0; i < arr.length; i++) {
+				streams[i] = arr[i].snapshot();
+			}
+			this.heap = sampler.sample();
+		}
+
+		private Report(long at, int botsStarted, int botsConnected, long sent, LoadStats.Snapshot[] streams, HeapSampler.Sample heap) {
+			this.at = at;
+			this.botsStarted = botsStarted;
+			this.botsConnected = botsConnected;
+			this.sent = sent;
+			this.streams = streams;
+			this.heap = heap;
+		}
+
+		Report since(Report earlier) {
+			LoadStats.Snapshot[] diff = new LoadStats.Snapshot[streams.length];
+			for (int i = 0; i < streams.length; i++) {
+				diff[i] = streams[i].since(earlier.streams[i]);
+			}
+			return new Report(at-earlier.at, botsStarted, botsConnected, sent-earlier.sent, diff, heap.since(earlier.heap));
+		}
+
+		long processed() {
+			long sum = 0;
+			for (LoadStats.Snapshot s : streams) {
+				sum += s.messages;
+			}
+			return sum;
+		}
+
+		/**
+		 * Only meaningful on a Report returned by {@link #since}, where {@code at} is a duration.
+		 */
+		void log(boolean detailed) {
+			double seconds = at/1_000_000_000D;
+			long bytes = 0;
+			for (LoadStats.Snapshot s : streams) {
+				bytes += s.bytes;
+			}
+			log.info("{} bots started, {} connected; sent {} msgs/s, processed {} msgs/s ({} KiB/s payload); "
+					+ "allocated ~{} MiB/s, {} GCs taking {}ms",
+					botsStarted, botsConnected,
+					String.format("%.0f", sent/seconds), String.format("%.0f", processed()/seconds), String.format("%.1f", (bytes/1024D)/seconds),
+					String.format("%.1f", (heap.allocatedBytes/(1024D*1024D))/seconds), heap.gcCount, heap.gcMillis);
+			for (LoadStats.Snapshot s : streams) {
+				if (detailed) {
+					log.info("  {}: {} msgs; network {}", s.stream, s.messages, s.network.describe());
+					log.info("  {}: {} msgs; end-to-end {}", s.stream, s.messages, s.total.describe());
+				} else {
+					log.info("  {}: end-to-end {}", s.stream.name, s.total.describe());
+				}
+			}
+		}
+	}
+
+	@Override
+	public Addon getDefaultAddon() {
+		return null;
+	}
+
+	@Override
+	public EngineType getType() {
+		return EngineType.DEDICATED_SERVER;
+	}
+
+	@Override
+	public boolean isPortcheckServer(InetAddress address) {
+		return false;
+	}
+
+	@Override
+	public boolean isPortcheckToken(long token) {
+		return false;
+	}
+
+	@Override
+	public void onPortcheckResponseTCP() {}
+
+	@Override
+	public void onPortcheckResponseUDP(String publicAddress) {}
+
+	@Override
+	public void enqueueProcessing(Connection connection) {
+		tickLoop.schedule(connection);
+	}
+
+	@Override
+	public TickLoop getTickLoop() {
+		return tickLoop;
+	}
+
+}
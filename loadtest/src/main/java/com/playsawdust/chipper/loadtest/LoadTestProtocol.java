@@ -0,0 +1,32 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.loadtest;
+
+import com.playsawdust.chipper.Identifier;
+import com.playsawdust.chipper.network.Protocol;
+
+/**
+ * The protocol spoken by bots. It's frozen, so it uses dense message IDs, as a real game's
+ * protocol should.
+ */
+public class LoadTestProtocol extends Protocol {
+
+	public LoadTestProtocol() {
+		register(LoadStartMessage::new);
+		registerPooled(TrafficMessage::new);
+		freeze();
+	}
+
+	@Override
+	public Identifier getStartMessage() {
+		return new Identifier("loadtest", "start");
+	}
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.loadtest;
+
+import com.playsawdust.chipper.Identifier;
+import com.playsawdust.chipper.component.Context;
+import com.playsawdust.chipper.network.Connection;
+import com.playsawdust.chipper.network.Marshaller;
+import com.playsawdust.chipper.network.Unmarshaller;
+import com.playsawdust.chipper.network.Message.ServerboundMessage;
+import com.playsawdust.chipper.server.ServerEngine;
+import com.playsawdust.chipper.toolbox.lipstick.MonotonicTime;
+
+/**
+ * One message of a {@link TrafficMix.Stream}, stamped with when the bot sent it. Bots and server
+ * share a clock, so the server can tell how long it took to arrive and to be processed.
+ */
+public class TrafficMessage extends ServerboundMessage {
+
+	public int stream;
+	public long sentAt;
+	private SendMode mode = SendMode.RELIABLE;
+	private int channel;
+	// sending side; shared with every other message in the stream
+	private byte[] payload;
+	private int payloadLength;
+	// receiving side; when the network thread unmarshalled it
+	private long receivedAt;
+
+	public TrafficMessage() {
+		super(new Identifier("loadtest", "traffic"));
+	}
+
+	public TrafficMessage(TrafficMix.Stream stream, long sentAt) {
+		this();
+		this.stream = stream.index;
+		this.sentAt = sentAt;
+		this.mode = stream.mode;
+		this.channel = stream.channel;
+		this.payload = stream.payload;
+		this.payloadLength = stream.payload.length;
+	}
+
+	@Override
+	public SendMode getSendMode() {
+		return mode;
+	}
+
+	@Override
+	public int getChannel() {
+		return channel;
+	}
+
+	@Override
+	public void marshal(Marshaller out) {
+		out.writeIVar32(stream);
+		out.writeI64(sentAt);
+		out.writeIVar32(payloadLength);
+		out.write(payload, 0, payloadLength);
+	}
+
+	@Override
+	public void unmarshal(Unmarshaller in) {
+		receivedAt = MonotonicTime.nanos();
+		stream = in.readIVar32();
+		sentAt = in.readI64();
+		payloadLength = in.readIVar32();
+		if (payload == null || payload.length < payloadLength) {
+			// pooled, so this is only reallocated until it's big enough for the largest stream
+			payload = new byte[payloadLength];
+		}
+		in.read(payload, 0, payloadLength);
+	}
+
+	@Override
+	protected void reset() {
+		stream = 0;
+		sentAt = 0;
+		receivedAt = 0;
+		payloadLength = 0;
+		// keep the payload buffer for the next message
+	}
+
+	@Override
+	protected void processServer(Context<ServerEngine> ctx, Connection c) {
+		checkNotRecycled();
+		LoadStats.obtain(ctx).record(stream, payloadLength, receivedAt-sentAt, MonotonicTime.nanos()-sentAt);
+	}
+
+	@Override
+	public String toString() {
+		return "TrafficMessage[stream="+stream+",sentAt="+sentAt+",payloadLength="+payloadLength+"]";
+	}
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.loadtest;
+
+import java.util.List;
+import java.util.Locale;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Ints;
+import com.playsawdust.chipper.network.Message.SendMode;
+
+/**
+ * The messages every bot sends: a list of named streams, each with its own send mode, rate, and
+ * size. Written as a comma-separated list of {@code name:mode:rate:size[:channel]}, where the
+ * mode is a {@link SendMode} name, the rate is in messages per second per bot, and the size is
+ * the payload size in bytes; for example, {@code move:unimportant:20:24,chat:reliable:0.1:60}.
+ */
+public final class TrafficMix {
+
+	/**
+	 * A movement-heavy mix resembling a typical action game client.
+	 */
+	public static final String DEFAULT = "move:unimportant:20:24,action:unreliable:5:16,inventory:ordered:1:64:1,chat:reliable:0.1:80";
+
+	public static final class Stream {
+		public final int index;
+		public final String name;
+		public final SendMode mode;
+		public final double rate;
+		public final int size;
+		public final int channel;
+		// shared by every message in this stream; only ever read
+		final byte[] payload;
+
+		private Stream(int index, String name, SendMode mode, double rate, int size, int channel) {
+			this.index = index;
+			this.name = name;
+			this.mode = mode;
+			this.rate = rate;
+			this.size = size;
+			this.channel = channel;
+			this.payload = new byte[size];
+			for (int i = 0; i < size; i++) {
+				// not all zeroes, so compression doesn't make it look better than it is
+				payload[i] = (byte)(i*31+index);
+			}
+		}
+
+		/**
+		 * @return the time between messages in this stream, in nanos
+		 */
+		public long getInterval() {
+			return (long)(1_000_000_000D/rate);
+		}
+
+		@Override
+		public String toString() {
+			return name+":"+mode.name().toLowerCase(Locale.ROOT)+":"+rate+":"+size+(mode == SendMode.ORDERED ? ":"+channel : "");
+		}
+	}
+
+	private final ImmutableList<Stream> streams;
+
+	private TrafficMix(ImmutableList<Stream> streams) {
+		this.streams = streams;
+	}
+
+	public ImmutableList<Stream> getStreams() {
+		return streams;
+	}
+
+	public Stream getStream(int index) {
+		return streams.get(index);
+	}
+
+	/**
+	 * @return the total number of messages every bot sends per second
+	 */
+	public double getRatePerBot() {
+		double total = 0;
+		for (Stream s : streams) {
+			total += s.rate;
+		}
+		return total;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the string is malformed
+	 */
+	public static TrafficMix parse(String str) {
+		ImmutableList.Builder<Stream> builder = ImmutableList.builder();
+		int index = 0;
+		for (String def : Splitter.on(',').trimResults().omitEmptyStrings().split(str)) {
+			List<String> parts = Splitter.on(':').trimResults().splitToList(def);
+			if (parts.size() < 4 || parts.size() > 5) {
+				throw new IllegalArgumentException("Expected name:mode:rate:size[:channel], got "+def);
+			}
+			SendMode mode;
+			try {
+				mode = SendMode.valueOf(parts.get(1).toUpperCase(Locale.ROOT));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Unknown send mode "+parts.get(1)+" in "+def);
+			}
+			Double rate = Doubles.tryParse(parts.get(2));
+			if (rate == null || !(rate > 0)) throw new IllegalArgumentException("Invalid rate "+parts.get(2)+" in "+def);
+			Integer size = Ints.tryParse(parts.get(3));
+			if (size == null || size < 0) throw new IllegalArgumentException("Invalid size "+parts.get(3)+" in "+def);
+			int channel = 0;
+			if (parts.size() == 5) {
+				Integer c = Ints.tryParse(parts.get(4));
+				if (c == null || c < 0 || c > 15) throw new IllegalArgumentException("Invalid channel "+parts.get(4)+" in "+def);
+				channel = c;
+			}
+			builder.add(new Stream(index++, parts.get(0), mode, rate, size, channel));
+		}
+		ImmutableList<Stream> streams = builder.build();
+		if (streams.isEmpty()) throw new IllegalArgumentException("Traffic mix is empty");
+		return new TrafficMix(streams);
+	}
+
+	@Override
+	public String toString() {
+		return Joiner.on(',').join(streams);
+	}
+
+}
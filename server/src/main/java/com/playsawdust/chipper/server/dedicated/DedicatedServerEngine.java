@@ -34,6 +34,7 @@ import java.util.Locale;
 import java.util.Scanner;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.lwjgl.system.Configuration;
 import org.slf4j.Logger;
@@ -44,6 +45,7 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.Lists;
 import com.google.common.io.Files;
+import com.google.common.primitives.Ints;
 import com.playsawdust.chipper.Addon;
 import com.playsawdust.chipper.Distribution;
 import com.playsawdust.chipper.MoreLibC;
@@ -54,6 +56,7 @@ import com.playsawdust.chipper.component.EngineType;
 import com.playsawdust.chipper.network.Connection;
 
 import com.playsawdust.chipper.server.ServerNetworkThread;
+import com.playsawdust.chipper.server.TickLoop;
 import com.playsawdust.chipper.server.ServerEngine;
 import com.playsawdust.chipper.toolbox.io.Directories;
 import com.playsawdust.chipper.toolbox.lipstick.SharedRandom;
@@ -75,13 +78,33 @@ public class DedicatedServerEngine extends ServerEngine {
 	private Context<ServerEngine> context;
 
 	private final ScheduledThreadPoolExecutor executor;
+	private final TickLoop tickLoop;
 
 	public DedicatedServerEngine() {
-		executor = new ScheduledThreadPoolExecutor(1, (r) -> new Thread(r, "Server thread"));
-		// thread pool executor is re-used to save time, but we only want one thread
-		executor.setMaximumPoolSize(1);
+		int threads = getIntEnv("CHIPPER_SERVER_THREADS", Runtime.getRuntime().availableProcessors(), 1, 1024);
+		AtomicInteger threadIndex = new AtomicInteger(1);
+		executor = new ScheduledThreadPoolExecutor(threads, (r) -> new Thread(r, "Server thread #"+threadIndex.getAndIncrement()));
 		// avoids a possible memory leak (exasperated by lambda capturing)
 		executor.setRemoveOnCancelPolicy(true);
+		int tickRate = getIntEnv("CHIPPER_TICK_RATE", TickLoop.DEFAULT_TICK_RATE, 1, 1000);
+		// the tick loop processes different connections in parallel on the executor, but each
+		// connection on only one thread at a time
+		tickLoop = new TickLoop(executor, tickRate);
+	}
+
+	/**
+	 * @return the value of the given environment variable, or the default if it's unset, not an
+	 * 		integer, or outside the given range
+	 */
+	private static int getIntEnv(String env, int def, int min, int max) {
+		String str = System.getenv(env);
+		if (str == null) return def;
+		Integer i = Ints.tryParse(str.trim());
+		if (i == null || i < min || i > max) {
+			log.warn("Ignoring invalid {} value {}; must be an integer in the range {}-{}", env, str, min, max);
+			return def;
+		}
+		return i;
 	}
 
 	@Override
@@ -193,12 +216,15 @@ public class DedicatedServerEngine extends ServerEngine {
 			executor.prestartCoreThread();
 
 			try {
+				int ioThreads = getIntEnv("CHIPPER_NETWORK_THREADS", 0, 0, 1024);
 				try {
-					new ServerNetworkThread(context, tcpChannel, udpChannel).start();
+					new ServerNetworkThread(context, tcpChannel, udpChannel, ioThreads).start();
 				} catch (IOException e) {
 					log.error("Failed to create receive thread", e);
 					return 4;
 				}
+				Thread tickThread = new Thread(tickLoop, "Server tick thread");
+				tickThread.start();
 				log.info("Listening on UDP+TCP {}:{}", bound.getAddress().getHostAddress(), bound.getPort());
 				int boundPort = bound.getPort();
 				if (bound.getAddress().isLoopbackAddress()) {
@@ -212,9 +238,11 @@ public class DedicatedServerEngine extends ServerEngine {
 					while (true) {
 						String line = scanner.nextLine();
 						if ("stop".equals(line)) break;
+						if ("tickstats".equals(line)) log.info(tickLoop.describeStats());
 					}
 				}
 			} finally {
+				tickLoop.stop();
 				rpmalloc_thread_finalize();
 			}
 		} finally {
@@ -242,7 +270,12 @@ public class DedicatedServerEngine extends ServerEngine {
 
 	@Override
 	public void enqueueProcessing(Connection connection) {
-		executor.execute(connection::processPackets);
+		tickLoop.schedule(connection);
+	}
+
+	@Override
+	public TickLoop getTickLoop() {
+		return tickLoop;
 	}
 
 	@Override
@@ -0,0 +1,80 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.playsawdust.chipper.Identifier;
+import com.unascribed.random.RandomXoshiro256StarStar;
+
+/**
+ * Inputs shared by the network benchmarks. Everything is generated from a fixed seed, so runs are
+ * comparable with each other.
+ */
+final class BenchData {
+
+	/**
+	 * How many values each benchmark invocation writes or reads. Large enough to hide the cost of
+	 * resetting buffers between invocations.
+	 */
+	static final int BATCH = 1024;
+
+	static final int[] INTS = new int[BATCH];
+	static final long[] LONGS = new long[BATCH];
+	static final float[] FLOATS = new float[BATCH];
+	static final double[] UNITS = new double[BATCH];
+	static final double[] SIGNED_UNITS = new double[BATCH];
+	static final boolean[] BITS = new boolean[BATCH];
+	static final String[] ASCII_STRINGS = new String[BATCH];
+	static final String[] UNICODE_STRINGS = new String[BATCH];
+	static final Identifier[] IDENTIFIERS = new Identifier[BATCH];
+
+	static {
+		RandomXoshiro256StarStar rand = new RandomXoshiro256StarStar(0xC41B9E5L);
+		for (int i = 0; i < BATCH; i++) {
+			// shifting by a random amount gives a spread of varint lengths, biased toward the
+			// small values that are most common in practice
+			INTS[i] = rand.nextInt() >> rand.nextInt(32);
+			LONGS[i] = rand.nextLong() >> rand.nextInt(64);
+			FLOATS[i] = (rand.nextFloat()-0.5f)*2048;
+			UNITS[i] = rand.nextDouble();
+			SIGNED_UNITS[i] = (rand.nextDouble()*2)-1;
+			BITS[i] = rand.nextBoolean();
+			ASCII_STRINGS[i] = randomString(rand, 4+rand.nextInt(28), 'a', 26);
+			UNICODE_STRINGS[i] = randomString(rand, 4+rand.nextInt(28), 'ぁ', 86);
+			IDENTIFIERS[i] = new Identifier(randomString(rand, 4+rand.nextInt(8), 'a', 26), randomString(rand, 4+rand.nextInt(16), 'a', 26));
+		}
+	}
+
+	private static String randomString(RandomXoshiro256StarStar rand, int len, char base, int range) {
+		char[] chars = new char[len];
+		for (int i = 0; i < len; i++) {
+			chars[i] = (char)(base+rand.nextInt(range));
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * @param kind {@code heap} or {@code direct}
+	 */
+	static ByteBuffer allocate(String kind, int size) {
+		ByteBuffer buf;
+		switch (kind) {
+			case "heap": buf = ByteBuffer.allocate(size); break;
+			case "direct": buf = ByteBuffer.allocateDirect(size); break;
+			default: throw new IllegalArgumentException("Unknown buffer kind "+kind);
+		}
+		return buf.order(ByteOrder.BIG_ENDIAN);
+	}
+
+	private BenchData() {}
+
+}
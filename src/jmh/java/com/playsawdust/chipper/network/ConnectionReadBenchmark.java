@@ -0,0 +1,279 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.playsawdust.chipper.Addon;
+import com.playsawdust.chipper.Identifier;
+import com.playsawdust.chipper.component.Context;
+import com.playsawdust.chipper.component.EngineType;
+import com.playsawdust.chipper.network.Message.ServerboundMessage;
+import com.playsawdust.chipper.server.ServerEngine;
+import com.playsawdust.chipper.server.TickLoop;
+
+/**
+ * The whole server-side TCP receive path: {@link Connection#feedQueued} appending to the receive
+ * buffer, framing, dense ID lookup, unmarshalling pooled messages and queueing them, then
+ * processing and recycling them. Measured per TCP read, with each read carrying
+ * {@link #messages} messages.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConnectionReadBenchmark {
+
+	/**
+	 * Kind of buffer the data is handed to the Connection in. The receive buffer it's copied into
+	 * is always direct.
+	 */
+	@Param({"heap", "direct"})
+	public String buffer;
+
+	@Param({"1", "64"})
+	public int messages;
+
+	@Param({"16", "256"})
+	public int payloadSize;
+
+	private Connection conn;
+	private ByteBuffer read;
+
+	@Setup(Level.Trial)
+	public void connect() throws IOException {
+		Context<ServerEngine> ctx = Context.createNew(new BenchEngine());
+		BenchProtocol protocol = new BenchProtocol();
+		ProtocolRegistry.obtain(ctx).register(protocol);
+		// never connected; nothing is actually sent or received over them
+		conn = new Connection(ctx, () -> {}, SocketChannel.open(), DatagramChannel.open());
+		conn.setInboundLimits(0, 0, 1024*1024, Connection.INCOMING_QUEUE_CAPACITY);
+
+		ByteBuffer scratch = BenchData.allocate("heap", 1024);
+		ByteBuffer stream = BenchData.allocate("heap", 64*1024);
+		Packet p = new Packet();
+		p.longId = protocol.getStartMessage();
+		stream.put(p.marshal(scratch, new BenchStartMessage(protocol.getMessageTableHash())));
+		stream.flip();
+		conn.feedQueued(stream);
+		drain();
+
+		stream.clear();
+		p.longId = null;
+		p.shortId = protocol.getDenseId(new Identifier("bench", "data"));
+		BenchMessage msg = new BenchMessage(new byte[payloadSize]);
+		for (int i = 0; i < messages; i++) {
+			scratch.clear();
+			stream.put(p.marshal(scratch, msg));
+		}
+		stream.flip();
+		read = BenchData.allocate(buffer, stream.remaining());
+		read.put(stream);
+		read.flip();
+	}
+
+	@TearDown(Level.Trial)
+	public void disconnect() {
+		conn.disconnect();
+	}
+
+	@Benchmark
+	public void feedAndProcess() {
+		conn.feedQueued(read.duplicate());
+		drain();
+	}
+
+	private void drain() {
+		while (conn.hasUnprocessedMessages()) {
+			conn.processPackets();
+		}
+	}
+
+	public static class BenchProtocol extends Protocol {
+
+		public BenchProtocol() {
+			register(BenchStartMessage::new);
+			registerPooled(BenchMessage::new);
+			freeze();
+		}
+
+		@Override
+		public Identifier getStartMessage() {
+			return new Identifier("bench", "start");
+		}
+
+	}
+
+	public static class BenchStartMessage extends ServerboundMessage implements Protocol.StartMessage {
+
+		private long messageTableHash;
+
+		public BenchStartMessage() {
+			this(0);
+		}
+
+		public BenchStartMessage(long messageTableHash) {
+			super(new Identifier("bench", "start"));
+			this.messageTableHash = messageTableHash;
+		}
+
+		@Override
+		public long getMessageTableHash() {
+			return messageTableHash;
+		}
+
+		@Override
+		public void marshal(Marshaller out) {
+			out.writeI64(messageTableHash);
+		}
+
+		@Override
+		public void unmarshal(Unmarshaller in) {
+			messageTableHash = in.readI64();
+		}
+
+		@Override
+		protected void processServer(Context<ServerEngine> ctx, Connection c) {}
+
+		@Override
+		public String toString() {
+			return "BenchStartMessage[messageTableHash="+Long.toHexString(messageTableHash)+"]";
+		}
+
+	}
+
+	/**
+	 * A typical small game message: a few fixed-size fields, a varint, and some opaque bytes.
+	 */
+	public static class BenchMessage extends ServerboundMessage {
+
+		private int entity;
+		private float x, y, z;
+		private byte[] data = new byte[0];
+		private int dataLength;
+
+		public BenchMessage() {
+			super(new Identifier("bench", "data"));
+		}
+
+		public BenchMessage(byte[] data) {
+			this();
+			this.entity = 1234;
+			this.data = data;
+			this.dataLength = data.length;
+		}
+
+		@Override
+		public void marshal(Marshaller out) {
+			out.writeIVar32(entity);
+			out.writeF32(x);
+			out.writeF32(y);
+			out.writeF32(z);
+			out.writeIVar32(dataLength);
+			out.write(data, 0, dataLength);
+		}
+
+		@Override
+		public void unmarshal(Unmarshaller in) {
+			entity = in.readIVar32();
+			x = in.readF32();
+			y = in.readF32();
+			z = in.readF32();
+			dataLength = in.readIVar32();
+			if (data.length < dataLength) {
+				data = new byte[dataLength];
+			}
+			in.read(data, 0, dataLength);
+		}
+
+		@Override
+		protected void reset() {
+			entity = 0;
+			x = y = z = 0;
+			dataLength = 0;
+		}
+
+		@Override
+		protected void processServer(Context<ServerEngine> ctx, Connection c) {}
+
+		@Override
+		public String toString() {
+			return "BenchMessage[entity="+entity+",dataLength="+dataLength+"]";
+		}
+
+	}
+
+	private static class BenchEngine extends ServerEngine {
+
+		@Override
+		public int run(String... args) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public EngineType getType() {
+			return EngineType.DEDICATED_SERVER;
+		}
+
+		@Override
+		public Addon getDefaultAddon() {
+			return null;
+		}
+
+		@Override
+		public boolean isPortcheckServer(InetAddress address) {
+			return false;
+		}
+
+		@Override
+		public boolean isPortcheckToken(long token) {
+			return false;
+		}
+
+		@Override
+		public void onPortcheckResponseTCP() {}
+
+		@Override
+		public void onPortcheckResponseUDP(String publicAddress) {}
+
+		@Override
+		public void enqueueProcessing(Connection connection) {
+			// the benchmark processes synchronously
+		}
+
+		@Override
+		public TickLoop getTickLoop() {
+			return null;
+		}
+
+	}
+
+}
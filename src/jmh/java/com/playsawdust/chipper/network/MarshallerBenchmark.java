@@ -0,0 +1,197 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network;
+
+import static com.playsawdust.chipper.network.BenchData.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of each {@link Marshaller} write primitive, per value written.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+@OperationsPerInvocation(BATCH)
+public class MarshallerBenchmark {
+
+	@Param({"heap", "direct"})
+	public String buffer;
+
+	private ByteBuffer buf;
+
+	@Setup(Level.Trial)
+	public void allocate() {
+		// big enough for BATCH of the largest values below
+		buf = BenchData.allocate(buffer, BATCH*128);
+	}
+
+	@Setup(Level.Invocation)
+	public void reset() {
+		buf.clear();
+	}
+
+	@Benchmark
+	public ByteBuffer writeIVar32() {
+		Marshaller m = new Marshaller(buf);
+		for (int i = 0; i < BATCH; i++) {
+			m.writeIVar32(INTS[i]);
+		}
+		return m.finish();
+	}
+
+	@Benchmark
+	public ByteBuffer writeIVar64() {
+		Marshaller m = new Marshaller(buf);
+		for (int i = 0; i < BATCH; i++) {
+			m.writeIVar64(LONGS[i]);
+		}
+		return m.finish();
+	}
+
+	@Benchmark
+	public ByteBuffer writeI32() {
+		Marshaller m = new Marshaller(buf);
+		for (int i = 0; i < BATCH; i++) {
+			m.writeI32(INTS[i]);
+		}
+		return m.finish();
+	}
+
+	@Benchmark
+	public ByteBuffer writeI64() {
+		Marshaller m = new Marshaller(buf);
+		for (int i = 0; i < BATCH; i++) {
+			m.writeI64(LONGS[i]);
+		}
+		return m.finish();
+	}
+
+	@Benchmark
+	public ByteBuffer writeF16() {
+		Marshaller m = new Marshaller(buf);
+		for (int i = 0; i < BATCH; i++) {
+			m.writeF16(FLOATS[i]);
+		}
+		return m.finish();
+	}
+
+	@Benchmark
+	public ByteBuffer writeF32() {
+		Marshaller m = new Marshaller(buf);
+		for (int i = 0; i < BATCH; i++) {
+			m.writeF32(FLOATS[i]);
+		}
+		return m.finish();
+	}
+
+	@Benchmark
+	public ByteBuffer writeFUnit8() {
+		Marshaller m = new Marshaller(buf);
+		for (int i = 0; i < BATCH; i++) {
+			m.writeFUnit8(UNITS[i]);
+		}
+		return m.finish();
+	}
+
+	@Benchmark
+	public ByteBuffer writeFSUnit8() {
+		Marshaller m = new Marshaller(buf);
+		for (int i = 0; i < BATCH; i++) {
+			m.writeFSUnit8(SIGNED_UNITS[i]);
+		}
+		return m.finish();
+	}
+
+	@Benchmark
+	public ByteBuffer writeFVarFixedQ6() {
+		Marshaller m = new Marshaller(buf);
+		for (int i = 0; i < BATCH; i++) {
+			m.writeFVarFixedQ6(FLOATS[i]);
+		}
+		return m.finish();
+	}
+
+	@Benchmark
+	public ByteBuffer writeBit() {
+		Marshaller m = new Marshaller(buf);
+		for (int i = 0; i < BATCH; i++) {
+			m.writeBit(BITS[i]);
+		}
+		return m.finish();
+	}
+
+	@Benchmark
+	public ByteBuffer writeIVar32Array() {
+		Marshaller m = new Marshaller(buf);
+		m.writeIVar32Array(INTS);
+		return m.finish();
+	}
+
+	@Benchmark
+	public ByteBuffer writeF32Array() {
+		Marshaller m = new Marshaller(buf);
+		m.writeF32Array(FLOATS);
+		return m.finish();
+	}
+
+	@Benchmark
+	public ByteBuffer writeBitArray() {
+		Marshaller m = new Marshaller(buf);
+		m.writeBitArray(BITS);
+		return m.finish();
+	}
+
+	@Benchmark
+	public ByteBuffer writeStringAscii() {
+		Marshaller m = new Marshaller(buf);
+		for (int i = 0; i < BATCH; i++) {
+			m.writeString(ASCII_STRINGS[i]);
+		}
+		return m.finish();
+	}
+
+	@Benchmark
+	public ByteBuffer writeStringUnicode() {
+		Marshaller m = new Marshaller(buf);
+		for (int i = 0; i < BATCH; i++) {
+			m.writeString(UNICODE_STRINGS[i]);
+		}
+		return m.finish();
+	}
+
+	@Benchmark
+	public ByteBuffer writeIdentifier() {
+		Marshaller m = new Marshaller(buf);
+		for (int i = 0; i < BATCH; i++) {
+			m.writeIdentifier(IDENTIFIERS[i]);
+		}
+		return m.finish();
+	}
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.playsawdust.chipper.Identifier;
+
+/**
+ * Cost of framing a {@link Packet}, per packet, both ways.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+@OperationsPerInvocation(PacketBenchmark.PACKETS)
+public class PacketBenchmark {
+
+	static final int PACKETS = 256;
+
+	@Param({"heap", "direct"})
+	public String buffer;
+
+	@Param({"16", "256", "1400"})
+	public int payloadSize;
+
+	private ByteBuffer buf;
+	private ByteBuffer payload;
+	private ByteBuffer encoded;
+	private Marshallable body;
+	private final Identifier longId = new Identifier("chipper", "benchmark");
+
+	@Setup(Level.Trial)
+	public void prepare() {
+		buf = BenchData.allocate(buffer, PACKETS*(payloadSize+32));
+		payload = BenchData.allocate(buffer, payloadSize);
+		for (int i = 0; i < payloadSize; i++) {
+			payload.put((byte)i);
+		}
+		payload.flip();
+		body = new Marshallable() {
+			@Override
+			public void marshal(Marshaller out) {
+				out.write(payload.duplicate());
+			}
+
+			@Override
+			public void unmarshal(Unmarshaller in) {
+				throw new UnsupportedOperationException();
+			}
+		};
+		Packet p = new Packet();
+		p.shortId = 5;
+		p.payload = payload;
+		Marshaller m = new Marshaller(buf);
+		for (int i = 0; i < PACKETS; i++) {
+			p.marshal(m);
+		}
+		ByteBuffer data = m.finish();
+		encoded = BenchData.allocate(buffer, data.remaining());
+		encoded.put(data);
+		encoded.flip();
+	}
+
+	@Setup(Level.Invocation)
+	public void reset() {
+		buf.clear();
+	}
+
+	@Benchmark
+	public ByteBuffer marshalShortId() {
+		Packet p = new Packet();
+		p.shortId = 5;
+		p.payload = payload;
+		Marshaller m = new Marshaller(buf);
+		for (int i = 0; i < PACKETS; i++) {
+			p.marshal(m);
+		}
+		return m.finish();
+	}
+
+	@Benchmark
+	public ByteBuffer marshalLongId() {
+		Packet p = new Packet();
+		p.shortId = 5;
+		p.longId = longId;
+		p.payload = payload;
+		Marshaller m = new Marshaller(buf);
+		for (int i = 0; i < PACKETS; i++) {
+			p.marshal(m);
+		}
+		return m.finish();
+	}
+
+	@Benchmark
+	public void marshalInPlace(Blackhole bh) {
+		Packet p = new Packet();
+		p.shortId = 5;
+		for (int i = 0; i < PACKETS; i++) {
+			bh.consume(p.marshal(buf, body));
+		}
+	}
+
+	@Benchmark
+	public void unmarshal(Blackhole bh) {
+		Unmarshaller u = new Unmarshaller(encoded.duplicate().order(encoded.order()));
+		Packet p = new Packet();
+		try {
+			while (true) {
+				p.unmarshal(u);
+				bh.consume(p.payload);
+			}
+		} catch (BufferUnderflowException e) {}
+	}
+
+}
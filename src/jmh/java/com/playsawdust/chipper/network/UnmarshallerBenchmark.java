@@ -0,0 +1,189 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network;
+
+import static com.playsawdust.chipper.network.BenchData.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.playsawdust.chipper.Identifier;
+
+/**
+ * Cost of each {@link Unmarshaller} read primitive, per value read. The input for each is what
+ * the matching {@link MarshallerBenchmark} benchmark writes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+@OperationsPerInvocation(BATCH)
+public class UnmarshallerBenchmark {
+
+	@Param({"heap", "direct"})
+	public String buffer;
+
+	private ByteBuffer ivar32, ivar64, i32, i64, f16, f32, funit8, fsunit8, fvarfixedq6, bits, stringAscii, stringUnicode, identifiers;
+
+	@Setup(Level.Trial)
+	public void prepare() {
+		ivar32 = encode(m -> { for (int v : INTS) m.writeIVar32(v); });
+		ivar64 = encode(m -> { for (long v : LONGS) m.writeIVar64(v); });
+		i32 = encode(m -> { for (int v : INTS) m.writeI32(v); });
+		i64 = encode(m -> { for (long v : LONGS) m.writeI64(v); });
+		f16 = encode(m -> { for (float v : FLOATS) m.writeF16(v); });
+		f32 = encode(m -> { for (float v : FLOATS) m.writeF32(v); });
+		funit8 = encode(m -> { for (double v : UNITS) m.writeFUnit8(v); });
+		fsunit8 = encode(m -> { for (double v : SIGNED_UNITS) m.writeFSUnit8(v); });
+		fvarfixedq6 = encode(m -> { for (float v : FLOATS) m.writeFVarFixedQ6(v); });
+		bits = encode(m -> { for (boolean v : BITS) m.writeBit(v); });
+		stringAscii = encode(m -> { for (String v : ASCII_STRINGS) m.writeString(v); });
+		stringUnicode = encode(m -> { for (String v : UNICODE_STRINGS) m.writeString(v); });
+		identifiers = encode(m -> { for (Identifier v : IDENTIFIERS) m.writeIdentifier(v); });
+	}
+
+	private ByteBuffer encode(Consumer<Marshaller> writer) {
+		ByteBuffer scratch = BenchData.allocate("heap", BATCH*128);
+		Marshaller m = new Marshaller(scratch);
+		writer.accept(m);
+		ByteBuffer data = m.finish();
+		ByteBuffer buf = BenchData.allocate(buffer, data.remaining());
+		buf.put(data);
+		buf.flip();
+		return buf;
+	}
+
+	private static Unmarshaller from(ByteBuffer buf) {
+		return new Unmarshaller(buf.duplicate().order(buf.order()));
+	}
+
+	@Benchmark
+	public void readIVar32(Blackhole bh) {
+		Unmarshaller u = from(ivar32);
+		for (int i = 0; i < BATCH; i++) {
+			bh.consume(u.readIVar32());
+		}
+	}
+
+	@Benchmark
+	public void readIVar64(Blackhole bh) {
+		Unmarshaller u = from(ivar64);
+		for (int i = 0; i < BATCH; i++) {
+			bh.consume(u.readIVar64());
+		}
+	}
+
+	@Benchmark
+	public void readI32(Blackhole bh) {
+		Unmarshaller u = from(i32);
+		for (int i = 0; i < BATCH; i++) {
+			bh.consume(u.readI32());
+		}
+	}
+
+	@Benchmark
+	public void readI64(Blackhole bh) {
+		Unmarshaller u = from(i64);
+		for (int i = 0; i < BATCH; i++) {
+			bh.consume(u.readI64());
+		}
+	}
+
+	@Benchmark
+	public void readF16(Blackhole bh) {
+		Unmarshaller u = from(f16);
+		for (int i = 0; i < BATCH; i++) {
+			bh.consume(u.readF16());
+		}
+	}
+
+	@Benchmark
+	public void readF32(Blackhole bh) {
+		Unmarshaller u = from(f32);
+		for (int i = 0; i < BATCH; i++) {
+			bh.consume(u.readF32());
+		}
+	}
+
+	@Benchmark
+	public void readFUnit8(Blackhole bh) {
+		Unmarshaller u = from(funit8);
+		for (int i = 0; i < BATCH; i++) {
+			bh.consume(u.readFUnit8());
+		}
+	}
+
+	@Benchmark
+	public void readFSUnit8(Blackhole bh) {
+		Unmarshaller u = from(fsunit8);
+		for (int i = 0; i < BATCH; i++) {
+			bh.consume(u.readFSUnit8());
+		}
+	}
+
+	@Benchmark
+	public void readFVarFixedQ6(Blackhole bh) {
+		Unmarshaller u = from(fvarfixedq6);
+		for (int i = 0; i < BATCH; i++) {
+			bh.consume(u.readFVarFixedQ6());
+		}
+	}
+
+	@Benchmark
+	public void readBit(Blackhole bh) {
+		Unmarshaller u = from(bits);
+		for (int i = 0; i < BATCH; i++) {
+			bh.consume(u.readBit());
+		}
+	}
+
+	@Benchmark
+	public void readStringAscii(Blackhole bh) {
+		Unmarshaller u = from(stringAscii);
+		for (int i = 0; i < BATCH; i++) {
+			bh.consume(u.readString());
+		}
+	}
+
+	@Benchmark
+	public void readStringUnicode(Blackhole bh) {
+		Unmarshaller u = from(stringUnicode);
+		for (int i = 0; i < BATCH; i++) {
+			bh.consume(u.readString());
+		}
+	}
+
+	@Benchmark
+	public void readIdentifier(Blackhole bh) {
+		Unmarshaller u = from(identifiers);
+		for (int i = 0; i < BATCH; i++) {
+			bh.consume(u.readIdentifier());
+		}
+	}
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.resource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.playsawdust.chipper.Identifier;
+
+/**
+ * Finding and reading a batch of small resources, as happens at startup, from a pack and from
+ * the equivalent directory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResourceProviderBenchmark {
+
+	private static final int RESOURCES = 256;
+
+	private Path dir;
+	private Identifier[] ids;
+	private PackResourceProvider pack;
+	private DirectoryResourceProvider directory;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("chipper-bench");
+		Path res = dir.resolve("res");
+		ids = new Identifier[RESOURCES];
+		long x = 0x9E3779B97F4A7C15L;
+		for (int i = 0; i < RESOURCES; i++) {
+			ids[i] = new Identifier("bench", "textures/thing"+i+".png");
+			Path p = res.resolve(ids[i].namespace).resolve(ids[i].path);
+			Files.createDirectories(p.getParent());
+			byte[] bys = new byte[4096];
+			for (int j = 0; j < bys.length; j++) {
+				// incompressible, like a real PNG
+				x ^= x << 13;
+				x ^= x >>> 7;
+				x ^= x << 17;
+				bys[j] = (byte)x;
+			}
+			Files.write(p, bys);
+		}
+		new PackWriter().addDirectory(res).write(dir.resolve("bench.pack"));
+		pack = PackResourceProvider.open(dir.resolve("bench.pack"));
+		directory = new DirectoryResourceProvider(res);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		MoreFiles.deleteRecursively(dir, RecursiveDeleteOption.ALLOW_INSECURE);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RESOURCES)
+	public void pack(Blackhole bh) throws IOException {
+		for (Identifier id : ids) {
+			bh.consume(pack.provide(id).asByteBuffer());
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RESOURCES)
+	public void directory(Blackhole bh) throws IOException {
+		for (Identifier id : ids) {
+			bh.consume(directory.provide(id).asByteBuffer());
+		}
+	}
+
+}
@@ -15,7 +15,9 @@ import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.security.Security;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.slf4j.bridge.SLF4JBridgeHandler;
@@ -37,6 +39,7 @@ import com.sun.jna.platform.win32.IPHlpAPI.IP_ADDR_STRING;
 import com.sun.jna.ptr.IntByReference;
 import com.unascribed.asyncsimplelog.AsyncSimpleLog;
 import com.unascribed.asyncsimplelog.AsyncSimpleLog.LogLevel;
+import com.unascribed.asyncsimplelog.AsyncSimpleLog.OverflowPolicy;
 
 public class Bootstrap {
 
@@ -81,6 +84,17 @@ public class Bootstrap {
 			if (System.getenv("CHIPPER_POWERLINE") != null) {
 				AsyncSimpleLog.setPowerline(true);
 			}
+			if (System.getenv("CHIPPER_LOG_JSON") != null) {
+				AsyncSimpleLog.setJson(true);
+			}
+			String overflow = System.getenv("CHIPPER_LOG_OVERFLOW");
+			if (overflow != null) {
+				try {
+					AsyncSimpleLog.setOverflowPolicy(OverflowPolicy.valueOf(overflow.toUpperCase(Locale.ROOT)));
+				} catch (IllegalArgumentException e) {
+					System.err.println("Unknown CHIPPER_LOG_OVERFLOW value "+overflow+"; expected one of "+Arrays.toString(OverflowPolicy.values()));
+				}
+			}
 			AsyncSimpleLog.startLogging();
 			AsyncSimpleLog.setMinLogLevel(LogLevel.TRACE);
 			System.setOut(new LoggerPrintStream("STDOUT", false));
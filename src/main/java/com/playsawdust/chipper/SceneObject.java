@@ -9,6 +9,7 @@
 
 package com.playsawdust.chipper;
 
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.units.qual.radians;
 import org.joml.Vector3d;
 import org.joml.Vector3dc;
@@ -17,6 +18,12 @@ public class SceneObject implements Orientable {
 	private Vector3d position = new Vector3d(0,0,0);
 	private Orientation orientation = new Orientation();
 
+	// owned by SpatialGrid {
+	@Nullable SpatialGrid grid;
+	long cellKey;
+	int cellIndex;
+	// }
+
 	//private @radians double yaw = 0;
 	//private @radians double pitch = 0;
 	//private @radians double roll = 0;
@@ -56,14 +63,17 @@ public class SceneObject implements Orientable {
 		this.position.x = position.x();
 		this.position.y = position.y();
 		this.position.z = position.z();
+		if (grid != null) grid.update(this);
 	}
 	
 	public void setPositionRelative(Vector3dc relative) {
 		this.position.add(relative, this.position);
+		if (grid != null) grid.update(this);
 	}
 	
 	public void setPositionRelative(double x, double y, double z) {
 		this.position.add(x, y, z, this.position);
+		if (grid != null) grid.update(this);
 	}
 
 	//@Override
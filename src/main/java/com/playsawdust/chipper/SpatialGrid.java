@@ -0,0 +1,164 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import org.joml.Vector3dc;
+
+import com.google.common.base.Preconditions;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+/**
+ * A uniform grid of {@link SceneObject SceneObjects}, for quickly finding everything near a point.
+ * Objects are kept up to date as they move; moving within a cell costs a few divisions, and moving
+ * between cells is constant time.
+ * <p>
+ * Only cells that contain something are allocated, so the grid can cover as much space as needed.
+ * The cell size should be about the radius of a typical query; much smaller and queries visit
+ * lots of cells, much larger and they check lots of faraway objects.
+ * <p>
+ * An object can only be in one grid at a time. Not thread-safe; objects in a grid must only be
+ * moved on the thread that owns it.
+ */
+public final class SpatialGrid {
+
+	private static final class Cell {
+		SceneObject[] objects = new SceneObject[4];
+		int size;
+	}
+
+	private final double cellSize;
+	private final Long2ObjectMap<Cell> cells = new Long2ObjectOpenHashMap<>();
+	private int size;
+
+	public SpatialGrid(double cellSize) {
+		Preconditions.checkArgument(cellSize > 0, "cellSize must be positive");
+		this.cellSize = cellSize;
+	}
+
+	public double getCellSize() {
+		return cellSize;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void add(SceneObject obj) {
+		Preconditions.checkArgument(obj.grid == null, "Object is already in a grid");
+		obj.grid = this;
+		insert(obj, keyOf(obj.getPosition()));
+		size++;
+	}
+
+	public void remove(SceneObject obj) {
+		Preconditions.checkArgument(obj.grid == this, "Object is not in this grid");
+		evict(obj);
+		obj.grid = null;
+		size--;
+	}
+
+	/**
+	 * Called by SceneObject when it moves.
+	 */
+	void update(SceneObject obj) {
+		long key = keyOf(obj.getPosition());
+		if (key != obj.cellKey) {
+			evict(obj);
+			insert(obj, key);
+		}
+	}
+
+	/**
+	 * Pass every object within the given distance of the given point to the given consumer, in no
+	 * particular order. The consumer must not add, remove, or move objects in this grid.
+	 */
+	public void query(Vector3dc center, double radius, Consumer<? super SceneObject> consumer) {
+		double radiusSq = radius*radius;
+		int minX = cell(center.x()-radius);
+		int minY = cell(center.y()-radius);
+		int minZ = cell(center.z()-radius);
+		int maxX = cell(center.x()+radius);
+		int maxY = cell(center.y()+radius);
+		int maxZ = cell(center.z()+radius);
+		long span = (maxX-(long)minX+1)*(maxY-(long)minY+1)*(maxZ-(long)minZ+1);
+		if (span > cells.size()) {
+			// querying an area bigger than everything that's populated; just look at everything
+			for (Cell c : cells.values()) {
+				visit(c, center, radiusSq, consumer);
+			}
+			return;
+		}
+		for (int x = minX; x <= maxX; x++) {
+			for (int y = minY; y <= maxY; y++) {
+				for (int z = minZ; z <= maxZ; z++) {
+					Cell c = cells.get(key(x, y, z));
+					if (c != null) visit(c, center, radiusSq, consumer);
+				}
+			}
+		}
+	}
+
+	private void visit(Cell c, Vector3dc center, double radiusSq, Consumer<? super SceneObject> consumer) {
+		for (int i = 0; i < c.size; i++) {
+			SceneObject obj = c.objects[i];
+			if (obj.getPosition().distanceSquared(center) <= radiusSq) {
+				consumer.accept(obj);
+			}
+		}
+	}
+
+	private void insert(SceneObject obj, long key) {
+		Cell c = cells.get(key);
+		if (c == null) {
+			c = new Cell();
+			cells.put(key, c);
+		}
+		if (c.size == c.objects.length) {
+			c.objects = Arrays.copyOf(c.objects, c.size*2);
+		}
+		obj.cellKey = key;
+		obj.cellIndex = c.size;
+		c.objects[c.size++] = obj;
+	}
+
+	private void evict(SceneObject obj) {
+		Cell c = cells.get(obj.cellKey);
+		int last = --c.size;
+		if (obj.cellIndex != last) {
+			SceneObject moved = c.objects[last];
+			c.objects[obj.cellIndex] = moved;
+			moved.cellIndex = obj.cellIndex;
+		}
+		c.objects[last] = null;
+		if (c.size == 0) {
+			cells.remove(obj.cellKey);
+		}
+	}
+
+	private int cell(double d) {
+		return (int)Math.floor(d/cellSize);
+	}
+
+	private long keyOf(Vector3dc pos) {
+		return key(cell(pos.x()), cell(pos.y()), cell(pos.z()));
+	}
+
+	private static long key(int x, int y, int z) {
+		// 21 bits per axis; cells over a million apart share a key, which just means queries see a
+		// few extra objects they then reject by distance
+		return ((x & 0x1FFFFFL) << 42) | ((y & 0x1FFFFFL) << 21) | (z & 0x1FFFFFL);
+	}
+
+}
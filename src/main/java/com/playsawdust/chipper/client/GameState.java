@@ -9,6 +9,8 @@
 
 package com.playsawdust.chipper.client;
 
+import java.util.concurrent.CompletableFuture;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -164,6 +166,17 @@ public abstract class GameState {
 		advance(LifecycleStage.TORN_DOWN);
 	}
 
+	/**
+	 * Start loading the resources this GameState will need in the background, so they're ready
+	 * before it's switched to rather than all being loaded at once in setUp. Usually implemented
+	 * by warming a PrefetchList, and called by PrefetchList.switchToWhenReady. May be called from
+	 * any thread, and in any stage.
+	 * @return a future that completes once everything is loaded
+	 */
+	public CompletableFuture<?> prefetch(Context<ClientEngine> ctx) {
+		return CompletableFuture.completedFuture(null);
+	}
+
 	/**
 	 * Register or allocate any resources needed by this GameState, such as setting the
 	 * {@link LayerController} root Renderable, or adding Widget layers, uploading textures to the
@@ -0,0 +1,119 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.collect;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A bounded, lock-free queue that may be added to by any number of threads, but only polled by
+ * one thread at a time. Does not allocate after construction.
+ * <p>
+ * Each slot carries a sequence number that says whether it is ready to be written to or read
+ * from, in the style of Dmitry Vyukov's bounded queue; producers race to claim a slot by
+ * incrementing the tail, and the consumer never needs to contend with anyone.
+ * <p>
+ * Unlike a {@link java.util.concurrent.BlockingQueue}, nothing ever waits. When the queue is full,
+ * {@link #offer} returns false and it's up to the caller to decide what to do.
+ */
+public final class MpscRingQueue<T> {
+
+	private final int mask;
+	private final AtomicReferenceArray<T> elements;
+	private final AtomicLongArray sequences;
+
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong head = new AtomicLong();
+
+	/**
+	 * @param capacity the maximum number of elements; rounded up to a power of two
+	 */
+	public MpscRingQueue(int capacity) {
+		Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+		Preconditions.checkArgument(capacity <= (1 << 30), "capacity too large");
+		int realCapacity = Integer.highestOneBit(capacity);
+		if (realCapacity < capacity) realCapacity <<= 1;
+		this.mask = realCapacity-1;
+		this.elements = new AtomicReferenceArray<>(realCapacity);
+		this.sequences = new AtomicLongArray(realCapacity);
+		for (int i = 0; i < realCapacity; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Add the given element to the tail of the queue. Safe to call from any thread.
+	 * @return {@code true} if the element was added; {@code false} if the queue is full
+	 */
+	public boolean offer(@NonNull T t) {
+		Preconditions.checkNotNull(t);
+		long pos;
+		int idx;
+		while (true) {
+			pos = tail.get();
+			idx = (int)(pos & mask);
+			long diff = sequences.get(idx)-pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos+1)) break;
+			} else if (diff < 0) {
+				// the consumer hasn't freed this slot from the last lap yet
+				return false;
+			}
+			// otherwise another producer claimed this slot first; try again
+		}
+		elements.lazySet(idx, t);
+		// publishes the element to the consumer
+		sequences.set(idx, pos+1);
+		return true;
+	}
+
+	/**
+	 * Remove and return the element at the head of the queue. Only one thread may poll at a time.
+	 * @return the element, or {@code null} if the queue is empty (or the next producer hasn't
+	 * 		quite finished adding its element yet)
+	 */
+	public @Nullable T poll() {
+		long pos = head.get();
+		int idx = (int)(pos & mask);
+		if (sequences.get(idx) != pos+1) return null;
+		T t = elements.get(idx);
+		elements.lazySet(idx, null);
+		// hands the slot back to producers for the next lap
+		sequences.set(idx, pos+mask+1);
+		head.lazySet(pos+1);
+		return t;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * @return the number of elements in the queue; only approximate if other threads are using
+	 * 		the queue concurrently, but never negative or larger than the capacity
+	 */
+	public int size() {
+		// read head first so the difference can't go negative
+		long h = head.get();
+		long t = tail.get();
+		return (int)Math.max(0, Math.min(t-h, capacity()));
+	}
+
+	public int capacity() {
+		return mask+1;
+	}
+
+}
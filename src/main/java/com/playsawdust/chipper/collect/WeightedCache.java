@@ -0,0 +1,256 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.collect;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.ToIntFunction;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Maps;
+
+/**
+ * A thread-safe cache bounded by the total weight of its values rather than how many there are,
+ * with segmented LRU eviction.
+ * <p>
+ * New entries start out on probation, and are promoted to the protected segment the second time
+ * they're used; evictions come from the probationary segment first. This way, a burst of things
+ * that are only used once, like a loading screen sweeping through every asset, can't push out
+ * the things that are used all the time.
+ * <p>
+ * Entries are <i>softly pinned</i>: an evicted value that something else still holds a reference
+ * to is remembered weakly, and is brought back rather than reported as a miss if it's asked for
+ * again. Its memory couldn't have been reclaimed anyway, so there's no sense loading a second copy
+ * of it.
+ */
+public final class WeightedCache<K, V> {
+
+	private static final class Node<V> {
+		final V value;
+		final int weight;
+
+		Node(V value, int weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	private static final class Pinned<K, V> extends WeakReference<V> {
+		final K key;
+		final int weight;
+
+		Pinned(K key, V value, int weight, ReferenceQueue<? super V> queue) {
+			super(value, queue);
+			this.key = key;
+			this.weight = weight;
+		}
+	}
+
+	private final ToIntFunction<? super V> weigher;
+
+	// self-synchronized {
+	// access-ordered, so iteration starts at the least recently used
+	private final LinkedHashMap<K, Node<V>> probation = new LinkedHashMap<>(16, 0.75f, true);
+	private final LinkedHashMap<K, Node<V>> protect = new LinkedHashMap<>(16, 0.75f, true);
+	private long maxWeight;
+	private long probationWeight;
+	private long protectWeight;
+	private long hits;
+	private long misses;
+	private long evictions;
+	// }
+
+	private final ConcurrentMap<K, Pinned<K, V>> evicted = Maps.newConcurrentMap();
+	private final ReferenceQueue<V> collected = new ReferenceQueue<>();
+
+	/**
+	 * @param maxWeight the most total weight this cache may hold
+	 * @param weigher a function that returns the weight of a value, such as its size in bytes
+	 */
+	public WeightedCache(long maxWeight, ToIntFunction<? super V> weigher) {
+		Preconditions.checkArgument(maxWeight >= 0, "maxWeight cannot be negative");
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+	}
+
+	/**
+	 * @return the cached value for the given key, or {@code null} if there isn't one
+	 */
+	public @Nullable V getIfPresent(K key) {
+		synchronized (this) {
+			Node<V> n = protect.get(key);
+			if (n != null) {
+				hits++;
+				return n.value;
+			}
+			n = probation.remove(key);
+			if (n != null) {
+				hits++;
+				probationWeight -= n.weight;
+				protect.put(key, n);
+				protectWeight += n.weight;
+				shrinkProtected();
+				return n.value;
+			}
+		}
+		Pinned<K, V> p = evicted.remove(key);
+		V v = p == null ? null : p.get();
+		if (v != null) {
+			synchronized (this) {
+				hits++;
+			}
+			return putIfAbsent(key, v, p.weight, false);
+		}
+		synchronized (this) {
+			misses++;
+		}
+		return null;
+	}
+
+	/**
+	 * Add the given value to the cache, unless there's already a value for the given key. A value
+	 * heavier than the entire cache is returned, but not kept.
+	 * @return the value now associated with the key; either the existing one, or {@code value}
+	 */
+	public @NonNull V putIfAbsent(K key, @NonNull V value) {
+		Preconditions.checkNotNull(value);
+		int weight = weigher.applyAsInt(value);
+		Preconditions.checkState(weight >= 0, "weigher returned a negative weight");
+		return putIfAbsent(key, value, weight, true);
+	}
+
+	/**
+	 * Add the given value to the cache with a weight the caller already knows, instead of asking
+	 * the weigher.
+	 * @see #putIfAbsent(Object, Object)
+	 */
+	public @NonNull V putIfAbsent(K key, @NonNull V value, int weight) {
+		Preconditions.checkNotNull(value);
+		Preconditions.checkArgument(weight >= 0, "weight cannot be negative");
+		return putIfAbsent(key, value, weight, true);
+	}
+
+	private synchronized V putIfAbsent(K key, V value, int weight, boolean forgetEvicted) {
+		Node<V> existing = protect.get(key);
+		if (existing == null) existing = probation.get(key);
+		if (existing != null) return existing.value;
+		if (forgetEvicted) evicted.remove(key);
+		if (weight > maxWeight) return value;
+		probation.put(key, new Node<>(value, weight));
+		probationWeight += weight;
+		evict();
+		return value;
+	}
+
+	/**
+	 * Remove the value for the given key, if any. It won't be softly pinned.
+	 */
+	public synchronized void invalidate(K key) {
+		evicted.remove(key);
+		Node<V> n = probation.remove(key);
+		if (n != null) {
+			probationWeight -= n.weight;
+		} else if ((n = protect.remove(key)) != null) {
+			protectWeight -= n.weight;
+		}
+	}
+
+	/**
+	 * Remove everything from the cache. Nothing will be softly pinned.
+	 */
+	public synchronized void invalidateAll() {
+		probation.clear();
+		protect.clear();
+		evicted.clear();
+		probationWeight = 0;
+		protectWeight = 0;
+	}
+
+	/**
+	 * Change the most total weight this cache may hold, evicting entries if needed.
+	 */
+	public synchronized void setMaxWeight(long maxWeight) {
+		Preconditions.checkArgument(maxWeight >= 0, "maxWeight cannot be negative");
+		this.maxWeight = maxWeight;
+		shrinkProtected();
+		evict();
+	}
+
+	public synchronized long getMaxWeight() {
+		return maxWeight;
+	}
+
+	/**
+	 * @return the total weight of everything in the cache
+	 */
+	public synchronized long getWeight() {
+		return probationWeight+protectWeight;
+	}
+
+	/**
+	 * @return the number of entries in the cache, not counting softly pinned ones
+	 */
+	public synchronized int size() {
+		return probation.size()+protect.size();
+	}
+
+	/**
+	 * @return this cache's hit, miss, and eviction counts; nothing is loaded by the cache itself,
+	 * 		so the load counts are always zero
+	 */
+	public synchronized CacheStats stats() {
+		return new CacheStats(hits, misses, 0, 0, 0, evictions);
+	}
+
+	/**
+	 * Demote the protected segment's least recently used entries until it fits in its share of
+	 * the cache. They get another chance on probation before they're evicted.
+	 */
+	private void shrinkProtected() {
+		long max = maxWeight-(maxWeight/5);
+		Iterator<Map.Entry<K, Node<V>>> iter = protect.entrySet().iterator();
+		while (protectWeight > max && iter.hasNext()) {
+			Map.Entry<K, Node<V>> en = iter.next();
+			iter.remove();
+			protectWeight -= en.getValue().weight;
+			probation.put(en.getKey(), en.getValue());
+			probationWeight += en.getValue().weight;
+		}
+	}
+
+	private void evict() {
+		while (probationWeight+protectWeight > maxWeight) {
+			LinkedHashMap<K, Node<V>> from = probation.isEmpty() ? protect : probation;
+			Iterator<Map.Entry<K, Node<V>>> iter = from.entrySet().iterator();
+			Map.Entry<K, Node<V>> en = iter.next();
+			iter.remove();
+			if (from == probation) {
+				probationWeight -= en.getValue().weight;
+			} else {
+				protectWeight -= en.getValue().weight;
+			}
+			evictions++;
+			evicted.put(en.getKey(), new Pinned<>(en.getKey(), en.getValue().value, en.getValue().weight, collected));
+		}
+		Pinned<?, ?> p;
+		while ((p = (Pinned<?, ?>)collected.poll()) != null) {
+			evicted.remove(p.key, p);
+		}
+	}
+
+}
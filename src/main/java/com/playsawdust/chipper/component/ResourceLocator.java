@@ -9,14 +9,44 @@
 
 package com.playsawdust.chipper.component;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.playsawdust.chipper.Identifier;
 import com.playsawdust.chipper.component.Context.WhiteLotus;
+import com.playsawdust.chipper.resource.ClasspathResourceProvider;
+import com.playsawdust.chipper.resource.DirectoryResourceProvider;
+import com.playsawdust.chipper.resource.PackResourceProvider;
 import com.playsawdust.chipper.resource.Resource;
+import com.playsawdust.chipper.resource.ResourceProvider;
 
 public final class ResourceLocator implements Component {
+	private static final Logger log = LoggerFactory.getLogger(ResourceLocator.class);
+
+	/**
+	 * The providers every ResourceLocator starts with, highest priority first. Set the
+	 * CHIPPER_RESOURCE_PACKS environment variable to a list of packs and directories separated by
+	 * the platform's path separator, most important first, to put them ahead of the classpath.
+	 * Packs are only opened once, no matter how many Contexts there are.
+	 */
+	private static volatile @Nullable ImmutableList<ResourceProvider> defaultProviders;
+
+	private volatile ImmutableList<ResourceProvider> providers;
 
 	private ResourceLocator(WhiteLotus lotus) {
 		WhiteLotus.verify(lotus);
+		providers = getDefaultProviders();
 	}
 
 	/**
@@ -25,10 +55,55 @@ public final class ResourceLocator implements Component {
 	 * The "most important" resource is the one belonging to the highest priority ResourceProvider,
 	 * and this ordering may be configurable by the user.
 	 * @param id the identifier of the resource to retrieve
-	 * @return the resource
+	 * @return the resource, or {@code null} if no provider has it
+	 */
+	public @Nullable Resource getMostImportant(Identifier id) {
+		for (ResourceProvider rp : providers) {
+			Resource r = rp.provide(id);
+			if (r != null) return r;
+		}
+		return null;
+	}
+
+	/**
+	 * Retrieve every Resource of the given identifier, for things that merge all of them
+	 * together rather than just using the most important one.
+	 * @param id the identifier of the resources to retrieve
+	 * @return the resources, most important first; empty if no provider has it
+	 */
+	public List<Resource> getAll(Identifier id) {
+		List<Resource> li = Lists.newArrayList();
+		for (ResourceProvider rp : providers) {
+			Resource r = rp.provide(id);
+			if (r != null) li.add(r);
+		}
+		return li;
+	}
+
+	/**
+	 * @return the providers consulted by this locator, highest priority first
 	 */
-	public Resource getMostImportant(Identifier id) {
-		return null; // TODO
+	public ImmutableList<ResourceProvider> getProviders() {
+		return providers;
+	}
+
+	/**
+	 * Replace the providers consulted by this locator, such as to apply the user's chosen order.
+	 * @param providers the new providers, highest priority first
+	 */
+	public synchronized void setProviders(List<ResourceProvider> providers) {
+		this.providers = ImmutableList.copyOf(providers);
+	}
+
+	/**
+	 * Add a provider with a higher priority than all the existing ones.
+	 * @param provider the provider to add
+	 */
+	public synchronized void addProvider(ResourceProvider provider) {
+		providers = ImmutableList.<ResourceProvider>builder()
+				.add(provider)
+				.addAll(providers)
+				.build();
 	}
 
 
@@ -41,4 +116,39 @@ public final class ResourceLocator implements Component {
 		return ctx.getComponent(ResourceLocator.class);
 	}
 
+	private static ImmutableList<ResourceProvider> getDefaultProviders() {
+		ImmutableList<ResourceProvider> li = defaultProviders;
+		if (li != null) return li;
+		synchronized (ResourceLocator.class) {
+			if (defaultProviders == null) {
+				ImmutableList.Builder<ResourceProvider> bldr = ImmutableList.builder();
+				String env = System.getenv("CHIPPER_RESOURCE_PACKS");
+				if (env != null) {
+					for (String s : Splitter.on(File.pathSeparatorChar).omitEmptyStrings().trimResults().split(env)) {
+						ResourceProvider rp = openProvider(Paths.get(s));
+						if (rp != null) bldr.add(rp);
+					}
+				}
+				bldr.add(ClasspathResourceProvider.INSTANCE);
+				defaultProviders = bldr.build();
+			}
+			return defaultProviders;
+		}
+	}
+
+	private static @Nullable ResourceProvider openProvider(Path p) {
+		if (Files.isDirectory(p)) {
+			log.info("Using resources from directory {}", p);
+			return new DirectoryResourceProvider(p);
+		}
+		try {
+			PackResourceProvider pack = PackResourceProvider.open(p);
+			log.info("Using {} resources from pack {}", pack.size(), p);
+			return pack;
+		} catch (IOException e) {
+			log.warn("Failed to open resource pack {}", p, e);
+			return null;
+		}
+	}
+
 }
@@ -37,6 +37,21 @@ public class BufferedImage extends AbstractNativeResource implements Image {
 		this.image.order(ByteOrder.nativeOrder());
 	}
 
+	/**
+	 * Create an image from a copy of the given raw pixels, in the format returned by
+	 * {@link #getRawABGRData}.
+	 */
+	public BufferedImage(int width, int height, ByteBuffer abgr) {
+		this(width, height);
+		int expected = image.capacity();
+		if (abgr.remaining() != expected) {
+			free();
+			throw new IllegalArgumentException("Expected "+expected+" bytes of pixels, got "+abgr.remaining());
+		}
+		image.put(abgr.duplicate());
+		image.clear();
+	}
+
 	public BufferedImage(ByteBuffer buffer) throws IOException {
 		try (MemoryStack stack = MemoryStack.stackPush()) {
 			IntBuffer w = stack.mallocInt(1);
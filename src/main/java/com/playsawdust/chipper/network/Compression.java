@@ -0,0 +1,59 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import com.playsawdust.chipper.Identifier;
+
+/**
+ * The ways a Connection's TCP stream may be compressed, once negotiated with
+ * {@link Connection#requestCompression}. Datagrams are never compressed.
+ */
+public enum Compression {
+	/**
+	 * Packets are sent as-is.
+	 */
+	NONE("none"),
+	/**
+	 * Each flush is compressed with LZ4 on its own, if it's at least the
+	 * {@link Connection#setCompressionThreshold threshold} in size. Cheap, but small flushes
+	 * don't benefit.
+	 */
+	LZ4_BLOCK("lz4_block"),
+	/**
+	 * The whole stream is compressed with LZ4, with each flush able to refer back to the last 64K
+	 * of data sent. Much better for lots of small similar messages, such as state updates, at the
+	 * cost of about 200K of buffers per connection.
+	 */
+	LZ4_STREAM("lz4_stream"),
+	;
+	private final Identifier id;
+
+	private Compression(String path) {
+		this.id = new Identifier("chipper", path);
+	}
+
+	public Identifier getId() {
+		return id;
+	}
+
+	/**
+	 * @return the Compression with the given ID, or {@code null} if there is none, such as if the
+	 * 		other side is newer than us
+	 */
+	public static @Nullable Compression byId(Identifier id) {
+		for (Compression c : values()) {
+			if (c.id.equals(id)) return c;
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,274 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network;
+
+import static org.lwjgl.util.lz4.LZ4.*;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import com.google.common.collect.Lists;
+import com.playsawdust.chipper.exception.ProtocolViolationException;
+
+/**
+ * One direction of a Connection's compressed TCP stream. Once compression is enabled, the stream
+ * is a sequence of frames, each a varint raw length, a varint compressed length, and then the
+ * compressed data; a compressed length of 0 means the frame was stored uncompressed.
+ * <p>
+ * All buffers are garbage collected rather than explicitly freed, so a codec belonging to a
+ * connection that drops is simply forgotten about.
+ */
+final class CompressionCodec {
+
+	/**
+	 * The most raw data in one frame.
+	 */
+	static final int MAX_FRAME_SIZE = 64*1024;
+	/**
+	 * How far back LZ4 can look for matches.
+	 */
+	private static final int WINDOW_SIZE = 64*1024;
+	private static final int MAX_HEADER_SIZE = 10;
+
+	private final Compression mode;
+	private final int threshold;
+
+	// encoding {
+	private @Nullable ByteBuffer staging;
+	private @Nullable ByteBuffer encodeDict;
+	private @Nullable ByteBuffer streamState;
+	private long stream;
+	private final List<ByteBuffer> frameBuffers = Lists.newArrayList();
+	private int frameBufferIndex = 0;
+	// }
+
+	// decoding {
+	private @Nullable ByteBuffer decodeOut;
+	// decoded data is written straight into the window, and slid back once it fills up
+	private @Nullable ByteBuffer window;
+	private int windowStart = 0;
+	private int windowEnd = 0;
+	// }
+
+	private long rawBytes;
+	private long compressedBytes;
+
+	/**
+	 * @param mode the kind of compression to use; not NONE
+	 * @param threshold the smallest frame worth compressing in {@link Compression#LZ4_BLOCK block}
+	 * 		mode
+	 */
+	CompressionCodec(Compression mode, int threshold) {
+		if (mode == Compression.NONE) throw new IllegalArgumentException("mode cannot be NONE");
+		this.mode = mode;
+		this.threshold = threshold;
+	}
+
+	Compression getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return the number of bytes before compression or after decompression
+	 */
+	long getRawBytes() {
+		return rawBytes;
+	}
+
+	/**
+	 * @return the number of bytes after compression or before decompression, including frame
+	 * 		headers
+	 */
+	long getCompressedBytes() {
+		return compressedBytes;
+	}
+
+	/**
+	 * Compress the given buffers into frames, in place; the frames are written to the same array,
+	 * starting at {@code start}. Never produces more frames than there were buffers, as no buffer
+	 * is larger than {@link #MAX_FRAME_SIZE}.
+	 * <p>
+	 * The frames are only valid until {@link #recycleFrames} is called.
+	 * @return the new end index of the array
+	 */
+	int encode(ByteBuffer[] bufs, int start, int end) {
+		if (staging == null) {
+			staging = ByteBuffer.allocateDirect(MAX_FRAME_SIZE).order(ByteOrder.BIG_ENDIAN);
+			if (mode == Compression.LZ4_STREAM) {
+				encodeDict = ByteBuffer.allocateDirect(WINDOW_SIZE);
+				streamState = ByteBuffer.allocateDirect(LZ4_STREAMSIZE);
+				stream = LZ4_initStream(streamState);
+			}
+		}
+		int out = start;
+		for (int i = start; i < end; i++) {
+			ByteBuffer b = bufs[i];
+			if (b.remaining() > MAX_FRAME_SIZE) throw new IllegalArgumentException("Buffer is larger than a frame");
+			while (b.hasRemaining()) {
+				if (!staging.hasRemaining()) {
+					bufs[out++] = encodeFrame();
+				}
+				ByteBuffer part = b.duplicate();
+				part.limit(part.position()+Math.min(part.remaining(), staging.remaining()));
+				b.position(part.limit());
+				staging.put(part);
+			}
+		}
+		if (staging.position() > 0) {
+			bufs[out++] = encodeFrame();
+		}
+		return out;
+	}
+
+	private ByteBuffer encodeFrame() {
+		staging.flip();
+		int len = staging.remaining();
+		if (frameBufferIndex >= frameBuffers.size()) {
+			frameBuffers.add(ByteBuffer.allocateDirect(MAX_HEADER_SIZE+LZ4_COMPRESSBOUND(MAX_FRAME_SIZE)).order(ByteOrder.BIG_ENDIAN));
+		}
+		ByteBuffer frame = frameBuffers.get(frameBufferIndex++);
+		frame.clear();
+		// compress first, as the length of the header depends on the result
+		frame.position(MAX_HEADER_SIZE);
+		int compressed = 0;
+		if (mode == Compression.LZ4_STREAM) {
+			// every frame must go through the stream, or the other side's history won't match ours
+			compressed = LZ4_compress_fast_continue(stream, staging, frame, 1);
+			if (compressed <= 0) throw new IllegalStateException("LZ4 compression failed");
+			// the staging buffer is about to be overwritten, so keep the history somewhere else
+			LZ4_saveDict(stream, encodeDict);
+		} else if (len >= threshold) {
+			compressed = LZ4_compress_default(staging, frame);
+			// incompressible data is better off stored
+			if (compressed <= 0 || compressed >= len) compressed = 0;
+		}
+		int stored = compressed == 0 ? len : compressed;
+		if (compressed == 0) {
+			frame.put(staging.duplicate());
+		}
+		int headerSize = varintSize(len)+varintSize(compressed);
+		frame.position(MAX_HEADER_SIZE-headerSize);
+		Marshaller m = new Marshaller(frame);
+		m.writeIVar32(len);
+		m.writeIVar32(compressed);
+		frame.position(MAX_HEADER_SIZE-headerSize);
+		frame.limit(MAX_HEADER_SIZE+stored);
+		staging.clear();
+		rawBytes += len;
+		compressedBytes += headerSize+stored;
+		return frame;
+	}
+
+	/**
+	 * Allow the buffers of frames returned by {@link #encode} to be reused, as they've all been
+	 * written.
+	 */
+	void recycleFrames() {
+		frameBufferIndex = 0;
+	}
+
+	/**
+	 * Decode as many complete frames from the given buffer as are available, passing the raw data
+	 * of each to the given sink. The buffer's position is advanced past every frame decoded.
+	 * @return {@code false} if the sink returned false
+	 */
+	boolean decode(ByteBuffer in, FrameSink sink) {
+		if (decodeOut == null && window == null) {
+			if (mode == Compression.LZ4_STREAM) {
+				window = ByteBuffer.allocateDirect(WINDOW_SIZE+MAX_FRAME_SIZE*2).order(ByteOrder.BIG_ENDIAN);
+			} else {
+				decodeOut = ByteBuffer.allocateDirect(MAX_FRAME_SIZE).order(ByteOrder.BIG_ENDIAN);
+			}
+		}
+		Unmarshaller u = new Unmarshaller(in);
+		while (true) {
+			int start = in.position();
+			int len;
+			int compressed;
+			ByteBuffer data;
+			try {
+				len = u.readIVar32();
+				compressed = u.readIVar32();
+				if (len <= 0 || len > MAX_FRAME_SIZE) {
+					throw new ProtocolViolationException("Got compressed frame with bad length "+len);
+				}
+				if (compressed < 0 || compressed > LZ4_COMPRESSBOUND(MAX_FRAME_SIZE)) {
+					throw new ProtocolViolationException("Got compressed frame with bad compressed length "+compressed);
+				}
+				data = u.readSlice(compressed == 0 ? len : compressed);
+			} catch (BufferUnderflowException e) {
+				in.position(start);
+				return true;
+			}
+			ByteBuffer raw = mode == Compression.LZ4_STREAM ? decodeStream(data, len, compressed) : decodeBlock(data, len, compressed);
+			rawBytes += len;
+			compressedBytes += in.position()-start;
+			if (!sink.accept(raw)) return false;
+		}
+	}
+
+	private ByteBuffer decodeBlock(ByteBuffer data, int len, int compressed) {
+		if (compressed == 0) return data;
+		ByteBuffer out = decodeOut.duplicate();
+		out.clear().limit(len);
+		if (LZ4_decompress_safe(data, out) != len) {
+			throw new ProtocolViolationException("Got corrupt compressed frame");
+		}
+		return out;
+	}
+
+	private ByteBuffer decodeStream(ByteBuffer data, int len, int compressed) {
+		if (windowEnd+len > window.capacity()) {
+			// slide the last 64K back to the start to make room
+			int keep = Math.min(WINDOW_SIZE, windowEnd-windowStart);
+			ByteBuffer tail = window.duplicate();
+			tail.limit(windowEnd).position(windowEnd-keep);
+			ByteBuffer head = window.duplicate();
+			head.clear();
+			head.put(tail);
+			windowStart = 0;
+			windowEnd = keep;
+		}
+		ByteBuffer out = window.duplicate();
+		out.limit(windowEnd+len).position(windowEnd);
+		if (compressed == 0) {
+			out.put(data);
+		} else {
+			ByteBuffer dict = window.duplicate();
+			dict.limit(windowEnd).position(Math.max(windowStart, windowEnd-WINDOW_SIZE));
+			if (LZ4_decompress_safe_usingDict(data, out, dict) != len) {
+				throw new ProtocolViolationException("Got corrupt compressed frame");
+			}
+		}
+		out.limit(windowEnd+len).position(windowEnd);
+		windowEnd += len;
+		windowStart = Math.max(windowStart, windowEnd-WINDOW_SIZE);
+		return out.slice().asReadOnlyBuffer();
+	}
+
+	private static int varintSize(int i) {
+		int zig = (i << 1) ^ (i >> 31);
+		int size = 1;
+		while ((zig & ~0x7F) != 0) {
+			zig >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	interface FrameSink {
+		boolean accept(ByteBuffer raw);
+	}
+
+}
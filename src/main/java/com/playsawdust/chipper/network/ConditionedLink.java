@@ -0,0 +1,229 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import com.unascribed.random.RandomXoshiro256StarStar;
+
+/**
+ * Applies {@link LinkConditions} to what one Connection receives, by holding onto it until it
+ * would have arrived over the simulated link. Not thread-safe; owned by the network thread.
+ */
+final class ConditionedLink {
+
+	interface Sink {
+		/**
+		 * @param src where the datagram came from, or {@code null} if the data is from the TCP
+		 * 		stream
+		 */
+		void deliver(@Nullable SocketAddress src, ByteBuffer data);
+	}
+
+	/**
+	 * The shortest time a real TCP stack takes to retransmit a lost segment, in milliseconds.
+	 */
+	private static final double MIN_RETRANSMIT_DELAY = 200;
+	/**
+	 * How long reordered datagrams are held back for, in milliseconds.
+	 */
+	private static final double REORDER_DELAY = 30;
+	/**
+	 * The shape of the Pareto distribution used for jitter; smaller is spikier.
+	 */
+	private static final double PARETO_ALPHA = 2.5;
+
+	// mixed into the seed so every link in a process behaves differently, but reproducibly
+	private static final AtomicLong created = new AtomicLong();
+
+	private static final class Delivery {
+		final long releaseAt;
+		final long order;
+		final @Nullable SocketAddress src;
+		final byte[] data;
+
+		Delivery(long releaseAt, long order, @Nullable SocketAddress src, byte[] data) {
+			this.releaseAt = releaseAt;
+			this.order = order;
+			this.src = src;
+			this.data = data;
+		}
+	}
+
+	private final LinkConditions conditions;
+	private final Random rand;
+	private final PriorityQueue<Delivery> queue = new PriorityQueue<>(
+			Comparator.<Delivery>comparingLong(d -> d.releaseAt).thenComparingLong(d -> d.order));
+	private long nextOrder = 0;
+	private boolean inBurst = false;
+	// when the simulated link will be done sending everything offered so far
+	private long linkFreeAt = 0;
+	private long lastStreamRelease = 0;
+
+	ConditionedLink(LinkConditions conditions) {
+		this.conditions = conditions;
+		long n = created.getAndIncrement();
+		this.rand = conditions.seed == 0 ? new RandomXoshiro256StarStar() : new RandomXoshiro256StarStar(conditions.seed+(n*0x9E3779B97F4A7C15L));
+	}
+
+	LinkConditions getConditions() {
+		return conditions;
+	}
+
+	/**
+	 * Send a datagram over the link. It may be lost, duplicated, or held back.
+	 */
+	void offerDatagram(SocketAddress src, ByteBuffer data, long now) {
+		if (isLost()) return;
+		long sent = transmit(data.remaining(), now, true);
+		if (sent == -1) return;
+		byte[] bytes = copy(data);
+		long at = sent+delay();
+		if (conditions.reorder > 0 && rand.nextDouble() < conditions.reorder) {
+			at += millisToNanos(REORDER_DELAY);
+		}
+		enqueue(at, src, bytes);
+		if (conditions.duplicate > 0 && rand.nextDouble() < conditions.duplicate) {
+			enqueue(sent+delay(), src, bytes);
+		}
+	}
+
+	/**
+	 * Send part of the TCP stream over the link. Nothing is lost or reordered; a loss delays it
+	 * and everything after it by a retransmission instead.
+	 */
+	void offerStream(ByteBuffer data, long now) {
+		long sent = transmit(data.remaining(), now, false);
+		long at = sent+delay();
+		if (isLost()) {
+			at += millisToNanos(Math.max(MIN_RETRANSMIT_DELAY, conditions.latency*2));
+		}
+		at = Math.max(at, lastStreamRelease);
+		lastStreamRelease = at;
+		enqueue(at, null, copy(data));
+	}
+
+	/**
+	 * Hand everything that has arrived by now to the given Sink, in the order it arrived.
+	 */
+	void release(long now, Sink sink) {
+		Delivery d;
+		while ((d = queue.peek()) != null && d.releaseAt <= now) {
+			queue.poll();
+			sink.deliver(d.src, ByteBuffer.wrap(d.data));
+		}
+	}
+
+	/**
+	 * Hand everything still in flight to the given Sink, in the order it would have arrived.
+	 */
+	void releaseAll(Sink sink) {
+		release(Long.MAX_VALUE, sink);
+	}
+
+	/**
+	 * @return when the next delivery is due, in MonotonicTime nanos, or {@link Long#MAX_VALUE} if
+	 * 		nothing is in flight
+	 */
+	long getDeadline() {
+		Delivery d = queue.peek();
+		return d == null ? Long.MAX_VALUE : d.releaseAt;
+	}
+
+	/**
+	 * @return {@code true} if more is waiting for bandwidth than the queue limit allows, and the
+	 * 		TCP stream shouldn't be read until it's drained
+	 */
+	boolean isBacklogged(long now) {
+		return conditions.bandwidth > 0 && backlog(now) >= conditions.queueLimit;
+	}
+
+	/**
+	 * Simulate the time it takes the given number of bytes to get onto the link.
+	 * @param droppable whether to drop them if the queue is full
+	 * @return when the last byte will have been sent, or -1 if they were dropped
+	 */
+	private long transmit(int bytes, long now, boolean droppable) {
+		if (conditions.bandwidth <= 0) return now;
+		if (droppable && backlog(now)+bytes > conditions.queueLimit) return -1;
+		long start = Math.max(now, linkFreeAt);
+		linkFreeAt = start+((bytes*TimeUnit.SECONDS.toNanos(1))/conditions.bandwidth);
+		return linkFreeAt;
+	}
+
+	private long backlog(long now) {
+		if (linkFreeAt <= now) return 0;
+		return ((linkFreeAt-now)*conditions.bandwidth)/TimeUnit.SECONDS.toNanos(1);
+	}
+
+	/**
+	 * Roll for a loss, using a Gilbert-Elliott model if burst loss is enabled; everything is lost
+	 * while in a burst.
+	 */
+	private boolean isLost() {
+		if (conditions.burstEnter > 0) {
+			if (inBurst) {
+				if (rand.nextDouble() < conditions.burstExit) inBurst = false;
+			} else if (rand.nextDouble() < conditions.burstEnter) {
+				inBurst = true;
+			}
+			if (inBurst) return true;
+		}
+		return conditions.loss > 0 && rand.nextDouble() < conditions.loss;
+	}
+
+	/**
+	 * @return a random one-way delay, in nanos
+	 */
+	private long delay() {
+		double ms = conditions.latency;
+		double jitter = conditions.jitter;
+		if (jitter > 0) {
+			switch (conditions.jitterModel) {
+				case UNIFORM:
+					ms += ((rand.nextDouble()*2)-1)*jitter;
+					break;
+				case NORMAL:
+					ms += rand.nextGaussian()*jitter;
+					break;
+				case PARETO: {
+					// scaled so the mean is the jitter value
+					double scale = (jitter*(PARETO_ALPHA-1))/PARETO_ALPHA;
+					ms += scale/Math.pow(1-rand.nextDouble(), 1/PARETO_ALPHA);
+					break;
+				}
+			}
+		}
+		return millisToNanos(Math.max(0, ms));
+	}
+
+	private void enqueue(long releaseAt, @Nullable SocketAddress src, byte[] data) {
+		queue.add(new Delivery(releaseAt, nextOrder++, src, data));
+	}
+
+	private static byte[] copy(ByteBuffer data) {
+		byte[] bytes = new byte[data.remaining()];
+		data.get(bytes);
+		return bytes;
+	}
+
+	private static long millisToNanos(double millis) {
+		return (long)(millis*1_000_000D);
+	}
+
+}
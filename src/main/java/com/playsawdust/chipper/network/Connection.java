@@ -9,12 +9,11 @@
 
 package com.playsawdust.chipper.network;
 
-import static org.lwjgl.system.MemoryUtil.*;
-
 import java.io.IOException;
 import java.net.Inet6Address;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -22,10 +21,11 @@ import java.nio.channels.DatagramChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
-import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -33,16 +33,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Queues;
 import com.google.common.collect.Sets;
 import com.google.common.net.InetAddresses;
 import com.playsawdust.chipper.Identifier;
+import com.playsawdust.chipper.collect.MpscRingQueue;
 import com.playsawdust.chipper.component.Context;
 import com.playsawdust.chipper.exception.ProtocolViolationException;
 import com.playsawdust.chipper.network.Message.SendMode;
+import com.playsawdust.chipper.network.protocol.base.BaseProtocol;
+import com.playsawdust.chipper.network.protocol.base.message.CompressionMessage;
+import com.playsawdust.chipper.network.protocol.base.message.FragmentMessage;
 import com.playsawdust.chipper.network.protocol.base.message.GoodbyeMessage;
+import com.playsawdust.chipper.network.protocol.base.message.HelloMessage;
+import com.playsawdust.chipper.network.protocol.base.message.SequencedMessage;
 
 import com.playsawdust.chipper.toolbox.Hexdump;
 import com.playsawdust.chipper.toolbox.concurrent.SharedThreadPool;
@@ -63,34 +69,199 @@ public final class Connection {
 	}
 
 	public static final Identifier FLAG_SAID_GOODBYE = new Identifier("chipper", "said_goodbye");
+	/**
+	 * Set on a client's Connection once it has sent the start message of a Protocol, which it may
+	 * do right after {@link HelloMessage} without waiting for the server's welcome.
+	 */
+	public static final Identifier FLAG_PROTOCOL_CHOSEN = new Identifier("chipper", "protocol_chosen");
+
+	/**
+	 * The disconnect reason used when one of the message queues fills up. The single extra is
+	 * "incoming" or "outgoing", depending on which queue overflowed.
+	 */
+	public static final Identifier REASON_QUEUE_OVERFLOW = new Identifier("chipper", "queue_overflow");
+	/**
+	 * The disconnect reason used when the other side sends something that can't fit within our
+	 * limits. The single extra names the limit, such as "read_buffer".
+	 */
+	public static final Identifier REASON_LIMIT_EXCEEDED = new Identifier("chipper", "limit_exceeded");
+
+	/**
+	 * The largest datagram we'll try to send over UDP. Anything larger is sent over TCP instead, or
+	 * dropped if it's {@link SendMode#UNIMPORTANT}. Conservative, to avoid IP fragmentation on
+	 * links with a small MTU or a lot of tunneling overhead.
+	 */
+	public static final int MAX_DATAGRAM_SIZE = 1200;
+	/**
+	 * How often the client re-sends its UDP probe until the server answers one.
+	 */
+	private static final long UDP_PROBE_INTERVAL_MILLIS = 250;
+	/**
+	 * The default maximum number of bytes written to the TCP channel in one flush.
+	 * @see #setFlushLimits
+	 */
+	public static final int DEFAULT_MAX_FLUSH_BYTES = 64*1024;
+	/**
+	 * The default maximum number of messages sent in one flush.
+	 * @see #setFlushLimits
+	 */
+	public static final int DEFAULT_MAX_FLUSH_MESSAGES = 256;
+	/**
+	 * The size of each of the direct buffers outgoing packets are packed into.
+	 */
+	private static final int FLUSH_BUFFER_SIZE = 16*1024;
+	/**
+	 * The maximum number of received messages waiting to be processed.
+	 */
+	public static final int INCOMING_QUEUE_CAPACITY = 1024;
+	/**
+	 * The maximum number of messages waiting to be sent.
+	 */
+	public static final int OUTGOING_QUEUE_CAPACITY = 4096;
+	/**
+	 * The default maximum sustained number of bytes received per second on a server. Clients are
+	 * unlimited by default.
+	 * @see #setInboundLimits
+	 */
+	public static final int DEFAULT_MAX_INBOUND_BYTES_PER_SECOND = 1024*1024;
+	/**
+	 * The default maximum sustained number of messages received per second on a server. Clients
+	 * are unlimited by default.
+	 * @see #setInboundLimits
+	 */
+	public static final int DEFAULT_MAX_INBOUND_MESSAGES_PER_SECOND = 2000;
+	/**
+	 * The default maximum size of the receive buffer, and therefore of any one packet.
+	 * @see #setInboundLimits
+	 */
+	public static final int DEFAULT_MAX_READ_BUFFER_SIZE = 1024*1024;
+	/**
+	 * The default number of unprocessed messages at which we stop reading from the socket.
+	 * @see #setInboundLimits
+	 */
+	public static final int DEFAULT_MAX_PENDING_INCOMING = 512;
+	/**
+	 * The default maximum number of unsent messages before the connection is dropped.
+	 * @see #setOutboundLimits
+	 */
+	public static final int DEFAULT_MAX_PENDING_OUTGOING = 2048;
+	/**
+	 * The default number of bytes of a large message carried by each fragment.
+	 * @see #setFragmentLimits
+	 */
+	public static final int DEFAULT_FRAGMENT_SIZE = 8*1024;
+	/**
+	 * The default maximum size of a message sent or received in fragments.
+	 * @see #setFragmentLimits
+	 */
+	public static final int DEFAULT_MAX_TRANSFER_SIZE = 16*1024*1024;
+	/**
+	 * Room left in a flush buffer for a fragment's packet header and fields.
+	 */
+	private static final int FRAGMENT_OVERHEAD = 256;
+	/**
+	 * The default smallest flush worth compressing in {@link Compression#LZ4_BLOCK block} mode.
+	 * @see #setCompressionThreshold
+	 */
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 512;
+	/**
+	 * The compression modes supported by default, most preferred first. Set the
+	 * CHIPPER_COMPRESSION environment variable to a comma-separated list such as
+	 * "lz4_block,lz4_stream" to override, or to "none" to disable compression.
+	 * @see #setCompressionModes
+	 */
+	private static final ImmutableList<Compression> DEFAULT_COMPRESSION_MODES = parseCompressionModes(System.getenv("CHIPPER_COMPRESSION"));
+	/**
+	 * The simulated link conditions every Connection starts with, if any. Set the
+	 * CHIPPER_LINK_CONDITIONS environment variable to a string accepted by
+	 * {@link LinkConditions#parse} to simulate a bad network.
+	 * @see #setLinkConditions
+	 */
+	private static final @Nullable LinkConditions DEFAULT_LINK_CONDITIONS = parseLinkConditions(System.getenv("CHIPPER_LINK_CONDITIONS"));
 
 	private final Context<?> ctx;
 	private final Runnable writeableNotify;
 	private final long epoch = MonotonicTime.nanos();
 
 	private final SocketChannel tcpChannel;
+	private final @Nullable DatagramChannel udpChannel;
 
 	private int simulatedPacketLossOut = 0;
 	private int simulatedPacketLossIn = 0;
 
+	private volatile int maxFlushBytes = DEFAULT_MAX_FLUSH_BYTES;
+	private volatile int maxFlushMessages = DEFAULT_MAX_FLUSH_MESSAGES;
+	private volatile int maxInboundBytesPerSecond;
+	private volatile int maxInboundMessagesPerSecond;
+	private volatile int maxReadBufferSize = DEFAULT_MAX_READ_BUFFER_SIZE;
+	private volatile int maxPendingIncoming = DEFAULT_MAX_PENDING_INCOMING;
+	private volatile int maxPendingOutgoing = DEFAULT_MAX_PENDING_OUTGOING;
+	private volatile int fragmentSize = DEFAULT_FRAGMENT_SIZE;
+	private volatile int maxTransferSize = DEFAULT_MAX_TRANSFER_SIZE;
+	private volatile ImmutableList<Compression> compressionModes = DEFAULT_COMPRESSION_MODES;
+	private volatile int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+	private volatile boolean flushDeferred = false;
+	private volatile @Nullable LinkConditions linkConditions = DEFAULT_LINK_CONDITIONS;
+
 	// self-synchronized {
 	private final Set<Identifier> flags = Sets.newHashSet();
 	private final List<Describer> describers = Lists.newArrayList();
 	// }
 
 	// concurrent {
-	private final Queue<@NonNull Message> incomingMessages = Queues.newLinkedBlockingDeque();
-	private final Queue<@NonNull Message> outgoingMessages = Queues.newLinkedBlockingDeque();
+	private final MpscRingQueue<@NonNull Message> incomingMessages = new MpscRingQueue<>(INCOMING_QUEUE_CAPACITY);
+	private final MpscRingQueue<@NonNull Message> outgoingMessages = new MpscRingQueue<>(OUTGOING_QUEUE_CAPACITY);
+	private final AtomicBoolean processingScheduled = new AtomicBoolean(false);
+	private final AtomicBoolean flushPending = new AtomicBoolean(false);
 	// }
 
 	// network thread only {
-	private ByteBuffer readBuffer = memAlloc(8*1024).order(ByteOrder.BIG_ENDIAN);
-	private final ByteBuffer writeBuffer = memAlloc(8*1024).order(ByteOrder.BIG_ENDIAN);
+	// every buffer a Connection owns is left to the GC, as nothing frees them when it's dropped
+	private ByteBuffer readBuffer = ByteBuffer.allocateDirect(8*1024).order(ByteOrder.BIG_ENDIAN);
+	private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(8*1024).order(ByteOrder.BIG_ENDIAN);
 	private final Int2ObjectMap<Identifier> incomingShortIds = new Int2ObjectOpenHashMap<>();
 	private int nextShortId = 1;
 	private final Set<Identifier> messagesSentBefore = Sets.newHashSet();
 	private final Object2IntMap<Identifier> outgoingShortIds = new Object2IntOpenHashMap<>();
 	private Protocol currentProtocol;
+	// the frozen protocol whose dense IDs are in use in both directions, if any
+	private @Nullable Protocol denseProtocol;
+	private @Nullable SocketAddress udpRemoteAddress;
+	private long lastUdpProbe = 0;
+	private boolean udpProbeReplyPending = false;
+	private final List<ByteBuffer> flushBuffers = Lists.newArrayList();
+	private ByteBuffer[] pendingWrites = new ByteBuffer[32];
+	private int pendingWritesStart = 0;
+	private int pendingWritesEnd = 0;
+	private int flushBufferIndex = 0;
+	private @Nullable OutgoingTransfer outgoingTransfer;
+	private int nextTransferId = 1;
+	private @Nullable ByteBuffer incomingTransfer;
+	private int incomingTransferId;
+	private int incomingTransferLength;
+	private boolean reassembling = false;
+	// whether we've told the other side what our half of the stream is compressed with
+	private boolean compressionAnnounced = false;
+	// index into pendingWrites at which packets start needing compression
+	private int compressFrom = Integer.MAX_VALUE;
+	private @Nullable ByteBuffer compressedReadBuffer;
+	private final OrderedDatagrams ordered = new OrderedDatagrams();
+	private final ByteBuffer orderedScratch = ByteBuffer.allocate(MAX_DATAGRAM_SIZE-OrderedDatagrams.MAX_HEADER_SIZE);
+	// token buckets; negative means we're in debt and shouldn't read until it's paid off
+	private long inboundByteBudget;
+	private long inboundMessageBudget;
+	private long lastInboundRefill = MonotonicTime.nanos();
+	private @Nullable ConditionedLink link;
+	// }
+
+	// volatile {
+	private volatile int correlationId;
+	private volatile boolean correlationChanged = false;
+	private volatile boolean udpAvailable = false;
+	private volatile boolean readPaused = false;
+	private volatile boolean readResumeScheduled = false;
+	private volatile @Nullable CompressionCodec outboundCodec;
+	private volatile @Nullable CompressionCodec inboundCodec;
 	// }
 
 	// synchronized (disconnectMutex) {
@@ -112,7 +283,32 @@ public final class Connection {
 		this.ctx = ctx;
 		this.writeableNotify = writeableNotify;
 		this.tcpChannel = tcpChannel;
+		this.udpChannel = udpChannel;
+		LinkConditions lc = linkConditions;
+		if (lc != null) {
+			this.link = new ConditionedLink(lc);
+		}
 		currentProtocol = ProtocolRegistry.obtain(ctx).getBaseProtocol();
+		if (ctx.getEngineType().isServer()) {
+			maxInboundBytesPerSecond = DEFAULT_MAX_INBOUND_BYTES_PER_SECOND;
+			maxInboundMessagesPerSecond = DEFAULT_MAX_INBOUND_MESSAGES_PER_SECOND;
+		}
+		inboundByteBudget = maxInboundBytesPerSecond;
+		inboundMessageBudget = maxInboundMessagesPerSecond;
+		if (ctx.getEngineType().isClient()) {
+			// the server always listens for UDP on the same address and port it listens for TCP on
+			try {
+				udpRemoteAddress = tcpChannel.getRemoteAddress();
+			} catch (IOException e) {
+				log.debug("Failed to retrieve remote address for UDP", e);
+			}
+			// 0 means "no correlation ID" to the server
+			int id;
+			do {
+				id = (int)SharedRandom.uniformLong();
+			} while (id == 0);
+			correlationId = id;
+		}
 	}
 
 	public SocketAddress getLocalAddress() throws IOException {
@@ -123,6 +319,79 @@ public final class Connection {
 		return tcpChannel.getRemoteAddress();
 	}
 
+	/**
+	 * @return the "correlation ID" used to associate UDP datagrams with this connection; 0 if not
+	 * 		yet known
+	 * @see HelloMessage
+	 */
+	public int getCorrelationId() {
+		return correlationId;
+	}
+
+	/**
+	 * @return {@code true} if UDP datagrams have successfully been received from the other side,
+	 * 		meaning {@link SendMode#UNRELIABLE UNRELIABLE}, {@link SendMode#UNIMPORTANT UNIMPORTANT},
+	 * 		and {@link SendMode#ORDERED ORDERED} messages will be sent over UDP
+	 */
+	public boolean isUdpAvailable() {
+		return udpAvailable;
+	}
+
+	/**
+	 * @return the smoothed round trip time of datagrams, in milliseconds, or -1 if it hasn't been
+	 * 		measured yet
+	 */
+	public double getRoundTripTime() {
+		return ordered.getRoundTripTime();
+	}
+
+	/**
+	 * @return how much the round trip time of datagrams varies, as its mean deviation, in
+	 * 		milliseconds
+	 */
+	public double getJitter() {
+		return ordered.getJitter();
+	}
+
+	/**
+	 * @return the number of {@link SendMode#ORDERED ORDERED} messages that may currently be
+	 * 		unacknowledged at once
+	 */
+	public int getCongestionWindow() {
+		return ordered.getWindow();
+	}
+
+	/**
+	 * @return the number of times an {@link SendMode#ORDERED ORDERED} message has been sent
+	 * 		again because it was lost
+	 */
+	public long getRetransmitCount() {
+		return ordered.getRetransmitCount();
+	}
+
+	/**
+	 * @deprecated <b>Internal. For use by HelloMessage only.</b>
+	 */
+	@Deprecated
+	public void setCorrelationId(int correlationId) {
+		log.trace("[{}] Correlation ID is now {}", describeFacade, correlationId);
+		this.correlationId = correlationId;
+		this.correlationChanged = true;
+		writeableNotify.run();
+	}
+
+	/**
+	 * @deprecated <b>Internal. For use by NetworkThread only.</b>
+	 * @return {@code true} if the correlation ID has changed since the last time this method was
+	 * 		called
+	 */
+	@Deprecated
+	public boolean consumeCorrelationChange() {
+		if (!correlationChanged) return false;
+		correlationChanged = false;
+		return true;
+	}
+
 	public long nanosSinceStart() {
 		return MonotonicTime.deltaNanos(epoch);
 	}
@@ -166,7 +435,9 @@ public final class Connection {
 
 	/**
 	 * For testing. If set, every 1 in {@code rate} messages that have a send mode of
-	 * {@code UNRELIABLE} or {@code UNIMPORTANT} will be dropped.
+	 * {@code UNRELIABLE} or {@code UNIMPORTANT} will be dropped. For {@code ORDERED} messages,
+	 * the datagrams carrying them and their acknowledgements are dropped instead, so they are
+	 * retransmitted like real losses.
 	 * <p>
 	 * A {@code rate} of 0 turns off packet loss simulation. A {@code rate} of 1 makes every
 	 * non-{@code RELIABLE} message be dropped. A {@code rate} of 2 makes approximately 50% of all
@@ -179,23 +450,276 @@ public final class Connection {
 		this.simulatedPacketLossIn = inRate;
 	}
 
+	/**
+	 * For testing. Pass everything this Connection receives through a simulated network link
+	 * with the given conditions, which can add latency, jitter, reordering, duplication, loss,
+	 * and a bandwidth cap. Only what's received is affected; set conditions on the other end
+	 * too to affect what's sent. Whatever was in flight when the conditions change arrives
+	 * immediately.
+	 * @param conditions the conditions to simulate, or {@code null} to turn simulation off
+	 */
+	public void setLinkConditions(@Nullable LinkConditions conditions) {
+		this.linkConditions = conditions;
+		writeableNotify.run();
+	}
+
+	public @Nullable LinkConditions getLinkConditions() {
+		return linkConditions;
+	}
+
+	/**
+	 * Set the limits on how much is sent in one flush of the outgoing queue. Messages are packed
+	 * into as few buffers as possible and written to the TCP channel in one gathering write, so
+	 * higher limits mean fewer syscalls, at the cost of one busy connection being able to hog the
+	 * network thread for longer.
+	 * <p>
+	 * Limits are checked before each message is packed, so a flush may go over the byte limit by
+	 * up to one message.
+	 * @param maxBytes the maximum number of bytes to write to the TCP channel in one flush
+	 * @param maxMessages the maximum number of messages to send in one flush, over TCP or UDP
+	 * @see #DEFAULT_MAX_FLUSH_BYTES
+	 * @see #DEFAULT_MAX_FLUSH_MESSAGES
+	 */
+	public void setFlushLimits(int maxBytes, int maxMessages) {
+		Preconditions.checkArgument(maxBytes > 0, "maxBytes must be positive");
+		Preconditions.checkArgument(maxMessages > 0, "maxMessages must be positive");
+		this.maxFlushBytes = maxBytes;
+		this.maxFlushMessages = maxMessages;
+	}
+
+	/**
+	 * Set the limits on how much the other side may send us. While either rate is exceeded, or
+	 * there are too many unprocessed messages, we stop reading from the TCP channel and drop any
+	 * messages received over UDP, so the other side's sends back up instead of our memory usage
+	 * growing. A single packet that can't fit in the receive buffer ends the connection.
+	 * @param maxBytesPerSecond the maximum sustained number of bytes to receive per second, with
+	 * 		bursts of up to one second's worth allowed; 0 for unlimited
+	 * @param maxMessagesPerSecond the maximum sustained number of messages to receive per second,
+	 * 		with bursts of up to one second's worth allowed; 0 for unlimited
+	 * @param maxReadBufferSize the maximum size the receive buffer may grow to
+	 * @param maxPendingMessages the number of unprocessed messages at which we stop reading
+	 */
+	public void setInboundLimits(int maxBytesPerSecond, int maxMessagesPerSecond, int maxReadBufferSize, int maxPendingMessages) {
+		Preconditions.checkArgument(maxBytesPerSecond >= 0, "maxBytesPerSecond cannot be negative");
+		Preconditions.checkArgument(maxMessagesPerSecond >= 0, "maxMessagesPerSecond cannot be negative");
+		Preconditions.checkArgument(maxReadBufferSize > 0, "maxReadBufferSize must be positive");
+		Preconditions.checkArgument(maxPendingMessages > 0 && maxPendingMessages <= INCOMING_QUEUE_CAPACITY, "maxPendingMessages must be in the range 1-"+INCOMING_QUEUE_CAPACITY);
+		this.maxInboundBytesPerSecond = maxBytesPerSecond;
+		this.maxInboundMessagesPerSecond = maxMessagesPerSecond;
+		this.maxReadBufferSize = maxReadBufferSize;
+		this.maxPendingIncoming = maxPendingMessages;
+		writeableNotify.run();
+	}
+
+	/**
+	 * Set the limit on how much may be waiting to be sent to the other side. If the other side
+	 * doesn't read fast enough for the queue to stay under this limit, the connection is dropped
+	 * with {@link #REASON_QUEUE_OVERFLOW}, rather than letting a slow reader balloon our memory
+	 * usage.
+	 * @param maxPendingMessages the maximum number of unsent messages
+	 */
+	public void setOutboundLimits(int maxPendingMessages) {
+		Preconditions.checkArgument(maxPendingMessages > 0 && maxPendingMessages <= OUTGOING_QUEUE_CAPACITY, "maxPendingMessages must be in the range 1-"+OUTGOING_QUEUE_CAPACITY);
+		this.maxPendingOutgoing = maxPendingMessages;
+	}
+
+	/**
+	 * Set the limits on messages too large to fit in one packet. Such messages are sent in
+	 * fragments, spread over as many flushes as needed, so a large message can't hog the network
+	 * thread; nothing else is sent over TCP until all its fragments have been, as messages are
+	 * always received in the order they were sent.
+	 * @param fragmentSize the number of bytes of the message to send in each fragment
+	 * @param maxTransferSize the maximum size of a message sent or received in fragments; the
+	 * 		connection is dropped if the other side tries to send anything larger
+	 * @see #DEFAULT_FRAGMENT_SIZE
+	 * @see #DEFAULT_MAX_TRANSFER_SIZE
+	 */
+	public void setFragmentLimits(int fragmentSize, int maxTransferSize) {
+		Preconditions.checkArgument(fragmentSize >= 512 && fragmentSize <= FLUSH_BUFFER_SIZE-FRAGMENT_OVERHEAD, "fragmentSize must be in the range 512-"+(FLUSH_BUFFER_SIZE-FRAGMENT_OVERHEAD));
+		Preconditions.checkArgument(maxTransferSize > 0, "maxTransferSize must be positive");
+		this.fragmentSize = fragmentSize;
+		this.maxTransferSize = maxTransferSize;
+	}
+
+	/**
+	 * Set which kinds of compression this side supports. On a client, these are offered to the
+	 * server by {@link #requestCompression}; on a server, the first mode in the client's offer
+	 * that's in this list is picked. Has no effect once compression has been negotiated.
+	 * @param modes the supported modes, most preferred first; none at all to disable compression
+	 * @see #DEFAULT_COMPRESSION_MODES
+	 */
+	public void setCompressionModes(Compression... modes) {
+		ImmutableList.Builder<Compression> builder = ImmutableList.builder();
+		for (Compression c : modes) {
+			if (c != Compression.NONE) builder.add(c);
+		}
+		this.compressionModes = builder.build();
+	}
+
+	/**
+	 * Set the smallest flush that's worth compressing in {@link Compression#LZ4_BLOCK block} mode.
+	 * Smaller flushes are sent uncompressed, as LZ4 has little to work with. Only takes effect if
+	 * set before compression is negotiated.
+	 * @param bytes the smallest flush to compress
+	 * @see #DEFAULT_COMPRESSION_THRESHOLD
+	 */
+	public void setCompressionThreshold(int bytes) {
+		Preconditions.checkArgument(bytes >= 0, "bytes cannot be negative");
+		this.compressionThreshold = bytes;
+	}
+
+	/**
+	 * Offer to compress this connection's TCP stream, with any of the modes set by
+	 * {@link #setCompressionModes}. If the server agrees, compression is switched on in each
+	 * direction as soon as both sides know about it, without interrupting anything in flight.
+	 * Only clients may request compression.
+	 * @see CompressionMessage
+	 */
+	public void requestCompression() {
+		Preconditions.checkState(ctx.getEngineType().isClient(), "Only clients can request compression");
+		List<Compression> modes = compressionModes;
+		if (modes.isEmpty()) return;
+		sendMessage(new CompressionMessage(modes, Compression.NONE));
+	}
+
+	/**
+	 * @return the compression used for what we send over TCP
+	 */
+	public Compression getOutboundCompression() {
+		CompressionCodec codec = outboundCodec;
+		return codec == null ? Compression.NONE : codec.getMode();
+	}
+
+	/**
+	 * @return the compression used for what we receive over TCP
+	 */
+	public Compression getInboundCompression() {
+		CompressionCodec codec = inboundCodec;
+		return codec == null ? Compression.NONE : codec.getMode();
+	}
+
+	/**
+	 * @return the number of bytes sent over TCP since compression was switched on, before
+	 * 		compression
+	 * @see #getCompressedBytesSent
+	 */
+	public long getUncompressedBytesSent() {
+		CompressionCodec codec = outboundCodec;
+		return codec == null ? 0 : codec.getRawBytes();
+	}
+
+	/**
+	 * @return the number of bytes sent over TCP since compression was switched on, after
+	 * 		compression
+	 * @see #getUncompressedBytesSent
+	 */
+	public long getCompressedBytesSent() {
+		CompressionCodec codec = outboundCodec;
+		return codec == null ? 0 : codec.getCompressedBytes();
+	}
+
+	/**
+	 * @return the number of bytes received over TCP since compression was switched on, after
+	 * 		decompression
+	 * @see #getCompressedBytesReceived
+	 */
+	public long getUncompressedBytesReceived() {
+		CompressionCodec codec = inboundCodec;
+		return codec == null ? 0 : codec.getRawBytes();
+	}
+
+	/**
+	 * @return the number of bytes received over TCP since compression was switched on, before
+	 * 		decompression
+	 * @see #getUncompressedBytesReceived
+	 */
+	public long getCompressedBytesReceived() {
+		CompressionCodec codec = inboundCodec;
+		return codec == null ? 0 : codec.getCompressedBytes();
+	}
+
 	/**
 	 * Queue the given Message for sending to the other side.
 	 * @param msg the Message to queue for sending
 	 */
 	public void sendMessage(Message msg) {
 		Preconditions.checkNotNull(msg);
+		msg.checkNotRecycled();
 		if (hasFlag(FLAG_SAID_GOODBYE)) {
 			log.trace("[{}] Ignoring new message after having already said goodbye", describeFacade);
 			return;
 		}
-		if (simulatedPacketLossOut > 0 && msg.getSendMode() != SendMode.RELIABLE && SharedRandom.chance(simulatedPacketLossOut)) {
+		SendMode mode = msg.getSendMode();
+		if (mode == SendMode.ORDERED) {
+			Preconditions.checkArgument(msg.getChannel() >= 0 && msg.getChannel() < OrderedDatagrams.CHANNELS,
+					"channel must be in the range 0-"+(OrderedDatagrams.CHANNELS-1));
+		}
+		if (simulatedPacketLossOut > 0 && mode != SendMode.RELIABLE && mode != SendMode.ORDERED && SharedRandom.chance(simulatedPacketLossOut)) {
 			log.debug("[{}] Simulating lost packet for outgoing {}", describeFacade, msg.getId());
 			return;
 		}
 		log.trace("[{}] Queue new message {}", describeFacade, msg);
-		outgoingMessages.add(msg);
-		writeableNotify.run();
+		if (!enqueue(outgoingMessages, maxPendingOutgoing, msg)) {
+			log.warn("[{}] Outgoing message queue is full; disconnecting", describeFacade);
+			// there's no room to say goodbye
+			disconnect(REASON_QUEUE_OVERFLOW, "outgoing");
+			return;
+		}
+		if (flushDeferred) {
+			flushPending.set(true);
+			// deferral may have been turned off after we checked
+			if (!flushDeferred) flush();
+		} else {
+			writeableNotify.run();
+		}
+	}
+
+	/**
+	 * Set whether sent messages wait for a call to {@link #flush} before the network thread is
+	 * told about them. Deferring lets everything sent during a tick go out together, with one
+	 * wakeup of the network thread and as few packets as possible, rather than one of each per
+	 * message. Turning deferral off flushes anything waiting.
+	 */
+	public void setFlushDeferred(boolean flushDeferred) {
+		this.flushDeferred = flushDeferred;
+		if (!flushDeferred) flush();
+	}
+
+	/**
+	 * Let the network thread start sending any messages that were sent while
+	 * {@link #setFlushDeferred flushing is deferred}. Does nothing if there are none.
+	 */
+	public void flush() {
+		if (flushPending.getAndSet(false)) {
+			writeableNotify.run();
+		}
+	}
+
+	/**
+	 * Add the given message to the given queue, unless it's full. Once the queue is three quarters
+	 * of the way to the limit, {@link SendMode#UNIMPORTANT UNIMPORTANT} messages are silently
+	 * dropped to leave room for the rest.
+	 * @return {@code false} if a message that can't be dropped didn't fit
+	 */
+	private boolean enqueue(MpscRingQueue<@NonNull Message> queue, int limit, Message msg) {
+		int size = queue.size();
+		if (msg.getSendMode() == SendMode.UNIMPORTANT && size >= (limit*3)/4) {
+			log.trace("[{}] Dropping unimportant message {} as the queue is nearly full", describeFacade, msg.getId());
+			return true;
+		}
+		if (size >= limit) return false;
+		return queue.offer(msg);
+	}
+
+	private void enqueueIncoming(Message msg) {
+		// reading stops at maxPendingIncoming, but a read that was already in progress may go over
+		if (!enqueue(incomingMessages, incomingMessages.capacity(), msg)) {
+			msg.recycle();
+			if (!hasFlag(FLAG_SAID_GOODBYE)) {
+				log.warn("[{}] Incoming message queue is full; disconnecting", describeFacade);
+				goodbye(REASON_QUEUE_OVERFLOW, "incoming");
+			}
+		}
 	}
 
 	/**
@@ -252,6 +776,16 @@ public final class Connection {
 		} catch (IOException e) {
 			log.warn("[{}] Failed to close socket", e);
 		}
+		// let the network thread notice and forget about us
+		writeableNotify.run();
+	}
+
+	private void disconnect(Identifier reason, String... extra) {
+		synchronized (disconnectMutex) {
+			this.disconnectReason = reason;
+			this.disconnectExtra = ImmutableList.copyOf(extra);
+		}
+		disconnect();
 	}
 
 	public boolean isConnected() {
@@ -360,65 +894,593 @@ public final class Connection {
 		} else if (incomingMessages.size() > 10) {
 			log.debug("[{}] Connection is falling behind! ({} unprocessed messages since last network update)", describeFacade, incomingMessages.size());
 		}
-		// don't do too much work at once - up to 20 messages
-		for (int i = 0; i < 20; i++) {
+		// everything that's waiting now, which the inbound limits already keep bounded; anything
+		// that arrives while we work waits for next time
+		for (int i = incomingMessages.size(); i > 0; i--) {
 			Message msg = incomingMessages.poll();
 			if (msg == null) break;
-			msg.process(ctx, this);
+			try {
+				msg.process(ctx, this);
+			} finally {
+				msg.recycle();
+			}
+		}
+		if (readPaused && incomingMessages.size() < maxPendingIncoming) {
+			// let the network thread resume reading
+			writeableNotify.run();
 		}
 	}
 
+	/**
+	 * @return {@code true} if there are received messages that have not been processed yet
+	 */
+	public boolean hasUnprocessedMessages() {
+		return !incomingMessages.isEmpty();
+	}
+
+	/**
+	 * @return the number of received messages that have not been processed yet
+	 */
+	public int getUnprocessedMessageCount() {
+		return incomingMessages.size();
+	}
+
+	/**
+	 * Atomically mark this connection as scheduled for processing.
+	 * @return {@code true} if the caller is now responsible for calling {@link #processPackets};
+	 * 		{@code false} if processing was already scheduled
+	 * @deprecated <b>Internal. For use by TickLoop only.</b>
+	 */
+	@Deprecated
+	public boolean tryScheduleProcessing() {
+		return processingScheduled.compareAndSet(false, true);
+	}
+
+	/**
+	 * @deprecated <b>Internal. For use by TickLoop only.</b>
+	 */
+	@Deprecated
+	public void finishProcessing() {
+		processingScheduled.set(false);
+	}
+
 	// network thread only {
 	/**
 	 * @deprecated <b>Internal. For use by NetworkThread only.</b>
 	 */
 	@Deprecated
 	public boolean writePending() {
+		ConditionedLink link = updateLink();
+		if (link != null) {
+			link.release(MonotonicTime.nanos(), this::receiveFromLink);
+		}
 		if (!isConnected()) return true;
 		if (outgoingMessages.size() > 100) {
 			log.warn("[{}] Connection is falling majorly behind! ({} unsent messages since last network update)", describeFacade, outgoingMessages.size());
 		} else if (outgoingMessages.size() > 10) {
 			log.debug("[{}] Connection is falling behind! ({} unsent messages since last network update)", describeFacade, outgoingMessages.size());
 		}
-		// don't do too much work at once - up to 20 messages
-		for (int i = 0; i < 20; i++) {
+		if (udpProbeReplyPending) {
+			udpProbeReplyPending = false;
+			writeDatagram(null, null);
+		}
+		if (udpChannel != null && !udpAvailable && correlationId != 0 && ctx.getEngineType().isClient()
+				&& MonotonicTime.millis()-lastUdpProbe > UDP_PROBE_INTERVAL_MILLIS) {
+			lastUdpProbe = MonotonicTime.millis();
+			writeDatagram(null, null);
+		}
+		// finish what we started last time before packing anything new
+		if (!flushPendingWrites()) {
+			flushOrdered();
+			return false;
+		}
+		int maxBytes = maxFlushBytes;
+		int maxMessages = maxFlushMessages;
+		flushBufferIndex = 0;
+		compressFrom = outboundCodec == null ? Integer.MAX_VALUE : 0;
+		int bytes = 0;
+		for (int i = 0; i < maxMessages && bytes < maxBytes; i++) {
+			if (outgoingTransfer != null) {
+				// nothing else goes out over TCP until the transfer is done, to keep ordering
+				bytes += packFragment().remaining();
+				continue;
+			}
 			Message msg = outgoingMessages.poll();
 			if (msg == null) break;
 			Identifier id = msg.getId();
+			SendMode mode = msg.getSendMode();
+			boolean udp = mode != SendMode.RELIABLE && udpAvailable;
+			if (mode == SendMode.UNIMPORTANT && !udp) {
+				log.trace("[{}] Dropping unimportant message {} as UDP is unavailable", describeFacade, id);
+				continue;
+			}
 			Packet p = new Packet();
-			if (outgoingShortIds.containsKey(id)) {
-				p.shortId = outgoingShortIds.getInt(id);
-			} else {
-				if (messagesSentBefore.contains(id)) {
-					int shortId = nextShortId++;
-					outgoingShortIds.put(id, shortId);
-					p.shortId = shortId;
-				} else {
-					messagesSentBefore.add(id);
+
+			if (mode == SendMode.ORDERED && udpChannel != null) {
+				// datagrams can be lost or arrive before the TCP packet that defined a short ID, and
+				// ORDERED packets sent over TCP may be held back behind them, so they must always
+				// carry the long ID
+				p.longId = id;
+				byte[] data = marshalOrdered(p, msg);
+				if (data == null) continue;
+				if (udp && data.length <= orderedScratch.capacity()) {
+					queueOrdered(msg.getChannel(), data);
+					continue;
 				}
+				// still numbered in its channel's sequence, so nothing on the same channel that goes
+				// as a datagram can overtake it
+				log.trace("[{}] Sending ordered message {} over TCP", describeFacade, id);
+				msg = new SequencedMessage(msg.getChannel(), ordered.reserve(msg.getChannel()), ByteBuffer.wrap(data));
+				id = SequencedMessage.ID;
+				p = new Packet();
+			} else if (udp) {
+				// datagrams can be lost or arrive before the TCP packet that defined a short ID, so
+				// they must always carry the long ID
 				p.longId = id;
+				if (writeDatagram(p, msg)) continue;
+				if (mode == SendMode.UNIMPORTANT) {
+					log.trace("[{}] Dropping unimportant message {} as it's too large for a datagram", describeFacade, id);
+					continue;
+				}
+				log.trace("[{}] Message {} is too large for a datagram, sending over TCP", describeFacade, id);
+				p.longId = null;
 			}
-			writeBuffer.rewind().limit(writeBuffer.capacity());
-			Marshaller m = new Marshaller(writeBuffer);
-			msg.marshal(m);
-			ByteBuffer payload = m.finish();
-			byte[] payloadBys = new byte[payload.limit()];
-			payload.get(payloadBys);
-			p.payload = payloadBys;
 
+			boolean defineShortId = prepareId(p, id);
+			ByteBuffer fin = pack(p, msg);
+			if (fin == null) {
+				if (startTransfer(p, msg)) {
+					commitId(p, id, defineShortId);
+				}
+				continue;
+			}
+			commitId(p, id, defineShortId);
+			onPacked(msg);
 			log.trace("[{}] Write packet {}", describeFacade, p);
+			if (log.isTraceEnabled()) {
+				log.trace("[{}] OUT TCP\n{}", describeFacade, Hexdump.encode(fin));
+			}
+			bytes += fin.remaining();
+		}
+		if (compressFrom < pendingWritesEnd) {
+			pendingWritesEnd = outboundCodec.encode(pendingWrites, compressFrom, pendingWritesEnd);
+		}
+		flushPendingWrites();
+		flushOrdered();
+		return false;
+	}
+
+	/**
+	 * Marshal the given packet and ORDERED message, to be sent as a datagram if it fits in one, or
+	 * in a {@link SequencedMessage} if not.
+	 * @return the marshalled packet, or {@code null} if it's too large to send at all
+	 */
+	private @Nullable byte[] marshalOrdered(Packet p, Message msg) {
+		orderedScratch.clear();
+		try {
+			ByteBuffer fin = p.marshal(orderedScratch, msg);
+			byte[] data = new byte[fin.remaining()];
+			fin.get(data);
+			return data;
+		} catch (BufferOverflowException e) {
+			// too large for a datagram; marshal it the slow way
+		}
+		SegmentChain header = new SegmentChain();
+		SegmentChain body = new SegmentChain();
+		try {
+			Marshaller m = new Marshaller(body);
+			msg.marshal(m);
+			m.finish();
+			int len = body.size();
+			// checked here, as a SequencedMessage that's dropped later would leave a gap in its channel
+			if (len > maxTransferSize-SequencedMessage.MAX_OVERHEAD) {
+				log.warn("[{}] Dropping message {} as it's too large to send ({} bytes)", describeFacade, msg.getId(), len);
+				return null;
+			}
+			Marshaller hm = new Marshaller(header);
+			p.marshalHeader(hm, len);
+			hm.finish();
+			ByteBuffer data = ByteBuffer.allocate(header.size()+len);
+			for (ByteBuffer part : header.slices()) {
+				data.put(part);
+			}
+			for (ByteBuffer part : body.slices()) {
+				data.put(part);
+			}
+			return data.array();
+		} finally {
+			header.release();
+			body.release();
+		}
+	}
 
-			writeBuffer.rewind().limit(writeBuffer.capacity());
-			p.marshal(m);
+	/**
+	 * Queue the given marshalled packet to be sent in order as a datagram.
+	 */
+	private void queueOrdered(int channel, byte[] data) {
+		if (ordered.queuedCount() >= maxPendingOutgoing) {
+			log.warn("[{}] Ordered message queue is full; disconnecting", describeFacade);
+			disconnect(REASON_QUEUE_OVERFLOW, "outgoing");
+			return;
+		}
+		ordered.queue(channel, data);
+	}
+
+	/**
+	 * Detect lost ORDERED datagrams, send as many ORDERED messages as the congestion window
+	 * allows, retransmissions first, and acknowledge what we've received if nothing else did.
+	 */
+	private void flushOrdered() {
+		if (!udpAvailable || udpChannel == null || udpRemoteAddress == null) return;
+		long now = MonotonicTime.nanos();
+		ordered.checkTimeouts(now);
+		OrderedDatagrams.Pending pd;
+		while ((pd = ordered.poll()) != null) {
+			int seq = ordered.nextSequence(now);
+			beginDatagram(seq, DatagramHeader.KIND_ORDERED+pd.channel, pd.messageSeq);
+			writeBuffer.put(pd.data);
+			ordered.onSent(pd, seq, now);
+			log.trace("[{}] Write ordered datagram {} for message {} on channel {}", describeFacade, seq, pd.messageSeq, pd.channel);
+			sendDatagram(true);
+		}
+		if (ordered.isAckPending()) {
+			beginDatagram(0, DatagramHeader.KIND_ACK, 0);
+			sendDatagram(true);
+		}
+	}
+
+	/**
+	 * @deprecated <b>Internal. For use by NetworkThread only.</b>
+	 * @return when {@link #writePending} next needs to be called even if nothing else happens, to
+	 * 		retransmit lost datagrams or probe for UDP, in MonotonicTime nanos; or
+	 * 		{@link Long#MAX_VALUE} if there's no need
+	 */
+	@Deprecated
+	public long getWriteDeadline() {
+		if (!isConnected()) return Long.MAX_VALUE;
+		long deadline = ordered.getDeadline();
+		if (link != null) {
+			deadline = Math.min(deadline, link.getDeadline());
+		}
+		if (udpChannel != null && !udpAvailable && correlationId != 0 && ctx.getEngineType().isClient()) {
+			long untilProbe = Math.max(0, UDP_PROBE_INTERVAL_MILLIS-(MonotonicTime.millis()-lastUdpProbe));
+			deadline = Math.min(deadline, MonotonicTime.nanos()+TimeUnit.MILLISECONDS.toNanos(untilProbe));
+		}
+		return deadline;
+	}
+
+	/**
+	 * Fill in the given packet's IDs for a message with the given ID. Doesn't commit to a new short
+	 * ID until the packet defining it has definitely been packed; see {@link #commitId}.
+	 * @return {@code true} if the packet defines a new short ID
+	 */
+	private boolean prepareId(Packet p, Identifier id) {
+		if (denseProtocol != null) {
+			// the other side already knows every ID, and lazily defined short IDs would collide
+			// with the dense ones
+			int denseId = denseProtocol.getDenseId(id);
+			if (denseId != 0) {
+				p.shortId = denseId;
+			} else {
+				p.longId = id;
+			}
+		} else if (outgoingShortIds.containsKey(id)) {
+			p.shortId = outgoingShortIds.getInt(id);
+		} else {
+			// nothing gets a short ID under the Base Protocol (not even the oft-repeated fragments),
+			// as its packets can still be in flight once the other side switches to dense IDs
+			if (messagesSentBefore.contains(id) && !(currentProtocol instanceof BaseProtocol)) {
+				p.shortId = nextShortId;
+				p.longId = id;
+				return true;
+			}
+			p.longId = id;
+		}
+		return false;
+	}
+
+	private void commitId(Packet p, Identifier id, boolean defineShortId) {
+		if (defineShortId) {
+			outgoingShortIds.put(id, nextShortId++);
+		} else if (p.longId != null && denseProtocol == null) {
+			messagesSentBefore.add(id);
+		}
+	}
+
+	/**
+	 * Called once the given message is definitely going to be sent, and anything packed afterward
+	 * will be read after it.
+	 */
+	private void onPacked(Message msg) {
+		if (msg instanceof CompressionMessage && outboundCodec == null) {
+			Compression selected = Compression.byId(((CompressionMessage)msg).selected);
+			if (selected != null && selected != Compression.NONE) {
+				log.debug("[{}] Compressing outgoing stream with {}", describeFacade, selected);
+				outboundCodec = new CompressionCodec(selected, compressionThreshold);
+				compressFrom = pendingWritesEnd;
+			}
+		}
+		if (currentProtocol instanceof BaseProtocol && ctx.getEngineType().isClient()) {
+			Protocol next = ProtocolRegistry.obtain(ctx).getProtocolByStartMessage(msg.getId());
+			if (next != null) {
+				switchProtocol(next, msg);
+				setFlag(FLAG_PROTOCOL_CHOSEN);
+			}
+		}
+	}
+
+	/**
+	 * Pack the given packet into the flush buffers, and queue it to be written.
+	 * @return the packed packet, or {@code null} if it's too large to fit in one flush buffer
+	 */
+	private @Nullable ByteBuffer pack(Packet p, Marshallable body) {
+		ByteBuffer fin = null;
+		while (fin == null) {
+			if (flushBufferIndex >= flushBuffers.size()) {
+				flushBuffers.add(ByteBuffer.allocateDirect(FLUSH_BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN));
+			}
+			ByteBuffer buf = flushBuffers.get(flushBufferIndex);
+			int start = buf.position();
 			try {
-				ByteBuffer fin = m.finish();
-				log.trace("[{}] OUT TCP\n{}", describeFacade, Hexdump.encode(fin));
-				tcpChannel.write(fin);
+				fin = p.marshal(buf, body);
+			} catch (BufferOverflowException e) {
+				buf.position(start);
+				if (start == 0) return null;
+				flushBufferIndex++;
+			}
+		}
+		if (pendingWritesEnd >= pendingWrites.length) {
+			pendingWrites = Arrays.copyOf(pendingWrites, pendingWrites.length*2);
+		}
+		pendingWrites[pendingWritesEnd++] = fin;
+		return fin;
+	}
+
+	/**
+	 * Marshal the given packet and message into a segment chain, to be sent in fragments by
+	 * {@link #packFragment}.
+	 * @return {@code false} if the message is too large to send at all
+	 */
+	private boolean startTransfer(Packet p, Message msg) {
+		SegmentChain body = new SegmentChain();
+		Marshaller m = new Marshaller(body);
+		msg.marshal(m);
+		m.finish();
+		int len = body.size();
+		if (len > maxTransferSize) {
+			body.release();
+			log.warn("[{}] Dropping message {} as it's too large to send ({} bytes)", describeFacade, msg.getId(), len);
+			return false;
+		}
+		SegmentChain header = new SegmentChain();
+		Marshaller hm = new Marshaller(header);
+		p.marshalHeader(hm, len);
+		hm.finish();
+		log.trace("[{}] Message {} is too large for one packet, sending {} bytes in fragments", describeFacade, msg.getId(), len);
+		outgoingTransfer = new OutgoingTransfer(nextTransferId++, msg, header, body);
+		return true;
+	}
+
+	/**
+	 * Pack the next fragment of the current outgoing transfer, and finish the transfer if that was
+	 * the last one.
+	 * @return the packed fragment
+	 */
+	private ByteBuffer packFragment() {
+		OutgoingTransfer t = outgoingTransfer;
+		ByteBuffer part = t.parts[t.partIndex];
+		ByteBuffer chunk = part.duplicate();
+		chunk.limit(chunk.position()+Math.min(chunk.remaining(), fragmentSize));
+		FragmentMessage frag = new FragmentMessage(t.transferId, t.length, t.offset, chunk);
+		Packet p = new Packet();
+		boolean defineShortId = prepareId(p, FragmentMessage.ID);
+		ByteBuffer fin = pack(p, frag);
+		if (fin == null) {
+			// fragments always fit in an empty flush buffer, so this can't happen
+			throw new AssertionError("Fragment of "+chunk.remaining()+" bytes didn't fit in a flush buffer");
+		}
+		commitId(p, FragmentMessage.ID, defineShortId);
+		int n = chunk.remaining();
+		part.position(part.position()+n);
+		t.offset += n;
+		while (t.partIndex < t.parts.length && !t.parts[t.partIndex].hasRemaining()) {
+			t.partIndex++;
+		}
+		if (t.partIndex >= t.parts.length) {
+			// the data has been copied into the flush buffers, so the chains can be reused already
+			outgoingTransfer = null;
+			t.header.release();
+			t.body.release();
+			onPacked(t.msg);
+		}
+		return fin;
+	}
+
+	/**
+	 * @deprecated <b>Internal. For use by NetworkThread only.</b>
+	 * @return {@code true} if there is more to write; either because the socket's send buffer
+	 * 		filled up, or because the flush limits were reached
+	 */
+	@Deprecated
+	public boolean wantsWrite() {
+		return isConnected() && (pendingWritesStart < pendingWritesEnd || outgoingTransfer != null || !outgoingMessages.isEmpty());
+	}
+
+	/**
+	 * @deprecated <b>Internal. For use by NetworkThread only.</b>
+	 * @return {@code false} if the other side has exceeded its inbound limits, and we shouldn't
+	 * 		read from the TCP channel until it's caught up; {@link #writeableNotify} will be run
+	 * 		when that happens
+	 * @see #setInboundLimits
+	 */
+	@Deprecated
+	public boolean wantsRead() {
+		if (!isConnected()) return false;
+		refillInbound();
+		boolean wasPaused = readPaused;
+		// set first, so processPackets either sees it or we see what it drained
+		readPaused = true;
+		boolean paused;
+		if (incomingMessages.size() >= maxPendingIncoming) {
+			// processPackets will tell us when there's room again
+			paused = true;
+		} else if (isInboundOverBudget()) {
+			paused = true;
+			scheduleReadResume();
+		} else if (link != null && link.isBacklogged(MonotonicTime.nanos())) {
+			// the write deadline will bring us back here once the simulated link drains
+			paused = true;
+		} else {
+			paused = false;
+		}
+		readPaused = paused;
+		if (paused != wasPaused) {
+			log.debug("[{}] {} reading", describeFacade, paused ? "Pausing" : "Resuming");
+		}
+		return !paused;
+	}
+
+	private void refillInbound() {
+		int bytesPerSecond = maxInboundBytesPerSecond;
+		int messagesPerSecond = maxInboundMessagesPerSecond;
+		long now = MonotonicTime.nanos();
+		// nothing can accrue more than a second's worth, so don't bother with more than that
+		long elapsed = Math.min(now-lastInboundRefill, TimeUnit.SECONDS.toNanos(1));
+		if (elapsed <= 0) return;
+		long bytes = (elapsed*bytesPerSecond)/TimeUnit.SECONDS.toNanos(1);
+		long messages = (elapsed*messagesPerSecond)/TimeUnit.SECONDS.toNanos(1);
+		// don't lose fractions by advancing the clock when too little time passed to accrue anything
+		if (bytes > 0 || messages > 0 || (bytesPerSecond == 0 && messagesPerSecond == 0)) {
+			inboundByteBudget = Math.min(inboundByteBudget+bytes, bytesPerSecond);
+			inboundMessageBudget = Math.min(inboundMessageBudget+messages, messagesPerSecond);
+			lastInboundRefill = now;
+		}
+	}
+
+	private boolean isInboundOverBudget() {
+		return (maxInboundBytesPerSecond > 0 && inboundByteBudget < 0)
+				|| (maxInboundMessagesPerSecond > 0 && inboundMessageBudget < 0);
+	}
+
+	private void scheduleReadResume() {
+		if (readResumeScheduled) return;
+		long delay = 0;
+		int bytesPerSecond = maxInboundBytesPerSecond;
+		int messagesPerSecond = maxInboundMessagesPerSecond;
+		if (inboundByteBudget < 0 && bytesPerSecond > 0) {
+			delay = Math.max(delay, (-inboundByteBudget*TimeUnit.SECONDS.toNanos(1))/bytesPerSecond);
+		}
+		if (inboundMessageBudget < 0 && messagesPerSecond > 0) {
+			delay = Math.max(delay, (-inboundMessageBudget*TimeUnit.SECONDS.toNanos(1))/messagesPerSecond);
+		}
+		readResumeScheduled = true;
+		SharedThreadPool.schedule(() -> {
+			readResumeScheduled = false;
+			writeableNotify.run();
+		}, Math.max(delay, TimeUnit.MILLISECONDS.toNanos(1)), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Write as many pending packets as the socket will accept in one gathering write.
+	 * @return {@code true} if everything has been written, and the flush buffers are free to reuse
+	 */
+	private boolean flushPendingWrites() {
+		if (pendingWritesStart < pendingWritesEnd) {
+			try {
+				tcpChannel.write(pendingWrites, pendingWritesStart, pendingWritesEnd-pendingWritesStart);
 			} catch (IOException e) {
-				log.warn("[{}] Failed to write packet", describeFacade, e);
+				// a partially written packet would desync the stream, so there's no recovering
+				log.warn("[{}] Failed to write packets", describeFacade, e);
+				disconnect();
+				return false;
+			}
+			while (pendingWritesStart < pendingWritesEnd && !pendingWrites[pendingWritesStart].hasRemaining()) {
+				pendingWrites[pendingWritesStart++] = null;
+			}
+			if (pendingWritesStart < pendingWritesEnd) {
+				log.trace("[{}] Socket send buffer is full; {} packets still pending", describeFacade, pendingWritesEnd-pendingWritesStart);
+				return false;
 			}
 		}
-		return false;
+		pendingWritesStart = pendingWritesEnd = 0;
+		CompressionCodec codec = outboundCodec;
+		if (codec != null) {
+			codec.recycleFrames();
+		}
+		for (ByteBuffer buf : flushBuffers) {
+			buf.clear();
+		}
+		return true;
+	}
+
+	/**
+	 * Send the given packet as a datagram, with the given message as its payload. If the packet is
+	 * null, an empty "probe" datagram is sent, which lets the other side know where to send
+	 * datagrams to, and that we can receive them.
+	 * @return {@code false} if the packet is too large to be sent as a datagram
+	 */
+	private boolean writeDatagram(@Nullable Packet p, @Nullable Message msg) {
+		if (udpChannel == null || udpRemoteAddress == null) return false;
+		if (p == null) {
+			writeBuffer.clear();
+			if (ctx.getEngineType().isClient()) {
+				writeBuffer.putInt(correlationId);
+			}
+			return sendDatagram(false);
+		}
+		beginDatagram(ordered.nextSequence(MonotonicTime.nanos()), DatagramHeader.KIND_UNRELIABLE, 0);
+		try {
+			p.marshal(writeBuffer, msg);
+		} catch (BufferOverflowException e) {
+			return false;
+		}
+		log.trace("[{}] Write datagram {}", describeFacade, p);
+		return sendDatagram(false);
+	}
+
+	/**
+	 * Start a new datagram in the write buffer, with a header carrying the given sequence number,
+	 * kind and ORDERED message sequence number, and acknowledging what we've received.
+	 */
+	private void beginDatagram(int seq, int kind, int messageSeq) {
+		writeBuffer.clear();
+		if (ctx.getEngineType().isClient()) {
+			// the server has one UDP socket for every client, so it needs to know who we are
+			writeBuffer.putInt(correlationId);
+		}
+		DatagramHeader h = new DatagramHeader();
+		h.seq = seq;
+		h.ack = ordered.takeAck();
+		h.ackBits = ordered.ackBits();
+		h.kind = kind;
+		h.messageSeq = messageSeq;
+		h.marshal(new Marshaller(writeBuffer));
+	}
+
+	/**
+	 * Send the datagram in the write buffer.
+	 * @param simulateLoss whether this datagram is subject to
+	 * 		{@link #setSimulatedPacketLossRate simulated packet loss}
+	 * @return {@code false} if it's too large to be sent
+	 */
+	private boolean sendDatagram(boolean simulateLoss) {
+		ByteBuffer fin = writeBuffer.duplicate();
+		fin.flip();
+		if (fin.remaining() > MAX_DATAGRAM_SIZE) return false;
+		if (simulateLoss && simulatedPacketLossOut > 0 && SharedRandom.chance(simulatedPacketLossOut)) {
+			log.debug("[{}] Simulating lost outgoing datagram", describeFacade);
+			return true;
+		}
+		try {
+			if (log.isTraceEnabled()) {
+				log.trace("[{}] OUT UDP\n{}", describeFacade, Hexdump.encode(fin));
+			}
+			udpChannel.send(fin, udpRemoteAddress);
+		} catch (IOException e) {
+			// it's unreliable anyway; treat it as lost
+			log.debug("[{}] Failed to send datagram", describeFacade, e);
+		}
+		return true;
 	}
 
 	/**
@@ -426,18 +1488,14 @@ public final class Connection {
 	 */
 	@Deprecated
 	public void feedQueued(ByteBuffer buffer) {
-		log.trace("[{}] IN TCP\n{}", describeFacade, Hexdump.encode(buffer));
-		readBuffer.limit(readBuffer.capacity());
-		if (buffer.remaining() > readBuffer.remaining()) {
-			int diff = buffer.remaining()-readBuffer.remaining();
-			int newLimit = ((readBuffer.limit()+diff)*3)/2; // *1.5 (three halves) without floating point
-			log.debug("[{}] Reallocating receive buffer from {}K to {}K", describeFacade, readBuffer.limit()/1024, newLimit/1024);
-			readBuffer = memRealloc(readBuffer, newLimit);
-		}
-		readBuffer.put(buffer);
-		tryReadPackets();
-		if (!incomingMessages.isEmpty() && ctx.getEngineType().isServer()) {
-			ctx.asServerContext().getEngine().enqueueProcessing(this);
+		if (log.isTraceEnabled()) {
+			log.trace("[{}] IN TCP\n{}", describeFacade, Hexdump.encode(buffer));
+		}
+		ConditionedLink link = updateLink();
+		if (link != null) {
+			link.offerStream(buffer, MonotonicTime.nanos());
+		} else {
+			receiveStream(buffer);
 		}
 	}
 
@@ -445,47 +1503,254 @@ public final class Connection {
 	 * @deprecated <b>Internal. For use by NetworkThread only.</b>
 	 */
 	@Deprecated
-	public void feedImmediate(ByteBuffer buffer) {
-		log.trace("[{}] IN UDP\n{}", describeFacade, Hexdump.encode(buffer));
-		Unmarshaller u = new Unmarshaller(buffer);
+	public void feedImmediate(SocketAddress src, ByteBuffer buffer) {
+		if (log.isTraceEnabled()) {
+			log.trace("[{}] IN UDP\n{}", describeFacade, Hexdump.encode(buffer));
+		}
+		ConditionedLink link = updateLink();
+		if (link != null) {
+			link.offerDatagram(src, buffer, MonotonicTime.nanos());
+		} else {
+			receiveDatagram(src, buffer);
+		}
+	}
+
+	/**
+	 * Pick up any change to the {@link #setLinkConditions link conditions}.
+	 * @return the simulated link to pass received data through, or {@code null} if there isn't one
+	 */
+	private @Nullable ConditionedLink updateLink() {
+		LinkConditions lc = linkConditions;
+		ConditionedLink link = this.link;
+		if (link == null ? lc == null : link.getConditions() == lc) return link;
+		this.link = null;
+		if (link != null) {
+			link.releaseAll(this::receiveFromLink);
+		}
+		if (lc != null) {
+			this.link = new ConditionedLink(lc);
+		}
+		return this.link;
+	}
+
+	private void receiveFromLink(@Nullable SocketAddress src, ByteBuffer buffer) {
+		if (!isConnected()) return;
+		if (src == null) {
+			receiveStream(buffer);
+		} else {
+			receiveDatagram(src, buffer);
+		}
+	}
+
+	private void receiveStream(ByteBuffer buffer) {
+		if (maxInboundBytesPerSecond > 0) {
+			inboundByteBudget -= buffer.remaining();
+		}
+		if (inboundCodec != null) {
+			compressedReadBuffer = append(compressedReadBuffer, buffer, "compressed_read_buffer");
+			if (compressedReadBuffer == null || !decodeFrames()) return;
+		} else if (!appendToReadBuffer(buffer)) {
+			return;
+		}
+		tryReadPackets();
+		if (!incomingMessages.isEmpty() && ctx.getEngineType().isServer()) {
+			ctx.asServerContext().getEngine().enqueueProcessing(this);
+		}
+	}
+
+	private void receiveDatagram(SocketAddress src, ByteBuffer buffer) {
+		if (ctx.getEngineType().isServer()) {
+			// the correlation ID and remote IP have already been checked, so this is the client's
+			// current UDP address, even if their NAT has remapped it since last time
+			udpRemoteAddress = src;
+		} else if (!Objects.equals(src, udpRemoteAddress)) {
+			log.debug("[{}] Ignoring datagram from unexpected address {}", describeFacade, src);
+			return;
+		}
+		if (!udpAvailable) {
+			log.debug("[{}] UDP is now available", describeFacade);
+			udpAvailable = true;
+		}
+		if (!buffer.hasRemaining()) {
+			// probe datagram; answer it so the client knows we can hear them
+			if (ctx.getEngineType().isServer()) {
+				udpProbeReplyPending = true;
+			}
+			return;
+		}
+		refillInbound();
+		if (isInboundOverBudget() || incomingMessages.size() >= maxPendingIncoming) {
+			log.trace("[{}] Dropping datagram as inbound limits are exceeded", describeFacade);
+			return;
+		}
+		if (maxInboundBytesPerSecond > 0) {
+			inboundByteBudget -= buffer.remaining();
+		}
+		if (maxInboundMessagesPerSecond > 0) {
+			inboundMessageBudget--;
+		}
+		DatagramHeader h = new DatagramHeader();
+		h.unmarshal(new Unmarshaller(buffer));
+		if (h.kind != DatagramHeader.KIND_UNRELIABLE && simulatedPacketLossIn > 0 && SharedRandom.chance(simulatedPacketLossIn)) {
+			log.debug("[{}] Simulating lost incoming datagram", describeFacade);
+			return;
+		}
+		ordered.onAck(h.ack, h.ackBits, MonotonicTime.nanos());
+		if (h.isOrdered()) {
+			if (!ordered.receive(h.getChannel(), h.messageSeq, buffer, false, this::acceptDatagramPacket)) {
+				// unacknowledged, so it'll be sent again once we've caught up
+				log.trace("[{}] Turning away ordered datagram {} as too much is waiting on channel {}", describeFacade, h.seq, h.getChannel());
+				return;
+			}
+		}
+		ordered.onReceived(h.seq, h.isOrdered());
+		if (h.kind == DatagramHeader.KIND_ACK) {
+			return;
+		} else if (h.kind == DatagramHeader.KIND_UNRELIABLE) {
+			acceptDatagramPacket(buffer);
+		}
+		if (!incomingMessages.isEmpty() && ctx.getEngineType().isServer()) {
+			ctx.asServerContext().getEngine().enqueueProcessing(this);
+		}
+	}
+
+	private void acceptDatagramPacket(ByteBuffer buffer) {
 		Packet p = new Packet();
-		p.unmarshal(u);
-		log.trace("[{}] Received packet {} ({}) with a {} byte payload over UDP", describeFacade, p.longId, p.shortId, p.payload.length);
+		p.unmarshal(new Unmarshaller(buffer));
+		log.trace("[{}] Received datagram or sequenced packet {} ({}) with a {} byte payload", describeFacade, p.longId, p.shortId, p.payload.remaining());
 		Message msg = convertToMessage(p);
 		if (msg != null) {
-			incomingMessages.add(msg);
-			if (ctx.getEngineType().isServer()) {
-				ctx.asServerContext().getEngine().enqueueProcessing(this);
+			enqueueIncoming(msg);
+		}
+	}
+
+	/**
+	 * Append the given data to the given receive buffer, growing it if needed.
+	 * @return the buffer, which may have been replaced, or {@code null} if it would have to grow
+	 * 		past the limit and we've disconnected
+	 */
+	private @Nullable ByteBuffer append(ByteBuffer dst, ByteBuffer src, String what) {
+		dst.limit(dst.capacity());
+		if (src.remaining() > dst.remaining()) {
+			int diff = src.remaining()-dst.remaining();
+			int maxSize = maxReadBufferSize;
+			if (dst.limit()+diff > maxSize) {
+				log.warn("[{}] Receive buffer would need to grow past {}K; disconnecting", describeFacade, maxSize/1024);
+				// the rest of the stream is useless without this data, so there's no point in
+				// waiting around for a goodbye to be acknowledged
+				disconnect(REASON_LIMIT_EXCEEDED, what);
+				return null;
 			}
+			int newLimit = Math.min(((dst.limit()+diff)*3)/2, maxSize); // *1.5 (three halves) without floating point
+			log.debug("[{}] Reallocating receive buffer from {}K to {}K", describeFacade, dst.limit()/1024, newLimit/1024);
+			ByteBuffer grown = ByteBuffer.allocateDirect(newLimit).order(ByteOrder.BIG_ENDIAN);
+			dst.flip();
+			grown.put(dst);
+			dst = grown;
 		}
+		dst.put(src);
+		return dst;
+	}
+
+	private boolean appendToReadBuffer(ByteBuffer buffer) {
+		ByteBuffer buf = append(readBuffer, buffer, "read_buffer");
+		if (buf == null) return false;
+		readBuffer = buf;
+		return true;
+	}
+
+	/**
+	 * Decompress every complete frame in the compressed receive buffer into the receive buffer.
+	 * @return {@code false} if we've disconnected
+	 */
+	private boolean decodeFrames() {
+		ByteBuffer in = compressedReadBuffer.duplicate();
+		in.flip();
+		boolean ok = inboundCodec.decode(in, this::appendToReadBuffer);
+		compressedReadBuffer.limit(compressedReadBuffer.position());
+		compressedReadBuffer.position(in.position());
+		compressedReadBuffer.compact();
+		return ok;
 	}
 
 	private void tryReadPackets() {
-		ByteBuffer dup = readBuffer.duplicate();
-		dup.flip();
-		Unmarshaller u = new Unmarshaller(dup);
-		try {
-			// keep going until underflow
-			while (true) {
-				Packet p = new Packet();
-				p.unmarshal(u);
-				log.trace("[{}] Received packet {} ({}) with a {} byte payload over TCP", describeFacade, p.longId, p.shortId, p.payload.length);
-				Message msg = convertToMessage(p);
-				if (msg != null) {
-					incomingMessages.add(msg);
+		while (true) {
+			boolean compressed = inboundCodec != null;
+			int end = readBuffer.position();
+			int consumed = 0;
+			ByteBuffer dup = readBuffer.duplicate();
+			dup.flip();
+			Unmarshaller u = new Unmarshaller(dup);
+			try {
+				// keep going until underflow
+				while (true) {
+					Packet p = new Packet();
+					p.unmarshal(u);
+					log.trace("[{}] Received packet {} ({}) with a {} byte payload over TCP", describeFacade, p.longId, p.shortId, p.payload.remaining());
+					if (maxInboundMessagesPerSecond > 0) {
+						inboundMessageBudget--;
+					}
+					Message msg = convertToMessage(p);
+					if (msg != null) {
+						enqueueIncoming(msg);
+					}
+					// update position only after a successful read
+					consumed = dup.position();
+					// anything after a CompressionMessage is compressed, and must be decoded first
+					if (!compressed && inboundCodec != null) break;
 				}
-				// update position only after a successful read
-				readBuffer.position(dup.position());
-			}
-		} catch (BufferUnderflowException e) {}
-		readBuffer.compact();
+			} catch (BufferUnderflowException e) {}
+			readBuffer.limit(end);
+			readBuffer.position(consumed);
+			readBuffer.compact();
+			if (compressed || inboundCodec == null) return;
+			readBuffer.flip();
+			compressedReadBuffer = append(compressedReadBuffer, readBuffer, "compressed_read_buffer");
+			readBuffer.clear();
+			if (compressedReadBuffer == null || !decodeFrames()) return;
+		}
 	}
 	// }
 
+	/**
+	 * Switch to the given protocol, as the given start message has just been sent or received.
+	 * Everything after the start message in the same direction is in the new protocol, and the
+	 * client expects replies in it as soon as it has sent the start message.
+	 * <p>
+	 * If dense IDs are negotiated, both directions switch to them immediately, even though there
+	 * may still be packets in flight from the server that were packed before it received the start
+	 * message. Those can only be Base Protocol messages, including the fragments of a transfer
+	 * that straddles the switch, and {@link #prepareId} never assigns short IDs to anything sent
+	 * under the Base Protocol, so they always carry their long ID and can't be misread.
+	 * @return {@code false} if the start message's message table hash didn't match ours
+	 */
+	private boolean switchProtocol(Protocol next, Message start) {
+		log.debug("[{}] Switching to protocol {}", describeFacade, next.getClass().getSimpleName());
+		currentProtocol = next;
+		if (next.isFrozen() && start instanceof Protocol.StartMessage) {
+			long theirs = ((Protocol.StartMessage)start).getMessageTableHash();
+			long ours = next.getMessageTableHash();
+			if (theirs != ours) {
+				log.debug("[{}] Message table hash mismatch; ours is {}, theirs is {}", describeFacade, Long.toHexString(ours), Long.toHexString(theirs));
+				return false;
+			}
+			log.trace("[{}] Using dense message IDs", describeFacade);
+			denseProtocol = next;
+		}
+		return true;
+	}
+
 	private @Nullable Message convertToMessage(Packet p) {
 		int shortId = p.shortId;
 		Identifier longId = p.longId;
-		if (longId != null) {
+		boolean dense = false;
+		if (longId == null && denseProtocol != null) {
+			longId = denseProtocol.getIdentifierByDenseId(shortId);
+			if (longId == null) {
+				throw new ProtocolViolationException("Got unknown dense ID "+shortId);
+			}
+			dense = true;
+		} else if (longId != null) {
 			if (incomingShortIds.containsKey(shortId)) {
 				if (!Objects.equals(incomingShortIds.get(shortId), longId)) {
 					throw new ProtocolViolationException("Cannot redefine an existing short ID (tried to redefine "+shortId+" to mean "+longId+" when it already means "+incomingShortIds.get(shortId)+")");
@@ -507,8 +1772,20 @@ public final class Connection {
 			log.trace("[{}] Ignoring message received post-goodbye: {}", describeFacade, longId);
 			return null;
 		}
+		Protocol switchingTo = null;
+		if (currentProtocol instanceof BaseProtocol && ctx.getEngineType().isServer()) {
+			switchingTo = ProtocolRegistry.obtain(ctx).getProtocolByStartMessage(longId);
+			if (switchingTo != null) {
+				// the start message isn't part of Base Protocol
+				currentProtocol = switchingTo;
+			}
+		}
 		Message msg;
-		if (ctx.getEngineType().isClient()) {
+		if (dense && ctx.getEngineType().isClient()) {
+			msg = currentProtocol.createForClient(shortId);
+		} else if (dense && ctx.getEngineType().isServer()) {
+			msg = currentProtocol.createForServer(shortId);
+		} else if (ctx.getEngineType().isClient()) {
 			msg = currentProtocol.createForClient(longId);
 		} else if (ctx.getEngineType().isServer()) {
 			msg = currentProtocol.createForServer(longId);
@@ -516,17 +1793,187 @@ public final class Connection {
 			log.warn("[{}] Current context doesn't seem to be a client or a server?", describeFacade);
 			msg = currentProtocol.createIndiscriminately(longId);
 		}
-		ByteBuffer buf = ByteBuffer.wrap(p.payload);
+		// a slice of the read buffer; unmarshal it now, before it gets compacted
+		ByteBuffer buf = p.payload;
 		Unmarshaller un = new Unmarshaller(buf);
 		msg.unmarshal(un);
 		if (buf.remaining() > 0) {
 			log.debug("[{}] Packet with ID {} under-read by {} bytes", describeFacade, longId, buf.remaining());
 		}
-		if (simulatedPacketLossOut > 0 && msg.getSendMode() != SendMode.RELIABLE && SharedRandom.chance(simulatedPacketLossIn)) {
+		if (msg instanceof FragmentMessage) {
+			return acceptFragment((FragmentMessage)msg);
+		}
+		if (msg instanceof CompressionMessage) {
+			onCompressionMessage((CompressionMessage)msg);
+			return null;
+		}
+		if (msg instanceof SequencedMessage) {
+			SequencedMessage sm = (SequencedMessage)msg;
+			log.trace("[{}] Received ordered message {} on channel {} over TCP", describeFacade, sm.messageSeq, sm.channel);
+			ordered.receive(sm.channel, sm.messageSeq, sm.packet, true, this::acceptDatagramPacket);
+			return null;
+		}
+		if (switchingTo != null && !switchProtocol(switchingTo, msg)) {
+			// the client is already using its dense IDs, which we can't understand
+			msg.recycle();
+			goodbye(new Identifier("chipper", "message_table_mismatch"));
+			return null;
+		}
+		if (simulatedPacketLossIn > 0 && msg.getSendMode() != SendMode.RELIABLE && msg.getSendMode() != SendMode.ORDERED && SharedRandom.chance(simulatedPacketLossIn)) {
 			log.debug("[{}] Simulating lost packet for incoming {}", describeFacade, msg.getId());
+			msg.recycle();
 			return null;
 		}
 		return msg;
 	}
 
+	/**
+	 * Copy the given fragment into the current incoming transfer, starting a new one if needed.
+	 * @return the reassembled message, if this was the last fragment
+	 */
+	private @Nullable Message acceptFragment(FragmentMessage frag) {
+		if (reassembling) {
+			throw new ProtocolViolationException("Got a fragment inside a fragmented packet");
+		}
+		if (incomingTransfer == null && frag.offset == 0) {
+			if (frag.totalLength <= 0) {
+				throw new ProtocolViolationException("Got fragment with non-positive total length "+frag.totalLength);
+			}
+			if (frag.totalLength > maxTransferSize) {
+				log.debug("[{}] Other side tried to send {} bytes in fragments; the limit is {}", describeFacade, frag.totalLength, maxTransferSize);
+				disconnect(REASON_LIMIT_EXCEEDED, "transfer");
+				return null;
+			}
+			// on the heap, so a connection dropped mid-transfer doesn't leak it, and grown as the
+			// fragments arrive, so claiming a huge total length costs the other side as much as us
+			incomingTransfer = ByteBuffer.allocate(Math.min(frag.totalLength, Math.max(frag.data.remaining(), 1))).order(ByteOrder.BIG_ENDIAN);
+			incomingTransferId = frag.transferId;
+			incomingTransferLength = frag.totalLength;
+		}
+		ByteBuffer buf = incomingTransfer;
+		if (buf == null || frag.transferId != incomingTransferId || frag.totalLength != incomingTransferLength
+				|| frag.offset != buf.position() || frag.data.remaining() > incomingTransferLength-buf.position()) {
+			throw new ProtocolViolationException("Got out of sequence fragment "+frag);
+		}
+		if (inboundCodec != null && maxInboundBytesPerSecond > 0) {
+			// the stream was only charged for the compressed bytes, which can be far fewer
+			inboundByteBudget -= frag.data.remaining();
+		}
+		if (frag.data.remaining() > buf.remaining()) {
+			// never more than twice what has actually been received
+			int capacity = (int)Math.min(incomingTransferLength, Math.max(buf.capacity()*2L, (long)buf.position()+frag.data.remaining()));
+			ByteBuffer grown = ByteBuffer.allocate(capacity).order(ByteOrder.BIG_ENDIAN);
+			buf.flip();
+			grown.put(buf);
+			incomingTransfer = buf = grown;
+		}
+		buf.put(frag.data);
+		if (buf.position() < incomingTransferLength) return null;
+		incomingTransfer = null;
+		buf.flip();
+		Packet p = new Packet();
+		try {
+			p.unmarshal(new Unmarshaller(buf));
+		} catch (BufferUnderflowException e) {
+			throw new ProtocolViolationException("Got truncated packet in transfer "+frag.transferId);
+		}
+		if (buf.hasRemaining()) {
+			throw new ProtocolViolationException("Got "+buf.remaining()+" extra bytes in transfer "+frag.transferId);
+		}
+		log.trace("[{}] Reassembled packet {} ({}) with a {} byte payload from fragments", describeFacade, p.longId, p.shortId, p.payload.remaining());
+		reassembling = true;
+		try {
+			return convertToMessage(p);
+		} finally {
+			reassembling = false;
+		}
+	}
+
+	/**
+	 * Switch on decompression if the other side has started compressing, and reply with our own
+	 * choice if we haven't made one yet.
+	 * @see CompressionMessage
+	 */
+	private void onCompressionMessage(CompressionMessage cm) {
+		Compression selected = Compression.byId(cm.selected);
+		if (selected == null) {
+			throw new ProtocolViolationException("Got unknown compression mode "+cm.selected);
+		}
+		if (selected != Compression.NONE) {
+			if (inboundCodec != null) {
+				throw new ProtocolViolationException("Got a second CompressionMessage after compression was switched on");
+			}
+			log.debug("[{}] Decompressing incoming stream with {}", describeFacade, selected);
+			compressedReadBuffer = ByteBuffer.allocateDirect(8*1024).order(ByteOrder.BIG_ENDIAN);
+			inboundCodec = new CompressionCodec(selected, 0);
+		}
+		// a refusal has no modes, and needs no answer
+		if (compressionAnnounced || (selected == Compression.NONE && cm.modes.isEmpty())) return;
+		compressionAnnounced = true;
+		List<Compression> ours = compressionModes;
+		Compression choice = Compression.NONE;
+		if (selected != Compression.NONE) {
+			// the server has picked; follow suit if we can
+			if (ours.contains(selected)) choice = selected;
+		} else {
+			for (Identifier id : cm.modes) {
+				Compression c = Compression.byId(id);
+				if (c != null && ours.contains(c)) {
+					choice = c;
+					break;
+				}
+			}
+		}
+		sendMessage(new CompressionMessage(choice == Compression.NONE ? ImmutableList.of() : ImmutableList.of(choice), choice));
+	}
+
+	private static ImmutableList<Compression> parseCompressionModes(@Nullable String str) {
+		if (str == null) return ImmutableList.of(Compression.LZ4_STREAM, Compression.LZ4_BLOCK);
+		ImmutableList.Builder<Compression> builder = ImmutableList.builder();
+		for (String s : Splitter.on(',').trimResults().omitEmptyStrings().split(str)) {
+			Compression c = Compression.byId(new Identifier("chipper", s.toLowerCase(Locale.ROOT)));
+			if (c == null) {
+				log.warn("Unknown compression mode {} in CHIPPER_COMPRESSION", s);
+			} else if (c != Compression.NONE) {
+				builder.add(c);
+			}
+		}
+		return builder.build();
+	}
+
+	private static @Nullable LinkConditions parseLinkConditions(@Nullable String str) {
+		if (str == null || str.trim().isEmpty()) return null;
+		try {
+			LinkConditions lc = LinkConditions.parse(str);
+			log.warn("Simulating a bad network for every connection: {}", lc);
+			return lc;
+		} catch (IllegalArgumentException e) {
+			log.warn("Ignoring invalid CHIPPER_LINK_CONDITIONS: {}", e.getMessage());
+			return null;
+		}
+	}
+
+	private static final class OutgoingTransfer {
+		final int transferId;
+		final Message msg;
+		final SegmentChain header;
+		final SegmentChain body;
+		final ByteBuffer[] parts;
+		final int length;
+		int partIndex = 0;
+		int offset = 0;
+
+		OutgoingTransfer(int transferId, Message msg, SegmentChain header, SegmentChain body) {
+			this.transferId = transferId;
+			this.msg = msg;
+			this.header = header;
+			this.body = body;
+			ByteBuffer[] headerParts = header.slices();
+			ByteBuffer[] bodyParts = body.slices();
+			this.parts = Arrays.copyOf(headerParts, headerParts.length+bodyParts.length);
+			System.arraycopy(bodyParts, 0, parts, headerParts.length, bodyParts.length);
+			this.length = header.size()+body.size();
+		}
+	}
+
 }
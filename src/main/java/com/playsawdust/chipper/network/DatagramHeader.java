@@ -0,0 +1,110 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+
+import com.playsawdust.chipper.toolbox.lipstick.BraceFormatter;
+
+/**
+ * Represents the header at the start of every non-probe datagram, after the client's correlation
+ * ID. What follows it depends on its {@link #kind}: nothing for an ack, or a {@link Packet}
+ * otherwise.
+ */
+final class DatagramHeader implements Marshallable {
+
+	/**
+	 * A datagram that only carries acknowledgements.
+	 */
+	public static final int KIND_ACK = 0;
+	/**
+	 * A datagram carrying an {@link Message.SendMode#UNRELIABLE UNRELIABLE} or
+	 * {@link Message.SendMode#UNIMPORTANT UNIMPORTANT} packet.
+	 */
+	public static final int KIND_UNRELIABLE = 1;
+	/**
+	 * A datagram carrying an {@link Message.SendMode#ORDERED ORDERED} packet; the channel it was
+	 * sent on is added to this.
+	 */
+	public static final int KIND_ORDERED = 2;
+
+	/**
+	 * This datagram's sequence number, for acknowledgement. 0 for an ack.
+	 */
+	public int seq;
+	/**
+	 * The latest sequence number the sender has received.
+	 */
+	public int ack;
+	/**
+	 * Which of the 32 sequence numbers before {@link #ack} the sender has received, lowest bit
+	 * first.
+	 */
+	public int ackBits;
+	/**
+	 * What follows this header; one of the {@code KIND_} constants.
+	 */
+	public int kind;
+	/**
+	 * The carried packet's place in its channel's sequence. Only present for ORDERED datagrams.
+	 */
+	public int messageSeq;
+
+	/**
+	 * @return {@code true} if this is the header of an ORDERED datagram
+	 */
+	public boolean isOrdered() {
+		return kind >= KIND_ORDERED;
+	}
+
+	/**
+	 * @return the channel an ORDERED datagram was sent on
+	 */
+	public int getChannel() {
+		return kind-KIND_ORDERED;
+	}
+
+	/**
+	 * Read in a datagram header from the given Unmarshaller, into this DatagramHeader object.
+	 * @param u the unmarshaller to read from
+	 * @throws BufferUnderflowException if the header is truncated
+	 */
+	@Override
+	public void unmarshal(Unmarshaller u) throws BufferUnderflowException {
+		seq = u.readIVar32();
+		ack = u.readIVar32();
+		ackBits = u.readI32();
+		kind = u.readIVar32();
+		messageSeq = isOrdered() ? u.readIVar32() : 0;
+	}
+
+	/**
+	 * Write this datagram header into the given Marshaller.
+	 * @param m the marshaller to write to
+	 * @throws BufferOverflowException if there isn't enough room
+	 */
+	@Override
+	public void marshal(Marshaller m) throws BufferOverflowException {
+		m.writeIVar32(seq);
+		m.writeIVar32(ack);
+		m.writeI32(ackBits);
+		m.writeIVar32(kind);
+		if (isOrdered()) {
+			m.writeIVar32(messageSeq);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return BraceFormatter.format("DatagramHeader[seq={},ack={},ackBits={},kind={},messageSeq={}]", seq, ack, Integer.toBinaryString(ackBits), kind, messageSeq);
+	}
+
+}
@@ -0,0 +1,272 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network;
+
+import java.util.List;
+import java.util.Locale;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Longs;
+
+/**
+ * For testing. Describes a simulated bad network link, which everything a Connection receives
+ * is passed through before the Connection sees it. Set on a Connection with
+ * {@link Connection#setLinkConditions}, or on every Connection in the process with the
+ * CHIPPER_LINK_CONDITIONS environment variable, in the format accepted by {@link #parse}.
+ * <p>
+ * Since only what's received is affected, the conditions of each direction of a link are set on
+ * the side that receives it; to slow down both directions of a client and server running in the
+ * same process, set the environment variable.
+ * <p>
+ * Datagrams may be lost, duplicated, and reordered. The TCP stream can't be, so for it loss shows
+ * up as a retransmission delay instead, and it's never reordered. Both share the bandwidth cap.
+ */
+public final class LinkConditions {
+
+	public enum JitterModel {
+		/**
+		 * Jitter is uniformly distributed between minus and plus the jitter value.
+		 */
+		UNIFORM,
+		/**
+		 * Jitter is normally distributed, with the jitter value as its standard deviation.
+		 */
+		NORMAL,
+		/**
+		 * Jitter is Pareto distributed, with the jitter value as its mean; usually small, with
+		 * occasional large spikes, like wireless links.
+		 */
+		PARETO,
+	}
+
+	final double latency;
+	final double jitter;
+	final JitterModel jitterModel;
+	final double loss;
+	final double burstEnter;
+	final double burstExit;
+	final double duplicate;
+	final double reorder;
+	final long bandwidth;
+	final int queueLimit;
+	final long seed;
+
+	private LinkConditions(Builder b) {
+		this.latency = b.latency;
+		this.jitter = b.jitter;
+		this.jitterModel = b.jitterModel;
+		this.loss = b.loss;
+		this.burstEnter = b.burstEnter;
+		this.burstExit = b.burstExit;
+		this.duplicate = b.duplicate;
+		this.reorder = b.reorder;
+		this.bandwidth = b.bandwidth;
+		this.queueLimit = b.queueLimit;
+		this.seed = b.seed;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Parse a comma-separated list of {@code key=value} settings, such as
+	 * {@code latency=80,jitter=20,loss=0.02,bandwidth=256k,seed=42}. The keys are:
+	 * <ul>
+	 * <li>{@code latency}: one-way delay in milliseconds</li>
+	 * <li>{@code jitter}: variation in delay in milliseconds</li>
+	 * <li>{@code jitter_model}: {@code uniform}, {@code normal}, or {@code pareto}</li>
+	 * <li>{@code loss}: chance of a datagram being lost, from 0 to 1</li>
+	 * <li>{@code burst}: {@code enter/exit} chances of entering and leaving a burst of loss</li>
+	 * <li>{@code duplicate}: chance of a datagram arriving twice</li>
+	 * <li>{@code reorder}: chance of a datagram being held back behind later ones</li>
+	 * <li>{@code bandwidth}: bytes per second, optionally suffixed with {@code k} or {@code m}</li>
+	 * <li>{@code queue}: bytes that may wait for bandwidth before datagrams are dropped</li>
+	 * <li>{@code seed}: seed for the random number generator, for reproducible runs</li>
+	 * </ul>
+	 * @throws IllegalArgumentException if the string is malformed
+	 */
+	public static LinkConditions parse(String str) {
+		Builder b = builder();
+		for (String setting : Splitter.on(',').trimResults().omitEmptyStrings().split(str)) {
+			List<String> kv = Splitter.on('=').trimResults().limit(2).splitToList(setting);
+			if (kv.size() != 2) throw new IllegalArgumentException("Expected key=value, got "+setting);
+			String k = kv.get(0).toLowerCase(Locale.ROOT);
+			String v = kv.get(1).toLowerCase(Locale.ROOT);
+			switch (k) {
+				case "latency": b.latency(parseDouble(k, v)); break;
+				case "jitter": b.jitter(parseDouble(k, v), b.jitterModel); break;
+				case "jitter_model":
+					try {
+						b.jitter(b.jitter, JitterModel.valueOf(v.toUpperCase(Locale.ROOT)));
+					} catch (IllegalArgumentException e) {
+						throw new IllegalArgumentException("Unknown jitter model "+v);
+					}
+					break;
+				case "loss": b.loss(parseDouble(k, v)); break;
+				case "burst": {
+					List<String> parts = Splitter.on('/').trimResults().splitToList(v);
+					if (parts.size() != 2) throw new IllegalArgumentException("Expected burst=enter/exit, got "+v);
+					b.burstLoss(parseDouble(k, parts.get(0)), parseDouble(k, parts.get(1)));
+					break;
+				}
+				case "duplicate": b.duplicate(parseDouble(k, v)); break;
+				case "reorder": b.reorder(parseDouble(k, v)); break;
+				case "bandwidth": b.bandwidth(parseSize(k, v)); break;
+				case "queue": b.queueLimit((int)parseSize(k, v)); break;
+				case "seed": b.seed(parseLong(k, v)); break;
+				default: throw new IllegalArgumentException("Unknown link condition "+k);
+			}
+		}
+		return b.build();
+	}
+
+	private static double parseDouble(String k, String v) {
+		Double d = Doubles.tryParse(v);
+		if (d == null) throw new IllegalArgumentException("Expected a number for "+k+", got "+v);
+		return d;
+	}
+
+	private static long parseLong(String k, String v) {
+		Long l = Longs.tryParse(v);
+		if (l == null) throw new IllegalArgumentException("Expected an integer for "+k+", got "+v);
+		return l;
+	}
+
+	private static long parseSize(String k, String v) {
+		long mul = 1;
+		if (v.endsWith("k")) {
+			mul = 1024;
+		} else if (v.endsWith("m")) {
+			mul = 1024*1024;
+		}
+		return parseLong(k, mul == 1 ? v : v.substring(0, v.length()-1))*mul;
+	}
+
+	@Override
+	public String toString() {
+		return "LinkConditions[latency="+latency+"ms,jitter="+jitter+"ms ("+jitterModel+"),loss="+loss+",burst="+burstEnter+"/"+burstExit
+				+",duplicate="+duplicate+",reorder="+reorder+",bandwidth="+bandwidth+",queue="+queueLimit+",seed="+seed+"]";
+	}
+
+	public static final class Builder {
+		private double latency = 0;
+		private double jitter = 0;
+		private JitterModel jitterModel = JitterModel.NORMAL;
+		private double loss = 0;
+		private double burstEnter = 0;
+		private double burstExit = 1;
+		private double duplicate = 0;
+		private double reorder = 0;
+		private long bandwidth = 0;
+		private int queueLimit = 64*1024;
+		private long seed = 0;
+
+		private Builder() {}
+
+		/**
+		 * @param millis the one-way delay added to everything
+		 */
+		public Builder latency(double millis) {
+			Preconditions.checkArgument(millis >= 0, "latency cannot be negative");
+			this.latency = millis;
+			return this;
+		}
+
+		/**
+		 * @param millis how much the delay varies
+		 * @param model how the variation is distributed
+		 */
+		public Builder jitter(double millis, JitterModel model) {
+			Preconditions.checkArgument(millis >= 0, "jitter cannot be negative");
+			this.jitter = millis;
+			this.jitterModel = Preconditions.checkNotNull(model);
+			return this;
+		}
+
+		/**
+		 * @param chance the chance of any one datagram being lost, from 0 to 1
+		 */
+		public Builder loss(double chance) {
+			this.loss = checkChance(chance);
+			return this;
+		}
+
+		/**
+		 * Simulate losses that come in bursts, rather than being spread out evenly; every
+		 * datagram received during a burst is lost.
+		 * @param enter the chance of a burst starting at any one datagram
+		 * @param exit the chance of a burst ending at any one datagram
+		 */
+		public Builder burstLoss(double enter, double exit) {
+			this.burstEnter = checkChance(enter);
+			this.burstExit = checkChance(exit);
+			return this;
+		}
+
+		/**
+		 * @param chance the chance of any one datagram arriving twice
+		 */
+		public Builder duplicate(double chance) {
+			this.duplicate = checkChance(chance);
+			return this;
+		}
+
+		/**
+		 * @param chance the chance of any one datagram being held back long enough for later
+		 * 		ones to overtake it
+		 */
+		public Builder reorder(double chance) {
+			this.reorder = checkChance(chance);
+			return this;
+		}
+
+		/**
+		 * @param bytesPerSecond the link's capacity, or 0 for unlimited
+		 */
+		public Builder bandwidth(long bytesPerSecond) {
+			Preconditions.checkArgument(bytesPerSecond >= 0, "bandwidth cannot be negative");
+			this.bandwidth = bytesPerSecond;
+			return this;
+		}
+
+		/**
+		 * @param bytes how much may be waiting for bandwidth before datagrams start being
+		 * 		dropped; the TCP stream stops being read instead
+		 */
+		public Builder queueLimit(int bytes) {
+			Preconditions.checkArgument(bytes > 0, "queue limit must be positive");
+			this.queueLimit = bytes;
+			return this;
+		}
+
+		/**
+		 * @param seed the seed for the random number generator; each Connection's link mixes in
+		 * 		the order it was created in, so runs that create Connections in the same order
+		 * 		behave the same way. 0 picks a random seed.
+		 */
+		public Builder seed(long seed) {
+			this.seed = seed;
+			return this;
+		}
+
+		public LinkConditions build() {
+			return new LinkConditions(this);
+		}
+
+		private static double checkChance(double chance) {
+			Preconditions.checkArgument(chance >= 0 && chance <= 1, "chance must be in the range 0-1");
+			return chance;
+		}
+	}
+
+}
@@ -15,6 +15,7 @@ import java.nio.ByteOrder;
 import java.util.UUID;
 
 import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 import com.google.common.base.Charsets;
 import com.playsawdust.chipper.Identifier;
@@ -26,11 +27,15 @@ import android.util.Half;
  * stream, and adds support for more data types, including  "in-between"
  * (24-bit, 40-bit, 48-bit, and 56-bit), and unsigned integers, as well as
  * single-bit booleans.
+ * <p>
+ * A Marshaller constructed with a {@link SegmentChain} grows on demand, and never throws
+ * BufferOverflowException.
  * @see Unmarshaller
  */
 public class Marshaller {
 
-	private final ByteBuffer buf;
+	private ByteBuffer buf;
+	private final @Nullable SegmentChain chain;
 
 	private int bitBuffer = 0;
 	private int bitWriteIndex = 0;
@@ -39,6 +44,21 @@ public class Marshaller {
 		if (buf.order() != ByteOrder.BIG_ENDIAN)
 			throw new IllegalArgumentException("Network order is big endian, so message buffers must be BIG_ENDIAN");
 		this.buf = buf;
+		this.chain = null;
+	}
+
+	/**
+	 * Create a Marshaller that writes to the given chain, adding segments to it as needed.
+	 */
+	public Marshaller(SegmentChain chain) {
+		this.chain = chain;
+		this.buf = chain.next();
+	}
+
+	private void ensure(int bytes) {
+		if (chain != null && buf.remaining() < bytes) {
+			buf = chain.next();
+		}
 	}
 
 	private void commitBits() {
@@ -87,6 +107,7 @@ public class Marshaller {
 	 */
 	public void writeI8(byte i) {
 		commitBits();
+		ensure(1);
 		buf.put(i);
 	}
 
@@ -120,6 +141,7 @@ public class Marshaller {
 	 */
 	public void writeI16(short i) {
 		commitBits();
+		ensure(2);
 		buf.putShort(i);
 	}
 
@@ -170,6 +192,7 @@ public class Marshaller {
 	 */
 	public void writeI32(int i) {
 		commitBits();
+		ensure(4);
 		buf.putInt(i);
 	}
 
@@ -187,6 +210,7 @@ public class Marshaller {
 	 */
 	public void writeI32(long i) {
 		commitBits();
+		ensure(4);
 		buf.putInt((int)(i&0xFFFFFFFFL));
 	}
 
@@ -253,6 +277,7 @@ public class Marshaller {
 	 */
 	public void writeI64(long i) {
 		commitBits();
+		ensure(8);
 		buf.putLong(i);
 	}
 
@@ -268,6 +293,7 @@ public class Marshaller {
 	 */
 	public void writeF16(float f) {
 		commitBits();
+		ensure(2);
 		buf.putShort(Half.toHalf(f));
 	}
 
@@ -283,6 +309,7 @@ public class Marshaller {
 	 */
 	public void writeF32(float f) {
 		commitBits();
+		ensure(4);
 		buf.putFloat(f);
 	}
 
@@ -298,6 +325,7 @@ public class Marshaller {
 	 */
 	public void writeF64(double d) {
 		commitBits();
+		ensure(8);
 		buf.putDouble(d);
 	}
 
@@ -393,7 +421,7 @@ public class Marshaller {
 	 * @throws BufferOverflowException if there isn't enough space in the buffer for the data
 	 */
 	public void writeIVar32(int i) {
-		writeIVar64(i);
+		writeVarint(((i << 1) ^ (i >> 31)) & 0xFFFFFFFFL);
 	}
 
 	/**
@@ -412,12 +440,47 @@ public class Marshaller {
 	 * @throws BufferOverflowException if there isn't enough space in the buffer for the data
 	 */
 	public void writeIVar64(long i) {
-		long zig = (i << 1) ^ (i >> 63);
-		while ((zig & ~0x7F) != 0) {
-			writeI8((int)((zig & 0x7F) | 0x80));
-			zig >>>= 7L;
+		writeVarint((i << 1) ^ (i >> 63));
+	}
+
+	/**
+	 * Write an already ZigZag-encoded value as a varint, with one bounds check rather than one
+	 * per byte. Nothing is written if it doesn't fit.
+	 */
+	private void writeVarint(long zig) {
+		commitBits();
+		if ((zig & ~0x7FL) == 0) {
+			// by far the most common case
+			ensure(1);
+			buf.put((byte)zig);
+			return;
+		}
+		if (buf.remaining() < 10) {
+			// only work out exactly how much room it needs when it might not fit
+			int size = varintSize(zig);
+			ensure(size);
+			if (buf.remaining() < size) throw new BufferOverflowException();
+		}
+		putVarint(buf, zig);
+	}
+
+	/**
+	 * Write the given ZigZag-encoded value as a varint at the given buffer's position, without
+	 * checking if there's room.
+	 */
+	private static void putVarint(ByteBuffer buf, long zig) {
+		while ((zig & ~0x7FL) != 0) {
+			buf.put((byte)(zig | 0x80));
+			zig >>>= 7;
 		}
-		writeI8((int)(zig&0x7F));
+		buf.put((byte)zig);
+	}
+
+	/**
+	 * @return the number of bytes the given ZigZag-encoded value takes up as a varint
+	 */
+	static int varintSize(long zig) {
+		return ((63-Long.numberOfLeadingZeros(zig | 1))/7)+1;
 	}
 
 	/**
@@ -428,11 +491,46 @@ public class Marshaller {
 	 * @throws BufferOverflowException if there isn't enough space in the buffer for the data
 	 */
 	public void writeString(@NonNull String str) {
-		ByteBuffer encoded = Charsets.UTF_8.encode(str);
-		writeIVar32(encoded.remaining());
+		int len = str.length();
+		if (len < 64 && isAscii(str)) {
+			// ASCII is its own UTF-8 encoding, and a string this short has a one byte length
+			// prefix, so it can be copied straight in without encoding it somewhere else first
+			commitBits();
+			ensure(len+1);
+			int pos = buf.position();
+			if (buf.limit()-pos < len+1) throw new BufferOverflowException();
+			if (buf.hasArray()) {
+				byte[] arr = buf.array();
+				int ofs = buf.arrayOffset()+pos;
+				arr[ofs++] = (byte)(len << 1);
+				for (int i = 0; i < len; i++) {
+					arr[ofs+i] = (byte)str.charAt(i);
+				}
+			} else {
+				buf.put(pos++, (byte)(len << 1));
+				for (int i = 0; i < len; i++) {
+					buf.put(pos+i, (byte)str.charAt(i));
+				}
+			}
+			buf.position(buf.position()+len+1);
+			return;
+		}
+		byte[] encoded = str.getBytes(Charsets.UTF_8);
+		commitBits();
+		if (chain == null && varintSize(encoded.length << 1)+encoded.length > buf.remaining()) {
+			throw new BufferOverflowException();
+		}
+		writeIVar32(encoded.length);
 		write(encoded);
 	}
 
+	private static boolean isAscii(String str) {
+		for (int i = 0; i < str.length(); i++) {
+			if (str.charAt(i) >= 0x80) return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Write the given Identifier to this marshaller's current position, as two
 	 * {@link #writeString strings}, and increment the position by the number of octets
@@ -445,6 +543,135 @@ public class Marshaller {
 		writeString(id.path);
 	}
 
+	/**
+	 * Write every value in the given array as {@link #writeIVar32 varints}. Equivalent to calling
+	 * writeIVar32 for each, but faster when there's plenty of room. The length isn't written;
+	 * write it first if the reader won't know it.
+	 * @param arr the values to write
+	 * @throws BufferOverflowException if there isn't enough space in the buffer for the data
+	 */
+	public void writeIVar32Array(int[] arr) {
+		writeIVar32Array(arr, 0, arr.length);
+	}
+
+	/**
+	 * Write {@code len} values from the given array, starting at {@code ofs}, as
+	 * {@link #writeIVar32 varints}.
+	 * @see #writeIVar32Array(int[])
+	 */
+	public void writeIVar32Array(int[] arr, int ofs, int len) {
+		commitBits();
+		int end = ofs+len;
+		if (buf.remaining() >= len*5L) {
+			// can't possibly overflow, so skip all the checks
+			for (int i = ofs; i < end; i++) {
+				int v = arr[i];
+				putVarint(buf, ((v << 1) ^ (v >> 31)) & 0xFFFFFFFFL);
+			}
+		} else {
+			for (int i = ofs; i < end; i++) {
+				writeIVar32(arr[i]);
+			}
+		}
+	}
+
+	/**
+	 * Write every value in the given array as {@link #writeIVar64 varints}. Equivalent to calling
+	 * writeIVar64 for each, but faster when there's plenty of room. The length isn't written;
+	 * write it first if the reader won't know it.
+	 * @param arr the values to write
+	 * @throws BufferOverflowException if there isn't enough space in the buffer for the data
+	 */
+	public void writeIVar64Array(long[] arr) {
+		writeIVar64Array(arr, 0, arr.length);
+	}
+
+	/**
+	 * Write {@code len} values from the given array, starting at {@code ofs}, as
+	 * {@link #writeIVar64 varints}.
+	 * @see #writeIVar64Array(long[])
+	 */
+	public void writeIVar64Array(long[] arr, int ofs, int len) {
+		commitBits();
+		int end = ofs+len;
+		if (buf.remaining() >= len*10L) {
+			// can't possibly overflow, so skip all the checks
+			for (int i = ofs; i < end; i++) {
+				long v = arr[i];
+				putVarint(buf, (v << 1) ^ (v >> 63));
+			}
+		} else {
+			for (int i = ofs; i < end; i++) {
+				writeIVar64(arr[i]);
+			}
+		}
+	}
+
+	/**
+	 * Write every value in the given array as {@link #writeF32 32-bit floats}, and increment the
+	 * position by 4 times its length. The length isn't written; write it first if the reader
+	 * won't know it.
+	 * @param arr the values to write
+	 * @throws BufferOverflowException if there isn't enough space in the buffer for the data
+	 */
+	public void writeF32Array(float[] arr) {
+		writeF32Array(arr, 0, arr.length);
+	}
+
+	/**
+	 * Write {@code len} values from the given array, starting at {@code ofs}, as
+	 * {@link #writeF32 32-bit floats}.
+	 * @see #writeF32Array(float[])
+	 */
+	public void writeF32Array(float[] arr, int ofs, int len) {
+		commitBits();
+		if (buf.remaining() >= len*4L) {
+			buf.asFloatBuffer().put(arr, ofs, len);
+			buf.position(buf.position()+(len*4));
+		} else if (chain != null) {
+			for (int i = ofs; i < ofs+len; i++) {
+				writeF32(arr[i]);
+			}
+		} else {
+			throw new BufferOverflowException();
+		}
+	}
+
+	/**
+	 * Write every value in the given array as {@link #writeBit bits}, packed 8 to a byte. Exactly
+	 * equivalent to calling writeBit for each, including sharing a byte with any bits written
+	 * just before or after.
+	 * @param arr the values to write
+	 * @throws BufferOverflowException if there isn't enough space in the buffer for the data
+	 */
+	public void writeBitArray(boolean[] arr) {
+		writeBitArray(arr, 0, arr.length);
+	}
+
+	/**
+	 * Write {@code len} values from the given array, starting at {@code ofs}, as
+	 * {@link #writeBit bits}.
+	 * @see #writeBitArray(boolean[])
+	 */
+	public void writeBitArray(boolean[] arr, int ofs, int len) {
+		int end = ofs+len;
+		// fill up the partial byte, if there is one
+		while (ofs < end && bitWriteIndex != 0 && bitWriteIndex < 8) {
+			writeBit(arr[ofs++]);
+		}
+		while (end-ofs >= 8) {
+			int b = 0;
+			for (int i = 0; i < 8; i++) {
+				if (arr[ofs+i]) b |= 0x80 >>> i;
+			}
+			writeI8(b);
+			ofs += 8;
+		}
+		while (ofs < end) {
+			writeBit(arr[ofs++]);
+		}
+	}
+
 	/**
 	 * Copy the contents of the given byte buffer into this writer, at its
 	 * current position. The position will be incremented by the number of
@@ -454,6 +681,15 @@ public class Marshaller {
 	 */
 	public void write(@NonNull ByteBuffer in) {
 		commitBits();
+		if (chain != null) {
+			while (in.remaining() > buf.remaining()) {
+				ByteBuffer part = in.duplicate();
+				part.limit(part.position()+buf.remaining());
+				buf.put(part);
+				in.position(part.position());
+				buf = chain.next();
+			}
+		}
 		buf.put(in);
 	}
 
@@ -479,6 +715,15 @@ public class Marshaller {
 	 */
 	public void write(byte[] bys, int ofs, int len) {
 		commitBits();
+		if (chain != null) {
+			while (len > buf.remaining()) {
+				int part = buf.remaining();
+				buf.put(bys, ofs, part);
+				ofs += part;
+				len -= part;
+				buf = chain.next();
+			}
+		}
 		buf.put(bys, ofs, len);
 	}
 
@@ -493,7 +738,9 @@ public class Marshaller {
 	}
 
 	/**
-	 * Write any pending values to the underlying byte buffer and return it.
+	 * Write any pending values to the underlying byte buffer and return it. If this Marshaller
+	 * writes to a {@link SegmentChain}, only the last segment is returned; use the chain's
+	 * {@link SegmentChain#slices slices} instead.
 	 */
 	public ByteBuffer finish() {
 		commitBits();
@@ -9,14 +9,19 @@
 
 package com.playsawdust.chipper.network;
 
+import org.checkerframework.checker.nullness.qual.Nullable;
+
 import com.playsawdust.chipper.Identifier;
 import com.playsawdust.chipper.client.ClientEngine;
 import com.playsawdust.chipper.component.Context;
+import com.playsawdust.chipper.exception.RecycledObjectException;
 import com.playsawdust.chipper.qual.unification.ClientOnly;
 import com.playsawdust.chipper.qual.unification.ServerOnly;
 
 import com.playsawdust.chipper.server.ServerEngine;
 
+import com.playsawdust.chipper.toolbox.pool.ObjectPool;
+
 /**
  * Represents a logical Message that can be sent to the other side through various
  * transports, as a {@link Packet}.
@@ -66,11 +71,41 @@ public abstract class Message implements Marshallable {
 		 * effects, such as most movement updates and unimportant effects.
 		 */
 		UNIMPORTANT,
+		/**
+		 * Send this Message over the UDP channel, if it is available, with
+		 * acknowledgements and retransmission. It is guaranteed to be received
+		 * eventually, and it will be delivered in order relative to other
+		 * ORDERED messages on the same {@link Message#getChannel channel}.
+		 * Unlike {@link #RELIABLE}, a lost message only holds up its own
+		 * channel, rather than everything sent after it.
+		 * <p>
+		 * If UDP cannot be used yet, or the message is too large for a
+		 * datagram, it will be sent over the TCP channel instead. It still
+		 * takes its place in its channel's sequence, so it's delivered in
+		 * order with the rest of the channel either way, and anything sent
+		 * after it on the same channel waits for it to arrive.
+		 * <p>
+		 * Good for medium-frequency streams of packets that all need to make it
+		 * to the other side, but that have nothing to do with each other, such
+		 * as inventory updates and chunk data.
+		 */
+		ORDERED,
 		;
 	}
 
+	/**
+	 * If true, use of pooled Messages after they've been recycled is checked for, on a best-effort
+	 * basis. Set the CHIPPER_DEBUG_POOLS environment variable to enable.
+	 */
+	private static final boolean DEBUG_POOLS = System.getenv("CHIPPER_DEBUG_POOLS") != null;
+
 	protected final Identifier id;
 
+	// only touched by whichever thread currently owns this message {
+	private @Nullable ObjectPool<Message> pool;
+	private boolean recycled;
+	// }
+
 	public Message(Identifier id) {
 		this.id = id;
 	}
@@ -79,6 +114,56 @@ public abstract class Message implements Marshallable {
 		return id;
 	}
 
+	/**
+	 * Reset every field of this Message to its default value, so it can be reused for another
+	 * message of the same type. Only called for Messages registered with
+	 * {@link Protocol#registerPooled}, which must override this.
+	 */
+	protected void reset() {}
+
+	/**
+	 * @return {@code true} if this instance came from a pool, and will be recycled once processed
+	 * @see Protocol#registerPooled
+	 */
+	public final boolean isPooled() {
+		return pool != null;
+	}
+
+	/**
+	 * Return this Message to the pool it came from, if any. Connections do this automatically
+	 * after {@link #process processing} a received Message; references to a pooled Message must
+	 * not be kept past its processing, and that includes queueing it to be sent on.
+	 * @throws RecycledObjectException if this Message has already been recycled
+	 * @see Protocol#registerPooled
+	 */
+	public final void recycle() {
+		ObjectPool<Message> pool = this.pool;
+		if (pool == null) return;
+		// always checked, unlike accessors; letting it into the pool twice would hand it out twice
+		if (recycled) throw new RecycledObjectException(this);
+		recycled = true;
+		reset();
+		synchronized (pool) {
+			pool.recycle(this);
+		}
+	}
+
+	/**
+	 * Throw an exception if this is a pooled Message that has been {@link #recycle recycled}.
+	 * Accessors on pooled Messages should call this. Only checks anything if CHIPPER_DEBUG_POOLS
+	 * is set.
+	 * @throws RecycledObjectException if this Message has been recycled
+	 */
+	protected final void checkNotRecycled() {
+		if (DEBUG_POOLS && recycled) throw new RecycledObjectException(this);
+	}
+
+	// called by Protocol when this Message is taken out of its pool
+	final void onObtained(ObjectPool<Message> pool) {
+		this.pool = pool;
+		this.recycled = false;
+	}
+
 	/**
 	 * Write any data this Message contains into the given Marshaller.
 	 * @param out the Marshaller to write to
@@ -100,12 +185,21 @@ public abstract class Message implements Marshallable {
 		return SendMode.RELIABLE;
 	}
 
+	/**
+	 * @return the channel this Message is ordered within, if its send mode is
+	 * 		{@link SendMode#ORDERED ORDERED}; from 0 to 15
+	 */
+	public int getChannel() {
+		return 0;
+	}
+
 	@ClientOnly
 	protected abstract void processClient(Context<ClientEngine> ctx, Connection c);
 	@ServerOnly
 	protected abstract void processServer(Context<ServerEngine> ctx, Connection c);
 
 	public final void process(Context<?> ctx, Connection c) {
+		checkNotRecycled();
 		if (ctx.getEngineType().isClient()) {
 			processClient(ctx.asClientContext(), c);
 		} else if (ctx.getEngineType().isServer()) {
@@ -0,0 +1,382 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import com.playsawdust.chipper.exception.ProtocolViolationException;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+
+/**
+ * The state behind {@link Message.SendMode#ORDERED ORDERED} messages: sequence numbers and
+ * acknowledgements for datagrams, retransmission of lost ones, a congestion window, and
+ * per-channel reordering on the receiving side.
+ * <p>
+ * Every datagram other than a probe starts with its own sequence number (0 for datagrams that
+ * only carry acknowledgements), the highest sequence number received from the other side, and a
+ * 32-bit field of which of the 32 before that were also received. Acknowledgements ride along on
+ * whatever is being sent anyway, so a steady stream of traffic in both directions costs nothing
+ * extra. Each ORDERED message is sent in its own datagram; if that datagram isn't acknowledged
+ * it's considered lost and the message is sent again in a new one, so retransmissions never make
+ * round trip time measurements ambiguous. An ORDERED message sent over TCP instead, because UDP
+ * isn't available yet or it's too large for a datagram, takes the next number in its channel's
+ * sequence with {@link #reserve}, and is put in order alongside the datagrams when it arrives.
+ * <p>
+ * The congestion window limits how many ORDERED datagrams may be unacknowledged at once. It grows
+ * by one for every acknowledgement until the first loss, then by one per round trip, and halves
+ * on loss, at most once per round trip.
+ * <p>
+ * Not thread-safe, other than the statistics getters; owned by a Connection's network thread.
+ */
+final class OrderedDatagrams {
+
+	/**
+	 * The number of independently ordered channels.
+	 */
+	static final int CHANNELS = 16;
+	/**
+	 * The most messages on one channel that may be sent ahead of the oldest unacknowledged one,
+	 * and the most datagrams the receiver buffers on one channel while waiting for a missing one.
+	 */
+	static final int REORDER_WINDOW = 1024;
+	/**
+	 * The most bytes a datagram header can take up, including the correlation ID.
+	 */
+	static final int MAX_HEADER_SIZE = 4+5+5+4+1+5;
+
+	private static final int INITIAL_WINDOW = 4;
+	private static final int MIN_WINDOW = 2;
+	private static final int MAX_WINDOW = 256;
+	// a datagram is lost once this many datagrams sent after it have been acknowledged
+	private static final int LOSS_THRESHOLD = 3;
+	private static final double INITIAL_RTO = 500;
+	private static final double MIN_RTO = 50;
+	private static final double MAX_RTO = 2000;
+	private static final int SEND_TIMES = 64;
+
+	static final class Pending {
+		final int channel;
+		final int messageSeq;
+		final byte[] data;
+		int datagramSeq;
+		long sentAt;
+		boolean acked;
+
+		Pending(int channel, int messageSeq, byte[] data) {
+			this.channel = channel;
+			this.messageSeq = messageSeq;
+			this.data = data;
+		}
+	}
+
+	private static final class Inbound {
+		int nextExpected = 1;
+		final Int2ObjectMap<ByteBuffer> buffered = new Int2ObjectOpenHashMap<>();
+	}
+
+	// sending
+	private int nextDatagramSeq = 1;
+	private final int[] nextMessageSeq = new int[CHANNELS];
+	private final ArrayDeque<Pending> queued = new ArrayDeque<>();
+	private final ArrayDeque<Pending> retransmits = new ArrayDeque<>();
+	private final Int2ObjectLinkedOpenHashMap<Pending> inFlight = new Int2ObjectLinkedOpenHashMap<>();
+	// every message on each channel that hasn't been acknowledged yet, oldest first
+	@SuppressWarnings("unchecked")
+	private final ArrayDeque<Pending>[] unacked = new ArrayDeque[CHANNELS];
+	private final int[] sendTimeSeqs = new int[SEND_TIMES];
+	private final long[] sendTimes = new long[SEND_TIMES];
+	private double cwnd = INITIAL_WINDOW;
+	private double ssthresh = MAX_WINDOW;
+	private int recoveryPoint = 0;
+	private double srtt = -1;
+	private double rttvar = 0;
+	private double rto = INITIAL_RTO;
+
+	// receiving
+	private int remoteSeq = 0;
+	private int remoteBits = 0;
+	private boolean ackPending = false;
+	private final Inbound[] inbound = new Inbound[CHANNELS];
+
+	// statistics, read from anywhere
+	private volatile double statRtt = -1;
+	private volatile double statJitter = 0;
+	private volatile int statWindow = INITIAL_WINDOW;
+	private volatile long statRetransmits = 0;
+
+	OrderedDatagrams() {
+		for (int i = 0; i < CHANNELS; i++) {
+			unacked[i] = new ArrayDeque<>();
+			inbound[i] = new Inbound();
+		}
+	}
+
+	/**
+	 * Queue a marshalled packet to be sent in order on the given channel.
+	 */
+	void queue(int channel, byte[] data) {
+		queued.add(new Pending(channel, ++nextMessageSeq[channel], data));
+	}
+
+	/**
+	 * Take the next sequence number on the given channel for a message that's being sent some
+	 * other way, so the receiver still puts it in order with the ones sent as datagrams.
+	 */
+	int reserve(int channel) {
+		return ++nextMessageSeq[channel];
+	}
+
+	int queuedCount() {
+		return queued.size()+retransmits.size();
+	}
+
+	/**
+	 * @return the next message that should be sent, or {@code null} if there's nothing to send or
+	 * 		the window is full; once it's been sent, call {@link #onSent}
+	 */
+	@Nullable Pending poll() {
+		if (inFlight.size() >= (int)cwnd) return null;
+		Pending p = retransmits.poll();
+		if (p != null) return p;
+		p = queued.peek();
+		if (p == null) return null;
+		ArrayDeque<Pending> chan = unacked[p.channel];
+		while (!chan.isEmpty() && chan.peek().acked) {
+			chan.poll();
+		}
+		if (!chan.isEmpty() && p.messageSeq-chan.peek().messageSeq >= REORDER_WINDOW) {
+			// the receiver can't buffer this far ahead of what it's missing
+			return null;
+		}
+		queued.poll();
+		chan.add(p);
+		return p;
+	}
+
+	/**
+	 * Allocate the sequence number for a datagram about to be sent.
+	 */
+	int nextSequence(long nowNanos) {
+		int seq = nextDatagramSeq++;
+		int idx = seq % SEND_TIMES;
+		sendTimeSeqs[idx] = seq;
+		sendTimes[idx] = nowNanos;
+		return seq;
+	}
+
+	void onSent(Pending p, int datagramSeq, long nowNanos) {
+		p.datagramSeq = datagramSeq;
+		p.sentAt = nowNanos;
+		inFlight.put(datagramSeq, p);
+	}
+
+	/**
+	 * @return the highest datagram sequence number received, to be acknowledged in the next
+	 * 		datagram; calling this counts as having sent an acknowledgement
+	 */
+	int takeAck() {
+		ackPending = false;
+		return remoteSeq;
+	}
+
+	int ackBits() {
+		return remoteBits;
+	}
+
+	/**
+	 * @return {@code true} if something we received needs acknowledging and nothing has been
+	 * 		sent to carry the acknowledgement yet
+	 */
+	boolean isAckPending() {
+		return ackPending;
+	}
+
+	/**
+	 * Record that the datagram with the given sequence number was received.
+	 * @param ordered whether the datagram carried an ORDERED message, and so must be
+	 * 		acknowledged even if we have nothing else to send
+	 */
+	void onReceived(int seq, boolean ordered) {
+		if (seq <= 0) return;
+		if (ordered) ackPending = true;
+		if (remoteSeq == 0) {
+			remoteSeq = seq;
+		} else if (seq > remoteSeq) {
+			long shift = (long)seq-remoteSeq;
+			remoteBits = shift > 32 ? 0 : (int)(((remoteBits & 0xFFFFFFFFL) << shift) | (1L << (shift-1)));
+			remoteSeq = seq;
+		} else if (seq < remoteSeq) {
+			int d = remoteSeq-seq;
+			if (d <= 32) remoteBits |= 1 << (d-1);
+		}
+	}
+
+	/**
+	 * Process an acknowledgement header from the other side.
+	 */
+	void onAck(int ack, int bits, long nowNanos) {
+		if (ack <= 0 || ack >= nextDatagramSeq) return;
+		int idx = ack % SEND_TIMES;
+		if (sendTimeSeqs[idx] == ack) {
+			sendTimeSeqs[idx] = 0;
+			sampleRtt((nowNanos-sendTimes[idx])/1_000_000D);
+		}
+		if (inFlight.isEmpty()) return;
+		Iterator<Pending> iter = inFlight.values().iterator();
+		while (iter.hasNext()) {
+			Pending p = iter.next();
+			int d = ack-p.datagramSeq;
+			if (d == 0 || (d > 0 && d <= 32 && (bits & (1 << (d-1))) != 0)) {
+				iter.remove();
+				p.acked = true;
+				if (cwnd < ssthresh) {
+					cwnd += 1;
+				} else {
+					cwnd += 1/cwnd;
+				}
+				if (cwnd > MAX_WINDOW) cwnd = MAX_WINDOW;
+			} else if (d >= LOSS_THRESHOLD) {
+				iter.remove();
+				onLost(p);
+			}
+		}
+		statWindow = (int)cwnd;
+	}
+
+	/**
+	 * Treat anything that's been in flight for longer than the retransmission timeout as lost.
+	 */
+	void checkTimeouts(long nowNanos) {
+		if (inFlight.isEmpty()) return;
+		long timeout = (long)(rto*1_000_000);
+		boolean any = false;
+		Iterator<Pending> iter = inFlight.values().iterator();
+		while (iter.hasNext()) {
+			Pending p = iter.next();
+			if (nowNanos-p.sentAt >= timeout) {
+				iter.remove();
+				onLost(p);
+				any = true;
+			}
+		}
+		if (any) {
+			// the network may have gone quiet entirely; back off until we hear something
+			rto = Math.min(rto*2, MAX_RTO);
+		}
+	}
+
+	private void onLost(Pending p) {
+		statRetransmits++;
+		retransmits.add(p);
+		if (p.datagramSeq > recoveryPoint) {
+			ssthresh = Math.max(MIN_WINDOW, cwnd/2);
+			cwnd = ssthresh;
+			recoveryPoint = nextDatagramSeq-1;
+			statWindow = (int)cwnd;
+		}
+	}
+
+	private void sampleRtt(double rtt) {
+		if (srtt < 0) {
+			srtt = rtt;
+			rttvar = rtt/2;
+		} else {
+			rttvar = (0.75*rttvar)+(0.25*Math.abs(srtt-rtt));
+			srtt = (0.875*srtt)+(0.125*rtt);
+		}
+		rto = Math.max(MIN_RTO, Math.min(MAX_RTO, srtt+(4*rttvar)));
+		statRtt = srtt;
+		statJitter = rttvar;
+	}
+
+	/**
+	 * @return when the oldest datagram in flight times out, in MonotonicTime nanos, or
+	 * 		{@link Long#MAX_VALUE} if nothing is in flight
+	 */
+	long getDeadline() {
+		if (inFlight.isEmpty()) return Long.MAX_VALUE;
+		// in send order, so the first is the oldest
+		return inFlight.values().iterator().next().sentAt+(long)(rto*1_000_000);
+	}
+
+	/**
+	 * Accept an ORDERED packet, passing it and any buffered packets it unblocks to the given
+	 * consumer in order. Duplicates are discarded. The buffer is copied if it needs to be kept.
+	 * <p>
+	 * A packet that arrives over TCP, ahead of datagrams that are yet to arrive, may have to wait
+	 * for them, and vice versa. Datagrams are turned away once {@link #REORDER_WINDOW} are waiting
+	 * on a channel, and will be sent again as if lost, so a large message on its way over TCP slows
+	 * the rest of its channel down instead of piling them up. Packets that came over TCP can't be
+	 * sent again, so they're always accepted, up to a hard limit.
+	 * @param reliable whether the packet came over TCP
+	 * @return {@code false} if the packet was a datagram and was turned away, in which case it
+	 * 		must not be acknowledged
+	 */
+	boolean receive(int channel, int messageSeq, ByteBuffer packet, boolean reliable, Consumer<ByteBuffer> deliver) {
+		if (channel < 0 || channel >= CHANNELS) {
+			throw new ProtocolViolationException("Got ordered message on nonexistent channel "+channel);
+		}
+		Inbound in = inbound[channel];
+		int ahead = messageSeq-in.nextExpected;
+		if (ahead < 0) return true;
+		if (ahead > 0) {
+			if (!in.buffered.containsKey(messageSeq)) {
+				if (!reliable && in.buffered.size() >= REORDER_WINDOW) return false;
+				if (in.buffered.size() >= REORDER_WINDOW*2) {
+					throw new ProtocolViolationException("Got too many ordered messages ahead of a missing one on channel "+channel);
+				}
+				ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+				copy.put(packet);
+				copy.flip();
+				in.buffered.put(messageSeq, copy);
+			}
+			return true;
+		}
+		in.nextExpected++;
+		deliver.accept(packet);
+		ByteBuffer next;
+		while ((next = in.buffered.remove(in.nextExpected)) != null) {
+			in.nextExpected++;
+			deliver.accept(next);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the smoothed round trip time, in milliseconds, or -1 if not yet measured
+	 */
+	double getRoundTripTime() {
+		return statRtt;
+	}
+
+	/**
+	 * @return the round trip time's mean deviation, in milliseconds
+	 */
+	double getJitter() {
+		return statJitter;
+	}
+
+	int getWindow() {
+		return statWindow;
+	}
+
+	long getRetransmitCount() {
+		return statRetransmits;
+	}
+
+}
@@ -11,10 +11,12 @@ package com.playsawdust.chipper.network;
 
 import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import com.playsawdust.chipper.Identifier;
+import com.playsawdust.chipper.exception.ProtocolViolationException;
 import com.playsawdust.chipper.toolbox.lipstick.BraceFormatter;
 
 /**
@@ -23,9 +25,15 @@ import com.playsawdust.chipper.toolbox.lipstick.BraceFormatter;
 public class Packet implements Marshallable {
 
 	/**
-	 * The "short" ID for this packet. Dynamically assigned per-connection. 0 means there is no
-	 * short ID, as packets with the given long ID have not been sent enough times for it to be
-	 * worth allocating a short ID.
+	 * The largest number of bytes a varint length prefix can take up.
+	 */
+	private static final int MAX_LENGTH_SIZE = 5;
+
+	/**
+	 * The "short" ID for this packet. Dynamically assigned per-connection, or, once a frozen
+	 * Protocol's dense IDs have been negotiated, its {@link Protocol#getDenseId dense ID}. 0 means
+	 * there is no short ID, as packets with the given long ID have not been sent enough times for
+	 * it to be worth allocating a short ID.
 	 */
 	public int shortId;
 	/**
@@ -34,9 +42,10 @@ public class Packet implements Marshallable {
 	 */
 	public @Nullable Identifier longId;
 	/**
-	 * This packet's payload.
+	 * This packet's payload. Usually a slice of a larger buffer, such as a Connection's read
+	 * buffer, so it is only valid until that buffer is next modified.
 	 */
-	public byte[] payload = null;
+	public ByteBuffer payload = null;
 
 	/**
 	 * Read in a packet header and payload from the given Unmarshaller, into this Packet object.
@@ -52,8 +61,9 @@ public class Packet implements Marshallable {
 			longId = u.readIdentifier();
 			shortId *= -1;
 		}
-		byte[] payload = new byte[u.readIVar32()];
-		u.read(payload);
+		int len = u.readIVar32();
+		if (len < 0) throw new ProtocolViolationException("Got packet with negative payload length "+len);
+		ByteBuffer payload = u.readSlice(len);
 
 		this.shortId = shortId;
 		this.longId = longId;
@@ -67,18 +77,88 @@ public class Packet implements Marshallable {
 	 */
 	@Override
 	public void marshal(Marshaller m) throws BufferOverflowException {
+		marshalHeader(m, payload.remaining());
+		m.write(payload.duplicate());
+	}
+
+	/**
+	 * Write just a packet header, for a payload of the given length, to the given Marshaller. The
+	 * payload itself must be written immediately afterward.
+	 * @param m the marshaller to write to
+	 * @param payloadLength the length of the payload that will follow
+	 * @throws BufferOverflowException if there isn't enough space in the marshaller for the header
+	 */
+	public void marshalHeader(Marshaller m, int payloadLength) throws BufferOverflowException {
 		// store the longId's presence in the sign bit of the shortId to save a byte
 		m.writeIVar32(longId != null ? -shortId : shortId);
 		if (longId != null) {
 			m.writeIdentifier(longId);
 		}
-		m.writeIVar32(payload.length);
-		m.write(payload);
+		m.writeIVar32(payloadLength);
+	}
+
+	/**
+	 * Write a packet header and payload to the given buffer, starting at its current position, with
+	 * the payload written in-place by the given Marshallable instead of being marshalled separately
+	 * and then copied in. Space for the length prefix is reserved before the payload is written,
+	 * and backpatched once its length is known, so the result is identical to that of
+	 * {@link #marshal(Marshaller)}.
+	 * <p>
+	 * Afterward, {@link #payload} is a slice of {@code buf} containing just the payload, and
+	 * {@code buf}'s position is at the end of the packet.
+	 * @param buf the buffer to write to
+	 * @param body the Marshallable to write the payload with, such as a Message
+	 * @return a read-only slice of {@code buf} containing the complete packet
+	 * @throws BufferOverflowException if there isn't enough space in the buffer for this packet
+	 */
+	public ByteBuffer marshal(ByteBuffer buf, Marshallable body) throws BufferOverflowException {
+		int start = buf.position();
+		Marshaller m = new Marshaller(buf);
+		m.writeIVar32(longId != null ? -shortId : shortId);
+		if (longId != null) {
+			m.writeIdentifier(longId);
+		}
+		int headerEnd = buf.position();
+		int payloadStart = headerEnd+MAX_LENGTH_SIZE;
+		if (payloadStart > buf.limit()) throw new BufferOverflowException();
+		buf.position(payloadStart);
+		m = new Marshaller(buf);
+		body.marshal(m);
+		m.finish();
+		int payloadEnd = buf.position();
+		int len = payloadEnd-payloadStart;
+
+		// the header is usually only a byte or two, so sliding it up against the length prefix is
+		// cheaper than overestimating the length prefix's size and padding it
+		int shift = MAX_LENGTH_SIZE-varintSize(len);
+		for (int i = headerEnd-1; i >= start; i--) {
+			buf.put(i+shift, buf.get(i));
+		}
+		buf.position(headerEnd+shift);
+		new Marshaller(buf).writeIVar32(len);
+		buf.position(payloadEnd);
+
+		ByteBuffer payload = buf.duplicate();
+		payload.position(payloadStart).limit(payloadEnd);
+		this.payload = payload.slice().asReadOnlyBuffer();
+		ByteBuffer rtrn = buf.duplicate();
+		rtrn.position(start+shift).limit(payloadEnd);
+		return rtrn.slice().asReadOnlyBuffer();
+	}
+
+	private static int varintSize(int i) {
+		int zig = (i << 1) ^ (i >> 31);
+		int size = 1;
+		while ((zig & ~0x7F) != 0) {
+			zig >>>= 7;
+			size++;
+		}
+		return size;
 	}
 
 	@Override
 	public String toString() {
-		return BraceFormatter.format("Packet[shortId={},longId={},payload=<{} bytes>]", shortId, longId, payload.length);
+		return BraceFormatter.format("Packet[shortId={},longId={},payload=<{} bytes>]", shortId, longId, payload.remaining());
 	}
 
 }
@@ -10,20 +10,33 @@
 package com.playsawdust.chipper.network;
 
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.playsawdust.chipper.Identifier;
 import com.playsawdust.chipper.exception.ProtocolViolationException;
 import com.playsawdust.chipper.network.Message.Direction;
+import com.playsawdust.chipper.network.protocol.base.message.CompressionMessage;
+import com.playsawdust.chipper.network.protocol.base.message.FragmentMessage;
 import com.playsawdust.chipper.network.protocol.base.message.GoodbyeMessage;
+import com.playsawdust.chipper.network.protocol.base.message.SequencedMessage;
 import com.playsawdust.chipper.network.protocol.base.message.WelcomeMessage;
 
 import com.playsawdust.chipper.toolbox.lipstick.SharedRandom;
+import com.playsawdust.chipper.toolbox.pool.ObjectPool;
+
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 
 /**
  * Represents a mode that a Connection can be in, dictating what kinds of Messages can be sent and
@@ -31,7 +44,8 @@ import com.playsawdust.chipper.toolbox.lipstick.SharedRandom;
  * message. Exposing your Protocol subclass instance can allow other addons to extend your Protocol.
  * <p>
  * If you do not want your protocol to be extensible, call {@link #freeze} at the end of your
- * constructor.
+ * constructor. Frozen protocols get a fixed table of dense message IDs, which Connections can use
+ * instead of negotiating short IDs one message at a time; see {@link StartMessage}.
  * <p>
  * Protocols must be registered with the {@link ProtocolRegistry}.
  */
@@ -43,8 +57,32 @@ public abstract class Protocol {
 
 	private boolean frozen = false;
 
+	// assigned by freeze; index 0 is unused, as a short ID of 0 means "none"
+	private Identifier[] identifiersByDenseId;
+	private RegisteredMessage<?>[] serverboundByDenseId;
+	private RegisteredMessage<?>[] clientboundByDenseId;
+	private final Object2IntMap<Identifier> denseIds = new Object2IntOpenHashMap<>();
+	private long messageTableHash;
+
+	/**
+	 * Implemented by the start message of a {@link #freeze frozen} Protocol to opt into dense
+	 * message IDs. The start message must carry the sender's
+	 * {@link Protocol#getMessageTableHash message table hash}; if the receiver's hash is the same,
+	 * both sides use the protocol's dense IDs in both directions from the start message onward,
+	 * and if not, the connection is dropped for the reason "chipper:message_table_mismatch".
+	 */
+	public interface StartMessage {
+		/**
+		 * @return the message table hash of the side that sent this message
+		 */
+		long getMessageTableHash();
+	}
+
 	public Protocol() {
 		register(GoodbyeMessage::new);
+		register(FragmentMessage::new);
+		register(CompressionMessage::new);
+		register(SequencedMessage::new);
 	}
 
 	private MRegistry registryForDirection(Direction dir) {
@@ -68,10 +106,76 @@ public abstract class Protocol {
 	public abstract @Nullable Identifier getStartMessage();
 
 	/**
-	 * "Freeze" this Protocol, preventing further messages from being registered.
+	 * "Freeze" this Protocol, preventing further messages from being registered, and assign every
+	 * registered message a dense ID.
 	 */
 	protected final void freeze() {
+		if (frozen) return;
 		frozen = true;
+		Set<Identifier> ids = Sets.newHashSet();
+		ids.addAll(registryClientbound.keySet());
+		ids.addAll(registryServerbound.keySet());
+		ids.addAll(registryBidirectional.keySet());
+		// sort, so both sides come up with the same IDs no matter what order things were
+		// registered in
+		Identifier[] sorted = ids.toArray(new Identifier[ids.size()]);
+		Arrays.sort(sorted, Comparator.comparing(Identifier::toString));
+		identifiersByDenseId = new Identifier[sorted.length+1];
+		serverboundByDenseId = new RegisteredMessage<?>[sorted.length+1];
+		clientboundByDenseId = new RegisteredMessage<?>[sorted.length+1];
+		Hasher hasher = Hashing.sipHash24().newHasher();
+		for (int i = 0; i < sorted.length; i++) {
+			Identifier id = sorted[i];
+			int denseId = i+1;
+			identifiersByDenseId[denseId] = id;
+			denseIds.put(id, denseId);
+			RegisteredMessage<?> bidi = registryBidirectional.get(id);
+			RegisteredMessage<?> serverbound = registryServerbound.get(id);
+			RegisteredMessage<?> clientbound = registryClientbound.get(id);
+			// same precedence as createForServer and createForClient
+			serverboundByDenseId[denseId] = serverbound != null ? serverbound : bidi;
+			clientboundByDenseId[denseId] = clientbound != null ? clientbound : bidi;
+			hasher.putString(id.toString(), Charsets.UTF_8);
+			hasher.putByte((byte)((serverbound != null ? 1 : 0) | (clientbound != null ? 2 : 0) | (bidi != null ? 4 : 0)));
+		}
+		messageTableHash = hasher.hash().asLong();
+	}
+
+	/**
+	 * @return {@code true} if this Protocol has been {@link #freeze frozen}, and therefore has
+	 * 		dense message IDs
+	 */
+	public final boolean isFrozen() {
+		return frozen;
+	}
+
+	/**
+	 * @return a hash of every message identifier in this Protocol and the direction(s) it was
+	 * 		registered for; if two sides have the same hash, they have the same dense IDs
+	 * @throws IllegalStateException if this Protocol has not been {@link #freeze frozen}
+	 */
+	public final long getMessageTableHash() {
+		if (!frozen) throw new IllegalStateException("Protocol is not frozen");
+		return messageTableHash;
+	}
+
+	/**
+	 * @param id the identifier of a message
+	 * @return the dense ID of the given message, or 0 if it's not registered or this Protocol has
+	 * 		not been {@link #freeze frozen}
+	 */
+	public final int getDenseId(Identifier id) {
+		if (!frozen) return 0;
+		return denseIds.getInt(id);
+	}
+
+	/**
+	 * @param denseId the dense ID of a message
+	 * @return the identifier of the message with the given dense ID, or null if there is none
+	 */
+	public final @Nullable Identifier getIdentifierByDenseId(int denseId) {
+		if (!frozen || denseId <= 0 || denseId >= identifiersByDenseId.length) return null;
+		return identifiersByDenseId[denseId];
 	}
 
 	/**
@@ -81,13 +185,33 @@ public abstract class Protocol {
 	 * @throws IllegalStateException if this Protocol has been {@link #freeze frozen}
 	 */
 	public final <T extends Message> void register(Supplier<T> constructor) {
+		register(constructor, false);
+	}
+
+	/**
+	 * Register a new pooled Message with this Protocol. Works like {@link #register}, but received
+	 * instances of this Message are taken from a pool instead of being constructed every time,
+	 * and are {@link Message#recycle recycled} into it once they've been processed. The Message
+	 * must override {@link Message#reset} to clear its fields.
+	 * <p>
+	 * Good for high-frequency Messages such as movement and input updates, which would otherwise
+	 * be garbage immediately after being processed.
+	 * @param constructor the constructor of the Message to register, such as {@code MoveMessage::new}
+	 * @throws IllegalStateException if this Protocol has been {@link #freeze frozen}
+	 */
+	public final <T extends Message> void registerPooled(Supplier<T> constructor) {
+		register(constructor, true);
+	}
+
+	private <T extends Message> void register(Supplier<T> constructor, boolean pooled) {
 		if (frozen) throw new IllegalStateException("Protocol is frozen");
 		T m = constructor.get();
 		if (m == null) throw new IllegalArgumentException("Message constructor cannot return null");
 		Class<T> clazz = (Class<T>)m.getClass();
 		Direction dir = m.getDirection();
 		if (dir == null) throw new IllegalArgumentException("Message.getDirection cannot return null");
-		registryForDirection(dir).put(m.getId(), new RegisteredMessage<>(clazz, constructor));
+		ObjectPool<Message> pool = pooled ? new ObjectPool<>(constructor::get) : null;
+		registryForDirection(dir).put(m.getId(), new RegisteredMessage<>(clazz, constructor, pool));
 	}
 
 	// we use iterables for convenience
@@ -138,15 +262,65 @@ public abstract class Protocol {
 		return create(registries, id);
 	}
 
+	/**
+	 * Create a new Message instance from the given dense ID, checking for serverbound or
+	 * bidirectional messages, in that order.
+	 * @param denseId the dense ID of the message to construct
+	 * @return a newly constructed message
+	 * @throws ProtocolViolationException if there is no message with this dense ID that can be
+	 * 		received on the server
+	 * @see #getDenseId
+	 */
+	public final Message createForServer(int denseId) {
+		return create(serverboundByDenseId, denseId);
+	}
+
+	/**
+	 * Create a new Message instance from the given dense ID, checking for clientbound or
+	 * bidirectional messages, in that order.
+	 * @param denseId the dense ID of the message to construct
+	 * @return a newly constructed message
+	 * @throws ProtocolViolationException if there is no message with this dense ID that can be
+	 * 		received on the client
+	 * @see #getDenseId
+	 */
+	public final Message createForClient(int denseId) {
+		return create(clientboundByDenseId, denseId);
+	}
+
+	private Message create(RegisteredMessage<?>[] table, int denseId) {
+		if (!frozen) throw new IllegalStateException("Protocol is not frozen");
+		RegisteredMessage<?> r = denseId > 0 && denseId < table.length ? table[denseId] : null;
+		if (r == null) {
+			throw new ProtocolViolationException("Found no registered messages for dense id "+denseId);
+		}
+		return construct(r);
+	}
+
+	private Message construct(RegisteredMessage<?> r) {
+		Message m;
+		if (r.pool != null) {
+			// messages are obtained on the network thread, but recycled wherever they're processed
+			synchronized (r.pool) {
+				m = r.pool.get();
+			}
+		} else {
+			m = r.constructor.get();
+		}
+		if (m == null) {
+			throw new RuntimeException("Constructor for Message type "+r.clazz+" returned null! This is not allowed!");
+		}
+		if (r.pool != null) {
+			m.onObtained(r.pool);
+		}
+		return m;
+	}
+
 	private Message create(Iterable<MRegistry> registries, Identifier id) {
 		for (MRegistry reg : registries) {
 			RegisteredMessage<?> r = reg.get(id);
 			if (r != null) {
-				Message m = r.constructor.get();
-				if (m == null) {
-					throw new RuntimeException("Constructor for Message type "+r.clazz+" returned null! This is not allowed!");
-				}
-				return m;
+				return construct(r);
 			}
 		}
 		throw new ProtocolViolationException("Found no registered messages for id "+id);
@@ -161,9 +335,11 @@ public abstract class Protocol {
 	private static class RegisteredMessage<T extends Message> {
 		public final Class<T> clazz;
 		public final Supplier<T> constructor;
-		private RegisteredMessage(Class<T> clazz, Supplier<T> constructor) {
+		public final @Nullable ObjectPool<Message> pool;
+		private RegisteredMessage(Class<T> clazz, Supplier<T> constructor, @Nullable ObjectPool<Message> pool) {
 			this.clazz = clazz;
 			this.constructor = constructor;
+			this.pool = pool;
 		}
 	}
 
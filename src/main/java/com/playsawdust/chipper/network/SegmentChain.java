@@ -0,0 +1,104 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Queues;
+
+/**
+ * A growable sequence of fixed-size direct buffers, for {@link Marshaller}s that don't know how
+ * much they'll be writing ahead of time. Segments are taken from a shared pool, and returned to it
+ * by {@link #release}. Segments are garbage collected rather than explicitly freed, so a chain
+ * that is abandoned without being released (such as by a connection that drops mid-send) doesn't
+ * leak.
+ * <p>
+ * A multi-byte value is never split across segments; if it doesn't fit in what's left of the
+ * current segment, it's written to the start of the next one, and the rest of the current segment
+ * goes unused.
+ */
+public final class SegmentChain {
+
+	public static final int SEGMENT_SIZE = 16*1024;
+	/**
+	 * The most segments kept around in the pool at once; any more are left for the GC.
+	 */
+	private static final int MAX_POOLED_SEGMENTS = 256;
+
+	private static final Queue<ByteBuffer> pool = Queues.newConcurrentLinkedQueue();
+	private static final AtomicInteger pooled = new AtomicInteger();
+
+	private final List<ByteBuffer> segments = Lists.newArrayList();
+	private boolean released = false;
+
+	/**
+	 * @return a fresh empty segment, added to the end of this chain
+	 */
+	ByteBuffer next() {
+		if (released) throw new IllegalStateException("SegmentChain has been released");
+		ByteBuffer seg = pool.poll();
+		if (seg != null) {
+			pooled.decrementAndGet();
+			seg.clear();
+		} else {
+			seg = ByteBuffer.allocateDirect(SEGMENT_SIZE).order(ByteOrder.BIG_ENDIAN);
+		}
+		segments.add(seg);
+		return seg;
+	}
+
+	/**
+	 * @return the total number of bytes written to this chain
+	 */
+	public int size() {
+		int size = 0;
+		for (int i = 0; i < segments.size(); i++) {
+			size += segments.get(i).position();
+		}
+		return size;
+	}
+
+	/**
+	 * @return read-only views of the written part of every segment, in order; only valid until
+	 * 		this chain is {@link #release released}
+	 */
+	public ByteBuffer[] slices() {
+		ByteBuffer[] rtrn = new ByteBuffer[segments.size()];
+		for (int i = 0; i < rtrn.length; i++) {
+			ByteBuffer dup = segments.get(i).duplicate();
+			dup.flip();
+			rtrn[i] = dup.asReadOnlyBuffer().order(ByteOrder.BIG_ENDIAN);
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Return every segment to the pool. This chain, and anything obtained from it, must not be
+	 * used afterward.
+	 */
+	public void release() {
+		if (released) return;
+		released = true;
+		for (ByteBuffer seg : segments) {
+			if (pooled.incrementAndGet() <= MAX_POOLED_SEGMENTS) {
+				pool.add(seg);
+			} else {
+				pooled.decrementAndGet();
+			}
+		}
+		segments.clear();
+	}
+
+}
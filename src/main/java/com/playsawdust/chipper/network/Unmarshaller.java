@@ -17,6 +17,7 @@ import java.util.UUID;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import com.google.common.base.Charsets;
 import com.playsawdust.chipper.Identifier;
+import com.playsawdust.chipper.exception.ProtocolViolationException;
 
 import android.util.Half;
 
@@ -391,21 +392,69 @@ public class Unmarshaller {
 	}
 
 	private long _readIVar(int max) {
-		long value = 0;
-		int size = 0;
-		while (true) {
-			int b = readUI8();
-			value |= (b & 0x7FL) << (size * 7L);
-			if (size > max) {
+		skipBits();
+		int start = buf.position();
+		int limit = buf.limit();
+		long value;
+		int pos;
+		if (start < limit) {
+			byte b = buf.get(start);
+			if (b >= 0) {
+				// one byte; by far the most common case in real messages
+				buf.position(start+1);
+				return (b >>> 1) ^ -(b & 1);
+			}
+		}
+		long word = 0;
+		long stops = 0;
+		if (limit-start >= 8) {
+			word = Long.reverseBytes(buf.getLong(start));
+			stops = ~word & 0x8080808080808080L;
+		}
+		if (stops != 0) {
+			// the whole thing is in the next 8 bytes; find the first byte without a continuation
+			// bit, drop everything after it, and squeeze the 7-bit groups back together
+			int size = (Long.numberOfTrailingZeros(stops) >>> 3)+1;
+			if (size-1 > max) {
 				throw new IllegalArgumentException("IVar too long (maximum of "+max+" bytes exceeded)");
 			}
-			if ((b & 0x80) == 0) break;
-			size++;
+			value = gatherVarint(word & (-1L >>> (64-(size*8))));
+			pos = start+size;
+		} else {
+			value = 0;
+			pos = start;
+			while (true) {
+				if (pos >= limit) throw new BufferUnderflowException();
+				byte b = buf.get(pos);
+				value |= (b & 0x7FL) << ((pos-start) * 7L);
+				if (pos-start > max) {
+					throw new IllegalArgumentException("IVar too long (maximum of "+max+" bytes exceeded)");
+				}
+				pos++;
+				if (b >= 0) break;
+			}
 		}
+		// one position update at the end, instead of one per byte
+		buf.position(pos);
 		long zag = (value >>> 1) ^ (-(value & 1));
 		return zag;
 	}
 
+	/**
+	 * Pack the low 7 bits of each byte of the given little-endian word together, least
+	 * significant byte first.
+	 */
+	private static long gatherVarint(long word) {
+		return (word & 0x7FL)
+				| ((word >>> 1) & (0x7FL << 7))
+				| ((word >>> 2) & (0x7FL << 14))
+				| ((word >>> 3) & (0x7FL << 21))
+				| ((word >>> 4) & (0x7FL << 28))
+				| ((word >>> 5) & (0x7FL << 35))
+				| ((word >>> 6) & (0x7FL << 42))
+				| ((word >>> 7) & (0x7FL << 49));
+	}
+
 	/**
 	 * Read a UTF-8 varint-length-prefixed string value from this unmarshaller's
 	 * current position, and increment the position by the number of octets
@@ -414,12 +463,17 @@ public class Unmarshaller {
 	 */
 	public String readString() {
 		int len = readIVar32();
-		System.out.println(len);
+		if (len < 0) throw new ProtocolViolationException("Got string with negative length "+len);
 		if (len > buf.remaining()) throw new BufferUnderflowException();
-		ByteBuffer slice = buf.slice();
-		slice.limit(len);
-		String s = Charsets.UTF_8.decode(slice).toString();
-		buf.position(buf.position()+len);
+		String s;
+		if (buf.hasArray()) {
+			s = new String(buf.array(), buf.arrayOffset()+buf.position(), len, Charsets.UTF_8);
+			buf.position(buf.position()+len);
+		} else {
+			byte[] bys = new byte[len];
+			buf.get(bys);
+			s = new String(bys, Charsets.UTF_8);
+		}
 		return s;
 	}
 
@@ -435,6 +489,70 @@ public class Unmarshaller {
 		return new Identifier(ns, p);
 	}
 
+	/**
+	 * Read {@code len} {@link #readIVar32 varints} into the given array, starting at {@code ofs}.
+	 * Equivalent to calling readIVar32 for each.
+	 * @param out the array to read into
+	 * @throws BufferUnderflowException if there isn't enough data to satisfy the request
+	 */
+	public void readIVar32Array(int[] out, int ofs, int len) {
+		for (int i = ofs; i < ofs+len; i++) {
+			out[i] = readIVar32();
+		}
+	}
+
+	/**
+	 * Read {@code len} {@link #readIVar64 varints} into the given array, starting at {@code ofs}.
+	 * Equivalent to calling readIVar64 for each.
+	 * @param out the array to read into
+	 * @throws BufferUnderflowException if there isn't enough data to satisfy the request
+	 */
+	public void readIVar64Array(long[] out, int ofs, int len) {
+		for (int i = ofs; i < ofs+len; i++) {
+			out[i] = readIVar64();
+		}
+	}
+
+	/**
+	 * Read {@code len} {@link #readF32 32-bit floats} into the given array, starting at
+	 * {@code ofs}, and increment the position by 4 times {@code len}.
+	 * @param out the array to read into
+	 * @throws BufferUnderflowException if there isn't enough data to satisfy the request
+	 */
+	public void readF32Array(float[] out, int ofs, int len) {
+		skipBits();
+		if (buf.remaining() < len*4L) throw new BufferUnderflowException();
+		buf.asFloatBuffer().get(out, ofs, len);
+		buf.position(buf.position()+(len*4));
+	}
+
+	/**
+	 * Read {@code len} {@link #readBit bits} into the given array, starting at {@code ofs}.
+	 * Exactly equivalent to calling readBit for each.
+	 * @param out the array to read into
+	 * @throws BufferUnderflowException if there isn't enough data to satisfy the request
+	 */
+	public void readBitArray(boolean[] out, int ofs, int len) {
+		int end = ofs+len;
+		// finish off the partial byte, if there is one
+		while (ofs < end && bitIndex != 0 && bitIndex < 8) {
+			out[ofs++] = readBit();
+		}
+		if (end-ofs >= 8) {
+			skipBits();
+			while (end-ofs >= 8) {
+				int b = buf.get();
+				for (int i = 0; i < 8; i++) {
+					out[ofs+i] = (b & (0x80 >>> i)) != 0;
+				}
+				ofs += 8;
+			}
+		}
+		while (ofs < end) {
+			out[ofs++] = readBit();
+		}
+	}
+
 	/**
 	 * Copy from this unmarshaller's buffer into the given buffer. The position will
 	 * be incremented by the amount of bytes read, which will be the amount of
@@ -451,6 +569,33 @@ public class Unmarshaller {
 		buf.position(buf.position()+len);
 	}
 
+	/**
+	 * @return the number of whole bytes left to read, not counting the rest of a byte that bits
+	 * 		are being read from
+	 */
+	public int remaining() {
+		return buf.remaining()-(bitIndex > 0 ? 1 : 0);
+	}
+
+	/**
+	 * Return a read-only view of the next {@code len} bytes of this unmarshaller's
+	 * buffer, without copying them. The position will be incremented by
+	 * {@code len}.
+	 * <p>
+	 * The returned buffer shares its content with this unmarshaller's buffer, so
+	 * it is only valid for as long as that buffer's content is.
+	 * @param len the number of bytes to slice off
+	 * @throws BufferUnderflowException if there isn't enough data to satisfy the request
+	 */
+	public ByteBuffer readSlice(int len) {
+		skipBits();
+		if (len > buf.remaining()) throw new BufferUnderflowException();
+		ByteBuffer slice = buf.slice();
+		slice.limit(len);
+		buf.position(buf.position()+len);
+		return slice.asReadOnlyBuffer().order(ByteOrder.BIG_ENDIAN);
+	}
+
 	/**
 	 * Copy from this unmarshaller's buffer into the given byte array. The position
 	 * will be incremented by the amount of bytes read, which will be the length
@@ -0,0 +1,102 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network.protocol.base.message;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import com.playsawdust.chipper.Identifier;
+import com.playsawdust.chipper.client.ClientEngine;
+import com.playsawdust.chipper.component.Context;
+import com.playsawdust.chipper.network.Compression;
+import com.playsawdust.chipper.network.Connection;
+import com.playsawdust.chipper.network.Marshaller;
+import com.playsawdust.chipper.network.Message;
+import com.playsawdust.chipper.network.Unmarshaller;
+import com.playsawdust.chipper.server.ServerEngine;
+
+/**
+ * The CompressionMessage negotiates {@link Compression compression} of the TCP stream. Everything
+ * its sender sends over TCP after it is compressed with the {@link #selected} mode.
+ * <p>
+ * The client offers the modes it supports, in order of preference, with nothing selected. The
+ * server picks the first one it also supports and replies with it selected, and the client then
+ * echoes it back selected to switch its own direction over. If the server selects "chipper:none",
+ * nothing changes and the negotiation is over.
+ * <p>
+ * CompressionMessages should never be constructed or sent directly; use
+ * {@link Connection#requestCompression}. They are handled by the Connection as soon as they're
+ * received, and are never processed.
+ * <p>
+ * <b>This packet is part of the <i>Chipper Base Protocol</i></b>. Its wire format is frozen and
+ * will never be changed.
+ */
+public class CompressionMessage extends Message {
+
+	public static final Identifier ID = new Identifier("chipper", "compression");
+
+	/**
+	 * The modes the sender supports, most preferred first. Modes this side doesn't know about
+	 * should be ignored.
+	 */
+	public final List<Identifier> modes = Lists.newArrayList();
+	/**
+	 * The mode the rest of the sender's stream is compressed with.
+	 */
+	public Identifier selected = Compression.NONE.getId();
+
+	public CompressionMessage() {
+		super(ID);
+	}
+
+	public CompressionMessage(Iterable<Compression> modes, Compression selected) {
+		super(ID);
+		for (Compression c : modes) {
+			this.modes.add(c.getId());
+		}
+		this.selected = selected.getId();
+	}
+
+	@Override
+	public void marshal(Marshaller out) {
+		out.writeIVar32(modes.size());
+		for (Identifier id : modes) {
+			out.writeIdentifier(id);
+		}
+		out.writeIdentifier(selected);
+	}
+
+	@Override
+	public void unmarshal(Unmarshaller in) {
+		modes.clear();
+		int size = in.readIVar32();
+		for (int i = 0; i < size; i++) {
+			modes.add(in.readIdentifier());
+		}
+		selected = in.readIdentifier();
+	}
+
+	@Override
+	protected void processClient(Context<ClientEngine> ctx, Connection c) {
+		throw new AssertionError("CompressionMessages are handled by Connection");
+	}
+
+	@Override
+	protected void processServer(Context<ServerEngine> ctx, Connection c) {
+		throw new AssertionError("CompressionMessages are handled by Connection");
+	}
+
+	@Override
+	public String toString() {
+		return "CompressionMessage[modes="+modes+",selected="+selected+"]";
+	}
+
+}
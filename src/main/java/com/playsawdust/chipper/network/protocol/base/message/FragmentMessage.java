@@ -0,0 +1,104 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network.protocol.base.message;
+
+import java.nio.ByteBuffer;
+
+import com.playsawdust.chipper.Identifier;
+import com.playsawdust.chipper.client.ClientEngine;
+import com.playsawdust.chipper.component.Context;
+import com.playsawdust.chipper.exception.ProtocolViolationException;
+import com.playsawdust.chipper.network.Connection;
+import com.playsawdust.chipper.network.Marshaller;
+import com.playsawdust.chipper.network.Message;
+import com.playsawdust.chipper.network.Unmarshaller;
+import com.playsawdust.chipper.server.ServerEngine;
+
+/**
+ * A FragmentMessage carries one piece of a packet that was too large to send in one go. The
+ * pieces of a transfer are sent back-to-back, in order, and once all {@link #totalLength} bytes
+ * have arrived they are read as a single packet as if it had been sent normally.
+ * <p>
+ * FragmentMessages should never be constructed or sent directly; Connections split and
+ * reassemble large messages themselves, and a FragmentMessage is never processed.
+ * <p>
+ * <b>This packet is part of the <i>Chipper Base Protocol</i></b>. Its wire format is frozen and
+ * will never be changed.
+ */
+public class FragmentMessage extends Message {
+
+	public static final Identifier ID = new Identifier("chipper", "fragment");
+
+	/**
+	 * An arbitrary number identifying which transfer this fragment is part of. Only one transfer
+	 * may be in progress in each direction at a time.
+	 */
+	public int transferId;
+	/**
+	 * The total size of the reassembled packet, in bytes.
+	 */
+	public int totalLength;
+	/**
+	 * Where in the reassembled packet this fragment's data goes.
+	 */
+	public int offset;
+	/**
+	 * The data carried by this fragment. When receiving, a slice of the Connection's read buffer,
+	 * so it is only valid until that buffer is next modified.
+	 */
+	public ByteBuffer data;
+
+	public FragmentMessage() {
+		super(ID);
+	}
+
+	public FragmentMessage(int transferId, int totalLength, int offset, ByteBuffer data) {
+		super(ID);
+		this.transferId = transferId;
+		this.totalLength = totalLength;
+		this.offset = offset;
+		this.data = data;
+	}
+
+	@Override
+	public void marshal(Marshaller out) {
+		out.writeIVar32(transferId);
+		out.writeIVar32(totalLength);
+		out.writeIVar32(offset);
+		out.writeIVar32(data.remaining());
+		out.write(data.duplicate());
+	}
+
+	@Override
+	public void unmarshal(Unmarshaller in) {
+		transferId = in.readIVar32();
+		totalLength = in.readIVar32();
+		offset = in.readIVar32();
+		int len = in.readIVar32();
+		if (len < 0) throw new ProtocolViolationException("Got fragment with negative length "+len);
+		data = in.readSlice(len);
+	}
+
+	@Override
+	protected void processClient(Context<ClientEngine> ctx, Connection c) {
+		throw new AssertionError("FragmentMessages are reassembled by Connection");
+	}
+
+	@Override
+	protected void processServer(Context<ServerEngine> ctx, Connection c) {
+		throw new AssertionError("FragmentMessages are reassembled by Connection");
+	}
+
+	@Override
+	public String toString() {
+		return "FragmentMessage[transferId="+transferId+",totalLength="+totalLength+",offset="+offset+",data=<"+(data == null ? 0 : data.remaining())+" bytes>]";
+	}
+
+}
@@ -28,6 +28,12 @@ import com.playsawdust.chipper.server.ServerEngine;
  * <p>
  * The server immediately responds with a {@link WelcomeMessage}.
  * <p>
+ * Once the server knows the client's correlation id, the client may start sending UDP datagrams
+ * prefixed with it. A datagram containing only the correlation id is a "probe", and is answered
+ * with an empty datagram; once either side has received a datagram from the other, it starts
+ * sending unreliable messages over UDP. A correlation id of 0 means the client does not want to
+ * use UDP.
+ * <p>
  * <b>This packet is part of the <i>Chipper Base Protocol</i></b>. Its wire format is frozen and
  * will never be changed.
  */
@@ -63,6 +69,9 @@ public class HelloMessage extends ServerboundMessage {
 			c.goodbye(new Identifier("chipper", "duplicate_hello"));
 		} else {
 			c.setFlag(new Identifier("chipper", "hello_received"));
+			if (correlationId != 0) {
+				c.setCorrelationId(correlationId);
+			}
 			c.sendMessage(new WelcomeMessage(ProtocolRegistry.obtain(ctx).getStartMessages()));
 		}
 	}
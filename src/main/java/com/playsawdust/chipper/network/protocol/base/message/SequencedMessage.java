@@ -0,0 +1,102 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network.protocol.base.message;
+
+import java.nio.ByteBuffer;
+
+import com.playsawdust.chipper.Identifier;
+import com.playsawdust.chipper.client.ClientEngine;
+import com.playsawdust.chipper.component.Context;
+import com.playsawdust.chipper.exception.ProtocolViolationException;
+import com.playsawdust.chipper.network.Connection;
+import com.playsawdust.chipper.network.Marshaller;
+import com.playsawdust.chipper.network.Message;
+import com.playsawdust.chipper.network.Unmarshaller;
+import com.playsawdust.chipper.server.ServerEngine;
+
+/**
+ * A SequencedMessage carries an {@link Message.SendMode#ORDERED ORDERED} packet over TCP, when UDP
+ * isn't available yet or the packet is too large for a datagram. It's numbered in the same
+ * sequence as the ORDERED datagrams on its channel, so the receiver can put it back in order with
+ * them no matter which arrives first.
+ * <p>
+ * SequencedMessages should never be constructed or sent directly; Connections wrap and unwrap
+ * ORDERED messages themselves, and a SequencedMessage is never processed.
+ * <p>
+ * <b>This packet is part of the <i>Chipper Base Protocol</i></b>. Its wire format is frozen and
+ * will never be changed.
+ */
+public class SequencedMessage extends Message {
+
+	public static final Identifier ID = new Identifier("chipper", "sequenced");
+
+	/**
+	 * The most bytes a SequencedMessage adds to the packet it carries.
+	 */
+	public static final int MAX_OVERHEAD = 5+5+5;
+
+	/**
+	 * The {@link Message#getChannel channel} the carried packet was sent on.
+	 */
+	public int channel;
+	/**
+	 * The carried packet's place in its channel's sequence.
+	 */
+	public int messageSeq;
+	/**
+	 * The carried packet, with its header. When receiving, a slice of the Connection's read buffer,
+	 * so it is only valid until that buffer is next modified.
+	 */
+	public ByteBuffer packet;
+
+	public SequencedMessage() {
+		super(ID);
+	}
+
+	public SequencedMessage(int channel, int messageSeq, ByteBuffer packet) {
+		super(ID);
+		this.channel = channel;
+		this.messageSeq = messageSeq;
+		this.packet = packet;
+	}
+
+	@Override
+	public void marshal(Marshaller out) {
+		out.writeIVar32(channel);
+		out.writeIVar32(messageSeq);
+		out.writeIVar32(packet.remaining());
+		out.write(packet.duplicate());
+	}
+
+	@Override
+	public void unmarshal(Unmarshaller in) {
+		channel = in.readIVar32();
+		messageSeq = in.readIVar32();
+		int len = in.readIVar32();
+		if (len < 0) throw new ProtocolViolationException("Got sequenced message with negative length "+len);
+		packet = in.readSlice(len);
+	}
+
+	@Override
+	protected void processClient(Context<ClientEngine> ctx, Connection c) {
+		throw new AssertionError("SequencedMessages are unwrapped by Connection");
+	}
+
+	@Override
+	protected void processServer(Context<ServerEngine> ctx, Connection c) {
+		throw new AssertionError("SequencedMessages are unwrapped by Connection");
+	}
+
+	@Override
+	public String toString() {
+		return "SequencedMessage[channel="+channel+",messageSeq="+messageSeq+",packet=<"+(packet == null ? 0 : packet.remaining())+" bytes>]";
+	}
+
+}
@@ -40,6 +40,10 @@ import com.playsawdust.chipper.toolbox.lipstick.SharedRandom;
  * the client does not find any message types it understands, or only finds message types it does
  * not want to send, it will disconnect with the reason "chipper:not_interested".
  * <p>
+ * A client that already knows which protocol it wants may send its start message immediately
+ * after {@link HelloMessage}, without waiting for the WelcomeMessage; the WelcomeMessage is then
+ * ignored.
+ * <p>
  * A commonly available choice in WelcomeMessage is "chipper:ping", a simple similarly barebones
  * protocol for doing pings. <i>However, Chipper-based games are not required to support the ping
  * protocol</i>, it is considered an extension like any other.
@@ -86,6 +90,8 @@ public class WelcomeMessage extends ClientboundMessage {
 
 	@Override
 	protected void processClient(Context<ClientEngine> ctx, Connection c) {
+		// the client already picked a protocol without waiting for us
+		if (c.hasFlag(Connection.FLAG_PROTOCOL_CHOSEN)) return;
 		c.goodbye(new Identifier("chipper", "not_interested"));
 	}
 
@@ -0,0 +1,121 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network.replication;
+
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import org.joml.Vector3d;
+import org.joml.Vector3dc;
+
+import com.playsawdust.chipper.Identifier;
+import com.playsawdust.chipper.network.Marshaller;
+import com.playsawdust.chipper.network.Unmarshaller;
+
+/**
+ * Writes and reads the value of one replicated field. Values are compared with
+ * {@link Object#equals} to find out if they've changed, and are kept around in snapshots, so
+ * they must not be mutated once they've been handed to a codec.
+ */
+public interface FieldCodec<V> {
+
+	void write(Marshaller out, V value);
+	V read(Unmarshaller in);
+
+	/**
+	 * Blend between two values of this field, for smoothing out movement between snapshots on
+	 * the client. The default doesn't blend at all, and keeps the earlier value until the later
+	 * one is reached.
+	 * @param from the earlier value
+	 * @param to the later value
+	 * @param alpha how far between the two values to go, from 0 to 1
+	 */
+	default V interpolate(V from, V to, double alpha) {
+		return alpha >= 1 ? to : from;
+	}
+
+	static <V> FieldCodec<V> of(BiConsumer<Marshaller, V> writer, Function<Unmarshaller, V> reader) {
+		return new FieldCodec<V>() {
+			@Override
+			public void write(Marshaller out, V value) {
+				writer.accept(out, value);
+			}
+
+			@Override
+			public V read(Unmarshaller in) {
+				return reader.apply(in);
+			}
+		};
+	}
+
+	FieldCodec<Boolean> BOOLEAN = of(Marshaller::writeBit, Unmarshaller::readBit);
+	FieldCodec<Integer> INT = of(Marshaller::writeIVar32, Unmarshaller::readIVar32);
+	FieldCodec<Long> LONG = of(Marshaller::writeIVar64, Unmarshaller::readIVar64);
+	FieldCodec<String> STRING = of(Marshaller::writeString, Unmarshaller::readString);
+	FieldCodec<Identifier> IDENTIFIER = of(Marshaller::writeIdentifier, Unmarshaller::readIdentifier);
+
+	FieldCodec<Float> FLOAT = new FieldCodec<Float>() {
+		@Override
+		public void write(Marshaller out, Float value) {
+			out.writeF32(value);
+		}
+
+		@Override
+		public Float read(Unmarshaller in) {
+			return in.readF32();
+		}
+
+		@Override
+		public Float interpolate(Float from, Float to, double alpha) {
+			return (float)(from+((to-from)*alpha));
+		}
+	};
+
+	FieldCodec<Double> DOUBLE = new FieldCodec<Double>() {
+		@Override
+		public void write(Marshaller out, Double value) {
+			out.writeF64(value);
+		}
+
+		@Override
+		public Double read(Unmarshaller in) {
+			return in.readF64();
+		}
+
+		@Override
+		public Double interpolate(Double from, Double to, double alpha) {
+			return from+((to-from)*alpha);
+		}
+	};
+
+	/**
+	 * Writes each component as a 32-bit float, which is plenty for positions and velocities.
+	 * Getters must return a new vector every time.
+	 */
+	FieldCodec<Vector3dc> VECTOR3 = new FieldCodec<Vector3dc>() {
+		@Override
+		public void write(Marshaller out, Vector3dc value) {
+			out.writeF32((float)value.x());
+			out.writeF32((float)value.y());
+			out.writeF32((float)value.z());
+		}
+
+		@Override
+		public Vector3dc read(Unmarshaller in) {
+			return new Vector3d(in.readF32(), in.readF32(), in.readF32());
+		}
+
+		@Override
+		public Vector3dc interpolate(Vector3dc from, Vector3dc to, double alpha) {
+			return from.lerp(to, alpha, new Vector3d());
+		}
+	};
+
+}
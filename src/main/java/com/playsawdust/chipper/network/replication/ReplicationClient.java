@@ -0,0 +1,237 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network.replication;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.playsawdust.chipper.Identifier;
+import com.playsawdust.chipper.client.ClientEngine;
+import com.playsawdust.chipper.component.Component;
+import com.playsawdust.chipper.component.Context;
+import com.playsawdust.chipper.component.Engine;
+import com.playsawdust.chipper.component.Context.WhiteLotus;
+import com.playsawdust.chipper.network.Connection;
+import com.playsawdust.chipper.network.Unmarshaller;
+import com.playsawdust.chipper.toolbox.lipstick.MonotonicTime;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+
+/**
+ * Receives snapshots sent by a {@link ReplicationServer}, acknowledges them, and applies them to
+ * local copies of the server's objects. Rather than jumping straight to the newest snapshot,
+ * {@link #interpolate} shows the state from a little while ago, blended between the two
+ * snapshots around that time, so movement looks smooth even though snapshots arrive at the
+ * server's tick rate and with jitter.
+ * <p>
+ * Every {@link ReplicationSchema} the server might use must be {@link #registerSchema registered}
+ * before snapshots arrive.
+ */
+public final class ReplicationClient implements Component {
+	private static final Logger log = LoggerFactory.getLogger(ReplicationClient.class);
+
+	/**
+	 * The default amount of time the displayed state lags behind the newest snapshot, in
+	 * milliseconds. Enough to ride out one lost snapshot at 20 ticks per second.
+	 * @see #setInterpolationDelay
+	 */
+	public static final long DEFAULT_INTERPOLATION_DELAY = 100;
+
+	private ReplicationClient(WhiteLotus lotus) {
+		WhiteLotus.verify(lotus);
+	}
+
+	/**
+	 * Notified when replicated objects appear and disappear on the client.
+	 */
+	public interface Listener {
+		void onSpawn(int id, Object obj);
+		void onDespawn(int id, Object obj);
+	}
+
+	private final Map<Identifier, ReplicationSchema<?>> schemas = Maps.newConcurrentMap();
+	private final List<Listener> listeners = Lists.newCopyOnWriteArrayList();
+
+	// synchronized {
+	private final Snapshot[] history = new Snapshot[ReplicationServer.HISTORY_SIZE];
+	private int latestSequence = 0;
+	private final Int2ObjectMap<Object> objects = new Int2ObjectOpenHashMap<>();
+	private final Int2ObjectMap<ReplicationSchema<?>> objectSchemas = new Int2ObjectOpenHashMap<>();
+	// our clock minus the server's, plus however much latency the fastest snapshot had
+	private long clockOffset;
+	private boolean clockSynced = false;
+	private long interpolationDelay = DEFAULT_INTERPOLATION_DELAY;
+	// }
+
+	public void registerSchema(ReplicationSchema<?> schema) {
+		ReplicationSchema<?> existing = schemas.putIfAbsent(schema.getId(), schema);
+		if (existing != null && existing != schema) {
+			throw new IllegalArgumentException("A schema with ID "+schema.getId()+" has already been registered");
+		}
+	}
+
+	public void addListener(Listener l) {
+		listeners.add(l);
+	}
+
+	public void removeListener(Listener l) {
+		listeners.remove(l);
+	}
+
+	/**
+	 * Set how far behind the newest snapshot the displayed state is. Higher values hide more
+	 * jitter and loss, at the cost of seeing everything later.
+	 * @param millis the delay, in milliseconds
+	 */
+	public synchronized void setInterpolationDelay(long millis) {
+		Preconditions.checkArgument(millis >= 0, "millis cannot be negative");
+		this.interpolationDelay = millis;
+	}
+
+	/**
+	 * @return the local copy of the replicated object with the given ID, or {@code null} if it
+	 * 		hasn't been spawned by {@link #interpolate} yet
+	 */
+	public synchronized @Nullable Object getObject(int id) {
+		return objects.get(id);
+	}
+
+	void onSnapshot(Connection c, ByteBuffer payload) {
+		Snapshot snap;
+		synchronized (this) {
+			snap = Snapshot.readDelta(new Unmarshaller(payload), this::getHistory, schemas::get);
+			if (snap == null) {
+				// the server will send a delta against something we do have soon enough
+				log.trace("Dropping snapshot against a baseline we no longer have");
+				return;
+			}
+			int seq = snap.getSequence();
+			if (seq <= latestSequence-ReplicationServer.HISTORY_SIZE || getHistory(seq) != null) return;
+			history[seq % history.length] = snap;
+			if (seq > latestSequence) {
+				latestSequence = seq;
+				long offset = MonotonicTime.millis()-snap.getTime();
+				if (!clockSynced || offset < clockOffset) {
+					clockOffset = offset;
+					clockSynced = true;
+				} else if (offset > clockOffset) {
+					// creep back up slowly, in case the clocks have drifted or the route has changed
+					clockOffset += Math.max(1, (offset-clockOffset)/64);
+				}
+			}
+		}
+		c.sendMessage(new SnapshotAckMessage(snap.getSequence()));
+	}
+
+	private @Nullable Snapshot getHistory(int sequence) {
+		if (sequence <= 0) return null;
+		Snapshot s = history[sequence % history.length];
+		return s != null && s.getSequence() == sequence ? s : null;
+	}
+
+	/**
+	 * Apply the replicated state as of {@link #setInterpolationDelay a little while ago} to the
+	 * local copies of the server's objects, spawning and despawning them as needed. Call this
+	 * once per frame, before rendering.
+	 */
+	public synchronized void interpolate() {
+		if (!clockSynced) return;
+		long renderTime = MonotonicTime.millis()-clockOffset-interpolationDelay;
+		Snapshot from = null;
+		Snapshot to = null;
+		for (Snapshot s : history) {
+			if (s == null) continue;
+			if (s.getTime() <= renderTime) {
+				if (from == null || s.getTime() > from.getTime()) from = s;
+			} else {
+				if (to == null || s.getTime() < to.getTime()) to = s;
+			}
+		}
+		if (from == null && to == null) return;
+		double alpha;
+		if (from == null) {
+			// everything we have is from the future; show the oldest
+			from = to;
+			alpha = 1;
+		} else if (to == null) {
+			// nothing newer has arrived in time; hold still rather than guess
+			to = from;
+			alpha = 1;
+		} else {
+			alpha = (renderTime-from.getTime())/(double)(to.getTime()-from.getTime());
+		}
+		ObjectIterator<Int2ObjectMap.Entry<Object>> iter = objects.int2ObjectEntrySet().iterator();
+		while (iter.hasNext()) {
+			Int2ObjectMap.Entry<Object> en = iter.next();
+			int id = en.getIntKey();
+			Object obj = en.getValue();
+			Snapshot.Entry e = to.entries.get(id);
+			if (e == null || e.schema != objectSchemas.get(id)) {
+				iter.remove();
+				objectSchemas.remove(id);
+				for (Listener l : listeners) {
+					l.onDespawn(id, obj);
+				}
+			}
+		}
+		for (Int2ObjectMap.Entry<Snapshot.Entry> en : to.entries.int2ObjectEntrySet()) {
+			int id = en.getIntKey();
+			Snapshot.Entry e = en.getValue();
+			Object obj = objects.get(id);
+			boolean spawn = obj == null;
+			if (spawn) {
+				obj = e.schema.create();
+				objects.put(id, obj);
+				objectSchemas.put(id, e.schema);
+			}
+			Snapshot.Entry prev = from.entries.get(id);
+			if (prev == null || prev == e || prev.schema != e.schema || alpha >= 1) {
+				apply(e.schema, obj, e.values);
+			} else {
+				apply(e.schema, obj, prev.values, e.values, alpha);
+			}
+			if (spawn) {
+				for (Listener l : listeners) {
+					l.onSpawn(id, obj);
+				}
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked") // obj was created by this schema
+	private static <T> void apply(ReplicationSchema<T> schema, Object obj, Object[] values) {
+		schema.apply((T)obj, values);
+	}
+
+	@SuppressWarnings("unchecked") // obj was created by this schema
+	private static <T> void apply(ReplicationSchema<T> schema, Object obj, Object[] from, Object[] to, double alpha) {
+		schema.apply((T)obj, from, to, alpha);
+	}
+
+	@Override
+	public boolean compatibleWith(Engine engine) {
+		return engine instanceof ClientEngine;
+	}
+
+	public static ReplicationClient obtain(Context<? extends ClientEngine> ctx) {
+		return ctx.getComponent(ReplicationClient.class);
+	}
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network.replication;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.playsawdust.chipper.Identifier;
+
+/**
+ * Describes which fields of some type of object are replicated from the server to clients, and
+ * how. Schemas must be built the same way on both sides, and registered with the
+ * {@link ReplicationClient} on the client.
+ * <pre><code>
+ * public static final ReplicationSchema&lt;Crate&gt; SCHEMA = ReplicationSchema.builder(new Identifier("mygame", "crate"), Crate::new)
+ *         .field(Crate::getPosition, Crate::setPosition, FieldCodec.VECTOR3)
+ *         .field(Crate::isOpen, Crate::setOpen, FieldCodec.BOOLEAN)
+ *         .build();
+ * </code></pre>
+ */
+public final class ReplicationSchema<T> {
+
+	static final class Field<T, V> {
+		final Function<T, V> getter;
+		final BiConsumer<T, V> setter;
+		final FieldCodec<V> codec;
+
+		private Field(Function<T, V> getter, BiConsumer<T, V> setter, FieldCodec<V> codec) {
+			this.getter = getter;
+			this.setter = setter;
+			this.codec = codec;
+		}
+	}
+
+	private final Identifier id;
+	private final Supplier<T> factory;
+	final ImmutableList<Field<T, ?>> fields;
+
+	private ReplicationSchema(Identifier id, Supplier<T> factory, ImmutableList<Field<T, ?>> fields) {
+		this.id = id;
+		this.factory = factory;
+		this.fields = fields;
+	}
+
+	public Identifier getId() {
+		return id;
+	}
+
+	public int getFieldCount() {
+		return fields.size();
+	}
+
+	/**
+	 * @return a new object for the client to apply replicated values to
+	 */
+	T create() {
+		return factory.get();
+	}
+
+	Object[] capture(T obj) {
+		Object[] values = new Object[fields.size()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = fields.get(i).getter.apply(obj);
+		}
+		return values;
+	}
+
+	void apply(T obj, Object[] values) {
+		for (int i = 0; i < values.length; i++) {
+			set(fields.get(i), obj, values[i]);
+		}
+	}
+
+	/**
+	 * Apply values blended between the given two sets of values to the given object.
+	 */
+	void apply(T obj, Object[] from, Object[] to, double alpha) {
+		for (int i = 0; i < to.length; i++) {
+			Field<T, ?> f = fields.get(i);
+			set(f, obj, from[i] == to[i] ? to[i] : interpolate(f.codec, from[i], to[i], alpha));
+		}
+	}
+
+	private static <T, V> void set(Field<T, V> f, T obj, Object value) {
+		f.setter.accept(obj, (V)value);
+	}
+
+	private static <V> V interpolate(FieldCodec<V> codec, Object from, Object to, double alpha) {
+		return codec.interpolate((V)from, (V)to, alpha);
+	}
+
+	public static <T> Builder<T> builder(Identifier id, Supplier<T> factory) {
+		return new Builder<>(id, factory);
+	}
+
+	public static final class Builder<T> {
+		private final Identifier id;
+		private final Supplier<T> factory;
+		private final List<Field<T, ?>> fields = Lists.newArrayList();
+
+		private Builder(Identifier id, Supplier<T> factory) {
+			this.id = Preconditions.checkNotNull(id);
+			this.factory = Preconditions.checkNotNull(factory);
+		}
+
+		/**
+		 * Add a replicated field. Fields are sent in the order they're added.
+		 * @param getter gets the field's current value on the server; must not return null
+		 * @param setter sets the field's value on the client
+		 * @param codec the codec to send the value with
+		 */
+		public <V> Builder<T> field(Function<T, V> getter, BiConsumer<T, V> setter, FieldCodec<V> codec) {
+			fields.add(new Field<>(getter, setter, codec));
+			return this;
+		}
+
+		public ReplicationSchema<T> build() {
+			return new ReplicationSchema<>(id, factory, ImmutableList.copyOf(fields));
+		}
+	}
+
+}
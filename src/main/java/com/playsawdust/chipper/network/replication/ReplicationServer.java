@@ -0,0 +1,319 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network.replication;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.joml.Vector3dc;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.playsawdust.chipper.SceneObject;
+import com.playsawdust.chipper.SpatialGrid;
+import com.playsawdust.chipper.component.Component;
+import com.playsawdust.chipper.component.Context;
+import com.playsawdust.chipper.component.Engine;
+import com.playsawdust.chipper.component.Context.WhiteLotus;
+import com.playsawdust.chipper.network.Connection;
+import com.playsawdust.chipper.server.ServerEngine;
+import com.playsawdust.chipper.toolbox.lipstick.MonotonicTime;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.objects.Reference2IntMap;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+
+/**
+ * Replicates the state of server-side objects to clients. Every {@link #tick}, the replicated
+ * fields of every {@link #add added} object are captured into a {@link Snapshot}, and each
+ * connection is sent only what has changed since the last snapshot it acknowledged receiving.
+ * Snapshots are sent {@link com.playsawdust.chipper.network.Message.SendMode#UNRELIABLE
+ * unreliably}; a lost one costs nothing but a slightly larger delta next time.
+ * <p>
+ * Objects that are {@link SceneObject SceneObjects} are kept in a {@link SpatialGrid}, and a
+ * connection can be given an {@link #setInterest area of interest} so it's only sent the ones
+ * near it. Everything else is sent to every connection.
+ * <p>
+ * {@link SnapshotMessage} and {@link SnapshotAckMessage} must be registered in the Protocol used
+ * by replicated connections.
+ * <p>
+ * Objects must only be added, removed, and changed on the thread that calls {@link #tick}.
+ */
+public final class ReplicationServer implements Component {
+	private static final Logger log = LoggerFactory.getLogger(ReplicationServer.class);
+
+	/**
+	 * The number of past snapshots kept around to be used as baselines. A client that hasn't
+	 * acknowledged any of them is sent everything.
+	 */
+	static final int HISTORY_SIZE = 32;
+
+	/**
+	 * The size of the cells of the {@link #getGrid grid} replicated SceneObjects are kept in.
+	 */
+	public static final double GRID_CELL_SIZE = 32;
+
+	/**
+	 * How much further than the radius of its area of interest an object has to get before it
+	 * stops being sent to a connection, as a fraction of the radius. Keeps objects hovering
+	 * around the edge from being despawned and respawned over and over, which costs a full
+	 * update every time.
+	 */
+	public static final double INTEREST_HYSTERESIS = 0.25;
+
+	private ReplicationServer(WhiteLotus lotus) {
+		WhiteLotus.verify(lotus);
+	}
+
+	private static final class Tracked<T> {
+		final T obj;
+		final ReplicationSchema<T> schema;
+
+		Tracked(T obj, ReplicationSchema<T> schema) {
+			this.obj = obj;
+			this.schema = schema;
+		}
+
+		Object[] capture() {
+			return schema.capture(obj);
+		}
+	}
+
+	static final class Interest {
+		final Vector3dc center;
+		final double enterRadius;
+		final double leaveRadius;
+
+		Interest(Vector3dc center, double radius) {
+			this.center = center;
+			this.enterRadius = radius;
+			this.leaveRadius = radius*(1+INTEREST_HYSTERESIS);
+		}
+
+		/**
+		 * Fill {@code next} with the IDs of the objects in the given grid that are relevant now,
+		 * given the ones in {@code relevant} that were last time.
+		 */
+		void select(SpatialGrid grid, Reference2IntMap<SceneObject> ids, IntSet relevant, IntSet next) {
+			next.clear();
+			double enterSq = enterRadius*enterRadius;
+			grid.query(center, leaveRadius, obj -> {
+				int id = ids.getInt(obj);
+				if (relevant.contains(id) || obj.getPosition().distanceSquared(center) <= enterSq) {
+					next.add(id);
+				}
+			});
+		}
+	}
+
+	private static final class Session {
+		// written by processing threads, read by the tick thread
+		volatile int acked = 0;
+		volatile @Nullable Interest interest;
+
+		// tick thread only {
+		final Snapshot[] history = new Snapshot[HISTORY_SIZE];
+		IntSet relevant = new IntOpenHashSet();
+		IntSet scratch = new IntOpenHashSet();
+		// }
+
+		@Nullable Snapshot getHistory(int sequence) {
+			if (sequence <= 0) return null;
+			Snapshot s = history[sequence % HISTORY_SIZE];
+			return s != null && s.getSequence() == sequence ? s : null;
+		}
+	}
+
+	// tick thread only {
+	private final Int2ObjectMap<Tracked<?>> objects = new Int2ObjectOpenHashMap<>();
+	private final SpatialGrid grid = new SpatialGrid(GRID_CELL_SIZE);
+	private final Reference2IntMap<SceneObject> spatialIds = new Reference2IntOpenHashMap<>();
+	// objects that aren't in the grid, and so are sent to everyone
+	private final IntSet globalIds = new IntOpenHashSet();
+	private @Nullable Snapshot last;
+	private int nextObjectId = 1;
+	// }
+
+	// read by processing threads to validate acks
+	private volatile int nextSequence = 1;
+
+	private final Map<Connection, Session> sessions = Maps.newConcurrentMap();
+
+	/**
+	 * Start replicating the given object.
+	 * @return the object's ID, which is the same on every client
+	 */
+	public <T> int add(T obj, ReplicationSchema<T> schema) {
+		Preconditions.checkNotNull(obj);
+		Preconditions.checkNotNull(schema);
+		int id = nextObjectId++;
+		objects.put(id, new Tracked<>(obj, schema));
+		if (obj instanceof SceneObject) {
+			grid.add((SceneObject)obj);
+			spatialIds.put((SceneObject)obj, id);
+		} else {
+			globalIds.add(id);
+		}
+		return id;
+	}
+
+	/**
+	 * Stop replicating the object with the given ID. Clients will remove it once they receive the
+	 * next snapshot.
+	 */
+	public void remove(int id) {
+		Tracked<?> t = objects.remove(id);
+		if (t == null) return;
+		if (t.obj instanceof SceneObject) {
+			grid.remove((SceneObject)t.obj);
+			spatialIds.removeInt(t.obj);
+		} else {
+			globalIds.remove(id);
+		}
+	}
+
+	/**
+	 * @return the grid replicated SceneObjects are kept in, for finding what's near a point; must
+	 * 		only be queried on the thread that calls {@link #tick}, and not modified
+	 */
+	public SpatialGrid getGrid() {
+		return grid;
+	}
+
+	/**
+	 * Start sending snapshots to the given connection, starting with the next tick.
+	 */
+	public void addConnection(Connection c) {
+		sessions.putIfAbsent(c, new Session());
+	}
+
+	/**
+	 * Stop sending snapshots to the given connection. Connections that disconnect are removed
+	 * automatically.
+	 */
+	public void removeConnection(Connection c) {
+		sessions.remove(c);
+	}
+
+	/**
+	 * Only send the given connection SceneObjects within the given distance of the given point.
+	 * The point is read every tick, so passing the {@link SceneObject#getPosition() position} of
+	 * the player's own object makes the area follow it around.
+	 * <p>
+	 * Objects within {@code radius} start being sent, and once sent, are kept until they're
+	 * {@link #INTEREST_HYSTERESIS a bit further} away than that.
+	 */
+	public void setInterest(Connection c, Vector3dc center, double radius) {
+		Preconditions.checkArgument(radius >= 0, "radius cannot be negative");
+		Session s = sessions.get(c);
+		if (s == null) throw new IllegalArgumentException(c.describe()+" is not being replicated to");
+		s.interest = new Interest(center, radius);
+	}
+
+	/**
+	 * Go back to sending the given connection every object, no matter where it is.
+	 */
+	public void clearInterest(Connection c) {
+		Session s = sessions.get(c);
+		if (s != null) s.interest = null;
+	}
+
+	/**
+	 * Capture a snapshot of every replicated object, and send it to every connection as a delta
+	 * against the last snapshot that connection acknowledged.
+	 * @return the new snapshot
+	 */
+	public Snapshot tick() {
+		Int2ObjectMap<Snapshot.Entry> entries = new Int2ObjectOpenHashMap<>(objects.size());
+		for (Int2ObjectMap.Entry<Tracked<?>> en : objects.int2ObjectEntrySet()) {
+			Tracked<?> t = en.getValue();
+			Object[] values = t.capture();
+			Snapshot.Entry prev = last == null ? null : last.entries.get(en.getIntKey());
+			if (prev != null && prev.schema == t.schema && prev.sameAs(values)) {
+				// reusing the entry lets deltas skip it with a reference comparison
+				entries.put(en.getIntKey(), prev);
+			} else {
+				entries.put(en.getIntKey(), new Snapshot.Entry(t.schema, values));
+			}
+		}
+		Snapshot snap = new Snapshot(nextSequence++, MonotonicTime.millis(), entries);
+		last = snap;
+		Iterator<Map.Entry<Connection, Session>> iter = sessions.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Connection, Session> en = iter.next();
+			Connection c = en.getKey();
+			if (!c.isConnected()) {
+				iter.remove();
+				continue;
+			}
+			Session s = en.getValue();
+			Snapshot view = filter(s, snap);
+			s.history[view.getSequence() % HISTORY_SIZE] = view;
+			c.sendMessage(new SnapshotMessage(view, s.getHistory(s.acked)));
+		}
+		return snap;
+	}
+
+	/**
+	 * @return the part of the given snapshot the given session is interested in
+	 */
+	private Snapshot filter(Session s, Snapshot snap) {
+		Interest in = s.interest;
+		if (in == null) {
+			if (!s.relevant.isEmpty()) s.relevant.clear();
+			return snap;
+		}
+		IntSet relevant = s.relevant;
+		IntSet next = s.scratch;
+		in.select(grid, spatialIds, relevant, next);
+		s.relevant = next;
+		s.scratch = relevant;
+		Int2ObjectMap<Snapshot.Entry> entries = new Int2ObjectOpenHashMap<>(globalIds.size()+next.size());
+		for (IntIterator iter = globalIds.iterator(); iter.hasNext();) {
+			int id = iter.nextInt();
+			entries.put(id, snap.entries.get(id));
+		}
+		for (IntIterator iter = next.iterator(); iter.hasNext();) {
+			int id = iter.nextInt();
+			entries.put(id, snap.entries.get(id));
+		}
+		return new Snapshot(snap.getSequence(), snap.getTime(), entries);
+	}
+
+	void onAck(Connection c, int sequence) {
+		Session s = sessions.get(c);
+		if (s == null) return;
+		if (sequence <= 0 || sequence >= nextSequence) {
+			log.debug("Ignoring ack for snapshot {} that was never sent to {}", sequence, c.describe());
+			return;
+		}
+		// acks can arrive out of order; only ever move forward
+		if (sequence > s.acked) {
+			s.acked = sequence;
+		}
+	}
+
+	@Override
+	public boolean compatibleWith(Engine engine) {
+		return engine instanceof ServerEngine;
+	}
+
+	public static ReplicationServer obtain(Context<? extends ServerEngine> ctx) {
+		return ctx.getComponent(ReplicationServer.class);
+	}
+
+}
@@ -0,0 +1,203 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network.replication;
+
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import com.playsawdust.chipper.Identifier;
+import com.playsawdust.chipper.exception.ProtocolViolationException;
+import com.playsawdust.chipper.network.Marshaller;
+import com.playsawdust.chipper.network.Unmarshaller;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+
+/**
+ * The values of every replicated field of every replicated object at one point in time.
+ * Immutable once built, so one snapshot can be shared by every connection it's sent on.
+ * <p>
+ * On the wire, a snapshot is a delta against an older snapshot the receiver is known to have, its
+ * baseline: objects that haven't changed are left out entirely, and objects that have carry a
+ * bit mask of which fields changed, followed by only those fields. All the masks are written
+ * together, ahead of the values, so they pack into as few bytes as possible.
+ */
+public final class Snapshot {
+
+	static final class Entry {
+		final ReplicationSchema<?> schema;
+		final Object[] values;
+
+		Entry(ReplicationSchema<?> schema, Object[] values) {
+			this.schema = schema;
+			this.values = values;
+		}
+
+		boolean sameAs(Object[] values) {
+			for (int i = 0; i < values.length; i++) {
+				if (!this.values[i].equals(values[i])) return false;
+			}
+			return true;
+		}
+	}
+
+	private final int sequence;
+	private final long time;
+	final Int2ObjectMap<Entry> entries;
+
+	Snapshot(int sequence, long time, Int2ObjectMap<Entry> entries) {
+		this.sequence = sequence;
+		this.time = time;
+		this.entries = entries;
+	}
+
+	public int getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return when this snapshot was taken, in milliseconds on the server's monotonic clock
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Write this snapshot as a delta against the given baseline.
+	 * @param baseline a snapshot the receiver has, or {@code null} to send everything
+	 */
+	void writeDelta(Marshaller out, @Nullable Snapshot baseline) {
+		out.writeIVar32(sequence);
+		out.writeIVar32(baseline == null ? 0 : baseline.sequence);
+		out.writeIVar64(time);
+		IntList changed = new IntArrayList();
+		for (Int2ObjectMap.Entry<Entry> en : entries.int2ObjectEntrySet()) {
+			Entry base = baseline == null ? null : baseline.entries.get(en.getIntKey());
+			// entries that didn't change are carried over as-is, so this is usually a cheap check
+			if (base != en.getValue()) {
+				changed.add(en.getIntKey());
+			}
+		}
+		IntList removed = new IntArrayList();
+		if (baseline != null) {
+			for (int id : baseline.entries.keySet()) {
+				if (!entries.containsKey(id)) removed.add(id);
+			}
+		}
+		out.writeIVar32(removed.size());
+		for (int i = 0; i < removed.size(); i++) {
+			out.writeIVar32(removed.getInt(i));
+		}
+		out.writeIVar32(changed.size());
+		for (int i = 0; i < changed.size(); i++) {
+			out.writeIVar32(changed.getInt(i));
+		}
+		for (int i = 0; i < changed.size(); i++) {
+			int id = changed.getInt(i);
+			Entry e = entries.get(id);
+			Entry base = baseline == null ? null : baseline.entries.get(id);
+			boolean spawn = base == null || base.schema != e.schema;
+			out.writeBit(spawn);
+			if (!spawn) {
+				for (int j = 0; j < e.values.length; j++) {
+					out.writeBit(!e.values[j].equals(base.values[j]));
+				}
+			}
+		}
+		for (int i = 0; i < changed.size(); i++) {
+			int id = changed.getInt(i);
+			Entry e = entries.get(id);
+			Entry base = baseline == null ? null : baseline.entries.get(id);
+			boolean spawn = base == null || base.schema != e.schema;
+			if (spawn) {
+				out.writeIdentifier(e.schema.getId());
+			}
+			for (int j = 0; j < e.values.length; j++) {
+				if (spawn || !e.values[j].equals(base.values[j])) {
+					write(e.schema.fields.get(j).codec, out, e.values[j]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read a delta written by {@link #writeDelta}, and apply it to its baseline.
+	 * @param baselines looks up snapshots we have by sequence number
+	 * @param schemas looks up schemas by ID
+	 * @return the new snapshot, or {@code null} if we don't have the baseline it's a delta against
+	 */
+	static @Nullable Snapshot readDelta(Unmarshaller in, IntFunction<@Nullable Snapshot> baselines, Function<Identifier, @Nullable ReplicationSchema<?>> schemas) {
+		int sequence = in.readIVar32();
+		int baselineSequence = in.readIVar32();
+		Snapshot baseline = null;
+		if (baselineSequence != 0) {
+			baseline = baselines.apply(baselineSequence);
+			if (baseline == null) return null;
+		}
+		long time = in.readIVar64();
+		Int2ObjectMap<Entry> entries = baseline == null ? new Int2ObjectOpenHashMap<>() : new Int2ObjectOpenHashMap<>(baseline.entries);
+		int removedCount = in.readIVar32();
+		for (int i = 0; i < removedCount; i++) {
+			entries.remove(in.readIVar32());
+		}
+		int changedCount = in.readIVar32();
+		if (changedCount < 0) throw new ProtocolViolationException("Got snapshot with negative change count");
+		int[] ids = new int[changedCount];
+		for (int i = 0; i < changedCount; i++) {
+			ids[i] = in.readIVar32();
+		}
+		boolean[][] masks = new boolean[changedCount][];
+		for (int i = 0; i < changedCount; i++) {
+			if (in.readBit()) continue;
+			Entry base = entries.get(ids[i]);
+			if (base == null) throw new ProtocolViolationException("Got snapshot changing unknown object "+ids[i]);
+			boolean[] mask = new boolean[base.values.length];
+			for (int j = 0; j < mask.length; j++) {
+				mask[j] = in.readBit();
+			}
+			masks[i] = mask;
+		}
+		for (int i = 0; i < changedCount; i++) {
+			boolean[] mask = masks[i];
+			ReplicationSchema<?> schema;
+			Object[] values;
+			if (mask == null) {
+				Identifier schemaId = in.readIdentifier();
+				schema = schemas.apply(schemaId);
+				if (schema == null) throw new ProtocolViolationException("Got snapshot with unknown schema "+schemaId);
+				values = new Object[schema.getFieldCount()];
+			} else {
+				Entry base = entries.get(ids[i]);
+				schema = base.schema;
+				values = base.values.clone();
+			}
+			for (int j = 0; j < values.length; j++) {
+				if (mask == null || mask[j]) {
+					values[j] = schema.fields.get(j).codec.read(in);
+				}
+			}
+			entries.put(ids[i], new Entry(schema, values));
+		}
+		return new Snapshot(sequence, time, entries);
+	}
+
+	private static <V> void write(FieldCodec<V> codec, Marshaller out, Object value) {
+		codec.write(out, (V)value);
+	}
+
+}
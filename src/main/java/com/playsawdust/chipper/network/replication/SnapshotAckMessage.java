@@ -0,0 +1,68 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network.replication;
+
+import com.playsawdust.chipper.Identifier;
+import com.playsawdust.chipper.component.Context;
+import com.playsawdust.chipper.network.Connection;
+import com.playsawdust.chipper.network.Marshaller;
+import com.playsawdust.chipper.network.Message.ServerboundMessage;
+import com.playsawdust.chipper.network.Unmarshaller;
+import com.playsawdust.chipper.server.ServerEngine;
+
+/**
+ * Tells a {@link ReplicationServer} that a client has received a snapshot, so it can be used as
+ * the baseline for future deltas. Sent for every snapshot received; losing one just means the
+ * next delta is against an older baseline.
+ */
+public class SnapshotAckMessage extends ServerboundMessage {
+
+	public int sequence;
+
+	public SnapshotAckMessage() {
+		this(0);
+	}
+
+	public SnapshotAckMessage(int sequence) {
+		super(new Identifier("chipper", "snapshot_ack"));
+		this.sequence = sequence;
+	}
+
+	@Override
+	public SendMode getSendMode() {
+		return SendMode.UNRELIABLE;
+	}
+
+	@Override
+	public void marshal(Marshaller out) {
+		out.writeIVar32(sequence);
+	}
+
+	@Override
+	public void unmarshal(Unmarshaller in) {
+		sequence = in.readIVar32();
+	}
+
+	@Override
+	protected void reset() {
+		sequence = 0;
+	}
+
+	@Override
+	protected void processServer(Context<ServerEngine> ctx, Connection c) {
+		ReplicationServer.obtain(ctx).onAck(c, sequence);
+	}
+
+	@Override
+	public String toString() {
+		return "SnapshotAckMessage[sequence="+sequence+"]";
+	}
+
+}
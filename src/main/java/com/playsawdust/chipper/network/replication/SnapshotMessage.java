@@ -0,0 +1,86 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network.replication;
+
+import java.nio.ByteBuffer;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import com.playsawdust.chipper.Identifier;
+import com.playsawdust.chipper.client.ClientEngine;
+import com.playsawdust.chipper.component.Context;
+import com.playsawdust.chipper.network.Connection;
+import com.playsawdust.chipper.network.Marshaller;
+import com.playsawdust.chipper.network.Message.ClientboundMessage;
+import com.playsawdust.chipper.network.Unmarshaller;
+
+/**
+ * Carries a {@link Snapshot} from a {@link ReplicationServer} to a {@link ReplicationClient}, as a
+ * delta against a snapshot the client has acknowledged.
+ * <p>
+ * The delta is written straight from the snapshots when the message is sent, so one snapshot can
+ * be sent to many connections without being encoded ahead of time. It's kept as raw bytes when
+ * received, as it can't be decoded until the baseline and schemas are known.
+ */
+public class SnapshotMessage extends ClientboundMessage {
+
+	private @Nullable Snapshot snapshot;
+	private @Nullable Snapshot baseline;
+	private @Nullable ByteBuffer payload;
+
+	public SnapshotMessage() {
+		super(new Identifier("chipper", "snapshot"));
+	}
+
+	SnapshotMessage(Snapshot snapshot, @Nullable Snapshot baseline) {
+		this();
+		this.snapshot = snapshot;
+		this.baseline = baseline;
+	}
+
+	@Override
+	public SendMode getSendMode() {
+		return SendMode.UNRELIABLE;
+	}
+
+	@Override
+	public void marshal(Marshaller out) {
+		snapshot.writeDelta(out, baseline);
+	}
+
+	@Override
+	public void unmarshal(Unmarshaller in) {
+		// copied, as the read buffer will be reused before we're processed
+		payload = ByteBuffer.allocate(in.remaining());
+		in.read(payload);
+		payload.flip();
+	}
+
+	@Override
+	protected void reset() {
+		snapshot = null;
+		baseline = null;
+		payload = null;
+	}
+
+	@Override
+	protected void processClient(Context<ClientEngine> ctx, Connection c) {
+		ReplicationClient.obtain(ctx).onSnapshot(c, payload);
+	}
+
+	@Override
+	public String toString() {
+		if (snapshot != null) {
+			return "SnapshotMessage[sequence="+snapshot.getSequence()+",baseline="+(baseline == null ? 0 : baseline.getSequence())+",objects="+snapshot.size()+"]";
+		}
+		return "SnapshotMessage[payload=<"+(payload == null ? 0 : payload.remaining())+" bytes>]";
+	}
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream that reads from a ByteBuffer without copying it anywhere first. The buffer's
+ * position is advanced as it's read.
+ */
+final class ByteBufferInputStream extends InputStream {
+
+	private final ByteBuffer buf;
+	private int mark = -1;
+
+	ByteBufferInputStream(ByteBuffer buf) {
+		this.buf = buf;
+	}
+
+	@Override
+	public int read() {
+		if (!buf.hasRemaining()) return -1;
+		return buf.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) return 0;
+		if (!buf.hasRemaining()) return -1;
+		int amt = Math.min(len, buf.remaining());
+		buf.get(b, off, amt);
+		return amt;
+	}
+
+	@Override
+	public long skip(long n) {
+		int amt = (int)Math.max(0, Math.min(n, buf.remaining()));
+		buf.position(buf.position()+amt);
+		return amt;
+	}
+
+	@Override
+	public int available() {
+		return buf.remaining();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		mark = buf.position();
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		if (mark == -1) throw new IOException("Not marked");
+		buf.position(mark);
+	}
+
+}
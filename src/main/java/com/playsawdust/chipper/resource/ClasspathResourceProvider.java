@@ -0,0 +1,48 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import com.playsawdust.chipper.Identifier;
+
+/**
+ * A ResourceProvider for the resources built into the engine and addons, found under
+ * {@code res/<namespace>/<path>} on the classpath. Every lookup searches the classpath, so this
+ * is the slowest provider, and always the last resort.
+ */
+public final class ClasspathResourceProvider implements ResourceProvider {
+
+	public static final ClasspathResourceProvider INSTANCE = new ClasspathResourceProvider();
+
+	private ClasspathResourceProvider() {}
+
+	@Override
+	public @Nullable Resource provide(Identifier id) {
+		URL url = ClassLoader.getSystemResource("res/"+id.namespace+"/"+id.path);
+		if (url == null) return null;
+		return new Resource(this, id) {
+			@Override
+			public InputStream openStream() throws IOException {
+				return url.openStream();
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return "ClasspathResourceProvider";
+	}
+
+}
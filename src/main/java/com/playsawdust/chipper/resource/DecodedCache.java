@@ -0,0 +1,312 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.primitives.Longs;
+import com.playsawdust.chipper.security.MoreHashing;
+import com.playsawdust.chipper.toolbox.concurrent.SharedThreadPool;
+import com.playsawdust.chipper.toolbox.io.Directories;
+
+/**
+ * A persistent cache of things decoded from resources, such as images decompressed into raw
+ * pixels, so they don't have to be decoded again next launch.
+ * <p>
+ * Entries are keyed by a BLAKE2b hash of the resource's contents along with the kind of entry and
+ * its version, so a changed resource is never mistaken for the old one, and changing how
+ * something is decoded only needs its version bumped. Each entry is its own file: a short header
+ * followed by the data exactly as it should be used, so big entries are memory-mapped rather than
+ * read. Files with a bad header are deleted and treated as missing.
+ * <p>
+ * A cache can be given a size limit; once writing an entry takes it over the limit, the least
+ * recently used entries are trimmed in the background.
+ * <p>
+ * Nothing here throws; a cache that can't be read or written just misses. Thread safe.
+ */
+public final class DecodedCache {
+	private static final Logger log = LoggerFactory.getLogger(DecodedCache.class);
+
+	private static final int MAGIC = ('C' << 24) | ('H' << 16) | ('D' << 8) | 'C';
+	/**
+	 * The version of the file format itself; kinds of entries have their own versions.
+	 */
+	private static final int FORMAT_VERSION = 1;
+	// magic, format version, payload length
+	private static final int HEADER_SIZE = 4+4+8;
+	// below this, reading is cheaper than mapping
+	private static final int MAP_THRESHOLD = 64*1024;
+
+	private static final Object defaultMutex = new Object();
+	private static volatile boolean defaultInitialized = false;
+	private static volatile @Nullable DecodedCache defaultCache;
+
+	private final Path dir;
+	private final long maxBytes;
+	// roughly how many bytes the entries take up; corrected by each trim, which counts them, and
+	// estimated from what's written in between
+	private final AtomicLong size = new AtomicLong();
+	private final AtomicBoolean trimming = new AtomicBoolean();
+	private final AtomicBoolean trimRequested = new AtomicBoolean();
+
+	public DecodedCache(Path dir) {
+		this(dir, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param maxBytes the most space the cache may take up before it's trimmed
+	 */
+	public DecodedCache(Path dir, long maxBytes) {
+		Preconditions.checkArgument(maxBytes > 0, "maxBytes must be positive");
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Start building a key for an entry; the caller should then put in the resource's contents,
+	 * along with anything else that affects the decoded result.
+	 * @param kind what kind of entry this is, such as "image"
+	 * @param version the version of the entry's format; bump this when it changes
+	 */
+	public static Hasher newKey(String kind, int version) {
+		return MoreHashing.blake2b_256().newHasher()
+				.putString(kind, Charsets.UTF_8)
+				.putInt(version);
+	}
+
+	/**
+	 * @return the cached entry with the given key, as a read-only buffer, or {@code null} if
+	 * 		there isn't one
+	 */
+	public @Nullable ByteBuffer get(HashCode key) {
+		Path p = pathFor(key);
+		try (FileChannel fc = FileChannel.open(p, StandardOpenOption.READ)) {
+			long size = fc.size();
+			ByteBuffer hdr = ByteBuffer.allocate(HEADER_SIZE);
+			while (hdr.hasRemaining()) {
+				if (fc.read(hdr) == -1) break;
+			}
+			hdr.flip();
+			if (hdr.remaining() != HEADER_SIZE || hdr.getInt() != MAGIC || hdr.getInt() != FORMAT_VERSION
+					|| hdr.getLong() != size-HEADER_SIZE || size > Integer.MAX_VALUE) {
+				log.debug("Discarding bad decoded cache entry {}", p);
+				Files.deleteIfExists(p);
+				return null;
+			}
+			int len = (int)(size-HEADER_SIZE);
+			ByteBuffer buf;
+			if (len >= MAP_THRESHOLD) {
+				buf = fc.map(MapMode.READ_ONLY, HEADER_SIZE, len);
+			} else {
+				buf = ByteBuffer.allocate(len);
+				while (buf.hasRemaining()) {
+					if (fc.read(buf) == -1) throw new IOException("Unexpected EOF");
+				}
+				buf.flip();
+				buf = buf.asReadOnlyBuffer();
+			}
+			// so trim knows this entry is still in use
+			Files.setLastModifiedTime(p, FileTime.from(Instant.now()));
+			return buf;
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			log.debug("Failed to read decoded cache entry {}", p, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Store an entry with the given key, made up of all the remaining bytes in the given buffers.
+	 * The buffers' positions are not changed.
+	 */
+	public void put(HashCode key, ByteBuffer... data) {
+		Path p = pathFor(key);
+		Path tmp = null;
+		try {
+			Files.createDirectories(p.getParent());
+			tmp = Files.createTempFile(p.getParent(), p.getFileName().toString(), ".tmp");
+			ByteBuffer[] bufs = new ByteBuffer[data.length+1];
+			long len = 0;
+			for (int i = 0; i < data.length; i++) {
+				bufs[i+1] = data[i].duplicate();
+				len += data[i].remaining();
+			}
+			bufs[0] = ByteBuffer.allocate(HEADER_SIZE);
+			bufs[0].putInt(MAGIC).putInt(FORMAT_VERSION).putLong(len).flip();
+			try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				long remaining = len+HEADER_SIZE;
+				while (remaining > 0) {
+					remaining -= fc.write(bufs);
+				}
+			}
+			Files.move(tmp, p, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			tmp = null;
+			if (size.addAndGet(len+HEADER_SIZE) > maxBytes) {
+				trimInBackground();
+			}
+		} catch (IOException e) {
+			log.debug("Failed to write decoded cache entry {}", p, e);
+		} finally {
+			if (tmp != null) {
+				try {
+					Files.deleteIfExists(tmp);
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	/**
+	 * Trim the cache to a little under its size limit on a background thread, or again once the
+	 * trim that's already happening is done; a little under, so the next few writes don't
+	 * immediately trim again.
+	 */
+	void trimInBackground() {
+		trimRequested.set(true);
+		if (!trimming.compareAndSet(false, true)) return;
+		SharedThreadPool.execute(() -> {
+			try {
+				while (trimRequested.getAndSet(false)) {
+					long freed = trim(maxBytes-(maxBytes/10));
+					if (freed > 0) log.debug("Trimmed {} bytes from the decoded cache", freed);
+				}
+			} finally {
+				trimming.set(false);
+			}
+			// requested after we last checked, but before we were done
+			if (trimRequested.get()) {
+				trimInBackground();
+			}
+		});
+	}
+
+	/**
+	 * Delete the least recently used entries until the cache takes up no more than the given
+	 * number of bytes.
+	 * @return the number of bytes freed
+	 */
+	public long trim(long maxBytes) {
+		if (!Files.isDirectory(dir)) return 0;
+		// writes that happen while we work still count once we're done
+		long estimate = size.get();
+		List<Path> files;
+		try (Stream<Path> s = Files.walk(dir, 2)) {
+			files = s.filter(Files::isRegularFile).collect(Collectors.toList());
+		} catch (IOException e) {
+			log.debug("Failed to list decoded cache {}", dir, e);
+			return 0;
+		}
+		long total = 0;
+		long[] sizes = new long[files.size()];
+		long[] times = new long[files.size()];
+		for (int i = 0; i < files.size(); i++) {
+			try {
+				sizes[i] = Files.size(files.get(i));
+				times[i] = Files.getLastModifiedTime(files.get(i)).toMillis();
+				total += sizes[i];
+			} catch (IOException e) {
+				// deleted out from under us, most likely
+			}
+		}
+		if (total <= maxBytes) {
+			size.addAndGet(total-estimate);
+			return 0;
+		}
+		Integer[] order = new Integer[files.size()];
+		for (int i = 0; i < order.length; i++) order[i] = i;
+		Arrays.sort(order, Comparator.comparingLong(i -> times[i]));
+		long freed = 0;
+		for (int i : order) {
+			if (total-freed <= maxBytes) break;
+			try {
+				Files.deleteIfExists(files.get(i));
+				freed += sizes[i];
+			} catch (IOException e) {
+				// probably still mapped on Windows; it'll go next time
+			}
+		}
+		size.addAndGet(total-freed-estimate);
+		return freed;
+	}
+
+	public Path getDirectory() {
+		return dir;
+	}
+
+	private Path pathFor(HashCode key) {
+		String hex = key.toString();
+		return dir.resolve(hex.substring(0, 2)).resolve(hex.substring(2));
+	}
+
+	/**
+	 * Returns the cache shared by the whole engine, in the user's cache directory. Set the
+	 * CHIPPER_DECODED_CACHE_MB environment variable to the most space it may use, or to 0 to turn
+	 * it off. The first call trims it in the background, and it's trimmed again whenever it grows
+	 * past that.
+	 * @return the default cache, or {@code null} if it's turned off
+	 */
+	public static @Nullable DecodedCache getDefault() {
+		if (defaultInitialized) return defaultCache;
+		synchronized (defaultMutex) {
+			if (!defaultInitialized) {
+				defaultCache = createDefault();
+				defaultInitialized = true;
+			}
+			return defaultCache;
+		}
+	}
+
+	private static @Nullable DecodedCache createDefault() {
+		long maxBytes = 256L*1024*1024;
+		String str = System.getenv("CHIPPER_DECODED_CACHE_MB");
+		if (str != null) {
+			Long l = Longs.tryParse(str);
+			if (l == null || l < 0) {
+				log.warn("Ignoring invalid CHIPPER_DECODED_CACHE_MB value {}", str);
+			} else {
+				maxBytes = l*1024*1024;
+			}
+		}
+		if (maxBytes == 0) return null;
+		File home = Directories.getCacheHome();
+		if (home == null) return null;
+		DecodedCache dc = new DecodedCache(home.toPath().resolve("decoded"), maxBytes);
+		// also finds out how big it is to begin with
+		dc.trimInBackground();
+		return dc;
+	}
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import com.google.common.base.Optional;
+import com.playsawdust.chipper.Identifier;
+
+/**
+ * A ResourceProvider backed by a directory on disk, laid out like the {@code res} directory on
+ * the classpath: one subdirectory per namespace, with paths below that. Nothing is cached, so
+ * changes show up immediately; handy while working on resources, but packs are much faster.
+ */
+public final class DirectoryResourceProvider implements ResourceProvider {
+
+	private final Path dir;
+
+	public DirectoryResourceProvider(Path dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * @return the directory this provider reads from
+	 */
+	public Path getPath() {
+		return dir;
+	}
+
+	@Override
+	public boolean visibleToUser() {
+		return true;
+	}
+
+	@Override
+	public @Nullable Resource provide(Identifier id) {
+		Path p = dir.resolve(id.namespace).resolve(id.path).normalize();
+		// don't let ".." escape the directory
+		if (!p.startsWith(dir.normalize()) || !Files.isRegularFile(p)) return null;
+		return new Resource(this, id) {
+			@Override
+			public InputStream openStream() throws IOException {
+				return Files.newInputStream(p);
+			}
+
+			@Override
+			public Optional<Long> sizeIfKnown() {
+				try {
+					return Optional.of(Files.size(p));
+				} catch (IOException e) {
+					return Optional.absent();
+				}
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return "DirectoryResourceProvider["+dir+"]";
+	}
+
+}
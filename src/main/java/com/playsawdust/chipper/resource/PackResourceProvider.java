@@ -0,0 +1,258 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.resource;
+
+import static org.lwjgl.util.lz4.LZ4.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.playsawdust.chipper.Identifier;
+
+/**
+ * A ResourceProvider backed by a pack file, as written by {@link PackWriter}. The whole file is
+ * memory-mapped when it's opened, and looking up a resource is a probe into a hash table stored
+ * in the file, so nothing is read or decompressed until it's actually used. Resources stored
+ * uncompressed are handed out as views of the mapping, without copying.
+ * <p>
+ * The format, all big-endian:
+ * <pre>
+ * header   "CHPK", u16 version, u16 reserved, i32 entry count, i32 slot count
+ * slots    slot count * (i64 hash, i32 entry index); a hash of 0 is an empty slot
+ * entries  entry count * (i32 name offset, u16 name length, u8 codec, u8 reserved,
+ *                         i64 data offset, i32 length, i32 raw length)
+ * names    the UTF-8 "namespace:path" of every entry
+ * data     the contents of every entry, compressed according to its codec
+ * </pre>
+ * The slot count is a power of two, and slots are found by linear probing from the slot at the
+ * 64-bit FNV-1a hash of the entry's name. Packs are limited to 2 GiB.
+ */
+public final class PackResourceProvider implements ResourceProvider {
+
+	/**
+	 * How the contents of a pack entry are stored.
+	 */
+	public enum Codec {
+		/**
+		 * As-is. Can be read without copying.
+		 */
+		STORED,
+		/**
+		 * As an LZ4 block. Decompressed every time it's read.
+		 */
+		LZ4,
+		;
+		private static final Codec[] VALUES = values();
+	}
+
+	static final int MAGIC = 0x4348504B;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 16;
+	static final int SLOT_SIZE = 12;
+	static final int ENTRY_SIZE = 24;
+
+	private final Path path;
+	private final ByteBuffer map;
+	private final int entryCount;
+	private final int slotMask;
+	private final int entriesStart;
+
+	private PackResourceProvider(Path path, ByteBuffer map) throws IOException {
+		this.path = path;
+		this.map = map.order(ByteOrder.BIG_ENDIAN);
+		if (map.capacity() < HEADER_SIZE || map.getInt(0) != MAGIC) {
+			throw new IOException(path+" is not a pack");
+		}
+		int version = map.getShort(4) & 0xFFFF;
+		if (version != VERSION) {
+			throw new IOException(path+" is a version "+version+" pack; only version "+VERSION+" is supported");
+		}
+		entryCount = map.getInt(8);
+		int slotCount = map.getInt(12);
+		if (entryCount < 0 || slotCount <= entryCount || Integer.bitCount(slotCount) != 1) {
+			throw new IOException(path+" has a corrupt header");
+		}
+		slotMask = slotCount-1;
+		// a huge slot count would overflow an int
+		long slotsEnd = HEADER_SIZE+((long)slotCount*SLOT_SIZE);
+		if (slotsEnd+((long)entryCount*ENTRY_SIZE) > map.capacity()) {
+			throw new IOException(path+" is truncated");
+		}
+		entriesStart = (int)slotsEnd;
+		// check everything up front, so a corrupt pack fails now instead of whenever something
+		// happens to touch the broken part
+		for (int i = 0; i < entryCount; i++) {
+			int ofs = entriesStart+(i*ENTRY_SIZE);
+			long nameEnd = (long)map.getInt(ofs)+(map.getShort(ofs+4) & 0xFFFF);
+			int codec = map.get(ofs+6) & 0xFF;
+			long dataOfs = map.getLong(ofs+8);
+			int len = map.getInt(ofs+16);
+			int rawLen = map.getInt(ofs+20);
+			if (map.getInt(ofs) < 0 || nameEnd > map.capacity() || codec >= Codec.VALUES.length
+					|| dataOfs < 0 || len < 0 || rawLen < 0 || dataOfs+len > map.capacity()) {
+				throw new IOException(path+" has a corrupt entry at index "+i);
+			}
+		}
+	}
+
+	/**
+	 * Open and map the pack at the given path.
+	 * @param path the pack file to open
+	 * @return a provider for the resources in the pack
+	 * @throws IOException if the file can't be read, or isn't a valid pack
+	 */
+	public static PackResourceProvider open(Path path) throws IOException {
+		try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = fc.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(path+" is too large to be a pack");
+			}
+			// the mapping stays valid after the channel is closed
+			return new PackResourceProvider(path, fc.map(MapMode.READ_ONLY, 0, size));
+		}
+	}
+
+	/**
+	 * @return the file this pack was opened from
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * @return the number of resources in this pack
+	 */
+	public int size() {
+		return entryCount;
+	}
+
+	@Override
+	public boolean visibleToUser() {
+		return true;
+	}
+
+	@Override
+	public @Nullable Resource provide(Identifier id) {
+		byte[] name = id.toString().getBytes(Charsets.UTF_8);
+		long hash = hash(name);
+		int slot = (int)hash & slotMask;
+		for (int probes = 0; probes <= slotMask; probes++) {
+			int ofs = HEADER_SIZE+(slot*SLOT_SIZE);
+			long h = map.getLong(ofs);
+			if (h == 0) return null;
+			if (h == hash) {
+				int entry = map.getInt(ofs+8);
+				if (entry >= 0 && entry < entryCount && nameMatches(entriesStart+(entry*ENTRY_SIZE), name)) {
+					return new PackResource(this, id, entriesStart+(entry*ENTRY_SIZE));
+				}
+			}
+			slot = (slot+1) & slotMask;
+		}
+		return null;
+	}
+
+	private boolean nameMatches(int entryOfs, byte[] name) {
+		int nameOfs = map.getInt(entryOfs);
+		int nameLen = map.getShort(entryOfs+4) & 0xFFFF;
+		if (nameLen != name.length) return false;
+		for (int i = 0; i < nameLen; i++) {
+			if (map.get(nameOfs+i) != name[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The 64-bit FNV-1a hash of the given bytes, or 1 if that would be 0, since 0 marks an
+	 * empty slot.
+	 */
+	static long hash(byte[] bys) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : bys) {
+			h ^= (b & 0xFF);
+			h *= 0x100000001b3L;
+		}
+		return h == 0 ? 1 : h;
+	}
+
+	@Override
+	public String toString() {
+		return "PackResourceProvider["+path+"]";
+	}
+
+	private static final class PackResource extends Resource {
+		private final ByteBuffer map;
+		private final Codec codec;
+		private final int dataOfs;
+		private final int len;
+		private final int rawLen;
+
+		private PackResource(PackResourceProvider provider, Identifier id, int entryOfs) {
+			super(provider, id);
+			this.map = provider.map;
+			this.codec = Codec.VALUES[map.get(entryOfs+6) & 0xFF];
+			this.dataOfs = (int)map.getLong(entryOfs+8);
+			this.len = map.getInt(entryOfs+16);
+			this.rawLen = map.getInt(entryOfs+20);
+		}
+
+		@Override
+		public InputStream openStream() throws IOException {
+			return new ByteBufferInputStream(asByteBuffer());
+		}
+
+		@Override
+		public ByteBuffer asByteBuffer() throws IOException {
+			ByteBuffer data = map.duplicate();
+			data.position(dataOfs).limit(dataOfs+len);
+			data = data.slice();
+			switch (codec) {
+				case STORED:
+					return data;
+				case LZ4:
+					ByteBuffer out = ByteBuffer.allocateDirect(rawLen);
+					if (LZ4_decompress_safe(data, out) != rawLen) {
+						throw new IOException("Failed to decompress "+getId()+" from "+getProvider());
+					}
+					return out.asReadOnlyBuffer();
+				default:
+					throw new AssertionError("missing case for "+codec);
+			}
+		}
+
+		@Override
+		public byte[] read() throws IOException {
+			ByteBuffer buf = asByteBuffer();
+			byte[] bys = new byte[buf.remaining()];
+			buf.get(bys);
+			return bys;
+		}
+
+		@Override
+		public Optional<Long> sizeIfKnown() {
+			return Optional.of((long)rawLen);
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return rawLen == 0;
+		}
+	}
+
+}
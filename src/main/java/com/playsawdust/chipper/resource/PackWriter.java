@@ -0,0 +1,237 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.resource;
+
+import static com.playsawdust.chipper.resource.PackResourceProvider.*;
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.util.lz4.LZ4.*;
+import static org.lwjgl.util.lz4.LZ4HC.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.playsawdust.chipper.Identifier;
+import com.playsawdust.chipper.resource.PackResourceProvider.Codec;
+
+/**
+ * Builds pack files for {@link PackResourceProvider}. Entries are compressed with LZ4 only when
+ * that saves a worthwhile amount of space; data that's already compressed, such as PNGs and Ogg
+ * files, is stored as-is so it can be read straight out of the mapping.
+ */
+public final class PackWriter {
+
+	// anything smaller isn't worth decompressing
+	private static final int MIN_COMPRESS_SIZE = 256;
+
+	private static final class Entry {
+		final byte[] name;
+		final byte[] data;
+		final boolean compress;
+
+		Entry(byte[] name, byte[] data, boolean compress) {
+			this.name = name;
+			this.data = data;
+			this.compress = compress;
+		}
+	}
+
+	private final Map<Identifier, Entry> entries = Maps.newLinkedHashMap();
+
+	/**
+	 * Add a resource to the pack, compressing it if that's worthwhile. If a resource with the
+	 * same identifier was already added, it's replaced.
+	 * @param id the identifier of the resource
+	 * @param data the contents of the resource
+	 * @return this PackWriter, for chaining
+	 */
+	public PackWriter add(Identifier id, byte[] data) {
+		return add(id, data, true);
+	}
+
+	/**
+	 * Add a resource to the pack. If a resource with the same identifier was already added, it's
+	 * replaced.
+	 * @param id the identifier of the resource
+	 * @param data the contents of the resource
+	 * @param compress {@code false} to always store this resource as-is, so it can be read
+	 * 		without copying
+	 * @return this PackWriter, for chaining
+	 */
+	public PackWriter add(Identifier id, byte[] data, boolean compress) {
+		byte[] name = id.toString().getBytes(Charsets.UTF_8);
+		if (name.length > 0xFFFF) throw new IllegalArgumentException("Identifier is too long: "+id);
+		entries.put(id, new Entry(name, data, compress));
+		return this;
+	}
+
+	/**
+	 * Add every file in the given directory as a resource. The first level of subdirectories are
+	 * namespaces, and everything below them are paths, the same as the {@code res} directory on
+	 * the classpath.
+	 * @param dir the directory to add
+	 * @return this PackWriter, for chaining
+	 * @throws IOException if reading the directory fails
+	 */
+	public PackWriter addDirectory(Path dir) throws IOException {
+		List<Path> files;
+		try (Stream<Path> s = Files.walk(dir)) {
+			files = s.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+		}
+		for (Path p : files) {
+			Path rel = dir.relativize(p);
+			if (rel.getNameCount() < 2) continue;
+			String path = rel.subpath(1, rel.getNameCount()).toString().replace(rel.getFileSystem().getSeparator(), "/");
+			add(new Identifier(rel.getName(0).toString(), path), Files.readAllBytes(p));
+		}
+		return this;
+	}
+
+	/**
+	 * @return the number of resources added so far
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Write out everything added so far as a pack. The file is replaced atomically, so a game
+	 * that has the old one open isn't disturbed.
+	 * @param out the file to write
+	 * @throws IOException if writing fails
+	 */
+	public void write(Path out) throws IOException {
+		int count = entries.size();
+		Entry[] list = entries.values().toArray(new Entry[count]);
+		Codec[] codecs = new Codec[count];
+		byte[][] stored = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			Entry e = list[i];
+			byte[] compressed = e.compress ? compress(e.data) : null;
+			if (compressed != null) {
+				codecs[i] = Codec.LZ4;
+				stored[i] = compressed;
+			} else {
+				codecs[i] = Codec.STORED;
+				stored[i] = e.data;
+			}
+		}
+
+		// keep the table at most half full, so probes stay short
+		int slotCount = Integer.highestOneBit(Math.max(1, count)*2)*2;
+		int entriesStart = HEADER_SIZE+(slotCount*SLOT_SIZE);
+		int namesStart = entriesStart+(count*ENTRY_SIZE);
+		long namesSize = 0;
+		for (Entry e : list) {
+			namesSize += e.name.length;
+		}
+		long dataStart = namesStart+namesSize;
+		long total = dataStart;
+		for (byte[] bys : stored) {
+			total += bys.length;
+		}
+		if (total > Integer.MAX_VALUE) throw new IOException("Pack would be larger than 2 GiB");
+
+		ByteBuffer index = ByteBuffer.allocate((int)dataStart).order(ByteOrder.BIG_ENDIAN);
+		index.putInt(MAGIC);
+		index.putShort((short)VERSION);
+		index.putShort((short)0);
+		index.putInt(count);
+		index.putInt(slotCount);
+		int nameOfs = namesStart;
+		long dataOfs = dataStart;
+		for (int i = 0; i < count; i++) {
+			Entry e = list[i];
+			int slot = (int)hash(e.name) & (slotCount-1);
+			while (index.getLong(HEADER_SIZE+(slot*SLOT_SIZE)) != 0) {
+				slot = (slot+1) & (slotCount-1);
+			}
+			index.putLong(HEADER_SIZE+(slot*SLOT_SIZE), hash(e.name));
+			index.putInt(HEADER_SIZE+(slot*SLOT_SIZE)+8, i);
+
+			int ofs = entriesStart+(i*ENTRY_SIZE);
+			index.putInt(ofs, nameOfs);
+			index.putShort(ofs+4, (short)e.name.length);
+			index.put(ofs+6, (byte)codecs[i].ordinal());
+			index.putLong(ofs+8, dataOfs);
+			index.putInt(ofs+16, stored[i].length);
+			index.putInt(ofs+20, e.data.length);
+			index.position(nameOfs);
+			index.put(e.name);
+			nameOfs += e.name.length;
+			dataOfs += stored[i].length;
+		}
+		index.clear();
+
+		Path tmp = out.resolveSibling(out.getFileName()+".tmp");
+		try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeFully(fc, index);
+			for (byte[] bys : stored) {
+				writeFully(fc, ByteBuffer.wrap(bys));
+			}
+		}
+		Files.move(tmp, out, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void writeFully(FileChannel fc, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			fc.write(buf);
+		}
+	}
+
+	/**
+	 * @return the given data compressed as an LZ4 block, or {@code null} if it's not worth it
+	 */
+	private static byte[] compress(byte[] data) {
+		if (data.length < MIN_COMPRESS_SIZE) return null;
+		ByteBuffer src = memAlloc(data.length);
+		ByteBuffer dst = memAlloc(LZ4_compressBound(data.length));
+		try {
+			src.put(data).flip();
+			int len = LZ4_compress_HC(src, dst, LZ4HC_CLEVEL_MAX);
+			// must save at least an eighth to be worth decompressing on every read
+			if (len <= 0 || len > data.length-(data.length/8)) return null;
+			byte[] out = new byte[len];
+			dst.get(out);
+			return out;
+		} finally {
+			memFree(src);
+			memFree(dst);
+		}
+	}
+
+	/**
+	 * Pack a resource directory from the command line.
+	 * <p>
+	 * Usage: {@code PackWriter <directory> <output>}
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: PackWriter <directory> <output>");
+			System.exit(1);
+		}
+		PackWriter w = new PackWriter().addDirectory(Paths.get(args[0]));
+		w.write(Paths.get(args[1]));
+		System.out.println("Wrote "+w.size()+" resources to "+args[1]);
+	}
+
+}
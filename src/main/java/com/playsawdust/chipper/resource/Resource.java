@@ -9,6 +9,9 @@
 
 package com.playsawdust.chipper.resource;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 import com.google.common.io.ByteSource;
 
 import com.playsawdust.chipper.Identifier;
@@ -39,4 +42,15 @@ public abstract class Resource extends ByteSource {
 		return provider;
 	}
 
+	/**
+	 * Read the entire contents of this resource into a read-only buffer. Providers that already
+	 * have the contents in memory, such as {@link PackResourceProvider packs}, override this to
+	 * return a view of that memory instead of copying it.
+	 * @return a read-only buffer with the contents of this resource between its position and limit
+	 * @throws IOException if reading the resource fails
+	 */
+	public ByteBuffer asByteBuffer() throws IOException {
+		return ByteBuffer.wrap(read()).asReadOnlyBuffer();
+	}
+
 }
\ No newline at end of file
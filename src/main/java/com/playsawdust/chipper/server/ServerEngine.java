@@ -22,6 +22,11 @@ public abstract class ServerEngine implements Engine {
 	public abstract void onPortcheckResponseTCP();
 	public abstract void onPortcheckResponseUDP(String publicAddress);
 	public abstract void enqueueProcessing(Connection connection);
+	/**
+	 * @return the loop that runs this server's ticks; register a {@link TickListener} with it to
+	 * 		run game logic
+	 */
+	public abstract TickLoop getTickLoop();
 
 
 }
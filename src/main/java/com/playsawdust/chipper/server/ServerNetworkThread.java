@@ -29,17 +29,33 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Charsets;
 import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
 import com.google.common.collect.Table;
 import com.playsawdust.chipper.component.Context;
 import com.playsawdust.chipper.network.Connection;
+import com.playsawdust.chipper.toolbox.lipstick.MonotonicTime;
 
+/**
+ * Accepts connections and receives datagrams for the server, and performs all socket I/O for the
+ * accepted Connections.
+ * <p>
+ * By default, everything happens on this one thread. If constructed with a nonzero number of I/O
+ * threads, this thread only accepts connections and receives datagrams, and every Connection is
+ * handed off to one of the I/O threads, each of which has its own Selector. Datagrams are
+ * dispatched by correlation ID to the I/O thread that owns their Connection.
+ */
 public class ServerNetworkThread extends Thread {
 	private static final Logger log = LoggerFactory.getLogger(ServerNetworkThread.class);
 	/** @see DatagramSocket#setTrafficClass */
@@ -51,12 +67,27 @@ public class ServerNetworkThread extends Thread {
 
 	private ByteBuffer buffer;
 
-	private boolean run = true;
+	private volatile boolean run = true;
+
+	// null if there are I/O threads
+	private final Reactor localReactor;
+	private final ImmutableList<IoThread> ioThreads;
+	private int nextIoThread = 0;
 
-	private final List<Connection> connections = Lists.newArrayList();
-	private final Table<InetAddress, Integer, Connection> connectionsByCorrelationId = HashBasedTable.create();
+	// synchronized (connectionsByCorrelationId) {
+	private final Table<InetAddress, Integer, Correlated> connectionsByCorrelationId = HashBasedTable.create();
+	// }
 
 	public ServerNetworkThread(Context<ServerEngine> ctx, ServerSocketChannel tcpChannel, DatagramChannel udpChannel) throws IOException {
+		this(ctx, tcpChannel, udpChannel, 0);
+	}
+
+	/**
+	 * @param ioThreads the number of threads to spread Connections across; if 0, this thread
+	 * 		handles everything itself
+	 */
+	public ServerNetworkThread(Context<ServerEngine> ctx, ServerSocketChannel tcpChannel, DatagramChannel udpChannel, int ioThreads) throws IOException {
+		if (ioThreads < 0) throw new IllegalArgumentException("ioThreads cannot be negative");
 		this.ctx = ctx;
 		this.selector = Selector.open();
 		this.udpChannel = udpChannel;
@@ -67,6 +98,17 @@ public class ServerNetworkThread extends Thread {
 		}
 		tcpChannel.register(selector, OP_ACCEPT);
 		udpChannel.register(selector, OP_READ);
+		if (ioThreads == 0) {
+			localReactor = new Reactor(selector);
+			this.ioThreads = ImmutableList.of();
+		} else {
+			localReactor = null;
+			ImmutableList.Builder<IoThread> builder = ImmutableList.builder();
+			for (int i = 0; i < ioThreads; i++) {
+				builder.add(new IoThread(i));
+			}
+			this.ioThreads = builder.build();
+		}
 		setDaemon(true);
 		setName("Network thread");
 	}
@@ -76,9 +118,19 @@ public class ServerNetworkThread extends Thread {
 		rpmalloc_thread_initialize();
 		try {
 			buffer = memAlloc(8*1024).order(ByteOrder.BIG_ENDIAN);
+			if (localReactor != null) {
+				localReactor.attach();
+			}
+			for (IoThread t : ioThreads) {
+				t.start();
+			}
 			while (run) {
 				try {
-					selector.select();
+					if (localReactor != null) {
+						localReactor.select();
+					} else {
+						selector.select();
+					}
 				} catch (IOException e) {
 					log.warn("Select failed", e);
 					continue;
@@ -87,123 +139,33 @@ public class ServerNetworkThread extends Thread {
 					buffer.rewind().limit(buffer.capacity());
 					try {
 						if (key.isAcceptable()) {
-							ServerSocketChannel ssc = (ServerSocketChannel)key.channel();
-							try {
-								SocketChannel sc = ssc.accept();
-								if (sc == null) continue;
-								sc.configureBlocking(false);
-								sc.setOption(TCP_NODELAY, true);
-								InetSocketAddress src = (InetSocketAddress)sc.getRemoteAddress();
-								log.debug("Accepted connection from TCP {}:{}", src.getAddress().getHostAddress(), src.getPort());
-								if (ctx.getEngine().isPortcheckServer(src.getAddress())) {
-									ctx.getEngine().onPortcheckResponseTCP();
-									sc.close();
-								} else {
-									Connection conn = new Connection(ctx, selector::wakeup, sc, udpChannel);
-									connections.add(conn);
-									sc.register(selector, OP_READ, conn);
-								}
-							} catch (IOException e) {
-								log.warn("TCP accept failed", e);
-								continue;
-							}
-						} else if (key.isReadable()) {
-							if (key.channel() instanceof DatagramChannel) {
-								DatagramChannel dc = (DatagramChannel)key.channel();
-								try {
-									InetSocketAddress src = (InetSocketAddress)dc.receive(buffer);
-									if (src == null) continue;
-									buffer.flip();
-									log.debug("Read {} bytes from UDP {}:{}", buffer.limit(), src.getAddress().getHostAddress(), src.getPort());
-									if (ctx.getEngine().isPortcheckServer(src.getAddress())) {
-										int i = buffer.getInt();
-										if (i == 1347374663) {
-											long token = buffer.getLong();
-											if (ctx.getEngine().isPortcheckToken(token)) {
-												CharBuffer cb = Charsets.UTF_8.decode(buffer);
-												char[] chr = new char[cb.remaining()];
-												cb.get(chr);
-												ctx.getEngine().onPortcheckResponseUDP(new String(chr));
-											}
-										}
-									} else {
-										int correlationId = buffer.getInt();
-										Connection c = connectionsByCorrelationId.get(src.getAddress(), correlationId);
-										if (c != null) {
-											c.feedImmediate(buffer);
-										} else {
-											log.warn("Received UDP packet with bad correlation ID");
-										}
-									}
-								} catch (IOException e) {
-									log.warn("UDP receive failed", e);
-									continue;
-								}
-							} else {
-								SocketChannel sc = (SocketChannel)key.channel();
-								try {
-									sc.read(buffer);
-									buffer.flip();
-									InetSocketAddress src = (InetSocketAddress)sc.getRemoteAddress();
-									if (buffer.limit() == 0) {
-										if (!key.isValid()) {
-											log.debug("TCP {}:{} disconnected", src.getAddress().getHostAddress(), src.getPort());
-											// TODO optimize
-											Iterator<Connection> iter = connectionsByCorrelationId.values().iterator();
-											while (iter.hasNext()) {
-												if (iter.next() == key.attachment()) {
-													iter.remove();
-												}
-											}
-											key.cancel();
-										}
-									} else {
-										log.debug("Read {} bytes from TCP {}:{}", buffer.limit(), src.getAddress().getHostAddress(), src.getPort());
-										Object attachment = key.attachment();
-										if (attachment instanceof Connection) {
-											((Connection)attachment).feedQueued(buffer);
-										} else {
-											if (attachment == null) {
-												log.warn("No attachment for TCP {}:{}", src.getAddress().getHostAddress(), src.getPort());
-											} else {
-												log.warn("Unknown attachment for TCP {}:{} ({})", src.getAddress().getHostAddress(), src.getPort(), attachment);
-											}
-										}
-									}
-								} catch (IOException e) {
-									log.warn("TCP read failed", e);
-									continue;
-								}
+							accept((ServerSocketChannel)key.channel());
+						} else if (key.channel() == udpChannel) {
+							if (key.isReadable()) {
+								receive();
 							}
+						} else if (localReactor != null) {
+							localReactor.handle(key);
 						}
 					} catch (Error e) {
 						throw e;
 					} catch (Throwable e) {
-						String desc;
-						if (key.attachment() instanceof Connection) {
-							desc = ((Connection)key.attachment()).describe();
-						} else {
-							desc = key.channel().toString();
-						}
-						log.warn("Exception while processing event for {}", desc, e);
+						log.warn("Exception while processing event for {}", key.channel(), e);
 					}
 				}
-				Iterator<Connection> iter = connections.iterator();
-				while (iter.hasNext()) {
-					Connection c = iter.next();
-					try {
-						if (c.writePending()) {
-							log.debug("{} disconnected", c.describe());
-							iter.remove();
-						}
-					} catch (Error e) {
-						throw e;
-					} catch (Throwable e) {
-						log.warn("Exception while processing event for {}", c.describe(), e);
-					}
+				selector.selectedKeys().clear();
+				if (localReactor != null) {
+					localReactor.afterSelect();
 				}
 			}
 		} finally {
+			run = false;
+			for (IoThread t : ioThreads) {
+				t.reactor.selector.wakeup();
+			}
+			if (localReactor != null) {
+				localReactor.detach();
+			}
 			try {
 				selector.close();
 			} catch (IOException e) {
@@ -215,6 +177,372 @@ public class ServerNetworkThread extends Thread {
 		}
 	}
 
+	/**
+	 * Stop accepting connections and performing I/O. Connections are left open; disconnect them
+	 * first to close them cleanly.
+	 */
+	public void shutdown() {
+		run = false;
+		selector.wakeup();
+	}
+
+	private void accept(ServerSocketChannel ssc) {
+		try {
+			SocketChannel sc = ssc.accept();
+			if (sc == null) return;
+			sc.configureBlocking(false);
+			sc.setOption(TCP_NODELAY, true);
+			InetSocketAddress src = (InetSocketAddress)sc.getRemoteAddress();
+			log.debug("Accepted connection from TCP {}:{}", src.getAddress().getHostAddress(), src.getPort());
+			if (ctx.getEngine().isPortcheckServer(src.getAddress())) {
+				ctx.getEngine().onPortcheckResponseTCP();
+				sc.close();
+			} else if (localReactor != null) {
+				localReactor.adopt(sc);
+			} else {
+				ioThreads.get(nextIoThread).reactor.adopt(sc);
+				nextIoThread = (nextIoThread+1)%ioThreads.size();
+			}
+		} catch (IOException e) {
+			log.warn("TCP accept failed", e);
+		}
+	}
+
+	private void receive() {
+		try {
+			InetSocketAddress src = (InetSocketAddress)udpChannel.receive(buffer);
+			if (src == null) return;
+			buffer.flip();
+			log.debug("Read {} bytes from UDP {}:{}", buffer.limit(), src.getAddress().getHostAddress(), src.getPort());
+			if (ctx.getEngine().isPortcheckServer(src.getAddress())) {
+				int i = buffer.getInt();
+				if (i == 1347374663) {
+					long token = buffer.getLong();
+					if (ctx.getEngine().isPortcheckToken(token)) {
+						CharBuffer cb = Charsets.UTF_8.decode(buffer);
+						char[] chr = new char[cb.remaining()];
+						cb.get(chr);
+						ctx.getEngine().onPortcheckResponseUDP(new String(chr));
+					}
+				}
+			} else {
+				int correlationId = buffer.getInt();
+				Correlated c;
+				synchronized (connectionsByCorrelationId) {
+					c = connectionsByCorrelationId.get(src.getAddress(), correlationId);
+				}
+				if (c != null) {
+					c.reactor.dispatch(c.key, src, buffer);
+				} else {
+					// clients probe before their hello has been processed, so this is normal
+					log.debug("Received UDP packet with bad correlation ID");
+				}
+			}
+		} catch (IOException e) {
+			log.warn("UDP receive failed", e);
+		}
+	}
+
+	private static final class Correlated {
+		public final SelectionKey key;
+		public final Reactor reactor;
+		private Correlated(SelectionKey key, Reactor reactor) {
+			this.key = key;
+			this.reactor = reactor;
+		}
+	}
+
+	private static final class Datagram {
+		public final SelectionKey key;
+		public final InetSocketAddress src;
+		public final ByteBuffer data;
+		private Datagram(SelectionKey key, InetSocketAddress src, ByteBuffer data) {
+			this.key = key;
+			this.src = src;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Owns a Selector and a set of Connections registered with it. Only the thread the Reactor is
+	 * {@link #attach attached} to may touch its Connections; other threads hand work to it through
+	 * its queues and wake up its Selector.
+	 */
+	private final class Reactor {
+		private final Selector selector;
+
+		// concurrent {
+		private final Queue<SocketChannel> newChannels = Queues.newConcurrentLinkedQueue();
+		private final Queue<Datagram> datagrams = Queues.newConcurrentLinkedQueue();
+		private final Set<SelectionKey> dirty = Sets.newConcurrentHashSet();
+		// }
+
+		private volatile Thread thread;
+
+		// owning thread only {
+		// the attachment of each of these keys is its Connection
+		private final Set<SelectionKey> connectionKeys = Sets.newHashSet();
+		private final List<SelectionKey> touched = Lists.newArrayList();
+		// connections that need to be flushed at some point even if nothing happens to them
+		private final Set<SelectionKey> timed = Sets.newHashSet();
+		private ByteBuffer buffer;
+		// }
+
+		public Reactor(Selector selector) {
+			this.selector = selector;
+		}
+
+		public void attach() {
+			thread = Thread.currentThread();
+			buffer = memAlloc(8*1024).order(ByteOrder.BIG_ENDIAN);
+		}
+
+		public void detach() {
+			memFree(buffer);
+			buffer = null;
+			thread = null;
+		}
+
+		/**
+		 * Take ownership of the given newly-accepted channel. Safe to call from any thread.
+		 */
+		public void adopt(SocketChannel sc) {
+			newChannels.add(sc);
+			if (Thread.currentThread() != thread) {
+				selector.wakeup();
+			}
+		}
+
+		/**
+		 * Feed the given datagram to the given Connection owned by this Reactor. Safe to call from
+		 * any thread; if called from a thread other than the owning thread, the datagram is copied.
+		 */
+		public void dispatch(SelectionKey key, InetSocketAddress src, ByteBuffer data) {
+			if (Thread.currentThread() == thread) {
+				((Connection)key.attachment()).feedImmediate(src, data);
+				touched.add(key);
+			} else {
+				ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+				copy.put(data);
+				copy.flip();
+				datagrams.add(new Datagram(key, src, copy));
+				selector.wakeup();
+			}
+		}
+
+		private void register(SocketChannel sc) throws IOException {
+			// the Connection must exist to be attached to its key, but it needs its key to tell us
+			// it has something to write
+			SelectionKey[] keyHolder = new SelectionKey[1];
+			Connection conn = new Connection(ctx, () -> markDirty(keyHolder[0]), sc, udpChannel);
+			SelectionKey key = sc.register(selector, OP_READ, conn);
+			keyHolder[0] = key;
+			connectionKeys.add(key);
+		}
+
+		private void markDirty(SelectionKey key) {
+			if (key == null) return;
+			if (dirty.add(key) && Thread.currentThread() != thread) {
+				selector.wakeup();
+			}
+		}
+
+		/**
+		 * Wait for something to happen, or for the earliest {@link Connection#getWriteDeadline
+		 * write deadline} of our Connections.
+		 */
+		public void select() throws IOException {
+			long earliest = Long.MAX_VALUE;
+			for (SelectionKey key : timed) {
+				earliest = Math.min(earliest, ((Connection)key.attachment()).getWriteDeadline());
+			}
+			if (earliest == Long.MAX_VALUE) {
+				selector.select();
+			} else {
+				selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(earliest-MonotonicTime.nanos())));
+			}
+		}
+
+		public void handle(SelectionKey key) {
+			try {
+				if (key.isValid() && key.isReadable()) {
+					read(key);
+				}
+				if (key.isValid() && key.isWritable()) {
+					touched.add(key);
+				}
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable e) {
+				String desc;
+				if (key.attachment() instanceof Connection) {
+					desc = ((Connection)key.attachment()).describe();
+				} else {
+					desc = key.channel().toString();
+				}
+				log.warn("Exception while processing event for {}", desc, e);
+			}
+		}
+
+		private void read(SelectionKey key) throws IOException {
+			SocketChannel sc = (SocketChannel)key.channel();
+			Connection c = (Connection)key.attachment();
+			InetSocketAddress src = (InetSocketAddress)sc.getRemoteAddress();
+			buffer.rewind().limit(buffer.capacity());
+			int read;
+			try {
+				read = sc.read(buffer);
+			} catch (IOException e) {
+				log.debug("TCP read from {}:{} failed", src.getAddress().getHostAddress(), src.getPort(), e);
+				read = -1;
+			}
+			buffer.flip();
+			if (read < 0) {
+				log.debug("TCP {}:{} disconnected", src.getAddress().getHostAddress(), src.getPort());
+				c.disconnect();
+				touched.add(key);
+			} else if (read > 0) {
+				log.debug("Read {} bytes from TCP {}:{}", buffer.limit(), src.getAddress().getHostAddress(), src.getPort());
+				c.feedQueued(buffer);
+				// what we just read may have put it over its inbound limits, and only flush checks
+				touched.add(key);
+			}
+		}
+
+		public void afterSelect() {
+			SocketChannel sc;
+			while ((sc = newChannels.poll()) != null) {
+				try {
+					register(sc);
+				} catch (IOException e) {
+					log.warn("Failed to register accepted connection", e);
+				}
+			}
+			Datagram d;
+			while ((d = datagrams.poll()) != null) {
+				if (!connectionKeys.contains(d.key)) continue;
+				try {
+					((Connection)d.key.attachment()).feedImmediate(d.src, d.data);
+				} catch (Error e) {
+					throw e;
+				} catch (Throwable e) {
+					log.warn("Exception while processing datagram for {}", ((Connection)d.key.attachment()).describe(), e);
+				}
+				touched.add(d.key);
+			}
+			Iterator<SelectionKey> iter = dirty.iterator();
+			while (iter.hasNext()) {
+				touched.add(iter.next());
+				iter.remove();
+			}
+			if (!timed.isEmpty()) {
+				long now = MonotonicTime.nanos();
+				for (SelectionKey key : timed) {
+					if (((Connection)key.attachment()).getWriteDeadline() <= now) {
+						touched.add(key);
+					}
+				}
+			}
+			// only connections that were actually touched need to be looked at
+			for (int i = 0; i < touched.size(); i++) {
+				flush(touched.get(i));
+			}
+			touched.clear();
+		}
+
+		private void flush(SelectionKey key) {
+			if (!connectionKeys.contains(key)) return;
+			Connection c = (Connection)key.attachment();
+			try {
+				if (c.consumeCorrelationChange()) {
+					correlate(key);
+				}
+				if (c.writePending()) {
+					log.debug("{} disconnected", c.describe());
+					connectionKeys.remove(key);
+					timed.remove(key);
+					key.cancel();
+					uncorrelate(c);
+				} else if (key.isValid()) {
+					// wait for the socket to drain instead of spinning on a full send buffer, and stop
+					// reading from clients that are over their limits
+					key.interestOps((c.wantsRead() ? OP_READ : 0) | (c.wantsWrite() ? OP_WRITE : 0));
+					if (c.getWriteDeadline() != Long.MAX_VALUE) {
+						timed.add(key);
+					} else {
+						timed.remove(key);
+					}
+				}
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable e) {
+				log.warn("Exception while processing event for {}", c.describe(), e);
+			}
+		}
+
+		private void correlate(SelectionKey key) throws IOException {
+			Connection c = (Connection)key.attachment();
+			InetAddress addr = ((InetSocketAddress)c.getRemoteAddress()).getAddress();
+			int correlationId = c.getCorrelationId();
+			synchronized (connectionsByCorrelationId) {
+				Correlated existing = connectionsByCorrelationId.get(addr, correlationId);
+				if (existing != null && existing.key != key) {
+					log.warn("{} tried to use the same correlation ID as {}; UDP will not be available for it", c.describe(), ((Connection)existing.key.attachment()).describe());
+					return;
+				}
+				connectionsByCorrelationId.put(addr, correlationId, new Correlated(key, this));
+			}
+		}
+
+		private void uncorrelate(Connection c) {
+			synchronized (connectionsByCorrelationId) {
+				Iterator<Correlated> iter = connectionsByCorrelationId.column(c.getCorrelationId()).values().iterator();
+				while (iter.hasNext()) {
+					if (iter.next().key.attachment() == c) {
+						iter.remove();
+					}
+				}
+			}
+		}
+	}
+
+	private final class IoThread extends Thread {
+		private final Reactor reactor;
+
+		public IoThread(int index) throws IOException {
+			reactor = new Reactor(Selector.open());
+			setDaemon(true);
+			setName("Network I/O thread #"+(index+1));
+		}
 
+		@Override
+		public void run() {
+			rpmalloc_thread_initialize();
+			try {
+				reactor.attach();
+				while (run) {
+					try {
+						reactor.select();
+					} catch (IOException e) {
+						log.warn("Select failed", e);
+						continue;
+					}
+					for (SelectionKey key : reactor.selector.selectedKeys()) {
+						reactor.handle(key);
+					}
+					reactor.selector.selectedKeys().clear();
+					reactor.afterSelect();
+				}
+			} finally {
+				try {
+					reactor.selector.close();
+				} catch (IOException e) {
+					log.warn("Failed to close selector", e);
+				}
+				reactor.detach();
+				rpmalloc_thread_finalize();
+			}
+		}
+	}
 
 }
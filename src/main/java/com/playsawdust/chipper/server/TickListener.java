@@ -0,0 +1,24 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.server;
+
+/**
+ * Run once per tick by a {@link TickLoop}, on the tick thread, after the messages received since
+ * the last tick have been processed.
+ */
+@FunctionalInterface
+public interface TickListener {
+
+	/**
+	 * @param tick the number of ticks run before this one
+	 */
+	void onTick(long tick);
+
+}
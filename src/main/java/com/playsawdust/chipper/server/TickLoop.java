@@ -0,0 +1,354 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.server;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.playsawdust.chipper.network.Connection;
+import com.playsawdust.chipper.toolbox.lipstick.MonotonicTime;
+
+/**
+ * Runs the server at a fixed rate. Each tick has three phases, run in order:
+ * <ol>
+ * <li>{@link Phase#PROCESS PROCESS}: messages received since the last tick are processed, in
+ * 		parallel across Connections on the given Executor, with each Connection only ever
+ * 		processed by one thread at a time</li>
+ * <li>{@link Phase#TICK TICK}: every {@link #addListener registered} {@link TickListener} is run,
+ * 		in order, on the tick thread</li>
+ * <li>{@link Phase#FLUSH FLUSH}: everything sent during the tick is handed to the network thread
+ * 		at once</li>
+ * </ol>
+ * How long each phase takes is recorded, so {@link #getTickTimePercentile} and friends can tell
+ * how close the server is to not keeping up.
+ */
+public class TickLoop implements Runnable {
+	private static final Logger log = LoggerFactory.getLogger(TickLoop.class);
+
+	/**
+	 * The default tick rate, in ticks per second. Set the CHIPPER_TICK_RATE environment variable
+	 * to override.
+	 */
+	public static final int DEFAULT_TICK_RATE = 20;
+	/**
+	 * The number of recent ticks statistics are kept for.
+	 */
+	public static final int STATS_WINDOW = 1200;
+
+	public enum Phase {
+		PROCESS,
+		TICK,
+		FLUSH,
+	}
+
+	/**
+	 * What to do when ticks take too long and the loop falls behind schedule.
+	 */
+	public enum CatchUpPolicy {
+		/**
+		 * Run the missed ticks back to back until caught up, so the game's notion of time stays
+		 * in step with the wall clock. If more than a second's worth have been missed, the
+		 * rest are skipped rather than hanging the server trying to catch up.
+		 */
+		BURST,
+		/**
+		 * Skip the missed ticks and carry on from now, so the game slows down instead.
+		 */
+		SKIP,
+	}
+
+	private final Executor executor;
+	private final long period;
+	private final int rate;
+	private final List<TickListener> listeners = Lists.newCopyOnWriteArrayList();
+	private final Queue<Connection> pending = new ConcurrentLinkedQueue<>();
+	private volatile CatchUpPolicy catchUpPolicy = CatchUpPolicy.BURST;
+	private volatile boolean running = true;
+	private volatile Thread thread;
+	private volatile long tick = 0;
+
+	// tick thread only {
+	private final Set<Connection> connections = Sets.newHashSet();
+	private final List<Connection> processing = Lists.newArrayList();
+	private final Phaser phaser = new Phaser(1);
+	// }
+
+	// synchronized on stats {
+	private final Object stats = new Object();
+	private final long[] tickTimes = new long[STATS_WINDOW];
+	private final long[][] phaseTimes = new long[Phase.values().length][STATS_WINDOW];
+	private int statsIndex = 0;
+	private int statsCount = 0;
+	private long overruns = 0;
+	private long skipped = 0;
+	// }
+
+	/**
+	 * @param executor the Executor to process messages on
+	 * @param rate the number of ticks per second
+	 */
+	public TickLoop(Executor executor, int rate) {
+		Preconditions.checkArgument(rate > 0 && rate <= 1000, "rate must be in the range 1-1000");
+		this.executor = executor;
+		this.rate = rate;
+		this.period = TimeUnit.SECONDS.toNanos(1)/rate;
+	}
+
+	public int getRate() {
+		return rate;
+	}
+
+	/**
+	 * @return the number of ticks run so far
+	 */
+	public long getTick() {
+		return tick;
+	}
+
+	public void setCatchUpPolicy(CatchUpPolicy catchUpPolicy) {
+		this.catchUpPolicy = Preconditions.checkNotNull(catchUpPolicy);
+	}
+
+	public void addListener(TickListener l) {
+		listeners.add(l);
+	}
+
+	public void removeListener(TickListener l) {
+		listeners.remove(l);
+	}
+
+	/**
+	 * @return {@code true} if the calling thread is the one running ticks
+	 */
+	public boolean isTickThread() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Make sure the given Connection's received messages will be processed next tick. Safe to
+	 * call from any thread, as often as desired.
+	 */
+	public void schedule(Connection c) {
+		if (c.tryScheduleProcessing()) {
+			pending.add(c);
+		}
+	}
+
+	/**
+	 * Stop running ticks once the current one finishes.
+	 */
+	public void stop() {
+		running = false;
+		Thread t = thread;
+		if (t != null) LockSupport.unpark(t);
+	}
+
+	@Override
+	public void run() {
+		Preconditions.checkState(thread == null, "TickLoop is already running");
+		thread = Thread.currentThread();
+		long next = MonotonicTime.nanos();
+		while (running) {
+			long now = MonotonicTime.nanos();
+			if (now < next) {
+				LockSupport.parkNanos(next-now);
+				continue;
+			}
+			next += period*catchUp(now-next);
+			tick();
+			next += period;
+		}
+		for (Connection c : connections) {
+			c.setFlushDeferred(false);
+		}
+	}
+
+	/**
+	 * Decide how many missed ticks to skip, according to the {@link CatchUpPolicy}.
+	 * @param lateness how far behind schedule the loop is, in nanoseconds
+	 * @return the number of ticks skipped
+	 */
+	long catchUp(long lateness) {
+		long behind = lateness/period;
+		if (behind <= 0) return 0;
+		CatchUpPolicy policy = catchUpPolicy;
+		if (policy == CatchUpPolicy.BURST && behind <= rate) return 0;
+		if (policy == CatchUpPolicy.BURST) {
+			log.warn("Can't keep up! Skipping {} ticks ({}ms behind)", behind, TimeUnit.NANOSECONDS.toMillis(lateness));
+		}
+		synchronized (stats) {
+			skipped += behind;
+		}
+		return behind;
+	}
+
+	private void tick() {
+		long start = MonotonicTime.nanos();
+		process();
+		long processed = MonotonicTime.nanos();
+		for (TickListener l : listeners) {
+			try {
+				l.onTick(tick);
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable t) {
+				log.warn("Exception in tick listener {}", l, t);
+			}
+		}
+		long ticked = MonotonicTime.nanos();
+		connections.removeIf(c -> !c.isConnected());
+		for (Connection c : connections) {
+			c.flush();
+		}
+		long end = MonotonicTime.nanos();
+		tick++;
+		record(start, processed, ticked, end);
+	}
+
+	/**
+	 * Add a tick that started and finished each phase at the given times to the statistics.
+	 */
+	void record(long start, long processed, long ticked, long end) {
+		synchronized (stats) {
+			tickTimes[statsIndex] = end-start;
+			phaseTimes[Phase.PROCESS.ordinal()][statsIndex] = processed-start;
+			phaseTimes[Phase.TICK.ordinal()][statsIndex] = ticked-processed;
+			phaseTimes[Phase.FLUSH.ordinal()][statsIndex] = end-ticked;
+			statsIndex = (statsIndex+1) % STATS_WINDOW;
+			if (statsCount < STATS_WINDOW) statsCount++;
+			if (end-start > period) overruns++;
+		}
+	}
+
+	private void process() {
+		// only take what's pending now; anything that arrives while we work waits for next tick
+		for (int i = pending.size(); i > 0; i--) {
+			Connection c = pending.poll();
+			if (c == null) break;
+			if (connections.add(c)) {
+				c.setFlushDeferred(true);
+			}
+			processing.add(c);
+		}
+		if (processing.size() == 1) {
+			process(processing.get(0));
+		} else if (!processing.isEmpty()) {
+			for (Connection c : processing) {
+				phaser.register();
+				try {
+					executor.execute(() -> {
+						try {
+							process(c);
+						} finally {
+							phaser.arriveAndDeregister();
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					phaser.arriveAndDeregister();
+					process(c);
+				}
+			}
+			phaser.arriveAndAwaitAdvance();
+		}
+		processing.clear();
+	}
+
+	private void process(Connection c) {
+		try {
+			c.processPackets();
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable t) {
+			log.warn("Exception while processing messages for {}", c.describe(), t);
+		} finally {
+			c.finishProcessing();
+		}
+		// anything received while processing couldn't schedule us again, as we already were
+		if (c.hasUnprocessedMessages()) {
+			schedule(c);
+		}
+	}
+
+	/**
+	 * @param percentile the percentile to return, from 0 to 100
+	 * @return the given percentile of the time recent ticks took, in milliseconds, or 0 if no
+	 * 		ticks have been run yet
+	 */
+	public double getTickTimePercentile(double percentile) {
+		Preconditions.checkArgument(percentile >= 0 && percentile <= 100, "percentile must be in the range 0-100");
+		long[] sorted;
+		synchronized (stats) {
+			if (statsCount == 0) return 0;
+			sorted = Arrays.copyOf(tickTimes, statsCount);
+		}
+		Arrays.sort(sorted);
+		int idx = (int)Math.ceil((percentile/100)*sorted.length)-1;
+		return sorted[Math.max(0, idx)]/1_000_000D;
+	}
+
+	/**
+	 * @return the average time the given phase of recent ticks took, in milliseconds
+	 */
+	public double getAveragePhaseTime(Phase phase) {
+		synchronized (stats) {
+			if (statsCount == 0) return 0;
+			long[] times = phaseTimes[phase.ordinal()];
+			long total = 0;
+			for (int i = 0; i < statsCount; i++) {
+				total += times[i];
+			}
+			return (total/(double)statsCount)/1_000_000D;
+		}
+	}
+
+	/**
+	 * @return the number of ticks that have taken longer than the time allotted to them
+	 */
+	public long getOverrunCount() {
+		synchronized (stats) {
+			return overruns;
+		}
+	}
+
+	/**
+	 * @return the number of ticks that were skipped entirely to catch up
+	 * @see CatchUpPolicy
+	 */
+	public long getSkippedCount() {
+		synchronized (stats) {
+			return skipped;
+		}
+	}
+
+	/**
+	 * @return a one-line summary of recent tick performance, suitable for logging
+	 */
+	public String describeStats() {
+		return String.format("tick p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms budget=%.2fms; process=%.2fms tick=%.2fms flush=%.2fms; %d overruns, %d skipped",
+				getTickTimePercentile(50), getTickTimePercentile(95), getTickTimePercentile(99), getTickTimePercentile(100), period/1_000_000D,
+				getAveragePhaseTime(Phase.PROCESS), getAveragePhaseTime(Phase.TICK), getAveragePhaseTime(Phase.FLUSH),
+				getOverrunCount(), getSkippedCount());
+	}
+
+}
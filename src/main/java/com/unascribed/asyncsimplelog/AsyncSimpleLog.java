@@ -23,15 +23,27 @@
 
 package com.unascribed.asyncsimplelog;
 
+import java.io.IOException;
 import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.Date;
-import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 import java.util.regex.Pattern;
 
 import org.slf4j.ILoggerFactory;
@@ -41,12 +53,11 @@ import org.slf4j.spi.LocationAwareLogger;
 import com.google.common.base.Charsets;
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Queues;
 import com.google.common.collect.Sets;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
+import com.google.common.io.CharStreams;
 
 /**
  * AsyncSimpleLog is an asynchronous implementation of a SLF4j Logger similar
@@ -59,24 +70,55 @@ import com.google.common.hash.Hashing;
  * it with me to any project that needs a logger, which is most of them. Logback
  * is simply too heavy for me most of the time, and the ability to silence log
  * lines by regex and automatically collapse repeat lines is helpful.
+ * <p>
+ * Records are passed to the background thread through a fixed-size ring of
+ * pre-allocated slots, and written out in batches. What happens when the ring
+ * is full is decided by the {@link OverflowPolicy}; until logging has started,
+ * records that don't fit are kept in an unbounded backlog instead, so nothing
+ * logged during startup is lost. Output can optionally be
+ * line-delimited JSON instead of human-readable lines, for log shipping.
  */
 public final class AsyncSimpleLog extends Thread {
-	static class LogRecord {
-		public final LoggerImpl owner;
-		public final Date date;
-		public final LogLevel lvl;
-		public final Object content;
-		public final Throwable exception;
-
-		public LogRecord(LoggerImpl owner, Date date, LogLevel lvl, Object content, Throwable exception) {
-			this.owner = owner;
-			this.date = date;
-			this.lvl = lvl;
-			this.content = content;
-			this.exception = exception;
+	// a slot in the ring; reused over and over, so no allocation per record
+	static final class LogRecord {
+		public LoggerImpl owner;
+		public long time;
+		public LogLevel lvl;
+		public Object content;
+		public Throwable exception;
+		public String thread;
+
+		void clear() {
+			owner = null;
+			lvl = null;
+			content = null;
+			exception = null;
+			thread = null;
 		}
 	}
 
+	/**
+	 * What to do when a record is logged while the ring buffer is full.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * Wait for the background thread to make room. Nothing is lost, but
+		 * logging threads are slowed down to the speed of the output. The
+		 * default.
+		 */
+		BLOCK,
+		/**
+		 * Drop TRACE and DEBUG records, and wait for room for anything more
+		 * important.
+		 */
+		DROP_VERBOSE,
+		/**
+		 * Drop any record that doesn't fit. Logging never blocks.
+		 */
+		DROP,
+		;
+	}
+
 	public enum LogLevel {
 		TRACE("TRCE", 240, 246, LocationAwareLogger.TRACE_INT),
 		DEBUG("DBUG", 244, 253, LocationAwareLogger.DEBUG_INT),
@@ -105,16 +147,55 @@ public final class AsyncSimpleLog extends Thread {
 	private static final HashFunction MURMUR3_32 = Hashing.murmur3_32();
 	private static final Splitter NEWLINE_SPLITTER = Splitter.on('\n');
 
-	private static AsyncSimpleLog inst;
-	private static final BlockingQueue<LogRecord> queue = Queues.newLinkedBlockingDeque();
-	private static volatile boolean stop = false;
+	private static final String LINE_SEPARATOR = System.lineSeparator();
+
+	private static final int RING_SIZE = 8192;
+	private static final int RING_MASK = RING_SIZE-1;
+	private static final int MAX_BATCH = 512;
+	private static final LogRecord[] ring = new LogRecord[RING_SIZE];
+	// each slot's sequence says whether it's free for the lap with that
+	// number (== position) or holds a record from it (== position+1)
+	private static final AtomicLongArray sequences = new AtomicLongArray(RING_SIZE);
+	private static final AtomicLong tail = new AtomicLong();
+	// only written by the thread that's currently draining
+	private static volatile long head = 0;
+	private static final AtomicLong dropped = new AtomicLong();
+	// only touched by the thread that's currently draining
+	private static long reportedDrops = 0;
+	// records that didn't fit in the ring before anything was draining it;
+	// while there are any, new records go here too, to keep them in order
+	private static final Queue<LogRecord> backlog = new ArrayDeque<>();
+	private static volatile boolean backlogged = false;
+	static {
+		for (int i = 0; i < RING_SIZE; i++) {
+			ring[i] = new LogRecord();
+			sequences.set(i, i);
+		}
+	}
+
+	private static volatile AsyncSimpleLog inst;
+	// the last thread to be stopped, which may still be finishing a batch
+	private static AsyncSimpleLog stopping;
 	private static final Set<Pattern> silenced = Sets.newConcurrentHashSet();
 	private static boolean ansi = false;
 	private static boolean powerline = false;
 	private static boolean collapseRepeats = false;
+	private static boolean json = false;
+	private static volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
 
 	private final PrintStream out;
+	private final WritableByteChannel channel;
+	private final CharsetEncoder encoder = Charsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private final ByteBuffer outBuf = ByteBuffer.allocate(16384);
+	private final StringBuilder sb = new StringBuilder(16384);
+	private final PrintWriter exceptionWriter = new PrintWriter(CharStreams.asWriter(sb));
 	private final DateFormat df = new SimpleDateFormat("HH:mm:ss.SSS");
+	private final Date date = new Date();
+	private final LoggerImpl selfLogger = new LoggerImpl("AsyncSimpleLog");
+	private volatile boolean stop = false;
+	private volatile boolean sleeping = false;
 	private final Map<String, Integer> hashes = Maps.newHashMap();
 	private String lastLine;
 	private String lastLineOwner;
@@ -130,20 +211,13 @@ public final class AsyncSimpleLog extends Thread {
 		super("AsyncSimpleLog thread");
 		setDaemon(true);
 		out = new PrintStream(System.out, false);
+		channel = Channels.newChannel(out);
 		shutdownHook = new Thread(() -> {
 			stopLogging();
-			while (isAlive()) {
-				try {
-					join();
-				} catch (Throwable t) {}
-			}
-			List<LogRecord> li = Lists.newArrayList();
-			queue.drainTo(li);
-			for (LogRecord lr : li) {
-				printRecord(lr);
-			}
-			out.println();
-			out.flush();
+			joinQuietly();
+			while (drain() > 0) {}
+			sb.append(LINE_SEPARATOR);
+			write();
 		}, "AsyncSimpleLog shutdown thread");
 	}
 
@@ -152,14 +226,16 @@ public final class AsyncSimpleLog extends Thread {
 		Runtime.getRuntime().addShutdownHook(shutdownHook);
 		try {
 			while (!stop) {
-				LogRecord lr = null;
-				try {
-					lr = queue.take();
-					printRecord(lr);
-					Thread.yield();
-				} catch (InterruptedException e) {}
+				if (drain() == 0) {
+					// tell producers to wake us, then make sure nothing
+					// slipped in before they could see that
+					sleeping = true;
+					if (!hasPending() && !stop) {
+						LockSupport.parkNanos(this, 100_000_000L);
+					}
+					sleeping = false;
+				}
 			}
-			out.flush();
 		} finally {
 			try {
 				Runtime.getRuntime().removeShutdownHook(shutdownHook);
@@ -167,6 +243,175 @@ public final class AsyncSimpleLog extends Thread {
 		}
 	}
 
+	private void joinQuietly() {
+		while (isAlive()) {
+			try {
+				join();
+			} catch (Throwable t) {}
+		}
+	}
+
+	private static boolean hasPending() {
+		return sequences.get((int)(head & RING_MASK)) == head+1 || backlogged;
+	}
+
+	/**
+	 * Format and write out up to {@link #MAX_BATCH} records, with one write
+	 * and flush for the whole batch. The backlog is only drained once the ring
+	 * is empty, as everything in the ring was logged before it.
+	 * @return the number of records drained
+	 */
+	private int drain() {
+		int count = 0;
+		long pos = head;
+		while (count < MAX_BATCH) {
+			int idx = (int)(pos & RING_MASK);
+			if (sequences.get(idx) != pos+1) break;
+			LogRecord lr = ring[idx];
+			print(lr);
+			lr.clear();
+			sequences.set(idx, pos+RING_SIZE);
+			pos++;
+			head = pos;
+			count++;
+		}
+		if (count < MAX_BATCH && backlogged) {
+			synchronized (backlog) {
+				while (count < MAX_BATCH) {
+					LogRecord lr = backlog.poll();
+					if (lr == null) {
+						backlogged = false;
+						break;
+					}
+					print(lr);
+					count++;
+				}
+			}
+		}
+		long drops = dropped.get();
+		if (drops != reportedDrops) {
+			LogRecord lr = new LogRecord();
+			lr.owner = selfLogger;
+			lr.time = System.currentTimeMillis();
+			lr.lvl = LogLevel.WARN;
+			lr.content = (drops-reportedDrops)+" log records were dropped as the log buffer was full";
+			lr.thread = getName();
+			reportedDrops = drops;
+			print(lr);
+		}
+		if (sb.length() > 0) {
+			write();
+		}
+		return count;
+	}
+
+	private void print(LogRecord lr) {
+		try {
+			if (json) {
+				printJson(lr);
+			} else {
+				printRecord(lr);
+			}
+		} catch (Throwable t) {
+			// don't let one bad toString kill the log thread
+		}
+	}
+
+	private void write() {
+		CharBuffer in = CharBuffer.wrap(sb);
+		try {
+			while (true) {
+				CoderResult cr = encoder.encode(in, outBuf, true);
+				if (cr.isOverflow()) {
+					flushBuffer();
+				} else {
+					break;
+				}
+			}
+			encoder.flush(outBuf);
+			flushBuffer();
+			out.flush();
+		} catch (IOException e) {
+			// nowhere to report it
+		} finally {
+			encoder.reset();
+			sb.setLength(0);
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		outBuf.flip();
+		while (outBuf.hasRemaining()) {
+			channel.write(outBuf);
+		}
+		outBuf.clear();
+	}
+
+	private String formatDate(long time) {
+		date.setTime(time);
+		return df.format(date);
+	}
+
+	private void printJson(LogRecord lr) {
+		String str = Objects.toString(lr.content);
+		for (Pattern p : silenced) {
+			if (p.matcher(str).find()) {
+				return;
+			}
+		}
+		sb.append("{\"time\":").append(lr.time);
+		sb.append(",\"level\":\"").append(lr.lvl.name()).append('"');
+		sb.append(",\"logger\":");
+		appendJsonString(lr.owner.getName());
+		sb.append(",\"thread\":");
+		appendJsonString(lr.thread);
+		sb.append(",\"message\":");
+		appendJsonString(str);
+		if (lr.exception != null) {
+			sb.append(",\"exception\":\"");
+			int start = sb.length();
+			lr.exception.printStackTrace(exceptionWriter);
+			exceptionWriter.flush();
+			// escape the trace in place, rather than building a separate string
+			String trace = sb.substring(start);
+			sb.setLength(start);
+			appendJsonChars(trace);
+			sb.append('"');
+		}
+		sb.append('}').append('\n');
+	}
+
+	private void appendJsonString(String s) {
+		if (s == null) {
+			sb.append("null");
+			return;
+		}
+		sb.append('"');
+		appendJsonChars(s);
+		sb.append('"');
+	}
+
+	private void appendJsonChars(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '"': sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				default:
+					if (c < 0x20) {
+						sb.append("\\u00");
+						sb.append(Character.forDigit(c >> 4, 16));
+						sb.append(Character.forDigit(c & 0xF, 16));
+					} else {
+						sb.append(c);
+					}
+			}
+		}
+	}
+
 	private void printRecord(LogRecord lr) {
 		String str = Objects.toString(lr.content);
 		for (Pattern p : silenced) {
@@ -180,59 +425,58 @@ public final class AsyncSimpleLog extends Thread {
 			repeats++;
 			if (ansi) {
 				if (repeats == 1) {
-					out.print(" ");
-					out.print(ansiReset());
-					out.print(ansiFg(141));
+					sb.append(" ");
+					sb.append(ansiReset());
+					sb.append(ansiFg(141));
 					if (powerline) {
-						out.print("");
+						sb.append("");
 					}
-					out.print(ansiBg(141));
-					out.print(ansiFg(16));
-					out.print(" ");
-					out.print("repeated");
-					out.print(" ");
-					out.print(ansiSaveCursor());
+					sb.append(ansiBg(141));
+					sb.append(ansiFg(16));
+					sb.append(" ");
+					sb.append("repeated");
+					sb.append(" ");
+					sb.append(ansiSaveCursor());
 				} else {
-					out.print("\r");
-					out.print(ansiReset());
+					sb.append("\r");
+					sb.append(ansiReset());
 					if (powerline) {
-						out.print(ansiBg(16));
-						out.print(ansiFg(248));
-						out.print(" ");
+						sb.append(ansiBg(16));
+						sb.append(ansiFg(248));
+						sb.append(" ");
 					} else {
-						out.print(ansiFg(8));
+						sb.append(ansiFg(8));
 					}
-					out.print(df.format(lr.date));
-					out.print(ansiRestoreCursor());
+					sb.append(formatDate(lr.time));
+					sb.append(ansiRestoreCursor());
 				}
-				out.print(repeats);
-				out.print(" time");
+				sb.append(repeats);
+				sb.append(" time");
 				if (repeats > 1) {
-					out.print("s");
+					sb.append("s");
 				}
-				out.print(" ");
+				sb.append(" ");
 				if (powerline) {
-					out.print(ansiReset());
-					out.print(ansiFg(141));
-					out.print("");
+					sb.append(ansiReset());
+					sb.append(ansiFg(141));
+					sb.append("");
 				}
 			} else {
 				if (repeats == 1) {
-					out.print("[            ] [");
-					out.print(lr.lvl.chr);
-					out.print("/");
-					out.print(shortName);
-					out.print("] (last line repeats");
+					sb.append("[            ] [");
+					sb.append(lr.lvl.chr);
+					sb.append("/");
+					sb.append(shortName);
+					sb.append("] (last line repeats");
 				}
-				out.print(".");
+				sb.append(".");
 			}
-			out.flush();
 		} else {
 			if (repeats > 0) {
 				if (ansi) {
-					out.print(ansiReset());
+					sb.append(ansiReset());
 				} else {
-					out.println(")");
+					sb.append(")").append(LINE_SEPARATOR);
 				}
 			}
 			flop = !flop;
@@ -240,38 +484,41 @@ public final class AsyncSimpleLog extends Thread {
 			lastLine = str;
 			lastLineOwner = lr.owner.getName();
 			if (ansi && collapseRepeats) {
-				out.println();
+				sb.append(LINE_SEPARATOR);
+			}
+			if (lr.exception != null) {
+				lr.exception.printStackTrace(exceptionWriter);
+				exceptionWriter.flush();
 			}
-			if (lr.exception != null) lr.exception.printStackTrace(out);
-			String dateStr = df.format(lr.date);
+			String dateStr = formatDate(lr.time);
 			int indentAmt = 0;
 			if (ansi) {
-				out.print(ansiReset());
+				sb.append(ansiReset());
 				if (powerline) {
-					out.print(ansiBg(16));
-					out.print(ansiFg(248));
-					out.print(" ");
+					sb.append(ansiBg(16));
+					sb.append(ansiFg(248));
+					sb.append(" ");
 					indentAmt += 1;
 				} else {
-					out.print(ansiFg(8));
+					sb.append(ansiFg(8));
 				}
-				out.print(dateStr); indentAmt += dateStr.length();
-				out.print(" "); indentAmt += 1;
+				sb.append(dateStr); indentAmt += dateStr.length();
+				sb.append(" "); indentAmt += 1;
 				if (powerline) {
-					out.print(ansiBg(16));
-					out.print(ansiFg(lr.lvl.bg));
-					out.print("");
+					sb.append(ansiBg(16));
+					sb.append(ansiFg(lr.lvl.bg));
+					sb.append("");
 					indentAmt += 1;
 				}
-				out.print(ansiBg(lr.lvl.bg));
-				out.print(ansiFg(lr.lvl.fg));
+				sb.append(ansiBg(lr.lvl.bg));
+				sb.append(ansiFg(lr.lvl.fg));
 				if (!powerline) {
-					out.print(" ");
+					sb.append(" ");
 					indentAmt += 1;
 				}
-				out.print(lr.lvl.str); indentAmt += lr.lvl.str.length();
+				sb.append(lr.lvl.str); indentAmt += lr.lvl.str.length();
 				if (!powerline) {
-					out.print(" ");
+					sb.append(" ");
 					indentAmt += 1;
 				}
 				int hash = hashes.computeIfAbsent(lr.owner.getName(), (s) -> MURMUR3_32.hashString(s, Charsets.UTF_8).asInt());
@@ -287,10 +534,10 @@ public final class AsyncSimpleLog extends Thread {
 				} else if (flop) {
 					code += 36;
 				}
-				out.print(ansiBg(code));
+				sb.append(ansiBg(code));
 				if (powerline) {
-					out.print(ansiFg(lr.lvl.bg));
-					out.print("");
+					sb.append(ansiFg(lr.lvl.bg));
+					sb.append("");
 					indentAmt += 1;
 				}
 
@@ -298,41 +545,41 @@ public final class AsyncSimpleLog extends Thread {
 				// assigned, but there's a few colors that don't match those
 				// rules - there's few of them, so just put in explicit exceptions
 				if (code % 36 > 18 && code != 178 && code != 179 && code != 143 | code == 160 || code == 125 || code == 162 || code == 126) {
-					out.print(ansiFg(fgLight));
+					sb.append(ansiFg(fgLight));
 				} else {
-					out.print(ansiFg(fgDark));
+					sb.append(ansiFg(fgDark));
 				}
-				out.print(" "); indentAmt += 1;
+				sb.append(" "); indentAmt += 1;
 				for (int i = shortName.length(); i < longestShortName; i++) {
-					out.print(" "); indentAmt += 1;
+					sb.append(" "); indentAmt += 1;
 				}
-				out.print(shortName); indentAmt += shortName.length();
-				out.print(" "); indentAmt += 1;
-				out.print(ansiReset());
+				sb.append(shortName); indentAmt += shortName.length();
+				sb.append(" "); indentAmt += 1;
+				sb.append(ansiReset());
 				if (powerline) {
-					out.print(ansiFg(code));
-					out.print("");
-					out.print(ansiReset());
+					sb.append(ansiFg(code));
+					sb.append("");
+					sb.append(ansiReset());
 					indentAmt += 1;
 				}
-				out.print(" "); indentAmt += 1;
+				sb.append(" "); indentAmt += 1;
 				// when recoloring the foreground but not the background, use basic colors
 				// that way we honor terminal color schemes and we won't make things illegible on black-on-white schemes
 				if (lr.lvl == LogLevel.TRACE || lr.lvl == LogLevel.DEBUG) {
-					out.print(ansiFg(8));
+					sb.append(ansiFg(8));
 				} else if (lr.lvl == LogLevel.WARN) {
-					out.print(ansiFg(11));
+					sb.append(ansiFg(11));
 				} else if (lr.lvl == LogLevel.ERROR) {
-					out.print(ansiFg(9));
+					sb.append(ansiFg(9));
 				}
 			} else {
-				out.print("["); indentAmt += 1;
-				out.print(dateStr); indentAmt += dateStr.length();
-				out.print("] ["); indentAmt += 3;
-				out.print(lr.lvl.chr); indentAmt += 1;
-				out.print("/"); indentAmt += 1;
-				out.print(shortName); indentAmt += shortName.length();
-				out.print("] "); indentAmt += 2;
+				sb.append("["); indentAmt += 1;
+				sb.append(dateStr); indentAmt += dateStr.length();
+				sb.append("] ["); indentAmt += 3;
+				sb.append(lr.lvl.chr); indentAmt += 1;
+				sb.append("/"); indentAmt += 1;
+				sb.append(shortName); indentAmt += shortName.length();
+				sb.append("] "); indentAmt += 2;
 			}
 			if (str.contains("\n")) {
 				String indent = Strings.repeat(" ", indentAmt);
@@ -341,21 +588,20 @@ public final class AsyncSimpleLog extends Thread {
 					if (first) {
 						first = false;
 					} else {
-						out.println();
-						out.print(indent);
+						sb.append(LINE_SEPARATOR);
+						sb.append(indent);
 					}
-					out.print(s);
+					sb.append(s);
 				}
 			} else {
-				out.print(str);
+				sb.append(str);
 			}
 			if (ansi) {
-				out.print(ansiReset());
+				sb.append(ansiReset());
 			}
 			if (!ansi || !collapseRepeats) {
-				out.println();
+				sb.append(LINE_SEPARATOR);
 			}
-			out.flush();
 		}
 	}
 
@@ -379,8 +625,72 @@ public final class AsyncSimpleLog extends Thread {
 		return "\u001B[48;5;"+i+"m";
 	}
 
-	/*package*/ static void enqueue(LogRecord lr) {
-		queue.add(lr);
+	/*package*/ static void enqueue(LoggerImpl owner, LogLevel lvl, Object content, Throwable exception) {
+		long time = System.currentTimeMillis();
+		long pos;
+		int idx;
+		while (true) {
+			if (backlogged && addToBacklog(owner, time, lvl, content, exception, false)) return;
+			pos = tail.get();
+			idx = (int)(pos & RING_MASK);
+			long diff = sequences.get(idx)-pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos+1)) break;
+			} else if (diff < 0) {
+				// full
+				AsyncSimpleLog cur = inst;
+				if (cur == null) {
+					// waiting would be forever, and dropping would lose startup logs
+					if (addToBacklog(owner, time, lvl, content, exception, true)) return;
+					continue;
+				}
+				OverflowPolicy policy = overflowPolicy;
+				boolean verbose = lvl == LogLevel.TRACE || lvl == LogLevel.DEBUG;
+				if (policy == OverflowPolicy.DROP || (policy == OverflowPolicy.DROP_VERBOSE && verbose)) {
+					dropped.incrementAndGet();
+					return;
+				}
+				LockSupport.unpark(cur);
+				LockSupport.parkNanos(50_000L);
+			}
+		}
+		LogRecord lr = ring[idx];
+		lr.owner = owner;
+		lr.time = time;
+		lr.lvl = lvl;
+		lr.content = content;
+		lr.exception = exception;
+		lr.thread = Thread.currentThread().getName();
+		sequences.set(idx, pos+1);
+		AsyncSimpleLog cur = inst;
+		if (cur != null && cur.sleeping) {
+			LockSupport.unpark(cur);
+		}
+	}
+
+	/**
+	 * Add a record to the backlog, if it's in use or {@code start} is true.
+	 * @return {@code false} if the backlog has been emptied in the meantime,
+	 * 		and the record should go in the ring after all
+	 */
+	private static boolean addToBacklog(LoggerImpl owner, long time, LogLevel lvl, Object content, Throwable exception, boolean start) {
+		synchronized (backlog) {
+			if (!backlogged && !start) return false;
+			LogRecord lr = new LogRecord();
+			lr.owner = owner;
+			lr.time = time;
+			lr.lvl = lvl;
+			lr.content = content;
+			lr.exception = exception;
+			lr.thread = Thread.currentThread().getName();
+			backlog.add(lr);
+			backlogged = true;
+		}
+		AsyncSimpleLog cur = inst;
+		if (cur != null && cur.sleeping) {
+			LockSupport.unpark(cur);
+		}
+		return true;
 	}
 
 	/**
@@ -389,7 +699,11 @@ public final class AsyncSimpleLog extends Thread {
 	public static void startLogging() {
 		synchronized (AsyncSimpleLog.class) {
 			if (inst != null) return;
-			stop = false;
+			if (stopping != null) {
+				// only one thread may drain at a time
+				stopping.joinQuietly();
+				stopping = null;
+			}
 			inst = new AsyncSimpleLog();
 			inst.start();
 		}
@@ -397,13 +711,15 @@ public final class AsyncSimpleLog extends Thread {
 
 	/**
 	 * Stop the AsyncSimpleLog background thread. Any remaining messages will
-	 * remain queued.
+	 * remain queued until logging is started again.
 	 */
 	public static void stopLogging() {
 		synchronized (AsyncSimpleLog.class) {
 			if (inst == null) return;
-			stop = true;
-			inst.interrupt();
+			inst.stop = true;
+			// not interrupt, which would close the output channel mid-write
+			LockSupport.unpark(inst);
+			stopping = inst;
 			inst = null;
 		}
 	}
@@ -451,6 +767,36 @@ public final class AsyncSimpleLog extends Thread {
 		AsyncSimpleLog.collapseRepeats = collapseRepeats;
 	}
 
+	/**
+	 * Enable or disable line-delimited JSON output. Each record is written as
+	 * a single-line JSON object with "time" (milliseconds since the epoch),
+	 * "level", "logger", "thread", "message", and optionally "exception"
+	 * keys. ANSI, Powerline, and repeat collapsing are ignored in this mode.
+	 * @param json {@code true} to write JSON instead of human-readable lines
+	 */
+	public static void setJson(boolean json) {
+		AsyncSimpleLog.json = json;
+	}
+
+	/**
+	 * Set what happens when a record is logged while the buffer is full.
+	 * Defaults to {@link OverflowPolicy#BLOCK}. Dropped records are counted,
+	 * and the count is logged once there's room again. Records logged before
+	 * {@link #startLogging} are never dropped.
+	 */
+	public static void setOverflowPolicy(OverflowPolicy policy) {
+		if (policy == null) throw new IllegalArgumentException("policy must not be null");
+		AsyncSimpleLog.overflowPolicy = policy;
+	}
+
+	/**
+	 * @return the number of records that have been dropped because the
+	 * 		buffer was full
+	 */
+	public static long getDroppedCount() {
+		return dropped.get();
+	}
+
 	/**
 	 * Internal method for use from {@link StaticLoggerBinder}.
 	 */
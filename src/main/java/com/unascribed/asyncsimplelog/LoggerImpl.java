@@ -23,14 +23,12 @@
 
 package com.unascribed.asyncsimplelog;
 
-import java.util.Date;
 import org.slf4j.Marker;
 import org.slf4j.helpers.FormattingTuple;
 import org.slf4j.helpers.MessageFormatter;
 import org.slf4j.spi.LocationAwareLogger;
 
 import com.unascribed.asyncsimplelog.AsyncSimpleLog.LogLevel;
-import com.unascribed.asyncsimplelog.AsyncSimpleLog.LogRecord;
 
 class LoggerImpl implements LocationAwareLogger {
 	static int minLogLevel = INFO_INT;
@@ -65,7 +63,7 @@ class LoggerImpl implements LocationAwareLogger {
 			return;
 		}
 
-		AsyncSimpleLog.enqueue(new LogRecord(this, new Date(), LogLevel.fromLevelInt(level), message, t));
+		AsyncSimpleLog.enqueue(this, LogLevel.fromLevelInt(level), message, t);
 	}
 
 	private void formatAndLog(int level, String format, Object arg1, Object arg2) {
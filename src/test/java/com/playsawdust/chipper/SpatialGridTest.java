@@ -0,0 +1,174 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper;
+
+import static org.junit.Assert.*;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.joml.Vector3d;
+import org.joml.Vector3dc;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+public class SpatialGridTest {
+
+	private static SceneObject at(double x, double y, double z) {
+		SceneObject obj = new SceneObject();
+		obj.setPosition(new Vector3d(x, y, z));
+		return obj;
+	}
+
+	private static Set<SceneObject> query(SpatialGrid grid, Vector3dc center, double radius) {
+		Set<SceneObject> out = Sets.newIdentityHashSet();
+		grid.query(center, radius, obj -> assertTrue("Visited twice", out.add(obj)));
+		return out;
+	}
+
+	// every object's cell index must be unique and dense within its cell, or swap-removal breaks
+	private static void checkIndices(List<SceneObject> objects) {
+		Long2ObjectMap<BitSet> cells = new Long2ObjectOpenHashMap<>();
+		for (SceneObject obj : objects) {
+			BitSet bs = cells.computeIfAbsent(obj.cellKey, k -> new BitSet());
+			assertFalse("Two objects share index "+obj.cellIndex, bs.get(obj.cellIndex));
+			bs.set(obj.cellIndex);
+		}
+		for (BitSet bs : cells.values()) {
+			assertEquals(bs.cardinality(), bs.nextClearBit(0));
+		}
+	}
+
+	@Test
+	public void testAddRemove() {
+		SpatialGrid grid = new SpatialGrid(10);
+		SceneObject a = at(1, 1, 1);
+		SceneObject b = at(-1, -1, -1);
+		grid.add(a);
+		grid.add(b);
+		assertEquals(2, grid.size());
+		assertSame(grid, a.grid);
+		// either side of the origin, so in different cells
+		assertNotEquals(a.cellKey, b.cellKey);
+		assertEquals(Sets.newHashSet(a, b), query(grid, new Vector3d(), 2));
+		grid.remove(a);
+		assertEquals(1, grid.size());
+		assertNull(a.grid);
+		assertEquals(Sets.newHashSet(b), query(grid, new Vector3d(), 2));
+		// no longer tracked
+		a.setPosition(new Vector3d(-1, -1, -1.5));
+		assertEquals(Sets.newHashSet(b), query(grid, new Vector3d(), 2));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testAddTwice() {
+		SpatialGrid grid = new SpatialGrid(10);
+		SceneObject a = at(0, 0, 0);
+		grid.add(a);
+		new SpatialGrid(10).add(a);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testRemoveFromWrongGrid() {
+		SceneObject a = at(0, 0, 0);
+		new SpatialGrid(10).add(a);
+		new SpatialGrid(10).remove(a);
+	}
+
+	@Test
+	public void testMoveAcrossCells() {
+		SpatialGrid grid = new SpatialGrid(10);
+		SceneObject a = at(5, 5, 5);
+		grid.add(a);
+		long key = a.cellKey;
+		a.setPositionRelative(4.9, 0, 0);
+		assertEquals(key, a.cellKey);
+		a.setPositionRelative(0.2, 0, 0);
+		assertNotEquals(key, a.cellKey);
+		assertEquals(Sets.newHashSet(a), query(grid, new Vector3d(10, 5, 5), 0.5));
+		assertTrue(query(grid, new Vector3d(5, 5, 5), 0.5).isEmpty());
+		a.setPosition(new Vector3d(-25, 5, 5));
+		assertEquals(Sets.newHashSet(a), query(grid, new Vector3d(-25, 5, 5), 0));
+		assertTrue(query(grid, new Vector3d(10, 5, 5), 0.5).isEmpty());
+		a.setPosition(new Vector3d(5, 5, 5));
+		assertEquals(key, a.cellKey);
+		assertEquals(1, grid.size());
+	}
+
+	@Test
+	public void testSwapRemove() {
+		SpatialGrid grid = new SpatialGrid(10);
+		SceneObject a = at(1, 1, 1);
+		SceneObject b = at(2, 2, 2);
+		SceneObject c = at(3, 3, 3);
+		grid.add(a);
+		grid.add(b);
+		grid.add(c);
+		assertEquals(0, a.cellIndex);
+		assertEquals(1, b.cellIndex);
+		assertEquals(2, c.cellIndex);
+		// the last object in the cell takes the removed one's slot
+		grid.remove(a);
+		assertEquals(0, c.cellIndex);
+		assertEquals(1, b.cellIndex);
+		// moving out evicts from the slot it was moved into, not its old one
+		c.setPosition(new Vector3d(15, 3, 3));
+		assertEquals(0, b.cellIndex);
+		assertEquals(Sets.newHashSet(b), query(grid, new Vector3d(2, 2, 2), 1.5));
+		assertEquals(Sets.newHashSet(c), query(grid, new Vector3d(15, 3, 3), 1));
+		c.setPosition(new Vector3d(3, 3, 3));
+		assertEquals(1, c.cellIndex);
+		assertEquals(Sets.newHashSet(b, c), query(grid, new Vector3d(2, 2, 2), 1.8));
+		checkIndices(Lists.newArrayList(b, c));
+	}
+
+	@Test
+	public void testQueryMatchesBruteForce() {
+		Random rand = new Random(1234);
+		SpatialGrid grid = new SpatialGrid(8);
+		List<SceneObject> objects = Lists.newArrayList();
+		for (int i = 0; i < 500; i++) {
+			SceneObject obj = at(rand.nextGaussian()*40, rand.nextGaussian()*40, rand.nextGaussian()*10);
+			grid.add(obj);
+			objects.add(obj);
+		}
+		for (int round = 0; round < 200; round++) {
+			// move some, swap some out for new ones
+			for (int i = 0; i < 50; i++) {
+				SceneObject obj = objects.get(rand.nextInt(objects.size()));
+				obj.setPositionRelative(rand.nextGaussian()*6, rand.nextGaussian()*6, rand.nextGaussian()*6);
+			}
+			for (int i = 0; i < 5; i++) {
+				grid.remove(objects.remove(rand.nextInt(objects.size())));
+				SceneObject obj = at(rand.nextGaussian()*40, rand.nextGaussian()*40, rand.nextGaussian()*10);
+				grid.add(obj);
+				objects.add(obj);
+			}
+			assertEquals(objects.size(), grid.size());
+			checkIndices(objects);
+			// from smaller than a cell to bigger than the whole populated area
+			Vector3d center = new Vector3d(rand.nextGaussian()*40, rand.nextGaussian()*40, rand.nextGaussian()*10);
+			double radius = round % 20 == 0 ? 1000 : rand.nextDouble()*30;
+			Set<SceneObject> expected = Sets.newIdentityHashSet();
+			for (SceneObject obj : objects) {
+				if (obj.getPosition().distance(center) <= radius) expected.add(obj);
+			}
+			assertEquals(expected, query(grid, center, radius));
+		}
+	}
+
+}
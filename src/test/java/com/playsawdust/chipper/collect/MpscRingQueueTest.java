@@ -0,0 +1,148 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.collect;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class MpscRingQueueTest {
+
+	@Test
+	public void testCapacityRounding() {
+		assertEquals(1, new MpscRingQueue<>(1).capacity());
+		assertEquals(2, new MpscRingQueue<>(2).capacity());
+		assertEquals(4, new MpscRingQueue<>(3).capacity());
+		assertEquals(1024, new MpscRingQueue<>(1000).capacity());
+		assertEquals(1024, new MpscRingQueue<>(1024).capacity());
+		assertEquals(2048, new MpscRingQueue<>(1025).capacity());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testZeroCapacity() {
+		new MpscRingQueue<>(0);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testCapacityTooLarge() {
+		new MpscRingQueue<>((1 << 30)+1);
+	}
+
+	@Test
+	public void testOfferFailsWhenFull() {
+		MpscRingQueue<Integer> q = new MpscRingQueue<>(5);
+		assertTrue(q.isEmpty());
+		assertNull(q.poll());
+		for (int i = 0; i < 8; i++) {
+			assertTrue(q.offer(i));
+		}
+		assertEquals(8, q.size());
+		assertFalse(q.offer(8));
+		assertEquals(8, q.size());
+		// one slot freed, one slot to fill
+		assertEquals(0, (int)q.poll());
+		assertTrue(q.offer(8));
+		assertFalse(q.offer(9));
+		for (int i = 1; i <= 8; i++) {
+			assertEquals(i, (int)q.poll());
+		}
+		assertNull(q.poll());
+		assertTrue(q.isEmpty());
+	}
+
+	@Test
+	public void testWrapAround() {
+		MpscRingQueue<Integer> q = new MpscRingQueue<>(4);
+		int next = 0;
+		int expected = 0;
+		// uneven batches, so the head and tail land on every slot in turn over many laps
+		for (int lap = 0; lap < 10000; lap++) {
+			int offers = 1+(lap%4);
+			for (int i = 0; i < offers; i++) {
+				if (q.size() < 4) {
+					assertTrue(q.offer(next++));
+				} else {
+					assertFalse(q.offer(-1));
+				}
+			}
+			int polls = 1+((lap*7)%4);
+			for (int i = 0; i < polls; i++) {
+				Integer v = q.poll();
+				if (v == null) {
+					assertEquals(expected, next);
+					break;
+				}
+				assertEquals(expected++, (int)v);
+			}
+			assertEquals(next-expected, q.size());
+		}
+		assertTrue(next > 10000);
+	}
+
+	@Test
+	public void testManyProducers() throws InterruptedException {
+		int producers = 4;
+		int perProducer = 200_000;
+		MpscRingQueue<long[]> q = new MpscRingQueue<>(64);
+		CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; p++) {
+			int id = p;
+			threads[p] = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (int i = 0; i < perProducer; i++) {
+					long[] item = {id, i};
+					// a small queue, so producers keep finding it full and racing for the slot
+					// that frees up
+					while (!q.offer(item)) {
+						Thread.yield();
+					}
+				}
+			}, "Producer #"+p);
+			threads[p].setDaemon(true);
+			threads[p].start();
+		}
+		int[] nextFrom = new int[producers];
+		long total = (long)producers*perProducer;
+		long deadline = System.nanoTime()+TimeUnit.SECONDS.toNanos(30);
+		start.countDown();
+		for (long received = 0; received < total;) {
+			int size = q.size();
+			assertTrue(size >= 0 && size <= q.capacity());
+			long[] item = q.poll();
+			if (item == null) {
+				assertTrue("Timed out with "+received+" of "+total+" items received", System.nanoTime() < deadline);
+				Thread.yield();
+				continue;
+			}
+			int id = (int)item[0];
+			// exactly once and in order, per producer
+			assertEquals("Item from producer #"+id+" out of order", nextFrom[id], item[1]);
+			nextFrom[id]++;
+			received++;
+		}
+		for (Thread t : threads) {
+			t.join(5000);
+		}
+		for (int p = 0; p < producers; p++) {
+			assertEquals(perProducer, nextFrom[p]);
+		}
+		assertNull(q.poll());
+		assertTrue(q.isEmpty());
+	}
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.collect;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.google.common.cache.CacheStats;
+
+public class WeightedCacheTest {
+
+	@Test
+	public void testEvictsByWeight() {
+		WeightedCache<String, String> c = new WeightedCache<>(10, String::length);
+		c.putIfAbsent("a", "aaaa");
+		c.putIfAbsent("b", "bbbb");
+		assertEquals(8, c.getWeight());
+		c.putIfAbsent("c", "cccc");
+		assertEquals(2, c.size());
+		assertEquals(8, c.getWeight());
+		// the least recently used entry, a, went first
+		assertEquals("bbbb", c.getIfPresent("b"));
+		assertEquals("cccc", c.getIfPresent("c"));
+
+		// too heavy to ever fit
+		String huge = "hhhhhhhhhhhh";
+		assertSame(huge, c.putIfAbsent("h", huge));
+		assertEquals(2, c.size());
+
+		c.setMaxWeight(4);
+		assertEquals(1, c.size());
+		assertEquals(4, c.getWeight());
+
+		CacheStats stats = c.stats();
+		assertEquals(2, stats.hitCount());
+		assertEquals(0, stats.missCount());
+		assertEquals(2, stats.evictionCount());
+	}
+
+	@Test
+	public void testScanResistance() {
+		WeightedCache<Integer, Object> c = new WeightedCache<>(100, o -> 10);
+		// used twice, so protected
+		for (int i = 0; i < 5; i++) {
+			c.putIfAbsent(i, new Object());
+			c.getIfPresent(i);
+		}
+		// a long run of things used only once shouldn't push them out
+		for (int i = 100; i < 200; i++) {
+			c.putIfAbsent(i, new Object());
+		}
+		for (int i = 0; i < 5; i++) {
+			assertNotNull(c.getIfPresent(i));
+		}
+	}
+
+	@Test
+	public void testSoftPinning() {
+		WeightedCache<String, Object> c = new WeightedCache<>(10, o -> 10);
+		Object held = new Object();
+		c.putIfAbsent("held", held);
+		c.putIfAbsent("other", new Object());
+		assertEquals(1, c.size());
+		// evicted, but we still have it, so it comes back rather than missing
+		assertSame(held, c.getIfPresent("held"));
+		assertEquals(0, c.stats().missCount());
+
+		c.invalidateAll();
+		assertNull(c.getIfPresent("held"));
+	}
+
+}
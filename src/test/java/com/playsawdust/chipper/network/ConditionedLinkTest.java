@@ -0,0 +1,96 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.playsawdust.chipper.network.LinkConditions.JitterModel;
+
+public class ConditionedLinkTest {
+
+	private static final long MILLIS = 1_000_000;
+
+	@Test
+	public void testParse() {
+		LinkConditions lc = LinkConditions.parse("latency=80, jitter=20, jitter_model=pareto, loss=0.02, burst=0.01/0.3, bandwidth=256k, seed=42");
+		assertEquals(80, lc.latency, 0);
+		assertEquals(20, lc.jitter, 0);
+		assertEquals(JitterModel.PARETO, lc.jitterModel);
+		assertEquals(0.02, lc.loss, 0);
+		assertEquals(0.01, lc.burstEnter, 0);
+		assertEquals(0.3, lc.burstExit, 0);
+		assertEquals(256*1024, lc.bandwidth);
+		assertEquals(42, lc.seed);
+		for (String bad : new String[] {"latency", "loss=2", "burst=0.1", "jitter_model=wobbly", "speed=9000"}) {
+			try {
+				LinkConditions.parse(bad);
+				fail("Expected "+bad+" to be rejected");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testStreamStaysInOrder() {
+		ConditionedLink link = new ConditionedLink(LinkConditions.builder()
+				.latency(50)
+				.jitter(30, JitterModel.NORMAL)
+				.loss(0.2)
+				.seed(7)
+				.build());
+		List<Integer> received = Lists.newArrayList();
+		ConditionedLink.Sink sink = (src, data) -> {
+			assertNull(src);
+			received.add(data.getInt());
+		};
+		long now = 0;
+		for (int i = 0; i < 500; i++) {
+			link.offerStream((ByteBuffer)ByteBuffer.allocate(4).putInt(i).flip(), now);
+			now += MILLIS;
+			link.release(now, sink);
+		}
+		assertTrue("Nothing should have arrived before the latency", received.size() < 500);
+		link.releaseAll(sink);
+		assertEquals(500, received.size());
+		for (int i = 0; i < 500; i++) {
+			assertEquals(i, received.get(i).intValue());
+		}
+	}
+
+	@Test
+	public void testBandwidth() {
+		// 10 kilobytes a second, so a kilobyte takes 100ms to get through
+		ConditionedLink link = new ConditionedLink(LinkConditions.builder()
+				.bandwidth(10*1024)
+				.queueLimit(4*1024)
+				.seed(7)
+				.build());
+		InetSocketAddress src = new InetSocketAddress("127.0.0.1", 1234);
+		for (int i = 0; i < 8; i++) {
+			link.offerDatagram(src, ByteBuffer.allocate(1024), 0);
+		}
+		// only what fits in the queue gets through
+		int[] count = new int[1];
+		link.release(250*MILLIS, (s, data) -> count[0]++);
+		assertEquals(2, count[0]);
+		link.releaseAll((s, data) -> count[0]++);
+		assertEquals(4, count[0]);
+		assertEquals(Long.MAX_VALUE, link.getDeadline());
+	}
+
+}
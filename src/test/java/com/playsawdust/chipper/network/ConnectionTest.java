@@ -0,0 +1,453 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network;
+
+import static org.junit.Assert.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.junit.Assume;
+import org.junit.Test;
+import org.lwjgl.system.Configuration;
+import org.lwjgl.system.MemoryUtil;
+
+import com.google.common.collect.Lists;
+import com.playsawdust.chipper.Addon;
+import com.playsawdust.chipper.Identifier;
+import com.playsawdust.chipper.component.Context;
+import com.playsawdust.chipper.component.Engine;
+import com.playsawdust.chipper.component.EngineType;
+import com.playsawdust.chipper.network.Message.SendMode;
+import com.playsawdust.chipper.network.Message.ServerboundMessage;
+import com.playsawdust.chipper.network.protocol.base.message.HelloMessage;
+import com.playsawdust.chipper.server.ServerEngine;
+import com.playsawdust.chipper.server.TickLoop;
+
+public class ConnectionTest {
+
+	@Test
+	public void testCompressionLeavesNoNativeMemory() throws IOException {
+		// only the debug allocator keeps track of what's outstanding; build.gradle turns it on
+		Assume.assumeTrue(Configuration.DEBUG_MEMORY_ALLOCATOR.get(false));
+		// the first connection may set up per-thread state that's meant to live on
+		connectCompressAndDisconnect();
+		long before = outstandingNativeBytes();
+		connectCompressAndDisconnect();
+		assertEquals("Native memory left behind by a dropped connection", before, outstandingNativeBytes());
+	}
+
+	private static void connectCompressAndDisconnect() throws IOException {
+		try (Loopback l = new Loopback(false)) {
+			l.client.requestCompression();
+			l.pumpUntil(() -> l.client.getInboundCompression() != Compression.NONE && l.server.getInboundCompression() != Compression.NONE);
+			for (int i = 0; i < 100; i++) {
+				l.client.sendMessage(new HelloMessage(i));
+			}
+			l.pumpUntil(() -> l.server.getUnprocessedMessageCount() == 100);
+			assertTrue(l.server.getCompressedBytesReceived() > 0);
+			l.client.disconnect();
+			l.server.disconnect();
+		}
+	}
+
+	@Test
+	public void testOrderedSurvivesSwitchingTransports() throws IOException {
+		try (Loopback l = new Loopback(true)) {
+			ProtocolRegistry.obtain(l.clientCtx).register(new OrderedProtocol());
+			ProtocolRegistry.obtain(l.serverCtx).register(new OrderedProtocol());
+			l.client.sendMessage(new OrderedStartMessage());
+			// before UDP is confirmed, so these go over TCP
+			for (int i = 0; i < 10; i++) {
+				l.client.sendMessage(new IndexMessage(i, 16));
+			}
+			l.pumpUntil(() -> l.client.isUdpAvailable());
+			for (int i = 10; i < 30; i++) {
+				// one too large for a datagram, or even a flush buffer, among ones that aren't
+				l.client.sendMessage(new IndexMessage(i, i == 20 ? 40_000 : 16));
+			}
+			List<Integer> received = l.serverCtx.getEngine().received;
+			l.pumpUntil(() -> {
+				l.server.processPackets();
+				return received.size() >= 30;
+			});
+			for (int i = 0; i < 30; i++) {
+				assertEquals(i, (int)received.get(i));
+			}
+			assertEquals(30, received.size());
+		}
+	}
+
+	@Test
+	public void testResumesPartialWrites() throws IOException {
+		try (Loopback l = new Loopback(false)) {
+			ProtocolRegistry.obtain(l.clientCtx).register(new OrderedProtocol());
+			ProtocolRegistry.obtain(l.serverCtx).register(new OrderedProtocol());
+			l.clientTcp.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			l.clientTcp.setOption(StandardSocketOptions.SO_SNDBUF, 4096);
+			l.serverTcp.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
+			// pack everything in one flush, so only the socket can hold any of it back
+			l.client.setFlushLimits(Integer.MAX_VALUE, Integer.MAX_VALUE);
+			l.client.sendMessage(new OrderedStartMessage());
+			for (int i = 0; i < 200; i++) {
+				l.client.sendMessage(new IndexMessage(i, 1000, SendMode.RELIABLE));
+			}
+			assertFalse(l.client.writePending());
+			assertTrue("The socket took everything at once, so nothing was left to resume", l.client.wantsWrite());
+			List<Integer> received = l.serverCtx.getEngine().received;
+			l.pumpUntil(() -> {
+				l.server.processPackets();
+				return received.size() >= 200;
+			});
+			for (int i = 0; i < 200; i++) {
+				assertEquals(i, (int)received.get(i));
+			}
+			assertEquals(200, received.size());
+			assertFalse(l.client.wantsWrite());
+		}
+	}
+
+	@Test
+	public void testNegotiatesDenseIds() throws IOException {
+		try (Loopback l = new Loopback(false)) {
+			DenseProtocol protocol = new DenseProtocol(false);
+			ProtocolRegistry.obtain(l.clientCtx).register(protocol);
+			ProtocolRegistry.obtain(l.serverCtx).register(new DenseProtocol(false));
+			l.client.sendMessage(new DenseStartMessage(protocol.getMessageTableHash()));
+			l.pumpUntil(() -> l.server.getUnprocessedMessageCount() == 1);
+			l.server.processPackets();
+			long before = l.serverBytesIn;
+			l.client.sendMessage(new IndexMessage(0, 0, SendMode.RELIABLE));
+			List<Integer> received = l.serverCtx.getEngine().received;
+			l.pumpUntil(() -> {
+				l.server.processPackets();
+				return received.size() >= 1;
+			});
+			assertEquals(0, (int)received.get(0));
+			// a dense ID, a length and two varints; with lazily assigned short IDs, the first one
+			// sent would have had to carry its long ID
+			assertEquals(4, l.serverBytesIn-before);
+			assertNull(l.server.getDisconnectReason());
+			assertNull(l.client.getDisconnectReason());
+		}
+	}
+
+	@Test
+	public void testRejectsMismatchedMessageTable() throws IOException {
+		try (Loopback l = new Loopback(false)) {
+			DenseProtocol protocol = new DenseProtocol(false);
+			ProtocolRegistry.obtain(l.clientCtx).register(protocol);
+			// the server has one more message, so its dense IDs can't be trusted to match
+			ProtocolRegistry.obtain(l.serverCtx).register(new DenseProtocol(true));
+			l.client.sendMessage(new DenseStartMessage(protocol.getMessageTableHash()));
+			l.pumpUntil(() -> {
+				l.server.processPackets();
+				// the test client engine can't process a goodbye, so just wait for it to arrive
+				return l.client.getUnprocessedMessageCount() == 1;
+			});
+			assertEquals(new Identifier("chipper", "message_table_mismatch"), l.server.getDisconnectReason());
+			assertNull(l.client.getDisconnectReason());
+		}
+	}
+
+	private static long outstandingNativeBytes() {
+		long thread = Thread.currentThread().getId();
+		long[] total = {0};
+		MemoryUtil.memReport((address, memory, threadId, threadName, stacktrace) -> {
+			if (threadId == thread) total[0] += memory;
+		});
+		return total[0];
+	}
+
+	/**
+	 * A client and server Connection talking to each other over loopback, pumped by hand on the
+	 * calling thread.
+	 */
+	static final class Loopback implements Closeable {
+		final Context<TestClientEngine> clientCtx = Context.createNew(new TestClientEngine());
+		final Context<TestServerEngine> serverCtx = Context.createNew(new TestServerEngine());
+		final Connection client;
+		final Connection server;
+		final SocketChannel clientTcp;
+		final SocketChannel serverTcp;
+		private final @Nullable DatagramChannel clientUdp;
+		private final @Nullable DatagramChannel serverUdp;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(64*1024);
+		// everything the server has read over TCP
+		long serverBytesIn;
+
+		@SuppressWarnings("deprecation")
+		Loopback(boolean udp) throws IOException {
+			InetAddress loopback = InetAddress.getLoopbackAddress();
+			try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+				listener.bind(new InetSocketAddress(loopback, 0));
+				clientTcp = SocketChannel.open(listener.getLocalAddress());
+				serverTcp = listener.accept();
+				// the server listens for UDP on the same address and port as TCP
+				serverUdp = udp ? DatagramChannel.open().bind(listener.getLocalAddress()) : null;
+				clientUdp = udp ? DatagramChannel.open().bind(new InetSocketAddress(loopback, 0)) : null;
+			}
+			clientTcp.configureBlocking(false);
+			serverTcp.configureBlocking(false);
+			if (udp) {
+				clientUdp.configureBlocking(false);
+				serverUdp.configureBlocking(false);
+			}
+			client = new Connection(clientCtx, () -> {}, clientTcp, clientUdp);
+			server = new Connection(serverCtx, () -> {}, serverTcp, serverUdp);
+		}
+
+		void pumpUntil(BooleanSupplier condition) throws IOException {
+			long deadline = System.nanoTime()+5_000_000_000L;
+			while (!condition.getAsBoolean()) {
+				assertTrue("Timed out waiting for the connections", System.nanoTime() < deadline);
+				pump();
+			}
+		}
+
+		@SuppressWarnings("deprecation")
+		void pump() throws IOException {
+			// packets the socket didn't take last time go out first, however far in they stopped
+			assertFalse(client.writePending());
+			assertFalse(server.writePending());
+			// datagrams first, so anything that went over TCP is at a disadvantage
+			receiveDatagrams(serverUdp, server, true);
+			receiveDatagrams(clientUdp, client, false);
+			receiveStream(serverTcp, server);
+			receiveStream(clientTcp, client);
+		}
+
+		@SuppressWarnings("deprecation")
+		private void receiveDatagrams(@Nullable DatagramChannel ch, Connection c, boolean correlated) throws IOException {
+			if (ch == null) return;
+			while (true) {
+				buffer.clear();
+				SocketAddress src = ch.receive(buffer);
+				if (src == null) return;
+				buffer.flip();
+				if (correlated) {
+					// ServerNetworkThread's job
+					buffer.getInt();
+				}
+				c.feedImmediate(src, buffer);
+			}
+		}
+
+		@SuppressWarnings("deprecation")
+		private void receiveStream(SocketChannel ch, Connection c) throws IOException {
+			while (c.wantsRead()) {
+				buffer.clear();
+				int read = ch.read(buffer);
+				if (read <= 0) return;
+				if (c == server) serverBytesIn += read;
+				buffer.flip();
+				c.feedQueued(buffer);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			clientTcp.close();
+			serverTcp.close();
+			if (clientUdp != null) clientUdp.close();
+			if (serverUdp != null) serverUdp.close();
+		}
+	}
+
+	private static final class TestClientEngine implements Engine {
+		@Override
+		@Deprecated
+		public Addon getDefaultAddon() { return null; }
+		@Override
+		public int run(String... args) { return 0; }
+		@Override
+		public EngineType getType() { return EngineType.HEADLESS_CLIENT; }
+	}
+
+	private static final class TestServerEngine extends ServerEngine {
+		// indices of the IndexMessages processed, in order
+		final List<Integer> received = Lists.newArrayList();
+
+		@Override
+		@Deprecated
+		public Addon getDefaultAddon() { return null; }
+		@Override
+		public int run(String... args) { return 0; }
+		@Override
+		public EngineType getType() { return EngineType.DEDICATED_SERVER; }
+		@Override
+		public boolean isPortcheckServer(InetAddress address) { return false; }
+		@Override
+		public boolean isPortcheckToken(long token) { return false; }
+		@Override
+		public void onPortcheckResponseTCP() {}
+		@Override
+		public void onPortcheckResponseUDP(String publicAddress) {}
+		@Override
+		public void enqueueProcessing(Connection connection) {}
+		@Override
+		public TickLoop getTickLoop() { return null; }
+	}
+
+	private static final class OrderedProtocol extends Protocol {
+		public OrderedProtocol() {
+			register(OrderedStartMessage::new);
+			register(IndexMessage::new);
+		}
+
+		@Override
+		public Identifier getStartMessage() {
+			return new Identifier("test", "start");
+		}
+	}
+
+	private static final class DenseProtocol extends Protocol {
+		public DenseProtocol(boolean extra) {
+			register(DenseStartMessage::new);
+			register(IndexMessage::new);
+			if (extra) {
+				register(OrderedStartMessage::new);
+			}
+			freeze();
+		}
+
+		@Override
+		public Identifier getStartMessage() {
+			return new Identifier("test", "dense_start");
+		}
+	}
+
+	private static final class DenseStartMessage extends ServerboundMessage implements Protocol.StartMessage {
+		private long messageTableHash;
+
+		public DenseStartMessage() {
+			super(new Identifier("test", "dense_start"));
+		}
+
+		public DenseStartMessage(long messageTableHash) {
+			this();
+			this.messageTableHash = messageTableHash;
+		}
+
+		@Override
+		public long getMessageTableHash() {
+			return messageTableHash;
+		}
+
+		@Override
+		public void marshal(Marshaller out) {
+			out.writeI64(messageTableHash);
+		}
+		@Override
+		public void unmarshal(Unmarshaller in) {
+			messageTableHash = in.readI64();
+		}
+		@Override
+		protected void processServer(Context<ServerEngine> ctx, Connection c) {}
+		@Override
+		public String toString() {
+			return "DenseStartMessage[messageTableHash="+Long.toHexString(messageTableHash)+"]";
+		}
+	}
+
+	private static final class OrderedStartMessage extends ServerboundMessage {
+		public OrderedStartMessage() {
+			super(new Identifier("test", "start"));
+		}
+
+		@Override
+		public void marshal(Marshaller out) {}
+		@Override
+		public void unmarshal(Unmarshaller in) {}
+		@Override
+		protected void processServer(Context<ServerEngine> ctx, Connection c) {}
+		@Override
+		public String toString() {
+			return "OrderedStartMessage";
+		}
+	}
+
+	private static final class IndexMessage extends ServerboundMessage {
+		private int index;
+		private byte[] padding = new byte[0];
+		private SendMode mode = SendMode.ORDERED;
+
+		public IndexMessage() {
+			super(new Identifier("test", "index"));
+		}
+
+		public IndexMessage(int index, int paddingLength) {
+			this(index, paddingLength, SendMode.ORDERED);
+		}
+
+		public IndexMessage(int index, int paddingLength, SendMode mode) {
+			this();
+			this.index = index;
+			this.padding = new byte[paddingLength];
+			for (int i = 0; i < paddingLength; i++) {
+				padding[i] = (byte)(index+i);
+			}
+			this.mode = mode;
+		}
+
+		@Override
+		public SendMode getSendMode() {
+			return mode;
+		}
+
+		@Override
+		public int getChannel() {
+			return 3;
+		}
+
+		@Override
+		public void marshal(Marshaller out) {
+			out.writeIVar32(index);
+			out.writeIVar32(padding.length);
+			out.write(padding, 0, padding.length);
+		}
+
+		@Override
+		public void unmarshal(Unmarshaller in) {
+			index = in.readIVar32();
+			padding = new byte[in.readIVar32()];
+			in.read(padding, 0, padding.length);
+		}
+
+		@Override
+		protected void processServer(Context<ServerEngine> ctx, Connection c) {
+			for (int i = 0; i < padding.length; i++) {
+				if (padding[i] != (byte)(index+i)) {
+					// the stream got out of step somewhere
+					((TestServerEngine)ctx.getEngine()).received.add(-1);
+					return;
+				}
+			}
+			((TestServerEngine)ctx.getEngine()).received.add(index);
+		}
+
+		@Override
+		public String toString() {
+			return "IndexMessage[index="+index+",padding=<"+padding.length+" bytes>]";
+		}
+	}
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network;
+
+import static org.junit.Assert.*;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class DatagramHeaderTest {
+
+	private DatagramHeader roundTrip(int seq, int ack, int ackBits, int kind, int messageSeq, int trailing) {
+		DatagramHeader h = new DatagramHeader();
+		h.seq = seq;
+		h.ack = ack;
+		h.ackBits = ackBits;
+		h.kind = kind;
+		h.messageSeq = messageSeq;
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		h.marshal(new Marshaller(buf));
+		for (int i = 0; i < trailing; i++) {
+			buf.put((byte)i);
+		}
+		buf.flip();
+
+		DatagramHeader r = new DatagramHeader();
+		r.unmarshal(new Unmarshaller(buf));
+		assertEquals(seq, r.seq);
+		assertEquals(ack, r.ack);
+		assertEquals(ackBits, r.ackBits);
+		assertEquals(kind, r.kind);
+		// whatever follows the header is left for the packet
+		assertEquals(trailing, buf.remaining());
+		if (trailing > 0) assertEquals(0, buf.get(buf.position()));
+		return r;
+	}
+
+	@Test
+	public void testAck() {
+		DatagramHeader r = roundTrip(0, 77, 0b1011, DatagramHeader.KIND_ACK, 0, 0);
+		assertFalse(r.isOrdered());
+	}
+
+	@Test
+	public void testUnreliable() {
+		DatagramHeader r = roundTrip(123456, 123400, 0xFFFFFFFF, DatagramHeader.KIND_UNRELIABLE, 0, 10);
+		assertFalse(r.isOrdered());
+		assertEquals(0, r.messageSeq);
+	}
+
+	@Test
+	public void testUnreliableOmitsMessageSeq() {
+		DatagramHeader h = new DatagramHeader();
+		h.kind = DatagramHeader.KIND_UNRELIABLE;
+		h.messageSeq = 99;
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		h.marshal(new Marshaller(buf));
+		DatagramHeader o = new DatagramHeader();
+		o.kind = DatagramHeader.KIND_ORDERED;
+		o.messageSeq = 99;
+		ByteBuffer obuf = ByteBuffer.allocate(64);
+		o.marshal(new Marshaller(obuf));
+		assertTrue(buf.position() < obuf.position());
+	}
+
+	@Test
+	public void testOrdered() {
+		DatagramHeader r = roundTrip(5, 4, 0x80000000, DatagramHeader.KIND_ORDERED+7, Integer.MAX_VALUE, 3);
+		assertTrue(r.isOrdered());
+		assertEquals(7, r.getChannel());
+		assertEquals(Integer.MAX_VALUE, r.messageSeq);
+	}
+
+	@Test
+	public void testOrderedDefaultChannel() {
+		DatagramHeader r = roundTrip(1, 0, 0, DatagramHeader.KIND_ORDERED, 0, 0);
+		assertTrue(r.isOrdered());
+		assertEquals(0, r.getChannel());
+	}
+
+	@Test(expected=BufferUnderflowException.class)
+	public void testTruncated() {
+		DatagramHeader h = new DatagramHeader();
+		h.seq = 300;
+		h.ack = 299;
+		h.kind = DatagramHeader.KIND_ORDERED;
+		h.messageSeq = 12;
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		h.marshal(new Marshaller(buf));
+		buf.flip();
+		// cut off partway through the message sequence number
+		buf.limit(buf.limit()-1);
+		new DatagramHeader().unmarshal(new Unmarshaller(buf));
+	}
+
+}
@@ -17,7 +17,9 @@ import java.nio.ByteBuffer;
 import java.util.function.BiConsumer;
 import org.junit.Test;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Function;
+import com.google.common.base.Strings;
 import com.google.common.math.LongMath;
 import com.playsawdust.chipper.network.Marshaller;
 import com.playsawdust.chipper.network.Unmarshaller;
@@ -234,4 +236,157 @@ public class MarshallerTest {
 	public void testF16() {
 		test(squencho(Marshaller::writeF16), Unmarshaller::readF16, -1, 0, 1, -4096, 4096, 32768, -32768);
 	}
+
+	@Test
+	public void testString() {
+		String[] strs = {"", "chipper", "ünïcödé", "\uD83D\uDE00", "lone \uD800 surrogate", Strings.repeat("long", 100)};
+		for (ByteBuffer target : new ByteBuffer[] { ByteBuffer.allocate(8192), ByteBuffer.allocateDirect(8192) }) {
+			Marshaller m = new Marshaller(target);
+			for (String s : strs) {
+				m.writeString(s);
+			}
+			ByteBuffer buf = m.finish();
+			for (String s : strs) {
+				// must match what a general-purpose encoder would produce
+				ByteBuffer expected = Charsets.UTF_8.encode(s);
+				Unmarshaller u = new Unmarshaller(buf);
+				assertEquals(expected.remaining(), u.readIVar32());
+				assertEquals(expected, u.readSlice(expected.remaining()));
+			}
+			buf.rewind();
+			Unmarshaller u = new Unmarshaller(buf);
+			for (String s : strs) {
+				assertEquals(Charsets.UTF_8.decode(Charsets.UTF_8.encode(s)).toString(), u.readString());
+			}
+			assertEquals(0, u.remaining());
+		}
+	}
+
+	@Test
+	public void testVarintOverflowWritesNothing() {
+		ByteBuffer buf = ByteBuffer.allocate(4);
+		Marshaller m = new Marshaller(buf);
+		m.writeI8(1);
+		try {
+			m.writeIVar64(Long.MAX_VALUE);
+			fail("BufferOverflowException not thrown");
+		} catch (BufferOverflowException e) {}
+		assertEquals(1, buf.position());
+	}
+
+	@Test
+	public void testVarintEveryLength() {
+		for (int n = 0; n < 64; n++) {
+			long zig = (1L << n) | 1;
+			// the slow, obviously correct way
+			byte[] ref = new byte[Marshaller.varintSize(zig)];
+			long z = zig;
+			for (int i = 0; i < ref.length; i++) {
+				ref[i] = (byte)((z & 0x7F) | (i == ref.length-1 ? 0 : 0x80));
+				z >>>= 7;
+			}
+			long value = (zig >>> 1) ^ -(zig & 1);
+			// exactly enough room, and plenty of room with something after it that must survive
+			for (int room : new int[] { ref.length, ref.length+12 }) {
+				for (boolean direct : new boolean[] { false, true }) {
+					ByteBuffer buf = direct ? ByteBuffer.allocateDirect(room) : ByteBuffer.allocate(room);
+					while (buf.hasRemaining()) buf.put((byte)0x55);
+					buf.clear();
+					new Marshaller(buf).writeIVar64(value);
+					assertEquals(ref.length, buf.position());
+					for (int i = 0; i < room; i++) {
+						assertEquals(i < ref.length ? ref[i] : 0x55, buf.get(i));
+					}
+					buf.rewind();
+					assertEquals(value, new Unmarshaller(buf).readIVar64());
+					assertEquals(ref.length, buf.position());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testArrays() {
+		int[] ints = { 0, 1, -1, 63, -64, 64, 300, Integer.MAX_VALUE, Integer.MIN_VALUE };
+		long[] longs = { 0, 1, -1, 1L << 40, Long.MAX_VALUE, Long.MIN_VALUE };
+		float[] floats = { 0, -1.5f, 3.25f, Float.MAX_VALUE, Float.NaN };
+		boolean[] bits = new boolean[21];
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = i % 3 == 0;
+		}
+		// small buffers take the element-at-a-time path
+		for (int size : new int[] { 8192, 160 }) {
+			Marshaller bulk = new Marshaller(ByteBuffer.allocate(size));
+			Marshaller single = new Marshaller(ByteBuffer.allocate(size));
+			bulk.writeBit(true);
+			single.writeBit(true);
+			bulk.writeBitArray(bits);
+			for (boolean b : bits) single.writeBit(b);
+			bulk.writeIVar32Array(ints);
+			for (int i : ints) single.writeIVar32(i);
+			bulk.writeIVar64Array(longs);
+			for (long l : longs) single.writeIVar64(l);
+			bulk.writeF32Array(floats);
+			for (float f : floats) single.writeF32(f);
+			bulk.writeBitArray(bits, 3, 5);
+			for (int i = 3; i < 8; i++) single.writeBit(bits[i]);
+			ByteBuffer buf = bulk.finish();
+			assertEquals(single.finish(), buf);
+
+			Unmarshaller u = new Unmarshaller(buf);
+			assertTrue(u.readBit());
+			boolean[] readBits = new boolean[bits.length];
+			u.readBitArray(readBits, 0, readBits.length);
+			assertArrayEquals(bits, readBits);
+			int[] readInts = new int[ints.length];
+			u.readIVar32Array(readInts, 0, readInts.length);
+			assertArrayEquals(ints, readInts);
+			long[] readLongs = new long[longs.length];
+			u.readIVar64Array(readLongs, 0, readLongs.length);
+			assertArrayEquals(longs, readLongs);
+			float[] readFloats = new float[floats.length];
+			u.readF32Array(readFloats, 0, readFloats.length);
+			assertArrayEquals(floats, readFloats, 0);
+			for (int i = 3; i < 8; i++) {
+				assertEquals(bits[i], u.readBit());
+			}
+			assertEquals(0, u.remaining());
+		}
+	}
+
+	@Test
+	public void testSegmentChain() {
+		SegmentChain chain = new SegmentChain();
+		try {
+			Marshaller m = new Marshaller(chain);
+			// misalign the ints so one doesn't fit at the end of the first segment
+			m.writeI8((byte)7);
+			for (int i = 0; i < 10000; i++) {
+				m.writeI32(i);
+			}
+			byte[] bys = new byte[40000];
+			for (int i = 0; i < bys.length; i++) {
+				bys[i] = (byte)i;
+			}
+			m.write(bys, 0, bys.length);
+			m.finish();
+			ByteBuffer all = ByteBuffer.allocate(chain.size());
+			for (ByteBuffer slice : chain.slices()) {
+				all.put(slice);
+			}
+			all.flip();
+			Unmarshaller u = new Unmarshaller(all);
+			assertEquals(7, u.readI8());
+			for (int i = 0; i < 10000; i++) {
+				assertEquals(i, u.readI32());
+			}
+			byte[] read = new byte[bys.length];
+			u.read(read);
+			assertArrayEquals(bys, read);
+			assertFalse(all.hasRemaining());
+		} finally {
+			chain.release();
+		}
+	}
+
 }
@@ -0,0 +1,133 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.playsawdust.chipper.Identifier;
+import com.playsawdust.chipper.component.Context;
+import com.playsawdust.chipper.exception.RecycledObjectException;
+import com.playsawdust.chipper.network.Message.ServerboundMessage;
+import com.playsawdust.chipper.server.ServerEngine;
+
+public class MessagePoolTest {
+
+	private static final Identifier POOLED = new Identifier("test", "pooled");
+	private static final Identifier UNPOOLED = new Identifier("test", "unpooled");
+
+	private static final class TestProtocol extends Protocol {
+		public TestProtocol() {
+			registerPooled(() -> new ValueMessage(POOLED));
+			register(() -> new ValueMessage(UNPOOLED));
+		}
+
+		@Override
+		public Identifier getStartMessage() {
+			return null;
+		}
+	}
+
+	private static final class ValueMessage extends ServerboundMessage {
+		private int value;
+
+		public ValueMessage(Identifier id) {
+			super(id);
+		}
+
+		public int getValue() {
+			checkNotRecycled();
+			return value;
+		}
+
+		@Override
+		protected void reset() {
+			value = 0;
+		}
+
+		@Override
+		public void marshal(Marshaller out) {
+			out.writeIVar32(value);
+		}
+		@Override
+		public void unmarshal(Unmarshaller in) {
+			value = in.readIVar32();
+		}
+		@Override
+		protected void processServer(Context<ServerEngine> ctx, Connection c) {}
+		@Override
+		public String toString() {
+			return "ValueMessage[value="+value+"]";
+		}
+	}
+
+	@Test
+	public void testReuse() {
+		Protocol p = new TestProtocol();
+		ValueMessage a = (ValueMessage)p.createForServer(POOLED);
+		assertTrue(a.isPooled());
+		a.value = 5;
+		a.recycle();
+		ValueMessage b = (ValueMessage)p.createForServer(POOLED);
+		assertSame(a, b);
+		assertEquals(0, b.getValue());
+		// obtained again, so usable again
+		b.recycle();
+	}
+
+	@Test
+	public void testUnpooled() {
+		Protocol p = new TestProtocol();
+		ValueMessage a = (ValueMessage)p.createForServer(UNPOOLED);
+		assertFalse(a.isPooled());
+		a.value = 5;
+		a.recycle();
+		a.recycle();
+		assertEquals(5, a.getValue());
+		assertNotSame(a, p.createForServer(UNPOOLED));
+	}
+
+	@Test
+	public void testDoubleRecycle() {
+		Protocol p = new TestProtocol();
+		ValueMessage a = (ValueMessage)p.createForServer(POOLED);
+		a.recycle();
+		try {
+			a.recycle();
+			fail("Recycled twice");
+		} catch (RecycledObjectException e) {
+			// expected
+		}
+		// only in the pool once, so two obtains can't share it
+		ValueMessage b = (ValueMessage)p.createForServer(POOLED);
+		ValueMessage c = (ValueMessage)p.createForServer(POOLED);
+		assertNotSame(b, c);
+	}
+
+	@Test
+	public void testUseAfterRecycle() {
+		Protocol p = new TestProtocol();
+		ValueMessage a = (ValueMessage)p.createForServer(POOLED);
+		a.recycle();
+		if (System.getenv("CHIPPER_DEBUG_POOLS") != null) {
+			try {
+				a.getValue();
+				fail("Used after recycling");
+			} catch (RecycledObjectException e) {
+				// expected
+			}
+		} else {
+			// not checked outside of debug mode
+			assertEquals(0, a.getValue());
+		}
+	}
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class OrderedDatagramsTest {
+
+	private static final class Datagram {
+		final int seq;
+		final int ack;
+		final int ackBits;
+		final OrderedDatagrams.Pending pending;
+		final long arrival;
+
+		Datagram(int seq, int ack, int ackBits, OrderedDatagrams.Pending pending, long arrival) {
+			this.seq = seq;
+			this.ack = ack;
+			this.ackBits = ackBits;
+			this.pending = pending;
+			this.arrival = arrival;
+		}
+	}
+
+	@Test
+	public void testLossyDelivery() {
+		Random rand = new Random(4);
+		OrderedDatagrams sender = new OrderedDatagrams();
+		OrderedDatagrams receiver = new OrderedDatagrams();
+		int channels = 3;
+		int perChannel = 300;
+		for (int i = 0; i < perChannel; i++) {
+			for (int c = 0; c < channels; c++) {
+				sender.queue(c, new byte[] {(byte)c, (byte)(i >> 8), (byte)i});
+			}
+		}
+		List<List<Integer>> received = Lists.newArrayList();
+		for (int c = 0; c < channels; c++) {
+			received.add(Lists.newArrayList());
+		}
+		ArrayDeque<Datagram> toReceiver = new ArrayDeque<>();
+		ArrayDeque<Datagram> toSender = new ArrayDeque<>();
+		long now = 0;
+		long step = 5_000_000;
+		long latency = 20_000_000;
+		for (int iter = 0; iter < 10000; iter++) {
+			now += step;
+			sender.checkTimeouts(now);
+			OrderedDatagrams.Pending p;
+			while ((p = sender.poll()) != null) {
+				int seq = sender.nextSequence(now);
+				sender.onSent(p, seq, now);
+				// 30% loss, and some reordering from varying latency
+				if (rand.nextInt(10) >= 3) {
+					toReceiver.add(new Datagram(seq, sender.takeAck(), sender.ackBits(), p, now+latency+rand.nextInt(10_000_000)));
+				}
+			}
+			Iterator<Datagram> arrivals = toReceiver.iterator();
+			while (arrivals.hasNext()) {
+				Datagram d = arrivals.next();
+				if (d.arrival > now) continue;
+				arrivals.remove();
+				receiver.onAck(d.ack, d.ackBits, now);
+				ByteBuffer buf = ByteBuffer.wrap(d.pending.data);
+				assertTrue(receiver.receive(d.pending.channel, d.pending.messageSeq, buf, false, b -> {
+					int c = b.get();
+					received.get(c).add(((b.get() & 0xFF) << 8) | (b.get() & 0xFF));
+				}));
+				receiver.onReceived(d.seq, true);
+			}
+			if (receiver.isAckPending() && rand.nextInt(10) >= 3) {
+				toSender.add(new Datagram(0, receiver.takeAck(), receiver.ackBits(), null, now+latency));
+			}
+			while (!toSender.isEmpty() && toSender.peek().arrival <= now) {
+				Datagram d = toSender.poll();
+				sender.onAck(d.ack, d.ackBits, now);
+			}
+			if (sender.queuedCount() == 0 && sender.getDeadline() == Long.MAX_VALUE) break;
+		}
+		for (int c = 0; c < channels; c++) {
+			List<Integer> list = received.get(c);
+			assertEquals(perChannel, list.size());
+			for (int i = 0; i < perChannel; i++) {
+				assertEquals(i, (int)list.get(i));
+			}
+		}
+		assertTrue(sender.getRetransmitCount() > 0);
+		assertTrue(sender.getRoundTripTime() >= 20);
+	}
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+import com.playsawdust.chipper.Identifier;
+
+public class PacketTest {
+
+	private static class Filler implements Marshallable {
+		private final int len;
+
+		public Filler(int len) {
+			this.len = len;
+		}
+
+		@Override
+		public void marshal(Marshaller out) {
+			for (int i = 0; i < len; i++) {
+				out.writeI8(i);
+			}
+		}
+
+		@Override
+		public void unmarshal(Unmarshaller in) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private void testInPlace(int shortId, Identifier longId, int len) {
+		Packet ref = new Packet();
+		ref.shortId = shortId;
+		ref.longId = longId;
+		Marshaller pm = new Marshaller(ByteBuffer.allocate(len));
+		new Filler(len).marshal(pm);
+		ref.payload = pm.finish();
+		Marshaller m = new Marshaller(ByteBuffer.allocate(len+64));
+		ref.marshal(m);
+		ByteBuffer expected = m.finish();
+
+		Packet p = new Packet();
+		p.shortId = shortId;
+		p.longId = longId;
+		ByteBuffer buf = ByteBuffer.allocate(len+64);
+		buf.position(3);
+		ByteBuffer actual = p.marshal(buf, new Filler(len));
+		assertEquals(expected, actual);
+		assertEquals(len, p.payload.remaining());
+
+		Packet q = new Packet();
+		q.unmarshal(new Unmarshaller(actual));
+		assertEquals(shortId, q.shortId);
+		assertEquals(longId, q.longId);
+		assertEquals(ref.payload, q.payload);
+	}
+
+	@Test
+	public void testInPlaceShortId() {
+		testInPlace(4, null, 12);
+	}
+
+	@Test
+	public void testInPlaceLongId() {
+		testInPlace(0, new Identifier("chipper", "hello"), 4);
+	}
+
+	@Test
+	public void testInPlaceBothIds() {
+		testInPlace(300, new Identifier("chipper", "goodbye"), 200);
+	}
+
+	@Test
+	public void testInPlaceLargePayload() {
+		testInPlace(1, null, 70000);
+	}
+
+	@Test
+	public void testInPlaceEmptyPayload() {
+		testInPlace(1, null, 0);
+	}
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network.replication;
+
+import static org.junit.Assert.*;
+
+import org.joml.Vector3d;
+import org.junit.Test;
+
+import com.playsawdust.chipper.SceneObject;
+import com.playsawdust.chipper.SpatialGrid;
+import com.playsawdust.chipper.network.replication.ReplicationServer.Interest;
+
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.objects.Reference2IntMap;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+
+public class InterestTest {
+
+	private final SpatialGrid grid = new SpatialGrid(ReplicationServer.GRID_CELL_SIZE);
+	private final Reference2IntMap<SceneObject> ids = new Reference2IntOpenHashMap<>();
+	private IntSet relevant = new IntOpenHashSet();
+
+	private SceneObject add(int id, double x) {
+		SceneObject obj = new SceneObject();
+		obj.setPosition(new Vector3d(x, 0, 0));
+		grid.add(obj);
+		ids.put(obj, id);
+		return obj;
+	}
+
+	private boolean select(Interest in, int id) {
+		IntSet next = new IntOpenHashSet();
+		in.select(grid, ids, relevant, next);
+		relevant = next;
+		return relevant.contains(id);
+	}
+
+	@Test
+	public void testEnterAndLeave() {
+		Interest in = new Interest(new Vector3d(), 100);
+		add(1, 50);
+		SceneObject far = add(2, 200);
+		assertTrue(select(in, 1));
+		assertFalse(select(in, 2));
+		// just outside the enter radius isn't enough to become relevant
+		far.setPosition(new Vector3d(100.1, 0, 0));
+		assertFalse(select(in, 2));
+		far.setPosition(new Vector3d(100, 0, 0));
+		assertTrue(select(in, 2));
+		// but once relevant, stays that way until past the leave radius
+		far.setPosition(new Vector3d(100*(1+ReplicationServer.INTEREST_HYSTERESIS), 0, 0));
+		assertTrue(select(in, 2));
+		far.setPosition(new Vector3d(100*(1+ReplicationServer.INTEREST_HYSTERESIS)+0.1, 0, 0));
+		assertFalse(select(in, 2));
+		assertTrue(relevant.contains(1));
+	}
+
+	@Test
+	public void testNoFlappingAtTheEdge() {
+		Interest in = new Interest(new Vector3d(), 100);
+		SceneObject obj = add(1, 99);
+		assertTrue(select(in, 1));
+		// jittering around the enter radius, well within the band
+		for (int i = 0; i < 100; i++) {
+			obj.setPosition(new Vector3d(i % 2 == 0 ? 101 : 99, 0, 0));
+			assertTrue(select(in, 1));
+		}
+		obj.setPosition(new Vector3d(150, 0, 0));
+		assertFalse(select(in, 1));
+		// and the same on the way back; nothing until it's inside the enter radius
+		for (int i = 0; i < 100; i++) {
+			obj.setPosition(new Vector3d(i % 2 == 0 ? 110 : 101, 0, 0));
+			assertFalse(select(in, 1));
+		}
+	}
+
+	@Test
+	public void testFollowsCenter() {
+		Vector3d center = new Vector3d();
+		Interest in = new Interest(center, 10);
+		add(1, 100);
+		assertFalse(select(in, 1));
+		// the center is read every time, so a moving viewer's area moves with it
+		center.set(95, 0, 0);
+		assertTrue(select(in, 1));
+		center.set(0, 0, 0);
+		assertFalse(select(in, 1));
+	}
+
+}
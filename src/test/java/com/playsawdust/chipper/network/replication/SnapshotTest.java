@@ -0,0 +1,91 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.network.replication;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.playsawdust.chipper.Identifier;
+import com.playsawdust.chipper.network.Marshaller;
+import com.playsawdust.chipper.network.Unmarshaller;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+
+public class SnapshotTest {
+
+	private static final class Thing {
+		int a;
+		String b = "";
+	}
+
+	private static final ReplicationSchema<Thing> SCHEMA = ReplicationSchema.builder(new Identifier("test", "thing"), Thing::new)
+			.field(t -> t.a, (t, v) -> t.a = v, FieldCodec.INT)
+			.field(t -> t.b, (t, v) -> t.b = v, FieldCodec.STRING)
+			.build();
+
+	private Snapshot snapshot(int seq, Object[]... values) {
+		Int2ObjectMap<Snapshot.Entry> entries = new Int2ObjectOpenHashMap<>();
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) entries.put(i+1, new Snapshot.Entry(SCHEMA, values[i]));
+		}
+		return new Snapshot(seq, seq*50, entries);
+	}
+
+	private ByteBuffer write(Snapshot snap, Snapshot baseline) {
+		Marshaller m = new Marshaller(ByteBuffer.allocate(8192));
+		snap.writeDelta(m, baseline);
+		return m.finish();
+	}
+
+	private Snapshot read(ByteBuffer buf, Snapshot baseline) {
+		return Snapshot.readDelta(new Unmarshaller(buf), seq -> baseline != null && seq == baseline.getSequence() ? baseline : null,
+				id -> id.equals(SCHEMA.getId()) ? SCHEMA : null);
+	}
+
+	@Test
+	public void testFull() {
+		Snapshot snap = snapshot(1, new Object[] {5, "hello"}, new Object[] {-3, "world"});
+		Snapshot read = read(write(snap, null), null);
+		assertEquals(1, read.getSequence());
+		assertEquals(50, read.getTime());
+		assertEquals(2, read.size());
+		assertArrayEquals(new Object[] {5, "hello"}, read.entries.get(1).values);
+		assertArrayEquals(new Object[] {-3, "world"}, read.entries.get(2).values);
+	}
+
+	@Test
+	public void testDelta() {
+		Snapshot base = snapshot(1, new Object[] {5, "hello"}, new Object[] {-3, "world"}, new Object[] {0, "gone"});
+		Snapshot snap = snapshot(2, new Object[] {5, "changed"}, null, null, new Object[] {7, "new"});
+		// carried over unchanged, as the server does
+		snap.entries.put(2, base.entries.get(2));
+		ByteBuffer full = write(snap, null);
+		ByteBuffer delta = write(snap, base);
+		assertTrue(delta.remaining() < full.remaining());
+		Snapshot read = read(delta, base);
+		assertEquals(3, read.size());
+		assertArrayEquals(new Object[] {5, "changed"}, read.entries.get(1).values);
+		assertSame(base.entries.get(2), read.entries.get(2));
+		assertNull(read.entries.get(3));
+		assertArrayEquals(new Object[] {7, "new"}, read.entries.get(4).values);
+	}
+
+	@Test
+	public void testMissingBaseline() {
+		Snapshot base = snapshot(1, new Object[] {5, "hello"});
+		Snapshot snap = snapshot(2, new Object[] {6, "hello"});
+		assertNull(read(write(snap, base), null));
+	}
+
+}
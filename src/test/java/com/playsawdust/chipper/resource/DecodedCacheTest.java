@@ -0,0 +1,141 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.resource;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashCode;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+
+public class DecodedCacheTest {
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		Path dir = Files.createTempDirectory("chipper-decoded-test");
+		try {
+			DecodedCache dc = new DecodedCache(dir);
+			byte[] src = "source".getBytes(Charsets.UTF_8);
+			HashCode key = DecodedCache.newKey("test", 1).putBytes(src).hash();
+			assertNull(dc.get(key));
+
+			ByteBuffer a = ByteBuffer.wrap("hello, ".getBytes(Charsets.UTF_8));
+			ByteBuffer b = ByteBuffer.allocateDirect(100_000);
+			dc.put(key, a, b);
+			// positions are left alone
+			assertEquals(0, a.position());
+			assertEquals(0, b.position());
+
+			ByteBuffer got = dc.get(key);
+			assertNotNull(got);
+			assertTrue(got.isReadOnly());
+			assertEquals(a.remaining()+b.remaining(), got.remaining());
+			// big entries are mapped rather than read
+			assertTrue(got.isDirect());
+			ByteBuffer head = got.duplicate();
+			head.limit(a.remaining());
+			assertEquals(a, head);
+
+			// a different kind or version is a different entry
+			assertNull(dc.get(DecodedCache.newKey("test", 2).putBytes(src).hash()));
+			assertNull(dc.get(DecodedCache.newKey("other", 1).putBytes(src).hash()));
+		} finally {
+			MoreFiles.deleteRecursively(dir, RecursiveDeleteOption.ALLOW_INSECURE);
+		}
+	}
+
+	@Test
+	public void testDiscardsGarbage() throws IOException {
+		Path dir = Files.createTempDirectory("chipper-decoded-test");
+		try {
+			DecodedCache dc = new DecodedCache(dir);
+			HashCode key = DecodedCache.newKey("test", 1).putInt(42).hash();
+			dc.put(key, ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+			Path file;
+			try (Stream<Path> s = Files.walk(dir)) {
+				file = s.filter(Files::isRegularFile).findFirst().get();
+			}
+			Files.write(file, "not a cache entry at all".getBytes(Charsets.UTF_8));
+			assertNull(dc.get(key));
+			assertFalse(Files.exists(file));
+		} finally {
+			MoreFiles.deleteRecursively(dir, RecursiveDeleteOption.ALLOW_INSECURE);
+		}
+	}
+
+	@Test
+	public void testTrim() throws IOException {
+		Path dir = Files.createTempDirectory("chipper-decoded-test");
+		try {
+			DecodedCache dc = new DecodedCache(dir);
+			for (int i = 0; i < 10; i++) {
+				dc.put(DecodedCache.newKey("test", 1).putInt(i).hash(), ByteBuffer.allocate(1000));
+			}
+			assertEquals(0, dc.trim(100_000));
+			long freed = dc.trim(5000);
+			assertTrue(freed >= 5000);
+			int left = 0;
+			for (int i = 0; i < 10; i++) {
+				if (dc.get(DecodedCache.newKey("test", 1).putInt(i).hash()) != null) left++;
+			}
+			assertTrue(left > 0 && left < 10);
+		} finally {
+			MoreFiles.deleteRecursively(dir, RecursiveDeleteOption.ALLOW_INSECURE);
+		}
+	}
+
+	private static long sizeOf(Path dir) throws IOException {
+		try (Stream<Path> s = Files.walk(dir)) {
+			return s.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+		}
+	}
+
+	@Test
+	public void testTrimsAfterPut() throws IOException, InterruptedException {
+		Path dir = Files.createTempDirectory("chipper-decoded-test");
+		try {
+			DecodedCache dc = new DecodedCache(dir, 5000);
+			for (int i = 0; i < 4; i++) {
+				dc.put(DecodedCache.newKey("test", 1).putInt(i).hash(), ByteBuffer.allocate(1000));
+			}
+			// under the limit, so nothing is trimmed
+			Thread.sleep(100);
+			assertTrue(sizeOf(dir) > 4000);
+			// keeps growing in a long session, without anyone calling trim
+			for (int i = 4; i < 30; i++) {
+				dc.put(DecodedCache.newKey("test", 1).putInt(i).hash(), ByteBuffer.allocate(1000));
+			}
+			long deadline = System.nanoTime()+10_000_000_000L;
+			while (sizeOf(dir) > 5000) {
+				assertTrue("Cache was never trimmed", System.nanoTime() < deadline);
+				Thread.sleep(10);
+			}
+			assertTrue(sizeOf(dir) > 0);
+		} finally {
+			MoreFiles.deleteRecursively(dir, RecursiveDeleteOption.ALLOW_INSECURE);
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testBadLimit() {
+		new DecodedCache(Paths.get("."), 0);
+	}
+
+}
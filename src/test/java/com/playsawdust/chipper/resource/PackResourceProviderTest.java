@@ -0,0 +1,108 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.resource;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.playsawdust.chipper.Identifier;
+
+public class PackResourceProviderTest {
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		Path dir = Files.createTempDirectory("chipper-pack-test");
+		try {
+			byte[] small = "hello".getBytes(Charsets.UTF_8);
+			byte[] text = Strings.repeat("compress me please ", 200).getBytes(Charsets.UTF_8);
+			byte[] noise = new byte[4096];
+			for (int i = 0; i < noise.length; i++) {
+				noise[i] = (byte)(i*2654435761L >>> 13);
+			}
+			PackWriter w = new PackWriter();
+			w.add(new Identifier("chipper", "small.txt"), small);
+			w.add(new Identifier("chipper", "text.txt"), text);
+			w.add(new Identifier("chipper", "forced.txt"), text, false);
+			w.add(new Identifier("other", "noise.bin"), noise);
+			w.add(new Identifier("other", "empty"), new byte[0]);
+			// enough extra entries that some of them collide
+			for (int i = 0; i < 200; i++) {
+				w.add(new Identifier("filler", "f"+i), new byte[] { (byte)i });
+			}
+			Path file = dir.resolve("test.pack");
+			w.write(file);
+
+			PackResourceProvider p = PackResourceProvider.open(file);
+			assertEquals(205, p.size());
+			assertArrayEquals(small, p.provide(new Identifier("chipper", "small.txt")).read());
+			assertArrayEquals(text, p.provide(new Identifier("chipper", "text.txt")).read());
+			assertArrayEquals(noise, ByteStreams.toByteArray(p.provide(new Identifier("other", "noise.bin")).openStream()));
+			assertEquals(0, p.provide(new Identifier("other", "empty")).read().length);
+			for (int i = 0; i < 200; i++) {
+				assertArrayEquals(new byte[] { (byte)i }, p.provide(new Identifier("filler", "f"+i)).read());
+			}
+			assertNull(p.provide(new Identifier("chipper", "missing")));
+			assertNull(p.provide(new Identifier("other", "small.txt")));
+
+			// compressible data should have been compressed, and the pack should be smaller for it
+			Path compressed = dir.resolve("compressed.pack");
+			Path stored = dir.resolve("stored.pack");
+			new PackWriter().add(new Identifier("chipper", "text.txt"), text).write(compressed);
+			new PackWriter().add(new Identifier("chipper", "text.txt"), text, false).write(stored);
+			assertTrue(Files.size(compressed) < Files.size(stored)/2);
+
+			// stored entries are views of the mapping, not copies
+			ByteBuffer forced = p.provide(new Identifier("chipper", "forced.txt")).asByteBuffer();
+			assertTrue(forced.isDirect());
+			assertTrue(forced.isReadOnly());
+			assertEquals(ByteBuffer.wrap(text), forced);
+		} finally {
+			MoreFiles.deleteRecursively(dir, RecursiveDeleteOption.ALLOW_INSECURE);
+		}
+	}
+
+	@Test
+	public void testRejectsGarbage() throws IOException {
+		Path file = Files.createTempFile("chipper-pack-test", ".pack");
+		try {
+			Files.write(file, "this is not a pack at all".getBytes(Charsets.UTF_8));
+			try {
+				PackResourceProvider.open(file);
+				fail("IOException not thrown");
+			} catch (IOException e) {}
+			// a valid header whose slot table would be 12 GiB, which wraps around to nothing as an int
+			ByteBuffer header = ByteBuffer.allocate(PackResourceProvider.HEADER_SIZE);
+			header.putInt(PackResourceProvider.MAGIC);
+			header.putShort((short)PackResourceProvider.VERSION);
+			header.putShort((short)0);
+			header.putInt(0);
+			header.putInt(1 << 30);
+			Files.write(file, header.array());
+			try {
+				PackResourceProvider.open(file);
+				fail("IOException not thrown for a huge slot count");
+			} catch (IOException e) {}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+}
@@ -0,0 +1,237 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.server;
+
+import static org.junit.Assert.*;
+import static org.lwjgl.system.rpmalloc.RPmalloc.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.lwjgl.system.Configuration;
+import org.lwjgl.system.MemoryUtil;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
+
+import com.playsawdust.chipper.Addon;
+import com.playsawdust.chipper.component.Context;
+import com.playsawdust.chipper.component.Engine;
+import com.playsawdust.chipper.component.EngineType;
+import com.playsawdust.chipper.network.Connection;
+import com.playsawdust.chipper.network.protocol.base.message.HelloMessage;
+
+public class ServerNetworkThreadTest {
+
+	@BeforeClass
+	public static void initAllocator() {
+		rpmalloc_initialize();
+		// the debug allocator's own bookkeeping lives as long as it does, so set it up here rather
+		// than on whichever network thread allocates first
+		MemoryUtil.memFree(MemoryUtil.memAlloc(1));
+	}
+
+	@SuppressWarnings("deprecation")
+	@Test
+	public void testStopsReadingFromFloodingClient() throws Exception {
+		AtomicReference<Connection> accepted = new AtomicReference<>();
+		Context<ServerEngine> serverCtx = Context.createNew(new IdleServerEngine(accepted));
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		try (ServerSocketChannel tcp = ServerSocketChannel.open(); DatagramChannel udp = DatagramChannel.open()) {
+			tcp.bind(new InetSocketAddress(loopback, 0));
+			udp.bind(new InetSocketAddress(loopback, ((InetSocketAddress)tcp.getLocalAddress()).getPort()));
+			tcp.configureBlocking(false);
+			udp.configureBlocking(false);
+			ServerNetworkThread thread = new ServerNetworkThread(serverCtx, tcp, udp);
+			thread.start();
+			try (SocketChannel sc = SocketChannel.open(tcp.getLocalAddress())) {
+				Connection client = new Connection(Context.createNew(new ClientEngine()), () -> {}, sc, null);
+				client.sendMessage(new HelloMessage());
+				pump(client);
+				long deadline = System.nanoTime()+5_000_000_000L;
+				while (accepted.get() == null) {
+					assertTrue("Server never received the hello", System.nanoTime() < deadline);
+					Thread.sleep(5);
+				}
+				Connection server = accepted.get();
+				server.setInboundLimits(0, 0, Connection.DEFAULT_MAX_READ_BUFFER_SIZE, 100);
+				// the client never reads, and the server never processes, so nothing but the
+				// limit can stop the server from reading all of these
+				for (int burst = 0; burst < 20; burst++) {
+					for (int i = 0; i < 50; i++) {
+						client.sendMessage(new HelloMessage());
+					}
+					pump(client);
+					Thread.sleep(20);
+				}
+				Thread.sleep(200);
+				int unprocessed = server.getUnprocessedMessageCount();
+				assertTrue("Server kept reading past its limit ("+unprocessed+" messages queued)", unprocessed >= 100 && unprocessed < 500);
+			} finally {
+				thread.shutdown();
+				thread.join(5000);
+			}
+		}
+	}
+
+	@SuppressWarnings("deprecation")
+	@Test
+	public void testSpreadsConnectionsAndShutsDownCleanly() throws Exception {
+		Map<Connection, Thread> owners = new ConcurrentHashMap<>();
+		Context<ServerEngine> serverCtx = Context.createNew(new RecordingServerEngine(owners));
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		List<SocketChannel> clients = Lists.newArrayList();
+		try (ServerSocketChannel tcp = ServerSocketChannel.open(); DatagramChannel udp = DatagramChannel.open()) {
+			tcp.bind(new InetSocketAddress(loopback, 0));
+			udp.bind(new InetSocketAddress(loopback, ((InetSocketAddress)tcp.getLocalAddress()).getPort()));
+			tcp.configureBlocking(false);
+			udp.configureBlocking(false);
+			ServerNetworkThread thread = new ServerNetworkThread(serverCtx, tcp, udp, 3);
+			thread.start();
+			try {
+				for (int i = 0; i < 6; i++) {
+					SocketChannel sc = SocketChannel.open(tcp.getLocalAddress());
+					clients.add(sc);
+					Connection client = new Connection(Context.createNew(new ClientEngine()), () -> {}, sc, null);
+					client.sendMessage(new HelloMessage());
+					pump(client);
+					// one at a time, so they're accepted in a known order
+					long deadline = System.nanoTime()+5_000_000_000L;
+					while (owners.size() <= i) {
+						assertTrue("Server never received hello #"+(i+1), System.nanoTime() < deadline);
+						Thread.sleep(5);
+					}
+				}
+			} finally {
+				thread.shutdown();
+				thread.join(5000);
+			}
+			assertFalse("Acceptor thread didn't stop", thread.isAlive());
+			Multiset<Thread> perThread = HashMultiset.create(owners.values());
+			assertEquals("Connections weren't spread over every I/O thread", 3, perThread.elementSet().size());
+			for (Thread t : perThread.elementSet()) {
+				assertNotSame("Acceptor thread did I/O itself", thread, t);
+				assertEquals(2, perThread.count(t));
+				t.join(5000);
+				assertFalse(t.getName()+" didn't stop", t.isAlive());
+			}
+			if (Configuration.DEBUG_MEMORY_ALLOCATOR.get(false)) {
+				// every reactor frees its read buffer on the way out
+				for (Thread t : perThread.elementSet()) {
+					assertEquals("Native memory left behind by "+t.getName(), 0, outstandingNativeBytes(t));
+				}
+				assertEquals("Native memory left behind by the acceptor", 0, outstandingNativeBytes(thread));
+			}
+		} finally {
+			for (SocketChannel sc : clients) {
+				sc.close();
+			}
+		}
+	}
+
+	private static long outstandingNativeBytes(Thread thread) {
+		long id = thread.getId();
+		long[] total = {0};
+		MemoryUtil.memReport((address, memory, threadId, threadName, stacktrace) -> {
+			if (threadId == id) total[0] += memory;
+		});
+		return total[0];
+	}
+
+	@SuppressWarnings("deprecation")
+	private static void pump(Connection c) {
+		while (c.wantsWrite()) {
+			assertFalse(c.writePending());
+		}
+	}
+
+	private static final class ClientEngine implements Engine {
+		@Override
+		@Deprecated
+		public Addon getDefaultAddon() { return null; }
+		@Override
+		public int run(String... args) { return 0; }
+		@Override
+		public EngineType getType() { return EngineType.HEADLESS_CLIENT; }
+	}
+
+	private static final class RecordingServerEngine extends ServerEngine {
+		private final Map<Connection, Thread> owners;
+
+		public RecordingServerEngine(Map<Connection, Thread> owners) {
+			this.owners = owners;
+		}
+
+		@Override
+		@Deprecated
+		public Addon getDefaultAddon() { return null; }
+		@Override
+		public int run(String... args) { return 0; }
+		@Override
+		public EngineType getType() { return EngineType.DEDICATED_SERVER; }
+		@Override
+		public boolean isPortcheckServer(InetAddress address) { return false; }
+		@Override
+		public boolean isPortcheckToken(long token) { return false; }
+		@Override
+		public void onPortcheckResponseTCP() {}
+		@Override
+		public void onPortcheckResponseUDP(String publicAddress) {}
+		@Override
+		public void enqueueProcessing(Connection connection) {
+			// called by whichever thread read the message, which is the one that owns the connection
+			owners.putIfAbsent(connection, Thread.currentThread());
+		}
+		@Override
+		public TickLoop getTickLoop() { return null; }
+	}
+
+	private static final class IdleServerEngine extends ServerEngine {
+		private final AtomicReference<Connection> accepted;
+
+		public IdleServerEngine(AtomicReference<Connection> accepted) {
+			this.accepted = accepted;
+		}
+
+		@Override
+		@Deprecated
+		public Addon getDefaultAddon() { return null; }
+		@Override
+		public int run(String... args) { return 0; }
+		@Override
+		public EngineType getType() { return EngineType.DEDICATED_SERVER; }
+		@Override
+		public boolean isPortcheckServer(InetAddress address) { return false; }
+		@Override
+		public boolean isPortcheckToken(long token) { return false; }
+		@Override
+		public void onPortcheckResponseTCP() {}
+		@Override
+		public void onPortcheckResponseUDP(String publicAddress) {}
+		@Override
+		public void enqueueProcessing(Connection connection) {
+			// never process anything, so only the limits can hold back the flood
+			accepted.compareAndSet(null, connection);
+		}
+		@Override
+		public TickLoop getTickLoop() { return null; }
+	}
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Chipper - an open polyglot game engine
+ * Copyright (C) 2019-2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.server;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.playsawdust.chipper.server.TickLoop.CatchUpPolicy;
+import com.playsawdust.chipper.server.TickLoop.Phase;
+
+public class TickLoopTest {
+
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	// with no connections, nothing is ever processed on the executor
+	private static final Executor NO_EXECUTOR = r -> {
+		throw new AssertionError("Nothing to process");
+	};
+
+	private static void record(TickLoop loop, long total) {
+		// a quarter processing, half ticking, a quarter flushing
+		loop.record(0, total/4, total*3/4, total);
+	}
+
+	@Test
+	public void testBurst() {
+		// 50ms per tick
+		TickLoop loop = new TickLoop(NO_EXECUTOR, 20);
+		assertEquals(0, loop.catchUp(0));
+		assertEquals(0, loop.catchUp(49*MS));
+		assertEquals(0, loop.catchUp(10*50*MS));
+		// up to a second's worth of ticks are run back to back
+		assertEquals(0, loop.catchUp(20*50*MS+49*MS));
+		assertEquals(0, loop.getSkippedCount());
+		// beyond that, they're all skipped
+		assertEquals(21, loop.catchUp(21*50*MS));
+		assertEquals(21, loop.getSkippedCount());
+		assertEquals(100, loop.catchUp(100*50*MS+1));
+		assertEquals(121, loop.getSkippedCount());
+	}
+
+	@Test
+	public void testSkip() {
+		TickLoop loop = new TickLoop(NO_EXECUTOR, 20);
+		loop.setCatchUpPolicy(CatchUpPolicy.SKIP);
+		assertEquals(0, loop.catchUp(0));
+		// not a whole tick behind yet
+		assertEquals(0, loop.catchUp(49*MS));
+		assertEquals(1, loop.catchUp(50*MS));
+		assertEquals(3, loop.catchUp(3*50*MS+5));
+		assertEquals(4, loop.getSkippedCount());
+	}
+
+	@Test
+	public void testPercentiles() {
+		TickLoop loop = new TickLoop(NO_EXECUTOR, 20);
+		assertEquals(0, loop.getTickTimePercentile(50), 0);
+		assertEquals(0, loop.getAveragePhaseTime(Phase.TICK), 0);
+		List<Long> times = Lists.newArrayList();
+		for (long i = 1; i <= 100; i++) {
+			times.add(i*MS);
+		}
+		Collections.shuffle(times, new Random(42));
+		for (long t : times) {
+			record(loop, t);
+		}
+		assertEquals(1, loop.getTickTimePercentile(0), 0);
+		assertEquals(1, loop.getTickTimePercentile(1), 0);
+		assertEquals(50, loop.getTickTimePercentile(50), 0);
+		assertEquals(95, loop.getTickTimePercentile(95), 0);
+		assertEquals(99, loop.getTickTimePercentile(99), 0);
+		assertEquals(100, loop.getTickTimePercentile(100), 0);
+		assertEquals(50.5/4, loop.getAveragePhaseTime(Phase.PROCESS), 0.01);
+		assertEquals(50.5/2, loop.getAveragePhaseTime(Phase.TICK), 0.01);
+		assertEquals(50.5/4, loop.getAveragePhaseTime(Phase.FLUSH), 0.01);
+		// 51 through 100 took longer than 50ms
+		assertEquals(50, loop.getOverrunCount());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testBadPercentile() {
+		new TickLoop(NO_EXECUTOR, 20).getTickTimePercentile(101);
+	}
+
+	@Test
+	public void testStatsWindow() {
+		TickLoop loop = new TickLoop(NO_EXECUTOR, 20);
+		for (int i = 0; i < TickLoop.STATS_WINDOW; i++) {
+			record(loop, MS);
+		}
+		for (int i = 0; i < 10; i++) {
+			record(loop, 60*MS);
+		}
+		assertEquals(60, loop.getTickTimePercentile(100), 0);
+		assertEquals(1, loop.getTickTimePercentile(99), 0);
+		// the slow ticks eventually age out, but still count as overruns
+		for (int i = 0; i < TickLoop.STATS_WINDOW; i++) {
+			record(loop, 2*MS);
+		}
+		assertEquals(2, loop.getTickTimePercentile(100), 0);
+		assertEquals(2, loop.getAveragePhaseTime(Phase.PROCESS)*4, 0.01);
+		assertEquals(10, loop.getOverrunCount());
+	}
+
+	private TickLoop runWithStall(CatchUpPolicy policy, long stallMillis) throws InterruptedException {
+		// 10ms per tick
+		TickLoop loop = new TickLoop(NO_EXECUTOR, 100);
+		loop.setCatchUpPolicy(policy);
+		loop.addListener(tick -> {
+			if (tick == 2) {
+				try {
+					Thread.sleep(stallMillis);
+				} catch (InterruptedException e) {
+					throw new AssertionError(e);
+				}
+			} else if (tick == 60) {
+				loop.stop();
+			}
+		});
+		Thread t = new Thread(loop, "Tick thread");
+		t.setDaemon(true);
+		t.start();
+		t.join(10000);
+		assertFalse(t.isAlive());
+		assertEquals(61, loop.getTick());
+		assertTrue(loop.getOverrunCount() >= 1);
+		assertTrue(loop.getTickTimePercentile(100) >= stallMillis);
+		return loop;
+	}
+
+	@Test
+	public void testRunBursts() throws InterruptedException {
+		TickLoop loop = runWithStall(CatchUpPolicy.BURST, 300);
+		assertEquals(0, loop.getSkippedCount());
+	}
+
+	@Test
+	public void testRunSkips() throws InterruptedException {
+		TickLoop loop = runWithStall(CatchUpPolicy.SKIP, 300);
+		// about 30 missed, give or take scheduling
+		assertTrue(loop.getSkippedCount() >= 20);
+	}
+
+	@Test
+	public void testRunSkipsLongStallsWhenBursting() throws InterruptedException {
+		TickLoop loop = runWithStall(CatchUpPolicy.BURST, 1200);
+		assertTrue(loop.getSkippedCount() >= 100);
+	}
+
+}
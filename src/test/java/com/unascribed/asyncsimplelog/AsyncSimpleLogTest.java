@@ -0,0 +1,264 @@
+/*
+ * AsyncSimpleLog - a simple, fast, and pretty logger for SLF4j
+ * Copyright (c) 2019 Una Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.unascribed.asyncsimplelog;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.unascribed.asyncsimplelog.AsyncSimpleLog.LogLevel;
+import com.unascribed.asyncsimplelog.AsyncSimpleLog.OverflowPolicy;
+
+public class AsyncSimpleLogTest {
+
+	private static final int RING_SIZE = 8192;
+
+	// what the log thread writes, optionally holding it up inside its first write
+	private static final class Capture extends OutputStream {
+		private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release;
+
+		public Capture(boolean blocking) {
+			release = new CountDownLatch(blocking ? 1 : 0);
+		}
+
+		@Override
+		public void write(int b) {
+			write(new byte[] {(byte)b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			entered.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new AssertionError(e);
+			}
+			synchronized (buf) {
+				buf.write(b, off, len);
+			}
+		}
+
+		public String get() {
+			synchronized (buf) {
+				return new String(buf.toByteArray(), Charsets.UTF_8);
+			}
+		}
+	}
+
+	private Capture capture;
+
+	private Capture start(boolean blocking) {
+		AsyncSimpleLog.stopLogging();
+		capture = new Capture(blocking);
+		PrintStream realOut = System.out;
+		System.setOut(new PrintStream(capture, false));
+		try {
+			AsyncSimpleLog.startLogging();
+		} finally {
+			System.setOut(realOut);
+		}
+		return capture;
+	}
+
+	@After
+	public void tearDown() {
+		if (capture != null) {
+			capture.release.countDown();
+		}
+		AsyncSimpleLog.stopLogging();
+		AsyncSimpleLog.setOverflowPolicy(OverflowPolicy.BLOCK);
+		AsyncSimpleLog.setJson(false);
+		AsyncSimpleLog.setMinLogLevel(LogLevel.INFO);
+	}
+
+	private static void await(String what, BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime()+TimeUnit.SECONDS.toNanos(10);
+		while (!condition.getAsBoolean()) {
+			assertTrue("Timed out waiting for "+what, System.nanoTime() < deadline);
+			Thread.sleep(5);
+		}
+	}
+
+	private static void awaitLine(Capture c, String line) throws InterruptedException {
+		await(line, () -> c.get().contains(line+System.lineSeparator()));
+	}
+
+	// the numbers of the "record N" lines logged by the given logger, in the order they were written
+	private static List<Integer> records(Capture c, String logger) {
+		List<Integer> li = Lists.newArrayList();
+		String marker = "/"+logger+"] record ";
+		for (String line : c.get().split(System.lineSeparator())) {
+			int idx = line.indexOf(marker);
+			if (idx != -1) {
+				li.add(Integer.parseInt(line.substring(idx+marker.length())));
+			}
+		}
+		return li;
+	}
+
+	@Test
+	public void testKeepsOrderAcrossLaps() throws InterruptedException {
+		Capture c = start(false);
+		LoggerImpl log = new LoggerImpl("ringtest");
+		int count = RING_SIZE*3;
+		for (int i = 0; i < count; i++) {
+			log.info("record "+i);
+		}
+		awaitLine(c, "record "+(count-1));
+		List<Integer> li = records(c, "ringtest");
+		assertEquals(count, li.size());
+		for (int i = 0; i < count; i++) {
+			assertEquals(i, (int)li.get(i));
+		}
+	}
+
+	@Test
+	public void testKeepsEverythingBeforeStart() throws InterruptedException {
+		AsyncSimpleLog.stopLogging();
+		// even with nothing running and the most lossy policy
+		AsyncSimpleLog.setOverflowPolicy(OverflowPolicy.DROP);
+		long dropped = AsyncSimpleLog.getDroppedCount();
+		LoggerImpl log = new LoggerImpl("startuptest");
+		int count = RING_SIZE+1000;
+		for (int i = 0; i < count; i++) {
+			log.error("record "+i);
+		}
+		assertEquals(dropped, AsyncSimpleLog.getDroppedCount());
+		Capture c = start(false);
+		// logged while the backlog is still being written, so must come after it
+		log.error("record "+count);
+		awaitLine(c, "record "+count);
+		List<Integer> li = records(c, "startuptest");
+		assertEquals(count+1, li.size());
+		for (int i = 0; i <= count; i++) {
+			assertEquals(i, (int)li.get(i));
+		}
+	}
+
+	@Test
+	public void testCountsDrops() throws InterruptedException {
+		Capture c = start(true);
+		AsyncSimpleLog.setOverflowPolicy(OverflowPolicy.DROP);
+		LoggerImpl log = new LoggerImpl("droptest");
+		log.info("blocker");
+		assertTrue(c.entered.await(10, TimeUnit.SECONDS));
+		long dropped = AsyncSimpleLog.getDroppedCount();
+		int i = 0;
+		// the log thread is stuck in a write, so the ring fills up
+		while (AsyncSimpleLog.getDroppedCount() == dropped) {
+			assertTrue("Ring never filled up", i < RING_SIZE*2);
+			log.info("record "+(i++));
+		}
+		for (int j = 0; j < 100; j++) {
+			log.info("record "+(i++));
+		}
+		long ourDrops = AsyncSimpleLog.getDroppedCount()-dropped;
+		assertTrue(ourDrops >= 101);
+		c.release.countDown();
+		AsyncSimpleLog.setOverflowPolicy(OverflowPolicy.BLOCK);
+		log.info("record "+i);
+		awaitLine(c, "record "+i);
+		assertTrue(c.get().contains("log records were dropped as the log buffer was full"));
+		List<Integer> li = records(c, "droptest");
+		// what wasn't dropped is still in order
+		for (int j = 1; j < li.size(); j++) {
+			assertTrue(li.get(j) > li.get(j-1));
+		}
+		assertEquals(i+1-ourDrops, li.size());
+		assertEquals(i, (int)li.get(li.size()-1));
+	}
+
+	@Test
+	public void testDropsOnlyVerboseRecords() throws InterruptedException {
+		AsyncSimpleLog.setMinLogLevel(LogLevel.TRACE);
+		Capture c = start(true);
+		AsyncSimpleLog.setOverflowPolicy(OverflowPolicy.DROP);
+		LoggerImpl log = new LoggerImpl("verbosetest");
+		log.info("blocker");
+		assertTrue(c.entered.await(10, TimeUnit.SECONDS));
+		long dropped = AsyncSimpleLog.getDroppedCount();
+		for (int i = 0; AsyncSimpleLog.getDroppedCount() == dropped; i++) {
+			assertTrue("Ring never filled up", i < RING_SIZE*2);
+			log.info("filler");
+		}
+		AsyncSimpleLog.setOverflowPolicy(OverflowPolicy.DROP_VERBOSE);
+		dropped = AsyncSimpleLog.getDroppedCount();
+		log.debug("record 0");
+		log.trace("record 1");
+		assertEquals(dropped+2, AsyncSimpleLog.getDroppedCount());
+		Thread t = new Thread(() -> log.warn("record 2"), "Blocked logging thread");
+		t.setDaemon(true);
+		t.start();
+		t.join(200);
+		// waiting for room, not dropped
+		assertTrue(t.isAlive());
+		assertEquals(dropped+2, AsyncSimpleLog.getDroppedCount());
+		c.release.countDown();
+		t.join(10000);
+		assertFalse(t.isAlive());
+		awaitLine(c, "record 2");
+		List<Integer> li = records(c, "verbosetest");
+		assertEquals(1, li.size());
+	}
+
+	@Test
+	public void testJson() throws InterruptedException {
+		AsyncSimpleLog.setJson(true);
+		Capture c = start(false);
+		LoggerImpl log = new LoggerImpl("jsontest");
+		log.warn("a \"quoted\" back\\slash\nnew line\tand \u0001", new IllegalStateException("boom"));
+		await("JSON record", () -> c.get().contains("\"logger\":\"jsontest\""));
+		String line = null;
+		for (String s : c.get().split("\n")) {
+			if (s.contains("\"logger\":\"jsontest\"")) {
+				line = s;
+			}
+		}
+		assertNotNull(line);
+		assertTrue(line, line.startsWith("{\"time\":"));
+		assertTrue(line, line.endsWith("\"}"));
+		assertTrue(line, line.contains(",\"level\":\"WARN\","));
+		assertTrue(line, line.contains(",\"thread\":\""+Thread.currentThread().getName()+"\","));
+		assertTrue(line, line.contains(",\"message\":\"a \\\"quoted\\\" back\\\\slash\\nnew line\\tand \\u0001\","));
+		assertTrue(line, line.contains(",\"exception\":\"java.lang.IllegalStateException: boom"));
+		for (int i = 0; i < line.length(); i++) {
+			assertTrue("Unescaped control character at "+i, line.charAt(i) >= 0x20);
+		}
+	}
+
+}